@@ -3,5 +3,5 @@ import { UserNameId } from './user-name-id';
 export interface Company {
   _id: string;  // The name of the company
   count: number; // The number of users in the company
-  users: UserNameId[]; // The users in the company
+  users: UserNameId[]; // The first few users in the company (by name)
 }
@@ -0,0 +1,38 @@
+import { HttpClient, HttpParams } from '@angular/common/http';
+import { Observable, of } from 'rxjs';
+import { map, switchMap } from 'rxjs/operators';
+
+// The response header holding the token for the next page, if there is one.
+export const NEXT_PAGE_HEADER = 'X-Next-Page';
+
+// The query parameter that asks the server for the page after a token.
+export const AFTER_KEY = 'after';
+
+/**
+ * Get every page of a list from the server.
+ *
+ * The server only sends one page of a list at a time (20 items, unless
+ * the request gives a `limit`), and if there's more it sets the
+ * `X-Next-Page` header to a token. Asking again with that token as the
+ * `after` parameter gets the next page, and so on until a page comes
+ * back without one.
+ *
+ * @param httpClient the `HttpClient` to make the requests with
+ * @param url the URL of the list
+ * @param params the parameters (e.g., filters) to send with every request
+ * @returns an `Observable` of all the pages' items, in order
+ */
+export function getAllPages<T>(httpClient: HttpClient, url: string, params: HttpParams): Observable<T[]> {
+  return httpClient.get<T[]>(url, { params, observe: 'response' }).pipe(
+    switchMap(response => {
+      const page = response.body ?? [];
+      const next = response.headers.get(NEXT_PAGE_HEADER);
+      if (!next) {
+        return of(page);
+      }
+      return getAllPages<T>(httpClient, url, params.set(AFTER_KEY, next)).pipe(
+        map(rest => page.concat(rest))
+      );
+    })
+  );
+}
@@ -20,9 +20,10 @@ import { MatButtonModule } from '@angular/material/button';
  * A component that displays a list of todos, either as a grid
  * of cards or as a vertical list.
  *
- * The component supports local filtering by Owner and/or Body,
- * and remote filtering (i.e., filtering by the server) by
- * Status and/or Category.
+ * The component supports local filtering by Owner, and remote
+ * filtering (i.e., filtering by the server) by Status, Body,
+ * and/or Category. The server also sorts the todos and, unless
+ * we're filtering by Owner, applies the Limit.
  */
 
 @Component({
@@ -65,7 +66,13 @@ export class TodoListComponent implements OnInit, OnDestroy {
    */
   getTodosFromServer() {
     this.todoService.getTodos({
-      category: this.todoCategory
+      category: this.todoCategory,
+      status: this.todoStatus,
+      body: this.todoBody,
+      order: this.todoOrder,
+      // The owner filter is applied here on the client, so the server
+      // can only apply the limit when we aren't filtering by owner.
+      limit: this.todoOwner ? undefined : this.todoLimit
     }).pipe(
       takeUntil(this.ngUnsubscribe)
     ).subscribe({
@@ -86,11 +93,7 @@ export class TodoListComponent implements OnInit, OnDestroy {
   public updateFilter() {
     this.filteredTodos = this.todoService.filterTodos(
       this.serverFilteredTodos, { owner: this.todoOwner,
-                                  status: this.todoStatus,
-                                  category: this.todoCategory,
-                                  body: this.todoBody,
-                                  limit: this.todoLimit,
-                                  order: this.todoOrder}
+                                  limit: this.todoLimit }
     );
   }
 
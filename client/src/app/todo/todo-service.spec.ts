@@ -78,6 +78,26 @@ describe('TodoService', () => {
     });
   });
 
+  describe('getTodos() without a limit', () => {
+    it('follows the X-Next-Page token until it has every page', () => {
+      todoService.getTodos({ owner: 'Fry' }).subscribe(
+        todos => expect(todos).toEqual(testTodos)
+      );
+
+      const first = httpTestingController.expectOne(
+        (request) => request.url === todoService.todoUrl && !request.params.has('after')
+      );
+      first.flush(testTodos.slice(0, 3), { headers: { 'X-Next-Page': 'token' } });
+
+      const second = httpTestingController.expectOne(
+        (request) => request.url === todoService.todoUrl && request.params.get('after') === 'token'
+      );
+      // The filters are sent with every page.
+      expect(second.request.params.get('owner')).toEqual('Fry');
+      second.flush(testTodos.slice(3));
+    });
+  });
+
   describe('getTodoById()', () => {
     it('calls api/todos/id', () => {
       const targetTodo: Todo = testTodos[1];
@@ -165,5 +185,23 @@ describe('TodoService', () => {
 
       req.flush(testTodos);
     });
+
+    it('sends a false status and the sort order to the server', () => {
+      todoService.getTodos({status: false, order: "category", limit: 5}).subscribe(
+        todos => expect(todos).toBe(testTodos)
+      );
+
+      const req = httpTestingController.expectOne(
+        (request) => request.url.startsWith(todoService.todoUrl)
+          && request.params.has('status') && request.params.has('order')
+      );
+
+      expect(req.request.method).toEqual('GET');
+      expect(req.request.params.get('status')).toEqual('false');
+      expect(req.request.params.get('order')).toEqual('category');
+      expect(req.request.params.get('limit')).toEqual('5');
+
+      req.flush(testTodos);
+    });
   });
 });
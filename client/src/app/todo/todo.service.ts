@@ -4,6 +4,7 @@ import { Observable } from 'rxjs';
 import { environment } from '../../environments/environment';
 import { Todo } from './todo';
 import { map } from 'rxjs/operators';
+import { getAllPages } from '../paging';
 
 /**
  * Service that provides the interface for getting information
@@ -23,7 +24,8 @@ export class TodoService {
 
   /**
    * Get all the todos from the server, filtered by the information
-   * in the `filters` map.
+   * in the `filters` map. Without a `limit`, this follows the server's
+   * pages until it has every matching todo (see `getAllPages`).
    *
    * @param filters a map that allows us to specify a target title, description, or category to filter by, or any combination of those
    * @returns an `Observable` of an array of `Todos`.
@@ -34,7 +36,8 @@ export class TodoService {
       if (filters.owner) {
         httpParams = httpParams.set('owner', filters.owner);
       }
-      if (filters.status) {
+      // `false` is a legal status to filter by, so check for `undefined`
+      if (filters.status !== undefined) {
         httpParams = httpParams.set('status', filters.status);
       }
       if (filters.body) {
@@ -46,14 +49,17 @@ export class TodoService {
       if (filters.limit) {
         httpParams = httpParams.set('limit', filters.limit);
       }
-      if (filters.limit) {
-        httpParams = httpParams.set('order', filters.limit);
+      if (filters.order) {
+        httpParams = httpParams.set('order', filters.order);
       }
 
     }
-    return this.httpClient.get<Todo[]>(this.todoUrl, {
-      params: httpParams,
-    });
+    if (filters?.limit) {
+      return this.httpClient.get<Todo[]>(this.todoUrl, {
+        params: httpParams,
+      });
+    }
+    return getAllPages<Todo>(this.httpClient, this.todoUrl, httpParams);
   }
 /**
  * @param id The ID of the Todo to get
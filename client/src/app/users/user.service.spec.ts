@@ -1,4 +1,4 @@
-import { HttpClient, HttpParams } from '@angular/common/http';
+import { HttpClient, HttpParams, HttpResponse } from '@angular/common/http';
 import { HttpClientTestingModule, HttpTestingController } from '@angular/common/http/testing';
 import { TestBed, waitForAsync } from '@angular/core/testing';
 import { of } from 'rxjs';
@@ -81,7 +81,7 @@ describe('UserService', () => {
     it('calls `api/users`', waitForAsync(() => {
       // Mock the `httpClient.get()` method, so that instead of making an HTTP request,
       // it just returns our test data.
-      const mockedMethod = spyOn(httpClient, 'get').and.returnValue(of(testUsers));
+      const mockedMethod = spyOn(httpClient, 'get').and.returnValue(of(new HttpResponse({ body: testUsers })));
 
       // Call `userService.getUsers()` and confirm that the correct call has
       // been made with the correct arguments.
@@ -103,7 +103,7 @@ describe('UserService', () => {
         //   * An options object containing an empty `HttpParams`
         expect(mockedMethod)
           .withContext('talks to the correct endpoint')
-          .toHaveBeenCalledWith(userService.userUrl, { params: new HttpParams() });
+          .toHaveBeenCalledWith(userService.userUrl, { params: new HttpParams(), observe: 'response' });
       });
     }));
   });
@@ -130,7 +130,7 @@ describe('UserService', () => {
     */
 
     it('correctly calls api/users with filter parameter \'admin\'', () => {
-        const mockedMethod = spyOn(httpClient, 'get').and.returnValue(of(testUsers));
+        const mockedMethod = spyOn(httpClient, 'get').and.returnValue(of(new HttpResponse({ body: testUsers })));
 
         userService.getUsers({ role: 'admin' }).subscribe(() => {
           expect(mockedMethod)
@@ -142,12 +142,12 @@ describe('UserService', () => {
           //     key-value pair.
           expect(mockedMethod)
             .withContext('talks to the correct endpoint')
-            .toHaveBeenCalledWith(userService.userUrl, { params: new HttpParams().set('role', 'admin') });
+            .toHaveBeenCalledWith(userService.userUrl, { params: new HttpParams().set('role', 'admin'), observe: 'response' });
         });
     });
 
     it('correctly calls api/users with filter parameter \'age\'', () => {
-      const mockedMethod = spyOn(httpClient, 'get').and.returnValue(of(testUsers));
+      const mockedMethod = spyOn(httpClient, 'get').and.returnValue(of(new HttpResponse({ body: testUsers })));
 
       userService.getUsers({ age: 25 }).subscribe(() => {
         expect(mockedMethod)
@@ -155,12 +155,12 @@ describe('UserService', () => {
           .toHaveBeenCalledTimes(1);
         expect(mockedMethod)
           .withContext('talks to the correct endpoint')
-          .toHaveBeenCalledWith(userService.userUrl, { params: new HttpParams().set('age', '25') });
+          .toHaveBeenCalledWith(userService.userUrl, { params: new HttpParams().set('age', '25'), observe: 'response' });
       });
     });
 
     it('correctly calls api/users with multiple filter parameters', () => {
-        const mockedMethod = spyOn(httpClient, 'get').and.returnValue(of(testUsers));
+        const mockedMethod = spyOn(httpClient, 'get').and.returnValue(of(new HttpResponse({ body: testUsers })));
 
         userService.getUsers({ role: 'editor', company: 'IBM', age: 37 }).subscribe(() => {
           // This test checks that the call to `userService.getUsers()` does several things:
@@ -201,6 +201,27 @@ describe('UserService', () => {
     });
   });
 
+  describe('When the server sends the users a page at a time', () => {
+    it('follows the `X-Next-Page` token until it has every page', () => {
+      userService.getUsers({ role: 'admin' }).subscribe(users => {
+        expect(users)
+          .withContext('returns the users from both pages')
+          .toEqual(testUsers);
+      });
+
+      const first = httpTestingController.expectOne(
+        request => request.url === userService.userUrl && !request.params.has('after'));
+      first.flush(testUsers.slice(0, 2), { headers: { 'X-Next-Page': 'token' } });
+
+      const second = httpTestingController.expectOne(
+        request => request.url === userService.userUrl && request.params.get('after') === 'token');
+      expect(second.request.params.get('role'))
+        .withContext('keeps the filters')
+        .toEqual('admin');
+      second.flush(testUsers.slice(2));
+    });
+  });
+
   describe('When getUserById() is given an ID', () => {
    /* We really don't care what `getUserById()` returns. Since all the
     * interesting work is happening on the server, `getUserById()`
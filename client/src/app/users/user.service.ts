@@ -5,6 +5,7 @@ import { environment } from '../../environments/environment';
 import { User, UserRole } from './user';
 import { map } from 'rxjs/operators';
 import { Company } from '../company-list/company';
+import { getAllPages } from '../paging';
 
 /**
  * Service that provides the interface for getting information
@@ -46,7 +47,9 @@ export class UserService {
    *  in an `Observable` means that other bits of of code can `subscribe` to
    *  the result (the `Observable`) and get the results that come back
    *  from the server after a possibly substantial delay (because we're
-   *  contacting a remote server over the Internet).
+   *  contacting a remote server over the Internet). The server sends
+   *  the users a page at a time, so this follows the pages until it has
+   *  every matching user (see `getAllPages`).
    */
   getUsers(filters?: { role?: UserRole; age?: number; company?: string }): Observable<User[]> {
     // `HttpParams` is essentially just a map used to hold key-value
@@ -64,11 +67,9 @@ export class UserService {
         httpParams = httpParams.set(this.companyKey, filters.company);
       }
     }
-    // Send the HTTP GET request with the given URL and parameters.
-    // That will return the desired `Observable<User[]>`.
-    return this.httpClient.get<User[]>(this.userUrl, {
-      params: httpParams,
-    });
+    // Send the HTTP GET request (or requests, one per page) with the
+    // given URL and parameters. That will return the desired `Observable<User[]>`.
+    return getAllPages<User>(this.httpClient, this.userUrl, httpParams);
   }
 
   /**
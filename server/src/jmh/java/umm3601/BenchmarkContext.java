@@ -0,0 +1,130 @@
+package umm3601;
+
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.HttpStatus;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Just enough of a Javalin `Context` for benchmarks of code that reads a
+ * request's query parameters and body: a mock would measure Mockito rather
+ * than our code. Everything else is unsupported.
+ */
+public class BenchmarkContext implements Context {
+
+  private final Map<String, List<String>> queryParams = new LinkedHashMap<>();
+  private String body = "";
+
+  /**
+   * Add a query parameter to the request.
+   *
+   * @param key the parameter's name
+   * @param value its value
+   * @return this context
+   */
+  public BenchmarkContext queryParam(String key, String value) {
+    queryParams.put(key, List.of(value));
+    return this;
+  }
+
+  /**
+   * Set the body of the request.
+   *
+   * @param json the body
+   * @return this context
+   */
+  public BenchmarkContext body(String json) {
+    body = json;
+    return this;
+  }
+
+  @Override
+  public Map<String, List<String>> queryParamMap() {
+    return queryParams;
+  }
+
+  @Override
+  public String queryParam(String key) {
+    List<String> values = queryParams.get(key);
+    return values == null ? null : values.get(0);
+  }
+
+  @Override
+  public String body() {
+    return body;
+  }
+
+  @Override
+  public HttpServletRequest req() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public HttpServletResponse res() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public <T> T appAttribute(String key) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public HandlerType handlerType() {
+    return HandlerType.GET;
+  }
+
+  @Override
+  public String matchedPath() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public String endpointHandlerPath() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public String pathParam(String key) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Map<String, String> pathParamMap() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public ServletOutputStream outputStream() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public Context result(InputStream resultStream) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public InputStream resultInputStream() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void future(Supplier<? extends CompletableFuture<?>> future) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void redirect(String location, HttpStatus status) {
+    throw new UnsupportedOperationException();
+  }
+}
@@ -0,0 +1,88 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.json.JavalinJackson;
+import umm3601.todo.Todo;
+import umm3601.user.User;
+
+/**
+ * Benchmarks turning lists of todos and users into JSON with the same
+ * Jackson mapper `ctx.json()` uses, for lists of several sizes (from one
+ * todo to a whole unpaged `GET /api/todos`).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({ "MagicNumber", "VisibilityModifier" })
+public class JsonSerializationBenchmark {
+
+  private static final ObjectMapper MAPPER = JavalinJackson.defaultMapper();
+
+  private static final String[] OWNERS = {"Blanche", "Fry", "Barry", "Roberta", "Dawn", "Workman"};
+  private static final String[] CATEGORIES = {"software design", "video games", "homework", "groceries"};
+  private static final String[] ROLES = {"admin", "editor", "viewer"};
+
+  /** How many todos (and users) to serialize; JMH sets this. */
+  @Param({"1", "20", "300", "5000"})
+  public int size;
+
+  private ArrayList<Todo> todos;
+  private ArrayList<User> users;
+
+  @Setup
+  public void setup() {
+    todos = new ArrayList<>(size);
+    users = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      Todo todo = new Todo();
+      todo._id = new ObjectId().toHexString();
+      todo.owner = OWNERS[i % OWNERS.length];
+      todo.category = CATEGORIES[i % CATEGORIES.length];
+      todo.status = i % 2 == 0;
+      todo.body = "Ipsum esse est ullamco magna tempor anim laborum non officia deserunt veniam commodo "
+        + "ut incididunt. Fugiat proident laborum fugiat aliqua, number " + i + ".";
+      todos.add(todo);
+
+      User user = new User();
+      user._id = new ObjectId().toHexString();
+      user.name = OWNERS[i % OWNERS.length] + " " + i;
+      user.age = 20 + i % 50;
+      user.company = "COMPANY" + i % 10;
+      user.email = "user" + i + "@company" + i % 10 + ".com";
+      user.role = ROLES[i % ROLES.length];
+      user.avatar = "https://gravatar.com/avatar/" + Integer.toHexString(i) + "?d=identicon";
+      users.add(user);
+    }
+  }
+
+  @Benchmark
+  public byte[] todos() throws JsonProcessingException {
+    return MAPPER.writeValueAsBytes(todos);
+  }
+
+  @Benchmark
+  public byte[] users() throws JsonProcessingException {
+    return MAPPER.writeValueAsBytes(users);
+  }
+}
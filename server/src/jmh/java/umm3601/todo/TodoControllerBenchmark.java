@@ -0,0 +1,97 @@
+package umm3601.todo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+
+import umm3601.BenchmarkContext;
+import umm3601.KeysetPagination;
+
+/**
+ * Benchmarks turning `GET /api/todos` query parameters into Mongo filters
+ * and sorts, which happens on every request that isn't answered from a
+ * cache. Each filter and sort is rendered to BSON, as the driver does
+ * before sending it, since building one is cheap and rendering is most of
+ * the work.
+ *
+ * No database is needed: the Mongo client only connects when it's first
+ * used, and these never use it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({ "MagicNumber" })
+public class TodoControllerBenchmark {
+
+  private MongoClient mongoClient;
+  private TodoController todoController;
+
+  private final BenchmarkContext noParameters = new BenchmarkContext();
+  private final BenchmarkContext everyFilter = new BenchmarkContext()
+    .queryParam(TodoController.OWNER_KEY, "Fry")
+    .queryParam(TodoController.CATEGORY_KEY, "homework")
+    .queryParam(TodoController.STATUS_KEY, "false")
+    .queryParam(TodoController.BODY_KEY, "ipsum");
+  private final BenchmarkContext nextPage = new BenchmarkContext()
+    .queryParam("sortby", "category")
+    .queryParam(TodoController.SORT_ORDER_KEY, "desc");
+
+  @Setup
+  public void setup() {
+    mongoClient = MongoClients.create();
+    todoController = new TodoController(mongoClient.getDatabase("benchmark"));
+
+    Todo lastOnPage = new Todo();
+    lastOnPage._id = new ObjectId().toHexString();
+    lastOnPage.category = "homework";
+    nextPage.queryParam(KeysetPagination.AFTER_KEY, KeysetPagination.tokenFor(lastOnPage, "category"));
+  }
+
+  @TearDown
+  public void tearDown() {
+    mongoClient.close();
+  }
+
+  @Benchmark
+  public BsonDocument filterWithNoParameters() {
+    return todoController.constructFilter(noParameters).toBsonDocument();
+  }
+
+  @Benchmark
+  public BsonDocument filterWithEveryParameter() {
+    return todoController.constructFilter(everyFilter).toBsonDocument();
+  }
+
+  @Benchmark
+  public BsonDocument filterForTheNextPage() {
+    return todoController.constructFilter(nextPage).toBsonDocument();
+  }
+
+  @Benchmark
+  public BsonDocument defaultSortingOrder() {
+    return todoController.constructSortingOrder(noParameters).toBsonDocument();
+  }
+
+  @Benchmark
+  public BsonDocument descendingSortingOrder() {
+    return todoController.constructSortingOrder(nextPage).toBsonDocument();
+  }
+}
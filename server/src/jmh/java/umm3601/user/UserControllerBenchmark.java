@@ -0,0 +1,90 @@
+package umm3601.user;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+
+import umm3601.BenchmarkContext;
+
+/**
+ * Benchmarks turning `GET /api/users` query parameters into (rendered)
+ * Mongo filters and sorts, as `TodoControllerBenchmark` does for todos,
+ * and making the avatar URL for each new or changed user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({ "MagicNumber" })
+public class UserControllerBenchmark {
+
+  private MongoClient mongoClient;
+  private UserController userController;
+
+  private final BenchmarkContext noParameters = new BenchmarkContext();
+  private final BenchmarkContext everyFilter = new BenchmarkContext()
+    .queryParam(UserController.AGE_KEY, "37")
+    .queryParam(UserController.COMPANY_KEY, "OHMNET")
+    .queryParam(UserController.ROLE_KEY, "viewer");
+  private final BenchmarkContext sortedByAge = new BenchmarkContext()
+    .queryParam("sortby", "age")
+    .queryParam(UserController.SORT_ORDER_KEY, "desc");
+
+  @Setup
+  public void setup() {
+    mongoClient = MongoClients.create();
+    userController = new UserController(mongoClient.getDatabase("benchmark"));
+  }
+
+  @TearDown
+  public void tearDown() {
+    mongoClient.close();
+  }
+
+  @Benchmark
+  public BsonDocument filterWithNoParameters() {
+    return userController.constructFilter(noParameters).toBsonDocument();
+  }
+
+  @Benchmark
+  public BsonDocument filterWithEveryParameter() {
+    return userController.constructFilter(everyFilter).toBsonDocument();
+  }
+
+  @Benchmark
+  public BsonDocument defaultSortingOrder() {
+    return userController.constructSortingOrder(noParameters).toBsonDocument();
+  }
+
+  @Benchmark
+  public BsonDocument descendingSortingOrder() {
+    return userController.constructSortingOrder(sortedByAge).toBsonDocument();
+  }
+
+  @Benchmark
+  public String md5() throws NoSuchAlgorithmException {
+    return userController.md5("sam@frogs.com");
+  }
+
+  @Benchmark
+  public String generateAvatar() {
+    return userController.generateAvatar("sam@frogs.com");
+  }
+}
@@ -0,0 +1,100 @@
+package umm3601.user;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.javalin.json.JavalinJackson;
+import io.javalin.validation.BodyValidator;
+import umm3601.BenchmarkContext;
+
+/**
+ * Benchmarks checking users' emails and roles against `EMAIL_REGEX` and
+ * `ROLE_REGEX` (with `String#matches()`, and compiled into `TextPattern`s),
+ * checking a whole new user (with the chain of `BodyValidator#check()`s
+ * `addNewUser` used to build for every request, and with `NEW_USER_RULES`),
+ * and checking a whole `PATCH /api/users` body (which uses the same expressions).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({ "MagicNumber" })
+public class UserValidationBenchmark {
+
+  // `UserController`'s (private) limit on ages.
+  private static final int REASONABLE_AGE_LIMIT = 150;
+
+  private final JavalinJackson jackson = new JavalinJackson();
+
+  private final String email = "sam.smith+todos@frogs.example.com";
+  private final String role = "editor";
+
+  private final String newUser =
+    "{\"name\": \"Sam\", \"email\": \"sam@frogs.com\", \"age\": 45, \"company\": \"Frogs\", \"role\": \"viewer\"}";
+  private final User parsedUser = new BodyValidator<>(newUser, User.class, jackson).get();
+
+  private final BenchmarkContext update = new BenchmarkContext()
+    .body("{\"name\": \"Sam\", \"email\": \"sam@frogs.com\", \"age\": 45, \"role\": \"viewer\"}");
+
+  @Benchmark
+  public boolean emailMatches() {
+    return email.matches(UserController.EMAIL_REGEX);
+  }
+
+  @Benchmark
+  public boolean emailPattern() {
+    return UserController.EMAIL_PATTERN.test(email);
+  }
+
+  @Benchmark
+  public boolean roleMatches() {
+    return role.matches(UserController.ROLE_REGEX);
+  }
+
+  @Benchmark
+  public boolean rolePattern() {
+    return UserController.ROLE_PATTERN.test(role);
+  }
+
+  /** How `addNewUser` used to read and check a new user. */
+  @Benchmark
+  public User bodyValidatorChain() {
+    return new BodyValidator<>(newUser, User.class, jackson)
+      .check(usr -> usr.name != null && usr.name.length() > 0, "User must have a non-empty user name")
+      .check(usr -> usr.email.matches(UserController.EMAIL_REGEX), "User must have a legal email")
+      .check(usr -> usr.age > 0, "User's age must be greater than zero")
+      .check(usr -> usr.age < REASONABLE_AGE_LIMIT, "User's age must be less than " + REASONABLE_AGE_LIMIT)
+      .check(usr -> usr.role.matches(UserController.ROLE_REGEX), "User must have a legal user role")
+      .check(usr -> usr.company != null && usr.company.length() > 0, "User must have a non-empty company name")
+      .get();
+  }
+
+  /** How `addNewUser` reads and checks a new user now. */
+  @Benchmark
+  public User validationRules() {
+    return UserController.NEW_USER_RULES.validate(new BodyValidator<>(newUser, User.class, jackson).get());
+  }
+
+  /** Just the checks, without reading the JSON. */
+  @Benchmark
+  public User validationRulesOnly() {
+    return UserController.NEW_USER_RULES.validate(parsedUser);
+  }
+
+  @Benchmark
+  public Map<String, Object> parseUpdate() {
+    return UserController.USER_UPDATES.parse(update);
+  }
+}
@@ -0,0 +1,349 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+
+import io.javalin.json.JavalinJackson;
+import umm3601.metrics.LatencyHistogram;
+import umm3601.metrics.MongoMetrics;
+
+/**
+ * A closed-loop load test of the todo routes: it fills the `MONGO_DB`
+ * database with todos, starts the server exactly as `Main` does (so the
+ * same environment variables configure it), and then has `clients`
+ * threads each send a request, wait for the response, and send the next,
+ * as fast as they can. Each request is one of the routes in `Route`,
+ * chosen at random with the weights in `mix`.
+ *
+ * Nothing is measured for the first `warmup` seconds (while the JIT
+ * compiles the hot paths and Mongo builds the indexes); then, for
+ * `duration` seconds, each route's requests, errors (anything but a `2xx`)
+ * and latencies are counted. The throughput and latency percentiles of
+ * each route are printed, and written as JSON to `report`, to compare with
+ * the report of another run on the same machine.
+ *
+ * Run it with `gradle loadTest`, passing any settings as
+ * `-PloadTestArgs='clients=32 duration=60'` (see `DEFAULTS`). The clients
+ * share the JVM (and the CPUs) with the server, so the numbers are only
+ * worth comparing with other runs of the load test on the same machine.
+ */
+public final class LoadTest {
+
+  // The settings, and their defaults. The mix is the relative weight of
+  // each route (see `Route`).
+  private static final Map<String, String> DEFAULTS = Map.of(
+    "clients", "16",
+    "warmup", "10",
+    "duration", "30",
+    "todos", "1000",
+    "mix", "list=50,get=25,byCategory=10,add=10,delete=5",
+    "report", "build/reports/loadtest/report.json");
+
+  // Where `Main` starts the server.
+  private static final String URL = "http://localhost:4567";
+
+  private static final ObjectMapper MAPPER = JavalinJackson.defaultMapper();
+
+  private static final String[] OWNERS = {"Blanche", "Fry", "Barry", "Roberta", "Dawn", "Workman"};
+  private static final String[] CATEGORIES = {"software design", "video games", "homework", "groceries"};
+
+  private static final int OK = 200;
+  private static final int NOT_OK = 300;
+  // The latency percentiles that are reported, and their names.
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50Millis", "p90Millis", "p99Millis", "p999Millis"};
+
+  /**
+   * The routes the clients send requests to, with their short name in
+   * `mix`.
+   */
+  enum Route {
+    LIST("list", "GET /api/todos"),
+    GET("get", "GET /api/todos/{id}"),
+    BY_CATEGORY("byCategory", "GET /api/todosByCategory"),
+    ADD("add", "POST /api/todos"),
+    DELETE("delete", "DELETE /api/todos/{id}");
+
+    private final String key;
+    private final String label;
+
+    Route(String key, String label) {
+      this.key = key;
+      this.label = label;
+    }
+  }
+
+  /**
+   * One route's counts during the measured part of the run.
+   */
+  private static final class RouteStats {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+  }
+
+  private final Map<String, String> settings;
+  private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+  // The todos `GET /api/todos/{id}` asks for, which are never deleted.
+  private final List<String> ids = new ArrayList<>();
+  // The todos that can be deleted: spares, and the todos clients add.
+  private final Queue<String> deletable = new ConcurrentLinkedQueue<>();
+
+  // The routes, each repeated its weight in `mix` times, to choose from.
+  private final Route[] choices;
+
+  // Where responses are counted, or `null` when they shouldn't be (during
+  // the warmup, and once the run is over).
+  private volatile Map<Route, RouteStats> stats;
+  private volatile boolean running = true;
+
+  private LoadTest(Map<String, String> settings) {
+    this.settings = settings;
+    List<Route> weighted = new ArrayList<>();
+    for (String entry : settings.get("mix").split(",")) {
+      String[] keyAndWeight = entry.trim().split("=");
+      Route route = routeNamed(keyAndWeight[0]);
+      for (int i = Integer.parseInt(keyAndWeight[1]); i > 0; i--) {
+        weighted.add(route);
+      }
+    }
+    if (weighted.isEmpty()) {
+      throw new IllegalArgumentException("The mix must give some route a positive weight");
+    }
+    choices = weighted.toArray(new Route[0]);
+  }
+
+  private static Route routeNamed(String key) {
+    for (Route route : Route.values()) {
+      if (route.key.equals(key)) {
+        return route;
+      }
+    }
+    throw new IllegalArgumentException("There's no route called " + key + " in the mix");
+  }
+
+  /**
+   * Run the load test.
+   *
+   * @param args settings that differ from `DEFAULTS`, each as `name=value`
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Map<String, String> settings = new TreeMap<>(DEFAULTS);
+    for (String arg : args) {
+      String[] nameAndValue = arg.split("=", 2);
+      if (nameAndValue.length != 2 || !DEFAULTS.containsKey(nameAndValue[0])) {
+        throw new IllegalArgumentException("Unknown setting " + arg + "; the settings are " + DEFAULTS.keySet());
+      }
+      settings.put(nameAndValue[0], nameAndValue[1]);
+    }
+
+    LoadTest loadTest = new LoadTest(settings);
+    loadTest.seed(Main.getEnvOrDefault("MONGO_ADDR", "localhost"), Main.getEnvOrDefault("MONGO_DB", "loadtest"),
+      Integer.parseInt(settings.get("todos")));
+    Main.main(new String[0]);
+    Map<String, Object> report = loadTest.run();
+
+    Path path = Path.of(settings.get("report"));
+    Files.createDirectories(path.toAbsolutePath().getParent());
+    MAPPER.writerWithDefaultPrettyPrinter().writeValue(path.toFile(), report);
+    System.out.println("Load test report written to " + path.toAbsolutePath());
+    // Stop the server too.
+    System.exit(0);
+  }
+
+  /**
+   * Replace the todos with `count` new ones for the clients to read, and as
+   * many again for them to delete.
+   */
+  private void seed(String mongoAddr, String databaseName, int count) {
+    try (MongoClient mongoClient = Server.configureDatabase(mongoAddr, new MongoMetrics())) {
+      MongoCollection<Document> todos = mongoClient.getDatabase(databaseName).getCollection("todos");
+      todos.drop();
+      List<Document> documents = new ArrayList<>();
+      for (int i = 0; i < 2 * count; i++) {
+        ObjectId id = new ObjectId();
+        documents.add(new Document("_id", id)
+          .append("owner", OWNERS[i % OWNERS.length])
+          .append("status", i % 2 == 0)
+          .append("category", CATEGORIES[i % CATEGORIES.length])
+          .append("body", "Load test todo number " + i));
+        (i < count ? ids : deletable).add(id.toHexString());
+      }
+      if (!documents.isEmpty()) {
+        todos.insertMany(documents);
+      }
+    }
+    if (ids.isEmpty()) {
+      throw new IllegalArgumentException("The load test needs at least one todo");
+    }
+  }
+
+  /**
+   * Start the clients, let them warm up, count their responses for the
+   * duration, then stop them.
+   *
+   * @return the report
+   */
+  private Map<String, Object> run() throws InterruptedException {
+    int clients = Integer.parseInt(settings.get("clients"));
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      Thread thread = new Thread(this::sendRequests, "load-test-client-" + i);
+      thread.start();
+      threads.add(thread);
+    }
+
+    TimeUnit.SECONDS.sleep(Long.parseLong(settings.get("warmup")));
+    Map<Route, RouteStats> measured = new EnumMap<>(Route.class);
+    for (Route route : Route.values()) {
+      measured.put(route, new RouteStats());
+    }
+    Instant startedAt = Instant.now();
+    long start = System.nanoTime();
+    stats = measured;
+    TimeUnit.SECONDS.sleep(Long.parseLong(settings.get("duration")));
+    stats = null;
+    long elapsed = System.nanoTime() - start;
+
+    running = false;
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    return report(startedAt, elapsed, measured);
+  }
+
+  private void sendRequests() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (running) {
+      Route route = choices[random.nextInt(choices.length)];
+      HttpRequest request = requestFor(route, random);
+      long start = System.nanoTime();
+      int status;
+      String body;
+      try {
+        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        status = response.statusCode();
+        body = response.body();
+      } catch (IOException e) {
+        status = 0;
+        body = null;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      long nanos = System.nanoTime() - start;
+
+      Map<Route, RouteStats> current = stats;
+      if (current != null) {
+        RouteStats routeStats = current.get(route);
+        if (status >= OK && status < NOT_OK) {
+          routeStats.latency.recordNanos(nanos);
+        } else {
+          routeStats.errors.increment();
+        }
+      }
+      if (route == Route.ADD && status >= OK && status < NOT_OK) {
+        addedTodo(body);
+      }
+    }
+  }
+
+  private HttpRequest requestFor(Route route, ThreadLocalRandom random) {
+    switch (route) {
+      case LIST:
+        return get("/api/todos");
+      case GET:
+        return get("/api/todos/" + ids.get(random.nextInt(ids.size())));
+      case BY_CATEGORY:
+        return get("/api/todosByCategory");
+      case ADD:
+        String todo = "{\"owner\": \"" + OWNERS[random.nextInt(OWNERS.length)] + "\", \"status\": false, "
+          + "\"category\": \"" + CATEGORIES[random.nextInt(CATEGORIES.length)] + "\", "
+          + "\"body\": \"Added by the load test\"}";
+        return HttpRequest.newBuilder(URI.create(URL + "/api/todos"))
+          .header("Content-Type", "application/json")
+          .POST(HttpRequest.BodyPublishers.ofString(todo))
+          .build();
+      default:
+        // If the clients have deleted every todo they can, this is a 404,
+        // and counted as an error.
+        String id = deletable.poll();
+        return HttpRequest.newBuilder(URI.create(URL + "/api/todos/" + (id == null ? new ObjectId() : id)))
+          .DELETE()
+          .build();
+    }
+  }
+
+  private HttpRequest get(String path) {
+    return HttpRequest.newBuilder(URI.create(URL + path)).GET().build();
+  }
+
+  private void addedTodo(String body) {
+    try {
+      deletable.add(MAPPER.readTree(body).get("id").asText());
+    } catch (IOException | RuntimeException e) {
+      // We just can't delete it.
+    }
+  }
+
+  private Map<String, Object> report(Instant startedAt, long elapsedNanos, Map<Route, RouteStats> measured) {
+    double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+    Map<String, Object> routes = new LinkedHashMap<>();
+    System.out.printf("%-26s %10s %8s %10s %9s %9s %9s %9s %9s%n",
+      "Route", "Requests", "Errors", "Req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "Max ms");
+    for (Map.Entry<Route, RouteStats> entry : measured.entrySet()) {
+      LatencyHistogram latency = entry.getValue().latency;
+      long errors = entry.getValue().errors.sum();
+      Map<String, Object> route = new LinkedHashMap<>();
+      route.put("requests", latency.count() + errors);
+      route.put("errors", errors);
+      route.put("throughput", latency.count() / seconds);
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        route.put(PERCENTILE_NAMES[i], millis(latency.percentileNanos(PERCENTILES[i])));
+      }
+      route.put("maxMillis", millis(latency.maxNanos()));
+      routes.put(entry.getKey().label, route);
+      System.out.printf("%-26s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey().label,
+        route.get("requests"), errors, route.get("throughput"), route.get("p50Millis"), route.get("p90Millis"),
+        route.get("p99Millis"), route.get("p999Millis"), route.get("maxMillis"));
+    }
+
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("startedAt", startedAt.toString());
+    report.put("java", System.getProperty("java.version"));
+    report.put("processors", Runtime.getRuntime().availableProcessors());
+    report.put("settings", settings);
+    report.put("seconds", seconds);
+    report.put("routes", routes);
+    return report;
+  }
+
+  private static double millis(long nanos) {
+    return nanos / (double) Duration.ofMillis(1).toNanos();
+  }
+}
@@ -0,0 +1,207 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+import org.bson.types.ObjectId;
+
+/**
+ * A small in-process cache of documents looked up by their `_id`, used to
+ * answer repeated `GET /api/.../{id}` requests without going to Mongo.
+ *
+ * The cache holds at most `maxSize` documents, evicting the least recently
+ * used one when it's full, and entries expire after a fixed time to live.
+ * Lookups of IDs that aren't in the database are cached too (as "missing"),
+ * but with a shorter time to live, so that repeated requests for a missing
+ * ID don't each hit the database but a newly added document shows up soon.
+ *
+ * The controllers keep the cache up to date: adding a document puts it in
+ * the cache, and deleting one invalidates it. Anything that changes
+ * documents in the collection must invalidate the affected IDs (or call
+ * `clear()`), or readers will see stale documents until they expire.
+ *
+ * All the methods are thread safe.
+ *
+ * @param <T> the type of the cached documents
+ */
+public class ByIdCache<T> {
+
+  // `LinkedHashMap`'s own defaults; we have to pass them to get access order.
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+
+  private final int maxSize;
+  private final long ttlNanos;
+  private final long missingTtlNanos;
+  private final LongSupplier clock;
+
+  // An access-ordered `LinkedHashMap` keeps the least recently used entry
+  // first, which makes it an LRU cache. All access is synchronized on it.
+  private final LinkedHashMap<ObjectId, Entry<T>> entries;
+
+  // Counts every invalidation, so a load that raced with one doesn't put
+  // the document it read (which may already be stale) into the cache.
+  private long invalidations;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Construct an empty cache.
+   *
+   * @param maxSize the most documents to hold at once
+   * @param ttl how long a cached document is used before it's read again
+   * @param missingTtl how long to remember that an ID wasn't found
+   */
+  public ByIdCache(int maxSize, Duration ttl, Duration missingTtl) {
+    this(maxSize, ttl, missingTtl, System::nanoTime);
+  }
+
+  /**
+   * Construct an empty cache with its own clock, so tests don't have to
+   * wait for entries to expire.
+   */
+  ByIdCache(int maxSize, Duration ttl, Duration missingTtl, LongSupplier clock) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("The cache size must be positive, but was " + maxSize);
+    }
+    this.maxSize = maxSize;
+    this.ttlNanos = ttl.toNanos();
+    this.missingTtlNanos = missingTtl.toNanos();
+    this.clock = clock;
+    this.entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<ObjectId, Entry<T>> eldest) {
+        return size() > ByIdCache.this.maxSize;
+      }
+    };
+  }
+
+  /**
+   * Get the document with the given ID, from the cache if we have it, and
+   * otherwise using `loader` (and caching the result).
+   *
+   * @param id the `_id` of the document
+   * @param loader reads the document from the database, returning `null`
+   *   if there isn't one with that ID
+   * @return the document, or `null` if there isn't one with that ID
+   */
+  public T get(ObjectId id, Function<ObjectId, T> loader) {
+    // The loader runs (and any exception it throws comes out) before `join()`.
+    return getAsync(id, key -> CompletableFuture.completedFuture(loader.apply(key))).join();
+  }
+
+  /**
+   * Like `get()`, for a loader that reads from the database asynchronously.
+   *
+   * @param id the `_id` of the document
+   * @param loader starts reading the document from the database, and
+   *   completes with `null` if there isn't one with that ID
+   * @return a future that completes with the document, or `null` if there
+   *   isn't one with that ID
+   */
+  public CompletableFuture<T> getAsync(ObjectId id, Function<ObjectId, CompletableFuture<T>> loader) {
+    long invalidationsBeforeLoad;
+    synchronized (entries) {
+      Entry<T> entry = entries.get(id);
+      if (entry != null && entry.expiresAt - clock.getAsLong() > 0) {
+        hits.incrementAndGet();
+        return CompletableFuture.completedFuture(entry.document);
+      }
+      invalidationsBeforeLoad = invalidations;
+    }
+
+    // Read from the database without holding the lock, so a slow read
+    // doesn't hold up lookups of other IDs.
+    misses.incrementAndGet();
+    return loader.apply(id).thenApply(document -> {
+      synchronized (entries) {
+        if (invalidations == invalidationsBeforeLoad) {
+          store(id, document);
+        }
+      }
+      return document;
+    });
+  }
+
+  /**
+   * Put a document in the cache, e.g., right after it's been added to
+   * the database.
+   *
+   * @param id the `_id` of the document
+   * @param document the document
+   */
+  public void put(ObjectId id, T document) {
+    synchronized (entries) {
+      store(id, document);
+    }
+  }
+
+  private void store(ObjectId id, T document) {
+    long ttl = document == null ? missingTtlNanos : ttlNanos;
+    entries.put(id, new Entry<>(document, clock.getAsLong() + ttl));
+  }
+
+  /**
+   * Forget the document with the given ID, e.g., because it was changed
+   * or deleted.
+   *
+   * @param id the `_id` of the document
+   */
+  public void invalidate(ObjectId id) {
+    synchronized (entries) {
+      invalidations++;
+      entries.remove(id);
+    }
+  }
+
+  /**
+   * Forget every cached document, e.g., after changing many documents at
+   * once.
+   */
+  public void clear() {
+    synchronized (entries) {
+      invalidations++;
+      entries.clear();
+    }
+  }
+
+  /**
+   * @return the number of entries (including expired ones that haven't been
+   *   evicted yet) in the cache
+   */
+  public int size() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  /**
+   * @return the number of lookups answered from the cache
+   */
+  public long hits() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of lookups that had to go to the database
+   */
+  public long misses() {
+    return misses.get();
+  }
+
+  private static final class Entry<T> {
+    private final T document;
+    private final long expiresAt;
+
+    private Entry(T document, long expiresAt) {
+      this.document = document;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,187 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Adds strong `ETag`s to `GET` responses, and answers `If-None-Match`
+ * requests with `304 Not Modified` when nothing has changed, before any
+ * controller touches the database.
+ *
+ * An ETag has to change whenever the response would, but we want to
+ * compute it without building the response. So it's a hash of the request
+ * (its path and its query parameters, sorted so their order doesn't matter)
+ * and of every controller's `dataVersion()`, which each controller bumps
+ * whenever it changes its data. Javalin doesn't tell a before handler which
+ * endpoint will handle the request, so the ETag covers every controller's
+ * version; a change to users also changes the ETags of todo responses,
+ * which just costs an extra full response. If any controller doesn't track
+ * a version, we can't tell whether its data changed, so nothing gets an ETag.
+ *
+ * Different encodings of the same response are different bytes, so the
+ * hash also includes the encoding `ResponseCompression` will choose.
+ *
+ * The hash also includes a random ID for this run of the server, since the
+ * versions start over each time the server starts. The versions only count
+ * changes made through this server, so changes made directly in Mongo
+ * (e.g., reseeding the database) need a restart to show up.
+ *
+ * Metrics (`/metrics`, and anything under `/api/metrics`) describe the
+ * server rather than the data, and change with every request, so they
+ * never get an ETag.
+ */
+public class ConditionalGet {
+
+  // Unique to this run of the server.
+  private static final String EPOCH = UUID.randomUUID().toString();
+
+  // How many bytes of the SHA-256 hash to put in the ETag.
+  private static final int TAG_BYTES = 16;
+
+  // Responses at this path, or under this prefix, are never tagged.
+  private static final String METRICS_PATH = "/metrics";
+  private static final String METRICS_PATH_PREFIX = "/api/metrics";
+
+  private final Controller[] controllers;
+
+  /**
+   * Construct conditional GET support for the data of the given controllers.
+   *
+   * @param controllers every controller that adds routes to the server
+   */
+  public ConditionalGet(Controller[] controllers) {
+    this.controllers = controllers.clone();
+  }
+
+  /**
+   * Add the before and after handlers (and the exception handler that
+   * sends the `304`) to the server.
+   *
+   * @param server The Javalin server instance
+   */
+  public void addTo(Javalin server) {
+    server.before(this::checkIfModified);
+    server.after(this::dropTagFromErrors);
+    // Throwing is the only way a before handler can stop the endpoint from running.
+    server.exception(NotModified.class, (e, ctx) -> ctx.status(HttpStatus.NOT_MODIFIED));
+  }
+
+  /**
+   * Set the `ETag` for a `GET` request, and stop with a `304` if the client
+   * already has that version.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws NotModified if the request's `If-None-Match` includes the ETag
+   */
+  void checkIfModified(Context ctx) {
+    if (ctx.method() != HandlerType.GET || isMetrics(ctx.path())) {
+      return;
+    }
+    String etag = etagFor(ctx);
+    if (etag == null) {
+      return;
+    }
+    ctx.header(Header.ETAG, etag);
+    if (matches(ctx.header(Header.IF_NONE_MATCH), etag)) {
+      throw new NotModified();
+    }
+  }
+
+  /**
+   * Remove the `ETag` from anything other than a successful response, since
+   * the ETag describes the data rather than, e.g., a `400` complaining about
+   * the request.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  void dropTagFromErrors(Context ctx) {
+    HttpStatus status = ctx.status();
+    if (status != HttpStatus.OK && status != HttpStatus.NOT_MODIFIED) {
+      ctx.res().setHeader(Header.ETAG, null);
+    }
+  }
+
+  /**
+   * Compute the strong ETag for a request.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the quoted ETag, or `null` if some controller doesn't track a
+   *   data version
+   */
+  String etagFor(Context ctx) {
+    StringBuilder state = new StringBuilder(EPOCH);
+    for (Controller controller : controllers) {
+      long version = controller.dataVersion();
+      if (version == Controller.UNVERSIONED) {
+        return null;
+      }
+      state.append('\n').append(version);
+    }
+    state.append('\n').append(ResponseCompression.negotiate(ctx.header(Header.ACCEPT_ENCODING)));
+    state.append('\n').append(ctx.path());
+    for (Map.Entry<String, List<String>> param : new TreeMap<>(ctx.queryParamMap()).entrySet()) {
+      for (String value : param.getValue()) {
+        // Length-prefix the name and value, so that no parameter can run
+        // into the next one and make the same text as different parameters.
+        state.append('\n').append(param.getKey().length()).append(':').append(param.getKey())
+          .append(value.length()).append(':').append(value);
+      }
+    }
+
+    byte[] hash;
+    try {
+      hash = MessageDigest.getInstance("SHA-256").digest(state.toString().getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java runtime is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+    return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(hash, TAG_BYTES)) + "\"";
+  }
+
+  private static boolean isMetrics(String path) {
+    return path.equals(METRICS_PATH) || path.startsWith(METRICS_PATH_PREFIX);
+  }
+
+  /**
+   * Whether an `If-None-Match` header matches an ETag. The header is either
+   * `*` or a comma separated list of ETags, and (as the HTTP spec requires
+   * for `If-None-Match`) we ignore any `W/` weakness marks.
+   */
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String trimmed = candidate.trim();
+      if (trimmed.startsWith("W/")) {
+        trimmed = trimmed.substring(2);
+      }
+      if (trimmed.equals("*") || trimmed.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Thrown by the before handler to skip the endpoint and send a `304`.
+   */
+  static final class NotModified extends RuntimeException {
+    NotModified() {
+      super("Not modified", null, false, false);
+    }
+  }
+}
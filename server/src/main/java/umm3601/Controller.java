@@ -1,5 +1,8 @@
 package umm3601;
 
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+
 import io.javalin.Javalin;
 
 /**
@@ -18,12 +21,15 @@ import io.javalin.Javalin;
  * allows us to add routes to the server without having to modify the `Server`,
  * and without having the server know about any specific controller implementations.
  *
- * Note that this interface definition is _complete_ and you shouldn't need to
- * add anything to it. You just need to make sure that any new controllers
- * you implement also implement this interface, providing their own `addRoutes()`
- * method.
+ * You just need to make sure that any new controllers you implement also
+ * implement this interface, providing their own `addRoutes()` method. The
+ * other methods have defaults, so you only need to override them if your
+ * controller needs them.
  */
 public interface Controller {
+  /** What `dataVersion()` returns for a controller that doesn't track one. */
+  long UNVERSIONED = -1;
+
   /**
    * Add routes to the server.
    *
@@ -35,4 +41,63 @@ public interface Controller {
    * @param server The Javalin server to add routes to
    */
   void addRoutes(Javalin server);
+
+  /**
+   * The indexes that this controller's queries rely on.
+   *
+   * The `Server` makes sure these exist (using an `IndexBootstrapper`)
+   * when it starts, so a controller should declare an index for each of
+   * the filter and sort combinations it actually issues.
+   *
+   * @return the indexes this controller needs, which is empty by default
+   */
+  default List<RequiredIndex> requiredIndexes() {
+    return List.of();
+  }
+
+  /**
+   * Called once the `IndexBootstrapper` has made sure the indexes from
+   * `requiredIndexes()` exist, e.g., so the controller can stop expecting
+   * them to turn up (see `QueryGuard#indexesBuilt()`).
+   */
+  default void indexesBuilt() {
+  }
+
+  /**
+   * Schedule any periodic work this controller needs, e.g., rebuilding
+   * something it keeps up to date incrementally.
+   *
+   * The `Server` calls this once, when it starts. The scheduler's threads
+   * are shared by all the controllers, so tasks shouldn't run for long,
+   * and should catch their own exceptions (an uncaught exception cancels
+   * any later runs of the task).
+   *
+   * @param scheduler the scheduler to add tasks to
+   */
+  default void scheduleBackgroundTasks(ScheduledExecutorService scheduler) {
+  }
+
+  /**
+   * A version number for all the data this controller serves, which must
+   * change (after the change is written) whenever any of that data does.
+   *
+   * The `Server` uses this to tag `GET` responses with ETags and answer
+   * repeated requests with `304 Not Modified` (see `ConditionalGet`).
+   *
+   * @return the current version, or `UNVERSIONED` (the default) if this
+   *   controller doesn't track one, in which case nothing gets ETags
+   */
+  default long dataVersion() {
+    return UNVERSIONED;
+  }
+
+  /**
+   * Stop anything this controller started, e.g., background threads.
+   *
+   * The `Server` calls this once it's stopped, before it closes the Mongo
+   * client, so a controller can still finish (or fail) any writes it has
+   * waiting.
+   */
+  default void close() {
+  }
 }
@@ -0,0 +1,204 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+import umm3601.metrics.MongoMetrics;
+import umm3601.todo.TodoController;
+import umm3601.user.UserController;
+
+/**
+ * Fills a database with made-up todos and users (see `SyntheticData`), as
+ * many as we like, for trying the server with something like production
+ * data. (`database/mongoseed.sh` loads the small, fixed seed data that the
+ * E2E tests expect.)
+ *
+ * The database is dropped first, and the documents are then inserted in
+ * batches, with unordered `insertMany`s spread over several threads, so
+ * Mongo can write them as fast as it's able. The indexes the controllers
+ * need (see `Controller#requiredIndexes()`) are only built once all the
+ * documents are in, since building an index over existing documents is
+ * much faster than updating it with every insert.
+ *
+ * Run it with `gradle seed`, passing any settings as
+ * `-PseedArgs='todos=10000000 ownerSkew=1.2'` (see `DEFAULTS`). Like the
+ * server, it uses the `MONGO_ADDR` and `MONGO_DB` environment variables,
+ * so by default it replaces the `dev` database.
+ */
+public class DatabaseSeeder {
+
+  /** The settings, and their defaults. */
+  static final Map<String, String> DEFAULTS = Map.of(
+    "todos", "10000",
+    "users", "1000",
+    "owners", "1000",
+    "companies", "200",
+    "ownerSkew", "1.0",
+    "categorySkew", "0.5",
+    "companySkew", "1.0",
+    "seed", "3601",
+    "threads", String.valueOf(Runtime.getRuntime().availableProcessors()),
+    "batchSize", "1000");
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseSeeder.class);
+
+  private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  private final MongoDatabase database;
+  private final SyntheticData data;
+  private final long seed;
+  private final int threads;
+  private final int batchSize;
+
+  /**
+   * Construct a seeder for a database.
+   *
+   * @param database the database to replace
+   * @param data what to fill it with
+   * @param seed the seed of the random choices, so a seed always makes the same data
+   * @param threads how many batches to insert at once
+   * @param batchSize how many documents to insert at a time
+   */
+  public DatabaseSeeder(MongoDatabase database, SyntheticData data, long seed, int threads, int batchSize) {
+    if (threads < 1 || batchSize < 1) {
+      throw new IllegalArgumentException("The threads and the batch size must be positive");
+    }
+    this.database = database;
+    this.data = data;
+    this.seed = seed;
+    this.threads = threads;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Fill the database with made-up data, as configured by `args`.
+   *
+   * @param args settings that differ from `DEFAULTS`, each as `name=value`
+   */
+  public static void main(String[] args) throws InterruptedException {
+    Map<String, String> settings = settings(args);
+    String mongoAddr = Main.getEnvOrDefault("MONGO_ADDR", "localhost");
+    String databaseName = Main.getEnvOrDefault("MONGO_DB", "dev");
+
+    try (MongoClient mongoClient = Server.configureDatabase(mongoAddr, new MongoMetrics())) {
+      SyntheticData data = new SyntheticData(
+        Integer.parseInt(settings.get("owners")), Integer.parseInt(settings.get("companies")),
+        Double.parseDouble(settings.get("ownerSkew")), Double.parseDouble(settings.get("categorySkew")),
+        Double.parseDouble(settings.get("companySkew")));
+      LOGGER.info("Replacing the {} database with {}", databaseName, settings);
+      new DatabaseSeeder(mongoClient.getDatabase(databaseName), data, Long.parseLong(settings.get("seed")),
+        Integer.parseInt(settings.get("threads")), Integer.parseInt(settings.get("batchSize")))
+        .seed(Long.parseLong(settings.get("todos")), Long.parseLong(settings.get("users")));
+    }
+  }
+
+  /**
+   * The settings: the defaults, overridden by `args`.
+   *
+   * @param args settings, each as `name=value`
+   * @return every setting, by name
+   */
+  static Map<String, String> settings(String[] args) {
+    Map<String, String> settings = new TreeMap<>(DEFAULTS);
+    for (String arg : args) {
+      String[] nameAndValue = arg.split("=", 2);
+      if (nameAndValue.length != 2 || !DEFAULTS.containsKey(nameAndValue[0])) {
+        throw new IllegalArgumentException("Unknown setting " + arg + "; the settings are " + settings.keySet());
+      }
+      settings.put(nameAndValue[0], nameAndValue[1]);
+    }
+    return settings;
+  }
+
+  /**
+   * Replace the database with `todoCount` todos and `userCount` users, then
+   * build the indexes the controllers need.
+   *
+   * @param todoCount how many todos to make
+   * @param userCount how many users to make
+   */
+  public void seed(long todoCount, long userCount) throws InterruptedException {
+    database.drop();
+    load("todos", todoCount, (random, number) -> data.todo(random));
+    load("users", userCount, data::user);
+
+    long start = System.nanoTime();
+    IndexBootstrapper.IndexReport report = new IndexBootstrapper(new Controller[] {
+      new TodoController(database), new UserController(database)}).ensureIndexes();
+    LOGGER.info("Built indexes {} in {} seconds", report.getMissing(),
+      String.format("%.1f", (System.nanoTime() - start) / NANOS_PER_SECOND));
+  }
+
+  /**
+   * Insert `count` documents made by `generate` into a collection, in
+   * batches, using `threads` threads.
+   *
+   * The `number`th document is made from its own random numbers, seeded
+   * from `seed` and `number`, so the documents don't depend on which
+   * thread makes them, or on the batch size.
+   *
+   * @param collectionName the collection to insert them into
+   * @param count how many documents to insert
+   * @param generate makes a document from its random numbers and its number
+   * @return how many documents were inserted per second
+   */
+  double load(String collectionName, long count, BiFunction<SplittableRandom, Long, Document> generate)
+      throws InterruptedException {
+    MongoCollection<Document> collection = database.getCollection(collectionName);
+    long collectionSeed = seed ^ collectionName.hashCode();
+    List<Callable<Void>> batches = new ArrayList<>();
+    for (long first = 0; first < count; first += batchSize) {
+      long batchStart = first;
+      long batchEnd = Math.min(count, first + batchSize);
+      batches.add(() -> {
+        List<Document> documents = new ArrayList<>((int) (batchEnd - batchStart));
+        for (long number = batchStart; number < batchEnd; number++) {
+          documents.add(generate.apply(new SplittableRandom(collectionSeed + number), number));
+        }
+        collection.insertMany(documents, new InsertManyOptions().ordered(false));
+        return null;
+      });
+    }
+
+    AtomicInteger threadNumber = new AtomicInteger();
+    ExecutorService pool = Executors.newFixedThreadPool(threads,
+      task -> new Thread(task, "database-seeder-" + threadNumber.incrementAndGet()));
+    long start = System.nanoTime();
+    try {
+      for (Future<Void> batch : pool.invokeAll(batches)) {
+        batch.get();
+      }
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof RuntimeException
+        ? (RuntimeException) e.getCause()
+        : new IllegalStateException("Couldn't insert into " + collectionName, e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    double seconds = (System.nanoTime() - start) / NANOS_PER_SECOND;
+    double perSecond = count / Math.max(seconds, Double.MIN_VALUE);
+    LOGGER.info("Inserted {} {} in {} seconds ({} per second)", count, collectionName,
+      String.format("%.1f", seconds), String.format("%.0f", perSecond));
+    return perSecond;
+  }
+}
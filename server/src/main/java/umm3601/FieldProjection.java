@@ -0,0 +1,150 @@
+package umm3601;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.conversions.Bson;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.mongodb.client.model.Projections;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+/**
+ * The fields a client asked for with the `fields` query parameter
+ * (e.g., `/api/todos?fields=owner,category`).
+ *
+ * The requested field names are checked against the public fields of the
+ * POJO class (e.g., `Todo`) that the collection holds, and then used in two
+ * places: as a Mongo projection, so that Mongo only reads and sends the
+ * fields we need, and when building the response, so that Jackson only
+ * serializes those fields (rather than, e.g., `null` for every missing
+ * `body`). The `_id` is always included so clients can still link to
+ * each document.
+ */
+public final class FieldProjection {
+
+  /** Query parameter holding a comma separated list of field names. */
+  public static final String FIELDS_KEY = "fields";
+
+  private static final String ID_KEY = "_id";
+
+  // An empty projection, used when no fields were requested.
+  private static final FieldProjection ALL_FIELDS = new FieldProjection(List.of());
+
+  // The requested fields, in the order they were requested.
+  private final List<Field> fields;
+
+  private FieldProjection(List<Field> fields) {
+    this.fields = fields;
+  }
+
+  /**
+   * Get the projection requested by the `fields` query parameter, checking
+   * that every field named there is a field of `type`.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @param type the POJO class of the documents being returned
+   * @return the requested projection, which is empty if there is no
+   *   `fields` query parameter
+   * @throws BadRequestResponse if a requested field isn't a field of `type`
+   */
+  public static FieldProjection fromQuery(Context ctx, Class<?> type) {
+    if (!ctx.queryParamMap().containsKey(FIELDS_KEY)) {
+      return ALL_FIELDS;
+    }
+
+    List<Field> fields = new ArrayList<>();
+    for (String name : ctx.queryParam(FIELDS_KEY).split(",")) {
+      String trimmed = name.trim();
+      if (trimmed.isEmpty() || ID_KEY.equals(trimmed)) {
+        continue;
+      }
+      fields.add(fieldOf(type, trimmed));
+    }
+    return new FieldProjection(fields);
+  }
+
+  private static Field fieldOf(Class<?> type, String name) {
+    Field field;
+    try {
+      field = type.getField(name);
+    } catch (NoSuchFieldException e) {
+      field = null;
+    }
+    // Fields Jackson ignores are only for the server (e.g., `User#companyLower`).
+    if (field == null || Modifier.isStatic(field.getModifiers()) || field.isAnnotationPresent(JsonIgnore.class)) {
+      throw new BadRequestResponse("The requested field `" + name + "` isn't a field of " + type.getSimpleName());
+    }
+    return field;
+  }
+
+  /**
+   * @return true if no particular fields were requested, i.e., every
+   *   field should be returned
+   */
+  public boolean isEmpty() {
+    return fields.isEmpty();
+  }
+
+  /**
+   * Construct a Mongo projection including the requested fields.
+   *
+   * @param alsoNeeded any additional fields that the server needs to read
+   *   (e.g., the sort field, which is needed to make page tokens), even if
+   *   they won't be sent to the client
+   * @return a Bson projection that can be used in the `projection` method
+   */
+  public Bson toBson(String... alsoNeeded) {
+    List<String> names = new ArrayList<>();
+    for (Field field : fields) {
+      names.add(field.getName());
+    }
+    for (String name : alsoNeeded) {
+      if (!names.contains(name)) {
+        names.add(name);
+      }
+    }
+    return Projections.include(names);
+  }
+
+  /**
+   * Copy just the `_id` and requested fields out of a document, so that
+   * Jackson only serializes those.
+   *
+   * @param document a POJO read from the database
+   * @return a map from field names to values for the `_id` and the
+   *   requested fields
+   */
+  public Map<String, Object> apply(Object document) {
+    Map<String, Object> selected = new LinkedHashMap<>();
+    try {
+      selected.put(ID_KEY, document.getClass().getField(ID_KEY).get(document));
+      for (Field field : fields) {
+        selected.put(field.getName(), field.get(document));
+      }
+    } catch (NoSuchFieldException | IllegalAccessException e) {
+      throw new IllegalStateException("Can't read the fields of " + document.getClass().getSimpleName(), e);
+    }
+    return selected;
+  }
+
+  /**
+   * Copy just the `_id` and requested fields out of each of the documents.
+   *
+   * @param documents POJOs read from the database
+   * @return a list with one map of field names to values for each document
+   */
+  public List<Map<String, Object>> apply(List<?> documents) {
+    List<Map<String, Object>> selected = new ArrayList<>(documents.size());
+    for (Object document : documents) {
+      selected.add(apply(document));
+    }
+    return selected;
+  }
+}
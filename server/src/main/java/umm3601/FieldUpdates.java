@@ -0,0 +1,107 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.bson.conversions.Bson;
+
+import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.model.Updates;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.json.JavalinJackson;
+
+/**
+ * The fields of a document that a request may change, and the rules each
+ * new value has to follow, for turning a sparse JSON request body like
+ * `{"status": true}` into a Mongo `$set` update.
+ *
+ * Only the fields in the body are checked (and changed), so a client can
+ * change one field without sending the whole document.
+ */
+public class FieldUpdates {
+
+  private static final ObjectMapper MAPPER = JavalinJackson.defaultMapper();
+
+  // The rule for each field that may be changed, in the order they were allowed.
+  private final Map<String, Rule> rules = new LinkedHashMap<>();
+
+  /**
+   * Allow a field to be changed to any value that passes `check`.
+   *
+   * @param field the name of the field
+   * @param check whether a new (JSON) value for the field is legal
+   * @param message the error message for an illegal value
+   * @return this, so calls can be chained
+   */
+  public FieldUpdates allow(String field, Predicate<JsonNode> check, String message) {
+    rules.put(field, new Rule(check, message));
+    return this;
+  }
+
+  /**
+   * Read the changes from the request's body, which must be a JSON object
+   * with at least one field, all of them allowed and legal.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return the new value of each field in the body, in the order given
+   * @throws BadRequestResponse if the body isn't a legal set of changes
+   */
+  public Map<String, Object> parse(Context ctx) {
+    JsonNode body;
+    try {
+      body = MAPPER.readTree(ctx.body());
+    } catch (JacksonException e) {
+      throw new BadRequestResponse("The request body must be JSON: " + e.getOriginalMessage());
+    }
+    if (body == null || !body.isObject() || body.isEmpty()) {
+      throw new BadRequestResponse("The request body must be a JSON object with the fields to change");
+    }
+
+    Map<String, Object> changes = new LinkedHashMap<>();
+    for (Iterator<Map.Entry<String, JsonNode>> fields = body.fields(); fields.hasNext();) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      Rule rule = rules.get(field.getKey());
+      if (rule == null) {
+        throw new BadRequestResponse("The field '" + field.getKey() + "' can't be changed; only "
+          + String.join(", ", rules.keySet()) + " can");
+      }
+      if (!rule.check.test(field.getValue())) {
+        throw new BadRequestResponse(rule.message);
+      }
+      changes.put(field.getKey(), MAPPER.convertValue(field.getValue(), Object.class));
+    }
+    return changes;
+  }
+
+  /**
+   * The `$set` update that makes the given changes.
+   *
+   * @param changes the new value of each field to change
+   * @return the update
+   */
+  public static Bson toSet(Map<String, Object> changes) {
+    List<Bson> sets = new ArrayList<>();
+    for (Map.Entry<String, Object> change : changes.entrySet()) {
+      sets.add(Updates.set(change.getKey(), change.getValue()));
+    }
+    return Updates.combine(sets);
+  }
+
+  private static final class Rule {
+    private final Predicate<JsonNode> check;
+    private final String message;
+
+    Rule(Predicate<JsonNode> check, String message) {
+      this.check = check;
+      this.message = message;
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+
+/**
+ * Makes sure the indexes that the controllers declare (via
+ * `Controller#requiredIndexes()`) exist, and reports on any that were
+ * missing or appear to be unused.
+ *
+ * Creating an index that already exists with the same keys and name is a
+ * no-op in Mongo, so this is safe to run every time the server starts.
+ */
+public class IndexBootstrapper {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(IndexBootstrapper.class);
+
+  // Mongo's own index on `_id`, which every collection has.
+  private static final String ID_INDEX_NAME = "_id_";
+
+  private final Controller[] controllers;
+
+  /**
+   * Construct a bootstrapper for the indexes declared by some controllers.
+   *
+   * @param controllers the controllers whose indexes should exist
+   */
+  public IndexBootstrapper(Controller[] controllers) {
+    this.controllers = controllers.clone();
+  }
+
+  /**
+   * Create any missing indexes on a background thread, so the server can
+   * start answering requests while Mongo builds them, and log a report
+   * when that's done.
+   *
+   * @return a future that completes with the report once the indexes exist
+   */
+  public CompletableFuture<IndexReport> ensureIndexesInBackground() {
+    Executor backgroundThread = task -> {
+      Thread thread = new Thread(task, "index-bootstrapper");
+      thread.setDaemon(true);
+      thread.start();
+    };
+    return CompletableFuture
+      .supplyAsync(this::ensureIndexes, backgroundThread)
+      .whenComplete((report, error) -> {
+        if (error != null) {
+          LOGGER.error("Failed to create the required indexes", error);
+        } else {
+          report.log(LOGGER);
+        }
+      });
+  }
+
+  /**
+   * Create any missing indexes, waiting until Mongo has built them.
+   *
+   * @return a report of which indexes were missing, which existing indexes
+   *   no controller declared, and which indexes haven't been used
+   */
+  public IndexReport ensureIndexes() {
+    IndexReport report = new IndexReport();
+
+    for (Map.Entry<MongoNamespace, List<RequiredIndex>> entry : requiredIndexesByCollection().entrySet()) {
+      List<RequiredIndex> required = entry.getValue();
+      MongoCollection<?> collection = required.get(0).getCollection();
+      String collectionName = entry.getKey().getCollectionName();
+
+      Set<String> existing = new TreeSet<>();
+      for (Document index : collection.listIndexes()) {
+        existing.add(index.getString("name"));
+      }
+
+      List<IndexModel> missing = new ArrayList<>();
+      Set<String> declared = new TreeSet<>();
+      for (RequiredIndex index : required) {
+        declared.add(index.getName());
+        if (!existing.contains(index.getName())) {
+          missing.add(index.getModel());
+          report.missing.add(collectionName + "." + index.getName());
+        }
+      }
+      if (!missing.isEmpty()) {
+        collection.createIndexes(missing);
+      }
+
+      for (String name : existing) {
+        if (!declared.contains(name) && !name.equals(ID_INDEX_NAME)) {
+          report.undeclared.add(collectionName + "." + name);
+        }
+      }
+      findUnusedIndexes(collection, collectionName, report);
+    }
+    return report;
+  }
+
+  private Map<MongoNamespace, List<RequiredIndex>> requiredIndexesByCollection() {
+    Map<MongoNamespace, List<RequiredIndex>> byCollection = new LinkedHashMap<>();
+    for (Controller controller : controllers) {
+      for (RequiredIndex index : controller.requiredIndexes()) {
+        byCollection
+          .computeIfAbsent(index.getCollection().getNamespace(), namespace -> new ArrayList<>())
+          .add(index);
+      }
+    }
+    return byCollection;
+  }
+
+  /**
+   * Use `$indexStats` to find indexes that haven't been used since the
+   * Mongo server started. This is only a hint (a freshly started server
+   * won't have used anything yet), so we just report these.
+   */
+  private void findUnusedIndexes(MongoCollection<?> collection, String collectionName, IndexReport report) {
+    List<Document> pipeline = List.of(new Document("$indexStats", new Document()));
+    try {
+      for (Document stats : collection.aggregate(pipeline, Document.class)) {
+        Document accesses = stats.get("accesses", Document.class);
+        Number ops = accesses == null ? null : accesses.get("ops", Number.class);
+        if (ops != null && ops.longValue() == 0 && !ID_INDEX_NAME.equals(stats.getString("name"))) {
+          report.unused.add(collectionName + "." + stats.getString("name"));
+        }
+      }
+    } catch (MongoException e) {
+      // Not every deployment lets us read index statistics, and they're only advisory.
+      LOGGER.warn("Couldn't read index statistics for {}: {}", collectionName, e.getMessage());
+    }
+  }
+
+  /**
+   * What `ensureIndexes()` found. Index names are given as
+   * `collection.indexName`.
+   */
+  public static class IndexReport {
+    private final List<String> missing = new ArrayList<>();
+    private final List<String> undeclared = new ArrayList<>();
+    private final List<String> unused = new ArrayList<>();
+
+    /**
+     * @return the required indexes that didn't exist, and so were created
+     */
+    public List<String> getMissing() {
+      return missing;
+    }
+
+    /**
+     * @return indexes that exist but that no controller declared
+     */
+    public List<String> getUndeclared() {
+      return undeclared;
+    }
+
+    /**
+     * @return indexes that haven't been used since the Mongo server started
+     */
+    public List<String> getUnused() {
+      return unused;
+    }
+
+    void log(Logger logger) {
+      logger.info("Created missing indexes: {}", missing);
+      if (!undeclared.isEmpty()) {
+        logger.warn("Indexes that no controller declares (consider dropping them): {}", undeclared);
+      }
+      if (!unused.isEmpty()) {
+        logger.info("Indexes unused since the database started: {}", unused);
+      }
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoIterable;
+
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Writes list responses straight from a Mongo cursor to the HTTP response.
+ *
+ * `ctx.json(list)` needs the whole list in memory, and then builds the
+ * whole JSON string in memory, before it sends anything. When a client asks
+ * for a streamed response (`?stream=true`) we instead serialize each document
+ * onto the response's output stream as it comes out of the cursor. Since no
+ * `Content-Length` is set, Jetty sends the body with chunked transfer
+ * encoding, and the memory used by a request stays flat no matter how many
+ * documents it returns. The body is compressed as it's written if the client
+ * accepts it (see `ResponseCompression`).
+ */
+public final class JsonStreaming {
+
+  /** Query parameter that asks for a streamed response. */
+  public static final String STREAM_KEY = "stream";
+
+  // Jackson flushes after every value by default, which would send one tiny
+  // chunk per document; we'd rather let Jetty's buffer decide when to send.
+  private static final ObjectWriter WRITER = new ObjectMapper()
+    .writer()
+    .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+  private JsonStreaming() {
+  }
+
+  /**
+   * Did this request ask for a streamed response?
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the `stream` query parameter is "true"
+   */
+  public static boolean isStreamed(Context ctx) {
+    return Boolean.parseBoolean(ctx.queryParam(STREAM_KEY));
+  }
+
+  /**
+   * Write every result as one JSON array onto the response's output stream,
+   * one document at a time.
+   *
+   * The status and content type are set first since they can't be changed
+   * once the first chunk has been sent. We flush after the first document so
+   * the client gets its first bytes as soon as Mongo has returned the first
+   * batch, rather than once Jetty's output buffer fills up.
+   *
+   * @param <T> the type of the documents being written
+   * @param ctx a Javalin HTTP context
+   * @param results the results to write (e.g., from `find` or `aggregate`)
+   */
+  public static <T> void writeArray(Context ctx, MongoIterable<T> results) {
+    ctx.status(HttpStatus.OK);
+    ctx.contentType(ContentType.APPLICATION_JSON);
+
+    try (MongoCursor<T> cursor = results.iterator();
+        OutputStream out = ResponseCompression.outputStream(ctx);
+        JsonGenerator generator = WRITER.createGenerator(out)) {
+      // Closing `out` finishes the compression, so it's closed separately, after the generator.
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      generator.writeStartArray();
+      if (cursor.hasNext()) {
+        WRITER.writeValue(generator, cursor.next());
+        generator.flush();
+      }
+      while (cursor.hasNext()) {
+        WRITER.writeValue(generator, cursor.next());
+      }
+      generator.writeEndArray();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to stream the response", e);
+    }
+  }
+}
@@ -0,0 +1,278 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.ne;
+import static com.mongodb.client.model.Filters.or;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.validation.Validator;
+
+/**
+ * Helpers for keyset (a.k.a. "cursor") pagination of the list endpoints.
+ *
+ * Instead of asking Mongo to `skip` past every earlier result, each page
+ * hands the client an opaque `after` token holding the sort key and `_id`
+ * of the last document it returned. The next request turns that token
+ * back into a filter that only matches documents sorting strictly after
+ * that point, so every page starts where the previous one left off
+ * (and can be answered from an index on the sort field and `_id`).
+ *
+ * Because `_id` is always used as a tie-breaker, pages are stable for any
+ * `sortby`/`sortorder` combination, even when many documents share the
+ * same sort key.
+ */
+public final class KeysetPagination {
+
+  static final String ID_KEY = "_id";
+
+  /** Query parameter holding the maximum number of documents to return. */
+  public static final String LIMIT_KEY = "limit";
+
+  /** Query parameter holding the token returned with the previous page. */
+  public static final String AFTER_KEY = "after";
+
+  /** Response header holding the token for the next page, if there is one. */
+  public static final String NEXT_PAGE_HEADER = "X-Next-Page";
+
+  /** The largest page a client is allowed to ask for. */
+  public static final int MAX_LIMIT = 1000;
+
+  /** The page size of a list that's always paged, when the request doesn't give a `limit`. */
+  public static final int DEFAULT_LIMIT = 20;
+
+  // The keys used inside the (base64 encoded) JSON page token.
+  private static final String TOKEN_SORT_KEY = "k";
+  private static final String TOKEN_ID_KEY = "id";
+
+  private KeysetPagination() {
+  }
+
+  /**
+   * Construct a sorting document that sorts by `sortBy` and then by `_id`,
+   * both in the same direction. Including the `_id` makes the ordering total,
+   * which is what lets an `after` token pick up exactly where a page ended.
+   *
+   * @param sortBy the field to sort by
+   * @param descending whether to sort in descending order
+   * @return a Bson sorting document that can be used in the `sort` method
+   */
+  public static Bson sortingOrder(String sortBy, boolean descending) {
+    if (ID_KEY.equals(sortBy)) {
+      return descending ? Sorts.descending(ID_KEY) : Sorts.ascending(ID_KEY);
+    }
+    return descending
+      ? Sorts.descending(sortBy, ID_KEY)
+      : Sorts.ascending(sortBy, ID_KEY);
+  }
+
+  /**
+   * Construct a Bson filter that matches the documents that come after the
+   * position encoded in a page token, for the given sorting order.
+   *
+   * @param sortBy the field the results are sorted by
+   * @param descending whether the results are sorted in descending order
+   * @param token a token previously produced by `tokenFor`
+   * @return a Bson filter matching only documents after the token's position
+   * @throws BadRequestResponse if the token can't be decoded
+   */
+  public static Bson afterFilter(String sortBy, boolean descending, String token) {
+    Document position = decode(token);
+    ObjectId lastId = position.getObjectId(TOKEN_ID_KEY);
+    Bson pastLastId = descending ? lt(ID_KEY, lastId) : gt(ID_KEY, lastId);
+
+    if (ID_KEY.equals(sortBy)) {
+      return pastLastId;
+    }
+
+    Object lastKey = position.get(TOKEN_SORT_KEY);
+    Bson sameKeyPastLastId = and(eq(sortBy, lastKey), pastLastId);
+    if (lastKey == null) {
+      // Mongo sorts missing/null values before everything else, so in
+      // ascending order every non-null value comes after a null key, and
+      // in descending order nothing but other nulls can follow it.
+      return descending ? sameKeyPastLastId : or(ne(sortBy, null), sameKeyPastLastId);
+    }
+    if (descending) {
+      // `$lt` never matches missing/null values, but they sort after
+      // everything else in descending order, so they come after any key.
+      return or(lt(sortBy, lastKey), sameKeyPastLastId, eq(sortBy, null));
+    }
+    return or(gt(sortBy, lastKey), sameKeyPastLastId);
+  }
+
+  /**
+   * Construct the opaque token that points just past the given document.
+   *
+   * The sort key is read from the public field named `sortBy` in the
+   * document (e.g., `owner` in a `Todo`), so `sortBy` has to be one of the
+   * document's fields.
+   *
+   * @param document the last document on the current page
+   * @param sortBy the field the results are sorted by
+   * @return a URL-safe token that can be passed back as the `after` parameter
+   * @throws BadRequestResponse if `sortBy` isn't a field of the document
+   */
+  public static String tokenFor(Object document, String sortBy) {
+    Object sortKey;
+    String id;
+    try {
+      sortKey = document.getClass().getField(sortBy).get(document);
+      id = (String) document.getClass().getField(ID_KEY).get(document);
+    } catch (NoSuchFieldException | IllegalAccessException e) {
+      throw new BadRequestResponse("Results can't be paged when sorted by " + sortBy);
+    }
+
+    Document position = new Document(TOKEN_SORT_KEY, ID_KEY.equals(sortBy) ? null : sortKey)
+      .append(TOKEN_ID_KEY, new ObjectId(id));
+    return Base64.getUrlEncoder()
+      .withoutPadding()
+      .encodeToString(position.toJson().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Does this request ask for a single page of results (i.e., does
+   * it have a `limit` query parameter)?
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the request has a `limit` query parameter
+   */
+  public static boolean isPaged(Context ctx) {
+    return ctx.queryParamMap().containsKey(LIMIT_KEY);
+  }
+
+  /**
+   * Turn away a bulk change (e.g., a PATCH or DELETE by filter) that has
+   * `limit` or `after`. A bulk change applies to everything its filters
+   * match, so paging it would either be ignored (`limit`) or quietly act
+   * as another filter (`after`).
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws BadRequestResponse if the request has either parameter
+   */
+  public static void rejectPaging(Context ctx) {
+    if (isPaged(ctx) || ctx.queryParamMap().containsKey(AFTER_KEY)) {
+      throw new BadRequestResponse(
+        "Bulk changes apply to everything the filters match, so `" + LIMIT_KEY + "` and `" + AFTER_KEY
+        + "` aren't allowed");
+    }
+  }
+
+  /**
+   * Fetch one page of (already filtered and sorted) results.
+   *
+   * This asks Mongo for one more document than the requested `limit`; if
+   * that extra document exists there is another page, so we drop it and
+   * set the `X-Next-Page` response header to the token for the last
+   * document we're actually returning.
+   *
+   * @param <T> the type of the documents being paged
+   * @param ctx a Javalin HTTP context, which contains the `limit` query parameter
+   * @param results the filtered and sorted results to take the page from
+   * @param sortBy the field the results are sorted by
+   * @return the documents on this page
+   */
+  public static <T> ArrayList<T> fetchPage(Context ctx, FindIterable<T> results, String sortBy) {
+    return fetchPage(ctx, results, sortBy, checkedLimit(ctx).get());
+  }
+
+  /**
+   * Fetch one page of (already filtered and sorted) results, for endpoints
+   * that are always paged, using `defaultLimit` as the page size if there's
+   * no `limit` query parameter.
+   *
+   * @param <T> the type of the documents being paged
+   * @param ctx a Javalin HTTP context, which may contain the `limit` query parameter
+   * @param results the filtered and sorted results to take the page from
+   * @param sortBy the field the results are sorted by
+   * @param defaultLimit the page size to use if the request doesn't give one
+   * @return the documents on this page
+   */
+  public static <T> ArrayList<T> fetchDefaultPage(
+      Context ctx, FindIterable<T> results, String sortBy, int defaultLimit) {
+    return fetchPage(ctx, results, sortBy, pageLimit(ctx, defaultLimit));
+  }
+
+  /**
+   * The page size a paged request asked for.
+   *
+   * @param ctx a Javalin HTTP context, which contains the `limit` query parameter
+   * @return the `limit`
+   * @throws io.javalin.validation.ValidationException if the limit isn't legal
+   */
+  public static int pageLimit(Context ctx) {
+    return checkedLimit(ctx).get();
+  }
+
+  /**
+   * The page size for a list that's always paged: the `limit` the request
+   * asked for, or `defaultLimit` if it didn't ask.
+   *
+   * @param ctx a Javalin HTTP context, which may contain the `limit` query parameter
+   * @param defaultLimit the page size to use if the request doesn't give one
+   * @return the page size
+   * @throws io.javalin.validation.ValidationException if the limit isn't legal
+   */
+  public static int pageLimit(Context ctx, int defaultLimit) {
+    return isPaged(ctx) ? checkedLimit(ctx).get() : defaultLimit;
+  }
+
+  /**
+   * Finish a page fetched some other way (e.g., asynchronously) with up to
+   * `limit + 1` documents, as `fetchPage` does: if the extra document is
+   * there, drop it and set the `X-Next-Page` header.
+   *
+   * @param <T> the type of the documents being paged
+   * @param ctx a Javalin HTTP context
+   * @param fetched the first `limit + 1` (or fewer) results
+   * @param sortBy the field the results are sorted by
+   * @param limit the page size
+   * @return the documents on this page
+   */
+  public static <T> ArrayList<T> endPage(Context ctx, List<T> fetched, String sortBy, int limit) {
+    ArrayList<T> page = new ArrayList<>(fetched);
+    if (page.size() > limit) {
+      page.subList(limit, page.size()).clear();
+      ctx.header(NEXT_PAGE_HEADER, tokenFor(page.get(limit - 1), sortBy));
+    }
+    return page;
+  }
+
+  private static Validator<Integer> checkedLimit(Context ctx) {
+    return ctx.queryParamAsClass(LIMIT_KEY, Integer.class)
+      .check(it -> it > 0, "The page limit must be greater than zero")
+      .check(it -> it <= MAX_LIMIT, "The page limit must be at most " + MAX_LIMIT);
+  }
+
+  private static <T> ArrayList<T> fetchPage(Context ctx, FindIterable<T> results, String sortBy, int limit) {
+    return endPage(ctx, results.limit(limit + 1).into(new ArrayList<>()), sortBy, limit);
+  }
+
+  private static Document decode(String token) {
+    Document position;
+    try {
+      position = Document.parse(new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8));
+    } catch (RuntimeException e) {
+      throw new BadRequestResponse("The `after` page token wasn't legal.");
+    }
+    if (!(position.get(TOKEN_ID_KEY) instanceof ObjectId)) {
+      throw new BadRequestResponse("The `after` page token wasn't legal.");
+    }
+    return position;
+  }
+}
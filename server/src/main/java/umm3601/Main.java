@@ -1,31 +1,97 @@
 package umm3601;
 
+import java.time.Duration;
+
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoDatabase;
 
+import umm3601.metrics.MongoMetrics;
+import umm3601.todo.AsyncTodoController;
 import umm3601.todo.TodoController;
+import umm3601.user.AsyncUserController;
 import umm3601.user.UserController;
 
 public class Main {
 
+  // By default, new todos from concurrent requests are inserted in batches
+  // of up to 100, with each waiting at most 2ms for others to join it.
+  private static final String DEFAULT_INSERT_BATCH_SIZE = "100";
+  // Batching is off unless it's asked for, since it makes every insert wait.
+  private static final String DEFAULT_INSERT_BATCH_DELAY_MS = "0";
+
   public static void main(String[] args) {
     // Get the MongoDB address and database name from environment variables and
     // if they aren't set, use the defaults of "localhost" and "dev".
     String mongoAddr = Main.getEnvOrDefault("MONGO_ADDR", "localhost");
     String databaseName = Main.getEnvOrDefault("MONGO_DB", "dev");
 
-    // Set up the MongoDB client
-    MongoClient mongoClient = Server.configureDatabase(mongoAddr);
+    // Set up the MongoDB client, which (like the reactive one below) reports
+    // what its commands and connection pool are doing to `mongoMetrics`.
+    MongoMetrics mongoMetrics = new MongoMetrics();
+    MongoClient mongoClient = Server.configureDatabase(mongoAddr, mongoMetrics);
     // Get the database
     MongoDatabase database = mongoClient.getDatabase(databaseName);
 
+    // If `CONTROLLERS` is `async`, the controllers read through a second,
+    // non-blocking client (see `Server.configureReactiveDatabase`) too.
+    com.mongodb.reactivestreams.client.MongoDatabase asyncDatabase = null;
+    if (Main.getEnvOrDefault("CONTROLLERS", "sync").equalsIgnoreCase("async")) {
+      com.mongodb.reactivestreams.client.MongoClient asyncClient =
+        Server.configureReactiveDatabase(mongoAddr, mongoMetrics);
+      Runtime.getRuntime().addShutdownHook(new Thread(asyncClient::close));
+      asyncDatabase = asyncClient.getDatabase(databaseName);
+    }
+
     // The implementations of `Controller` used for the server. These will presumably
     // be one or more controllers, each of which implements the `Controller` interface.
     // You'll add your own controllers in `getControllers` as you create them.
-    final Controller[] controllers = Main.getControllers(database);
+    final Controller[] controllers = Main.getControllers(database, asyncDatabase);
+
+    // Responses smaller than `COMPRESSION_MIN_SIZE` bytes aren't compressed, and
+    // up to `RESPONSE_CACHE_BYTES` bytes of (compressed) responses are cached.
+    ResponseCompression compression = new ResponseCompression(
+      Integer.parseInt(Main.getEnvOrDefault("COMPRESSION_MIN_SIZE",
+        String.valueOf(ResponseCompression.DEFAULT_MIN_SIZE))),
+      Long.parseLong(Main.getEnvOrDefault("RESPONSE_CACHE_BYTES",
+        String.valueOf(ResponseCompression.DEFAULT_CACHE_BYTES))));
+
+    // Requests run on virtual threads if `REQUEST_THREADS` is `virtual` (and
+    // the JVM has them), or on Jetty's platform threads otherwise. Each route
+    // runs at most `ROUTE_CONCURRENCY_LIMIT` requests at once, and the server
+    // at most `TOTAL_CONCURRENCY_LIMIT` (which should be no more than Mongo's
+    // connection pool); the rest wait up to `ROUTE_QUEUE_TIMEOUT_MS`
+    // milliseconds, then get a 503. Waiting holds the request's thread, so
+    // with async controllers on platform threads that defaults to not
+    // waiting at all (see `RequestConcurrency.defaultMaxWait`).
+    boolean virtualThreads = Main.getEnvOrDefault("REQUEST_THREADS", "platform").equalsIgnoreCase("virtual");
+    Duration defaultMaxWait = RequestConcurrency.defaultMaxWait(virtualThreads, asyncDatabase != null);
+    RequestConcurrency concurrency = new RequestConcurrency(
+      virtualThreads,
+      Integer.parseInt(Main.getEnvOrDefault("ROUTE_CONCURRENCY_LIMIT",
+        String.valueOf(RequestConcurrency.DEFAULT_PERMITS_PER_ROUTE))),
+      Integer.parseInt(Main.getEnvOrDefault("TOTAL_CONCURRENCY_LIMIT",
+        String.valueOf(RequestConcurrency.DEFAULT_PERMITS_IN_TOTAL))),
+      Duration.ofMillis(Long.parseLong(Main.getEnvOrDefault("ROUTE_QUEUE_TIMEOUT_MS",
+        String.valueOf(defaultMaxWait.toMillis())))));
+
+    // A fraction `REQUEST_LOG_SAMPLE_RATE` of requests are logged, as well as
+    // every request that fails or takes longer than `REQUEST_LOG_SLOW_MS`
+    // milliseconds. Up to `REQUEST_LOG_CAPACITY` entries wait to be written;
+    // beyond that they're dropped (and counted).
+    RequestLog requestLog = new RequestLog(
+      Double.parseDouble(Main.getEnvOrDefault("REQUEST_LOG_SAMPLE_RATE",
+        String.valueOf(RequestLog.DEFAULT_SAMPLE_RATE))),
+      Duration.ofMillis(Long.parseLong(Main.getEnvOrDefault("REQUEST_LOG_SLOW_MS",
+        String.valueOf(RequestLog.DEFAULT_SLOW_REQUEST.toMillis())))),
+      Integer.parseInt(Main.getEnvOrDefault("REQUEST_LOG_CAPACITY",
+        String.valueOf(RequestLog.DEFAULT_CAPACITY))));
 
     // Construct the server
-    Server server = new Server(mongoClient, controllers);
+    Server server = new Server(mongoClient, controllers, new Server.Options()
+      .compression(compression)
+      .concurrency(concurrency)
+      .mongoMetrics(mongoMetrics)
+      .requestLog(requestLog));
 
     // Start the server
     server.startServer();
@@ -50,11 +116,33 @@ public class Main {
    * implements the `Controller` interface. You'll add your own controllers
    * in to the array returned by this method as you create them.
    *
+   * New todos from concurrent requests are inserted together in batches of
+   * up to `TODO_INSERT_BATCH_SIZE`, with each waiting at most
+   * `TODO_INSERT_BATCH_DELAY_MS` milliseconds for a batch to fill up. Setting
+   * either to 0 (the delay's default) inserts each todo on its own.
+   *
+   * If there's an `asyncDatabase`, the controllers are the asynchronous
+   * ones, which read without blocking (see `AsyncTodoController`).
+   *
    * @param database The MongoDB database object used by the controllers
    *               to access the database.
+   * @param asyncDatabase The same database through the reactive streams
+   *               driver, or `null` for the synchronous controllers.
    * @return An array of implementations of `Controller` for the server.
    */
-  static Controller[] getControllers(MongoDatabase database) {
+  static Controller[] getControllers(
+      MongoDatabase database, com.mongodb.reactivestreams.client.MongoDatabase asyncDatabase) {
+    int insertBatchSize = Integer.parseInt(Main.getEnvOrDefault("TODO_INSERT_BATCH_SIZE", DEFAULT_INSERT_BATCH_SIZE));
+    Duration insertBatchDelay = Duration.ofMillis(
+      Long.parseLong(Main.getEnvOrDefault("TODO_INSERT_BATCH_DELAY_MS", DEFAULT_INSERT_BATCH_DELAY_MS)));
+
+    if (asyncDatabase != null) {
+      return new Controller[] {
+        new AsyncUserController(database, asyncDatabase),
+        new AsyncTodoController(database, insertBatchSize, insertBatchDelay, asyncDatabase)
+      };
+    }
+
     Controller[] controllers = new Controller[] {
       // You would add additional controllers here, as you create them,
       // although you need to make sure that each of your new controllers implements
@@ -62,7 +150,7 @@ public class Main {
       //
       // You can also remove this UserController once you don't need it.
       new UserController(database),
-      new TodoController(database)
+      new TodoController(database, insertBatchSize, insertBatchDelay)
     };
     return controllers;
   }
@@ -0,0 +1,449 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+
+/**
+ * Sits between a controller and its collection, keeping the queries
+ * clients can ask for to ones Mongo can answer efficiently.
+ *
+ * - Clients may only sort by the fields the controller says are sortable
+ *   (which is what keeps the number of query shapes small).
+ * - The first time each query *shape* (the filter and sort, without their
+ *   values) comes along, the guard asks Mongo to `explain` it, and keeps
+ *   the plan for a while. A plan that sorts in memory (a `SORT` stage) is
+ *   run with `allowDiskUse`, so a large sort spills to disk instead of
+ *   failing at Mongo's memory limit. A plan that scans the whole
+ *   collection (a `COLLSCAN`) is refused once the collection is large.
+ * - It counts how often each shape is asked for, and `logShapes()` reports
+ *   them, so we know which indexes are worth having.
+ *
+ * Plans are explained again after `replanInterval`, since indexes may be
+ * built (see `IndexBootstrapper`) and collections grow after a shape is
+ * first seen. A plan that's refused isn't kept, though: the next request
+ * for that shape explains it again, so it's let through as soon as an
+ * index can answer it. Each shape is explained by one request at a time,
+ * however many ask for it at once. If Mongo can't explain a query, it's
+ * let through.
+ *
+ * Until the controller hears that its indexes have been built (see
+ * `indexesBuilt()`), a refused query may just be waiting for its index, so
+ * it gets a `503 Service Unavailable` with a `Retry-After` (see `addTo()`)
+ * rather than a `400 Bad Request`.
+ */
+public class QueryGuard {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(QueryGuard.class);
+
+  // The stages of a plan that read every document, or sort them in memory.
+  static final String COLLECTION_SCAN = "COLLSCAN";
+  static final String BLOCKING_SORT = "SORT";
+
+  // Collection scans are refused on collections with more documents than this.
+  private static final long DEFAULT_MAX_SCANNED = 100_000;
+  private static final Duration DEFAULT_REPLAN_INTERVAL = Duration.ofMinutes(10);
+  // How many of the most common shapes `logShapes()` reports.
+  private static final int LOGGED_SHAPES = 20;
+  // How long clients are told to wait when a query's index may still be building.
+  static final String RETRY_AFTER_SECONDS = "10";
+
+  // Explains shapes for `admitAsync`, each on its own (short-lived) thread.
+  private static final Executor EXPLAINER = task -> {
+    Thread thread = new Thread(task, "query-guard-explain");
+    thread.setDaemon(true);
+    thread.start();
+  };
+
+  // Stands in for every value in a shape.
+  private static final BsonString VALUE = new BsonString("?");
+
+  private final String name;
+  private final MongoCollection<Document> collection;
+  private final Set<String> sortableFields;
+  private final long maxScanned;
+  private final long replanNanos;
+
+  private final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+
+  // Whether the indexes this guard's queries rely on are known to exist.
+  private volatile boolean indexesBuilt;
+
+  /**
+   * Construct a guard for a collection.
+   *
+   * @param name what the collection holds (e.g., "todos"), for error messages and logs
+   * @param collection the collection to explain queries against
+   * @param sortableFields the fields clients may sort by
+   */
+  public QueryGuard(String name, MongoCollection<Document> collection, Set<String> sortableFields) {
+    this(name, collection, sortableFields, DEFAULT_MAX_SCANNED, DEFAULT_REPLAN_INTERVAL);
+  }
+
+  /**
+   * Construct a guard for a collection.
+   *
+   * @param name what the collection holds (e.g., "todos"), for error messages and logs
+   * @param collection the collection to explain queries against
+   * @param sortableFields the fields clients may sort by
+   * @param maxScanned the most documents a collection can have for a query
+   *   that scans all of them to be allowed
+   * @param replanInterval how long a query shape's plan is kept before it's explained again
+   */
+  QueryGuard(String name, MongoCollection<Document> collection, Set<String> sortableFields,
+      long maxScanned, Duration replanInterval) {
+    this.name = name;
+    this.collection = collection;
+    this.sortableFields = Set.copyOf(sortableFields);
+    this.maxScanned = maxScanned;
+    this.replanNanos = replanInterval.toNanos();
+  }
+
+  /**
+   * Check that clients may sort by a field.
+   *
+   * @param field the field a client asked to sort by
+   * @return the field
+   * @throws BadRequestResponse if it isn't one of the sortable fields
+   */
+  public String sortField(String field) {
+    if (!sortableFields.contains(field)) {
+      throw new BadRequestResponse(
+        "Can't sort " + name + " by '" + field + "'; sort by one of " + new TreeSet<>(sortableFields));
+    }
+    return field;
+  }
+
+  /**
+   * Check a query before it's run, explaining it if its shape is new (or
+   * its plan is old).
+   *
+   * @param filter the query's filter
+   * @param sort the query's sorting order
+   * @return the query's plan; if it `needsDiskUse()`, run the query with `allowDiskUse`
+   * @throws BadRequestResponse if the query would scan the whole of a large collection
+   * @throws IndexesBuilding if it would, but the indexes may still be being built
+   */
+  public Plan admit(Bson filter, Bson sort) {
+    Plan plan;
+    try {
+      plan = planFor(filter, sort, Runnable::run).join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+    return checked(plan);
+  }
+
+  /**
+   * Check a query before it's run, as `admit` does, without blocking: if
+   * its shape has to be explained, that's done on a background thread.
+   *
+   * @param filter the query's filter
+   * @param sort the query's sorting order
+   * @return a future that completes with the query's plan, or with a
+   *   `BadRequestResponse` (or `IndexesBuilding`) if the query would scan
+   *   the whole of a large collection
+   */
+  public CompletableFuture<Plan> admitAsync(Bson filter, Bson sort) {
+    return planFor(filter, sort, EXPLAINER).thenApply(this::checked);
+  }
+
+  private Plan checked(Plan plan) {
+    if (refuses(plan)) {
+      if (!indexesBuilt) {
+        throw new IndexesBuilding(
+          "The indexes for that query on " + name + " may still be being built; try again shortly");
+      }
+      throw new BadRequestResponse(
+        "That query would have to read all " + plan.documents + " " + name
+          + "; filter or sort by an indexed field instead");
+    }
+    return plan;
+  }
+
+  private boolean refuses(Plan plan) {
+    return plan.isCollectionScan() && plan.documents > maxScanned;
+  }
+
+  /**
+   * Note that the indexes have been built (see `IndexBootstrapper`), and
+   * forget every plan, since they may have been made without them. From
+   * now on a collection scan is refused with a `400 Bad Request`.
+   */
+  public void indexesBuilt() {
+    indexesBuilt = true;
+    for (Shape shape : shapes.values()) {
+      shape.plan = null;
+    }
+  }
+
+  /**
+   * Answer `IndexesBuilding` with a `503 Service Unavailable` that has a
+   * `Retry-After` header, so clients know to come back.
+   *
+   * @param server the Javalin server to add the handler to
+   */
+  public static void addTo(Javalin server) {
+    server.exception(IndexesBuilding.class, (e, ctx) -> {
+      ctx.header(Header.RETRY_AFTER, RETRY_AFTER_SECONDS);
+      throw new ServiceUnavailableResponse(e.getMessage());
+    });
+  }
+
+  /**
+   * The plan for a query's shape, explaining it (with `executor`) if it's
+   * new, its plan is old, or its plan was refused. Only one request
+   * explains a shape at a time:
+   * the others wait for that explanation if there's no plan yet, and
+   * otherwise keep using the old plan until the new one is ready.
+   */
+  private CompletableFuture<Plan> planFor(Bson filter, Bson sort, Executor executor) {
+    String key = shape(filter, sort);
+    Shape shape = shapes.computeIfAbsent(key, k -> new Shape());
+    shape.count.increment();
+
+    Plan plan = shape.plan;
+    long now = System.nanoTime();
+    if (plan != null && !refuses(plan) && now - shape.explainedAt < replanNanos) {
+      return CompletableFuture.completedFuture(plan);
+    }
+
+    CompletableFuture<Plan> explaining;
+    boolean explainHere = false;
+    synchronized (shape) {
+      explaining = shape.explaining;
+      if (explaining == null) {
+        explaining = new CompletableFuture<>();
+        shape.explaining = explaining;
+        shape.explainedAt = now;
+        explainHere = true;
+      }
+    }
+    if (!explainHere) {
+      return plan == null ? explaining : CompletableFuture.completedFuture(plan);
+    }
+
+    CompletableFuture<Plan> explained = explaining;
+    executor.execute(() -> {
+      try {
+        shape.plan = explain(key, filter, sort);
+        explained.complete(shape.plan);
+      } catch (RuntimeException e) {
+        explained.completeExceptionally(e);
+      } finally {
+        synchronized (shape) {
+          shape.explaining = null;
+        }
+      }
+    });
+    return explained;
+  }
+
+  private Plan explain(String key, Bson filter, Bson sort) {
+    try {
+      Document explained = collection.find(filter).sort(sort).explain(ExplainVerbosity.QUERY_PLANNER);
+      Plan plan = plan(explained, collection.estimatedDocumentCount());
+      if (plan.isCollectionScan() || plan.isBlockingSort()) {
+        LOGGER.warn("Query on {} uses {} ({} documents): {}", name, plan.stages, plan.documents, key);
+      }
+      return plan;
+    } catch (MongoException e) {
+      LOGGER.warn("Couldn't explain query on {}: {}: {}", name, key, e.getMessage());
+      return new Plan(Set.of(), 0);
+    }
+  }
+
+  /**
+   * The plan Mongo chose, from the result of an `explain`.
+   *
+   * @param explained what `explain` (with at least `queryPlanner` verbosity) returned
+   * @param documents how many documents the collection has
+   * @return the winning plan
+   */
+  static Plan plan(Document explained, long documents) {
+    Set<String> stages = new TreeSet<>();
+    Document queryPlanner = explained.get("queryPlanner", Document.class);
+    if (queryPlanner != null) {
+      collectStages(queryPlanner.get("winningPlan"), stages);
+    }
+    return new Plan(stages, documents);
+  }
+
+  /**
+   * Collect the names of the stages in (some part of) an explained plan.
+   * Plans are trees of stages (`inputStage`, `inputStages`), and newer
+   * servers nest them further (e.g., in `queryPlan`), so this looks at
+   * every `stage` anywhere in it.
+   */
+  private static void collectStages(Object node, Set<String> stages) {
+    if (node instanceof Document) {
+      for (Map.Entry<String, Object> entry : ((Document) node).entrySet()) {
+        if ("stage".equals(entry.getKey()) && entry.getValue() instanceof String) {
+          stages.add((String) entry.getValue());
+        } else {
+          collectStages(entry.getValue(), stages);
+        }
+      }
+    } else if (node instanceof List) {
+      for (Object child : (List<?>) node) {
+        collectStages(child, stages);
+      }
+    }
+  }
+
+  /**
+   * The shape of a query: the JSON of its filter, with every value (and
+   * every list of plain values, like an `$in`) replaced by `?`, and of its
+   * sorting order.
+   */
+  static String shape(Bson filter, Bson sort) {
+    return shapeOf(toDocument(filter)).toString() + " sort " + toDocument(sort).toJson();
+  }
+
+  private static BsonDocument toDocument(Bson bson) {
+    return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+  }
+
+  private static BsonValue shapeOf(BsonValue value) {
+    if (value.isDocument()) {
+      BsonDocument shape = new BsonDocument();
+      for (Map.Entry<String, BsonValue> entry : value.asDocument().entrySet()) {
+        shape.put(entry.getKey(), shapeOf(entry.getValue()));
+      }
+      return shape;
+    }
+    if (value.isArray() && value.asArray().stream().anyMatch(v -> v.isDocument() || v.isArray())) {
+      BsonArray shape = new BsonArray();
+      for (BsonValue element : value.asArray()) {
+        shape.add(shapeOf(element));
+      }
+      return shape;
+    }
+    return VALUE;
+  }
+
+  /**
+   * @return how many times each query shape has been asked for, most common first
+   */
+  public Map<String, Long> shapeCounts() {
+    List<Map.Entry<String, Shape>> entries = new ArrayList<>(shapes.entrySet());
+    entries.sort(Comparator.comparingLong((Map.Entry<String, Shape> entry) -> entry.getValue().count.sum())
+      .reversed());
+    Map<String, Long> counts = new LinkedHashMap<>();
+    for (Map.Entry<String, Shape> entry : entries) {
+      counts.put(entry.getKey(), entry.getValue().count.sum());
+    }
+    return counts;
+  }
+
+  /**
+   * Log the most common query shapes, with how often each was asked for
+   * and the stages of its plan. Controllers schedule this (see
+   * `Controller#scheduleBackgroundTasks()`).
+   */
+  public void logShapes() {
+    int logged = 0;
+    for (Map.Entry<String, Long> entry : shapeCounts().entrySet()) {
+      if (logged++ == LOGGED_SHAPES) {
+        break;
+      }
+      Plan plan = shapes.get(entry.getKey()).plan;
+      LOGGER.info("{} query shape asked for {} times, plan {}: {}",
+        name, entry.getValue(), plan == null ? Set.of() : plan.stages, entry.getKey());
+    }
+  }
+
+  /**
+   * How often a query shape has been asked for, and its latest plan.
+   */
+  private static final class Shape {
+    private final LongAdder count = new LongAdder();
+    private volatile Plan plan;
+    private volatile long explainedAt;
+    // The explanation in progress, if there is one (guarded by the shape).
+    private CompletableFuture<Plan> explaining;
+  }
+
+  /**
+   * A query refused because it would scan a large collection, before the
+   * indexes are known to exist. `addTo()` turns this into a `503 Service
+   * Unavailable` with a `Retry-After`.
+   */
+  public static final class IndexesBuilding extends ServiceUnavailableResponse {
+    IndexesBuilding(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * What Mongo said it would do to answer a query.
+   */
+  public static final class Plan {
+    private final Set<String> stages;
+    private final long documents;
+
+    Plan(Set<String> stages, long documents) {
+      this.stages = Set.copyOf(stages);
+      this.documents = documents;
+    }
+
+    /**
+     * @return the names of the plan's stages (e.g., `IXSCAN`, `FETCH`)
+     */
+    public Set<String> getStages() {
+      return stages;
+    }
+
+    /**
+     * @return whether the plan reads every document in the collection
+     */
+    public boolean isCollectionScan() {
+      return stages.contains(COLLECTION_SCAN);
+    }
+
+    /**
+     * @return whether the plan sorts the results in memory, rather than
+     *   reading them in order from an index
+     */
+    public boolean isBlockingSort() {
+      return stages.contains(BLOCKING_SORT);
+    }
+
+    /**
+     * @return whether the query should be run with `allowDiskUse`, so a
+     *   large in-memory sort doesn't fail
+     */
+    public boolean needsDiskUse() {
+      return isBlockingSort();
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.json.JavalinJackson;
+
+/**
+ * Helpers for reading from Mongo with the reactive streams driver, whose
+ * results are `Publisher`s, in handlers that hand Javalin a
+ * `CompletableFuture` (with `ctx.future()`).
+ *
+ * The reactive driver has no MongoJack, so it reads plain `Document`s;
+ * `fromDocument()` turns those into the same POJOs the synchronous
+ * controllers use, so both send exactly the same JSON.
+ */
+public final class ReactiveMongo {
+
+  private static final ObjectMapper MAPPER = JavalinJackson.defaultMapper();
+
+  private ReactiveMongo() {
+  }
+
+  /**
+   * Collect everything a publisher publishes.
+   *
+   * @param <T> the type of the results
+   * @param publisher e.g., the results of a `find()`
+   * @return a future that completes with all the results, in order, or
+   *   with the error that stopped them
+   */
+  public static <T> CompletableFuture<List<T>> toList(Publisher<T> publisher) {
+    CompletableFuture<List<T>> results = new CompletableFuture<>();
+    publisher.subscribe(new Subscriber<T>() {
+      private final List<T> collected = new ArrayList<>();
+
+      @Override
+      public void onSubscribe(Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(T result) {
+        collected.add(result);
+      }
+
+      @Override
+      public void onError(Throwable error) {
+        results.completeExceptionally(error);
+      }
+
+      @Override
+      public void onComplete() {
+        results.complete(collected);
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Get the first thing a publisher publishes, if anything.
+   *
+   * @param <T> the type of the result
+   * @param publisher e.g., the results of `find().first()`
+   * @return a future that completes with the first result, or `null` if
+   *   there wasn't one
+   */
+  public static <T> CompletableFuture<T> first(Publisher<T> publisher) {
+    return toList(publisher).thenApply(results -> results.isEmpty() ? null : results.get(0));
+  }
+
+  /**
+   * Convert a document to a POJO, the way MongoJack would: `ObjectId`s
+   * (at any depth) become their hex strings.
+   *
+   * @param <T> the type of the POJO
+   * @param document a document read from Mongo
+   * @param type the POJO class, e.g., `Todo.class`
+   * @return the POJO
+   */
+  public static <T> T fromDocument(Document document, Class<T> type) {
+    return MAPPER.convertValue(withHexIds(document), type);
+  }
+
+  /**
+   * Convert each of a list of documents to a POJO.
+   *
+   * @param <T> the type of the POJOs
+   * @param documents documents read from Mongo
+   * @param type the POJO class
+   * @return the POJOs, in the same order
+   */
+  public static <T> List<T> fromDocuments(List<Document> documents, Class<T> type) {
+    List<T> converted = new ArrayList<>(documents.size());
+    for (Document document : documents) {
+      converted.add(fromDocument(document, type));
+    }
+    return converted;
+  }
+
+  private static Object withHexIds(Object value) {
+    if (value instanceof ObjectId) {
+      return ((ObjectId) value).toHexString();
+    }
+    if (value instanceof Map) {
+      Document copy = new Document();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        copy.put(String.valueOf(entry.getKey()), withHexIds(entry.getValue()));
+      }
+      return copy;
+    }
+    if (value instanceof List) {
+      List<Object> copy = new ArrayList<>();
+      for (Object element : (List<?>) value) {
+        copy.add(withHexIds(element));
+      }
+      return copy;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,198 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.connection.ConnectionPoolSettings;
+
+import io.javalin.Javalin;
+import io.javalin.config.JavalinConfig;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+import io.javalin.security.AccessManager;
+import io.javalin.security.RouteRole;
+import io.javalin.util.ConcurrencyUtil;
+
+/**
+ * How the server runs requests: on Jetty's pool of platform threads, or on
+ * a new virtual thread each, and how many requests each route may run at
+ * once.
+ *
+ * Every handler blocks on the synchronous Mongo driver, so with platform
+ * threads the size of Jetty's pool (250 threads) caps how many requests are
+ * in flight, however fast Mongo is. A virtual thread that blocks only costs
+ * some heap, so with virtual threads that cap goes away. Virtual threads
+ * need Java 21 (Javalin starts them reflectively, so this still compiles
+ * for Java 17); on an older JVM the server falls back to platform threads.
+ *
+ * Without the pool's cap, a burst of requests would all queue up for
+ * Mongo's connection pool (100 connections by default), where each waits
+ * up to two minutes and then fails. So the server may only run
+ * `permitsInTotal` requests at once (by default, one for each of those
+ * connections), and each route (e.g., `GET /api/todos/{id}`) only
+ * `permitsPerRoute` of them; a request beyond either limit waits up to
+ * `maxWait` for one of them to finish, and then gets `503 Service
+ * Unavailable` with a `Retry-After`, so the client backs off instead.
+ * Routes are also limited separately so that one busy, slow route (e.g.,
+ * `/api/todosByCategory`) can't take every permit and starve the others.
+ *
+ * Waiting for a permit holds the request's thread. That's cheap on a
+ * virtual thread, but asynchronous controllers (`CONTROLLERS=async`) on
+ * platform threads exist so that requests *don't* hold one, so for them
+ * the wait defaults to zero (see `defaultMaxWait()`): a request that can't
+ * start at once is turned away, and one that can holds its permits (but
+ * no thread) until its response is done.
+ */
+public class RequestConcurrency implements AccessManager {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RequestConcurrency.class);
+
+  /** By default, the server may use every connection in Mongo's default pool. */
+  public static final int DEFAULT_PERMITS_IN_TOTAL = ConnectionPoolSettings.builder().build().getMaxSize();
+
+  /** By default, each route may use half of them. */
+  public static final int DEFAULT_PERMITS_PER_ROUTE = DEFAULT_PERMITS_IN_TOTAL / 2;
+
+  /** By default, a request waits at most this long to start. */
+  public static final Duration DEFAULT_MAX_WAIT = Duration.ofSeconds(1);
+
+  // How many seconds a client turned away should wait before trying again.
+  static final String RETRY_AFTER_SECONDS = "1";
+
+  // The request attribute holding the route permits a request took one of
+  // (if it has, it also took one of `totalPermits`).
+  private static final String PERMIT_ATTRIBUTE = "umm3601.routePermits";
+
+  private final boolean virtualThreads;
+  private final int permitsPerRoute;
+  private final long maxWaitNanos;
+
+  // The permits every request needs one of, whatever its route.
+  private final Semaphore totalPermits;
+
+  // The permits for each route (its method and path), made on first use.
+  private final Map<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+  /**
+   * Construct request concurrency settings.
+   *
+   * @param virtualThreads whether to run each request on its own virtual
+   *   thread (if the JVM has them)
+   * @param permitsPerRoute the most requests each route may run at once
+   * @param permitsInTotal the most requests the server may run at once,
+   *   whatever their routes
+   * @param maxWait how long a request may wait to start before it's turned away
+   */
+  public RequestConcurrency(boolean virtualThreads, int permitsPerRoute, int permitsInTotal, Duration maxWait) {
+    if (permitsPerRoute < 1 || permitsInTotal < 1 || maxWait.isNegative()) {
+      throw new IllegalArgumentException(
+        "The server and each route need at least one permit and the wait can't be negative");
+    }
+    this.virtualThreads = virtualThreads;
+    this.permitsPerRoute = permitsPerRoute;
+    this.maxWaitNanos = maxWait.toNanos();
+    this.totalPermits = new Semaphore(permitsInTotal);
+  }
+
+  /**
+   * How long a request waits to start by default: `DEFAULT_MAX_WAIT`,
+   * unless that would hold up the threads of asynchronous handlers, in
+   * which case not at all.
+   *
+   * @param virtualThreads whether requests were asked to run on virtual threads
+   * @param asyncHandlers whether the controllers' handlers are asynchronous
+   * @return the default longest wait for a permit
+   */
+  public static Duration defaultMaxWait(boolean virtualThreads, boolean asyncHandlers) {
+    boolean cheapToBlock = virtualThreads && ConcurrencyUtil.isLoomAvailable();
+    return asyncHandlers && !cheapToBlock ? Duration.ZERO : DEFAULT_MAX_WAIT;
+  }
+
+  /**
+   * Configure Javalin to use these settings. Javalin chooses its threads
+   * for every server at once, so this affects any server created after it.
+   * The server also needs `addTo()`.
+   *
+   * @param config the configuration of the server being created
+   */
+  public void applyTo(JavalinConfig config) {
+    ConcurrencyUtil.INSTANCE.setUseLoom(usesVirtualThreads());
+    config.accessManager(this);
+  }
+
+  /**
+   * Add the after handler that gives back each request's permit.
+   *
+   * @param server The Javalin server instance
+   */
+  public void addTo(Javalin server) {
+    server.after(this::releasePermit);
+  }
+
+  /**
+   * @return true if requests will run on virtual threads, which takes
+   *   both asking for them and a JVM that has them
+   */
+  public boolean usesVirtualThreads() {
+    if (virtualThreads && !ConcurrencyUtil.isLoomAvailable()) {
+      LOGGER.warn("Virtual threads need Java 21 or later; using platform threads instead");
+      return false;
+    }
+    return virtualThreads;
+  }
+
+  /**
+   * Take a permit for a request's route, and then one of the server's, or
+   * turn the request away if either doesn't free up in time. Javalin calls this (as its `AccessManager`) just
+   * before each endpoint handler, but not before the before and after
+   * handlers, which don't touch Mongo. The `handler` Javalin passes in only
+   * queues the endpoint to run next, so the permit can't be given back
+   * here; `releasePermit` does that once the response is done.
+   *
+   * @param handler the (queued) endpoint handler
+   * @param ctx a Javalin HTTP context
+   * @param roles the route's roles, which we don't use
+   * @throws ServiceUnavailableResponse if the route is too busy
+   */
+  @Override
+  public void manage(Handler handler, Context ctx, Set<? extends RouteRole> roles) throws Exception {
+    String route = ctx.method() + " " + ctx.endpointHandlerPath();
+    Semaphore routePermits = permits.computeIfAbsent(route, key -> new Semaphore(permitsPerRoute));
+    long deadline = System.nanoTime() + maxWaitNanos;
+    if (!routePermits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS)) {
+      ctx.header(Header.RETRY_AFTER, RETRY_AFTER_SECONDS);
+      throw new ServiceUnavailableResponse("The server is too busy with " + route + " requests; try again shortly");
+    }
+    if (!totalPermits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+      routePermits.release();
+      ctx.header(Header.RETRY_AFTER, RETRY_AFTER_SECONDS);
+      throw new ServiceUnavailableResponse("The server is too busy; try again shortly");
+    }
+    ctx.attribute(PERMIT_ATTRIBUTE, routePermits);
+    handler.handle(ctx);
+  }
+
+  /**
+   * Give back the request's permits, if it has them. After handlers run even
+   * if the endpoint failed, so every permit taken is given back.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  void releasePermit(Context ctx) {
+    Semaphore routePermits = ctx.attribute(PERMIT_ATTRIBUTE);
+    if (routePermits != null) {
+      ctx.attribute(PERMIT_ATTRIBUTE, null);
+      totalPermits.release();
+      routePermits.release();
+    }
+  }
+}
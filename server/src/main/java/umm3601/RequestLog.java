@@ -0,0 +1,293 @@
+package umm3601;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.Context;
+import io.javalin.http.RequestLogger;
+import io.javalin.json.JavalinJackson;
+import umm3601.metrics.HttpMetrics;
+
+/**
+ * A structured log of requests (one line of JSON each) that request
+ * threads never wait for.
+ *
+ * A request thread only copies a few facts about the request into an
+ * entry and puts it in a lock-free ring buffer; a background thread takes
+ * entries out, formats them, and writes them to the log. If the buffer is
+ * full (the log can't keep up), the entry is dropped and counted rather
+ * than making the request wait, and the background thread logs how many
+ * were dropped.
+ *
+ * Only a sample of ordinary requests are logged, to keep the log small
+ * under load (`sampleRate` is the fraction kept), but requests that failed
+ * with a `5xx` or took longer than `slowRequest` are always logged, since
+ * those are the ones we want to look at.
+ */
+public class RequestLog implements RequestLogger {
+
+  /** By default, log 1% of ordinary requests. */
+  public static final double DEFAULT_SAMPLE_RATE = 0.01;
+
+  /** By default, always log requests that took longer than half a second. */
+  public static final Duration DEFAULT_SLOW_REQUEST = Duration.ofMillis(500);
+
+  /** By default, buffer up to 8192 entries. */
+  public static final int DEFAULT_CAPACITY = 8192;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RequestLog.class);
+
+  private static final ObjectMapper MAPPER = JavalinJackson.defaultMapper();
+
+  // How long the background thread sleeps when there's nothing to log.
+  private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private static final int SERVER_ERROR = 500;
+
+  private final double sampleRate;
+  private final long slowRequestNanos;
+  private final Ring<Entry> ring;
+  private final LongAdder dropped = new LongAdder();
+  private final Consumer<String> output;
+  private final Thread writer;
+
+  /**
+   * Construct a request log that writes to the `umm3601.RequestLog`
+   * logger, and start its background thread.
+   *
+   * @param sampleRate the fraction of ordinary requests to log, from 0 to 1
+   * @param slowRequest requests that take longer than this are always logged
+   * @param capacity the most entries to hold while they wait to be written
+   */
+  public RequestLog(double sampleRate, Duration slowRequest, int capacity) {
+    this(sampleRate, slowRequest, capacity, LOGGER::info);
+  }
+
+  /**
+   * Construct a request log that writes each line to `output`, and start
+   * its background thread.
+   */
+  RequestLog(double sampleRate, Duration slowRequest, int capacity, Consumer<String> output) {
+    if (sampleRate < 0 || sampleRate > 1 || capacity < 1) {
+      throw new IllegalArgumentException("The sample rate must be from 0 to 1, and the capacity positive");
+    }
+    this.sampleRate = sampleRate;
+    this.slowRequestNanos = slowRequest.toNanos();
+    this.ring = new Ring<>(capacity);
+    this.output = output;
+    writer = new Thread(this::run, "request-log");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Log a finished request, if it's sampled, failed or slow. Javalin calls
+   * this once the response has been sent.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param executionTimeMs how long the request took, in milliseconds
+   */
+  @Override
+  public void handle(Context ctx, Float executionTimeMs) {
+    long nanos = (long) (executionTimeMs * TimeUnit.MILLISECONDS.toNanos(1));
+    int status = ctx.statusCode();
+    String reason;
+    if (status >= SERVER_ERROR) {
+      reason = "error";
+    } else if (nanos > slowRequestNanos) {
+      reason = "slow";
+    } else if (sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate) {
+      reason = "sampled";
+    } else {
+      return;
+    }
+    if (!ring.offer(new Entry(ctx, reason, status, nanos))) {
+      dropped.increment();
+    }
+  }
+
+  /**
+   * @return how many entries have been dropped because the buffer was full
+   */
+  public long dropped() {
+    return dropped.sum();
+  }
+
+  /**
+   * Stop the background thread, after it writes everything still buffered.
+   */
+  public void close() {
+    writer.interrupt();
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    long reportedDrops = 0;
+    while (true) {
+      Entry entry = ring.poll();
+      if (entry != null) {
+        write(entry);
+        continue;
+      }
+      long drops = dropped();
+      if (drops > reportedDrops) {
+        LOGGER.warn("Dropped {} request log entries because the buffer was full", drops - reportedDrops);
+        reportedDrops = drops;
+      }
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      LockSupport.parkNanos(this, IDLE_NANOS);
+    }
+  }
+
+  private void write(Entry entry) {
+    Map<String, Object> line = new LinkedHashMap<>();
+    line.put("time", Instant.ofEpochMilli(entry.time).toString());
+    line.put("reason", entry.reason);
+    line.put("method", entry.method);
+    line.put("path", entry.path);
+    if (entry.query != null) {
+      line.put("query", entry.query);
+    }
+    line.put("status", entry.status);
+    line.put("millis", entry.nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    line.put("bytes", entry.bytes);
+    try {
+      output.accept(MAPPER.writeValueAsString(line));
+    } catch (JsonProcessingException | RuntimeException e) {
+      LOGGER.warn("Couldn't write a request log entry", e);
+    }
+  }
+
+  /**
+   * What we log about a request, copied out of its context (which Javalin
+   * reuses once the request is done).
+   */
+  private static final class Entry {
+    private final long time;
+    private final String reason;
+    private final String method;
+    private final String path;
+    private final String query;
+    private final int status;
+    private final long nanos;
+    private final long bytes;
+
+    Entry(Context ctx, String reason, int status, long nanos) {
+      this.time = System.currentTimeMillis();
+      this.reason = reason;
+      this.method = ctx.method().name();
+      this.path = ctx.path();
+      this.query = ctx.queryString();
+      this.status = status;
+      this.nanos = nanos;
+      this.bytes = HttpMetrics.bytesSent(ctx.res());
+    }
+  }
+
+  /**
+   * A bounded ring buffer that many threads can add to at once, without
+   * locks, and one thread takes from. Each slot has a sequence number that
+   * says whose turn it is: an adder claims the next slot by moving `tail`
+   * along with a compare-and-set, fills it, then advances its sequence to
+   * hand it to the taker, who empties it and advances the sequence a lap
+   * ahead to hand it back to the adders. (This is Dmitry Vyukov's bounded
+   * queue.)
+   *
+   * @param <T> the type of the elements
+   */
+  static final class Ring<T> {
+    private final int mask;
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Only the taker's thread touches `head`.
+    private long head;
+
+    /**
+     * Construct a ring that holds at least `capacity` elements (rounded up
+     * to a power of two).
+     */
+    Ring(int capacity) {
+      int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+      mask = size - 1;
+      elements = new AtomicReferenceArray<>(size);
+      sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+        sequences.set(i, i);
+      }
+    }
+
+    /**
+     * @return how many elements the ring can hold
+     */
+    int capacity() {
+      return mask + 1;
+    }
+
+    /**
+     * Add an element, if there's room.
+     *
+     * @return whether it was added
+     */
+    boolean offer(T element) {
+      long position = tail.get();
+      while (true) {
+        int slot = (int) position & mask;
+        long difference = sequences.get(slot) - position;
+        if (difference == 0) {
+          if (tail.compareAndSet(position, position + 1)) {
+            elements.lazySet(slot, element);
+            sequences.set(slot, position + 1);
+            return true;
+          }
+          position = tail.get();
+        } else if (difference < 0) {
+          // The taker hasn't emptied this slot from the last lap: we're full.
+          return false;
+        } else {
+          // Another adder got this slot first.
+          position = tail.get();
+        }
+      }
+    }
+
+    /**
+     * Take the oldest element. Only one thread may call this.
+     *
+     * @return the element, or `null` if the ring is empty
+     */
+    T poll() {
+      int slot = (int) head & mask;
+      if (sequences.get(slot) != head + 1) {
+        return null;
+      }
+      T element = elements.get(slot);
+      elements.lazySet(slot, null);
+      sequences.set(slot, head + mask + 1);
+      head++;
+      return element;
+    }
+  }
+}
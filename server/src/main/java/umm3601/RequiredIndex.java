@@ -0,0 +1,51 @@
+package umm3601;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.IndexModel;
+
+/**
+ * An index that a controller's queries rely on, along with the collection
+ * it belongs in.
+ *
+ * Controllers declare these (see `Controller#requiredIndexes()`), and the
+ * `IndexBootstrapper` makes sure they exist when the server starts. Every
+ * index should be given a name (with `IndexOptions#name`) so that we can
+ * tell which of the declared indexes already exist.
+ */
+public class RequiredIndex {
+
+  private final MongoCollection<?> collection;
+  private final IndexModel model;
+
+  /**
+   * Declare an index that a controller needs.
+   *
+   * @param collection the collection the index is on
+   * @param model the keys and options (including the name) of the index
+   */
+  public RequiredIndex(MongoCollection<?> collection, IndexModel model) {
+    this.collection = collection;
+    this.model = model;
+  }
+
+  /**
+   * @return the collection the index is on
+   */
+  public MongoCollection<?> getCollection() {
+    return collection;
+  }
+
+  /**
+   * @return the keys and options of the index
+   */
+  public IndexModel getModel() {
+    return model;
+  }
+
+  /**
+   * @return the name of the index
+   */
+  public String getName() {
+    return model.getOptions().getName();
+  }
+}
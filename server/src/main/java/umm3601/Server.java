@@ -1,6 +1,8 @@
 package umm3601;
 
 import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 import com.mongodb.MongoClientSettings;
 import com.mongodb.ServerAddress;
@@ -12,6 +14,8 @@ import org.bson.UuidRepresentation;
 import io.javalin.Javalin;
 import io.javalin.plugin.bundled.RouteOverviewPlugin;
 import io.javalin.http.InternalServerErrorResponse;
+import umm3601.metrics.HttpMetrics;
+import umm3601.metrics.MongoMetrics;
 
 /**
  * The class used to configure and start a Javalin server.
@@ -28,15 +32,36 @@ public class Server {
   // for the server. This is used to add routes to the server.
   private Controller[] controllers;
 
+  // Compresses (and caches) the server's responses.
+  private final ResponseCompression compression;
+
+  // Which threads run requests, and how many each route may run at once.
+  private final RequestConcurrency concurrency;
+
+  // What the MongoDB clients' commands and connection pools are doing.
+  private final MongoMetrics mongoMetrics;
+
+  // The requests each route gets, and how long they take.
+  private final HttpMetrics httpMetrics = new HttpMetrics();
+
+  // A sample of requests, and every failed or slow one.
+  private final RequestLog requestLog;
+
   /**
    * Construct a `Server` object that we'll use (via `startServer()`) to configure
    * and start the server.
    *
    * @param mongoClient The MongoDB client object used to access to the database
    * @param controllers The implementations of `Controller` used for this server
+   * @param options How to compress responses, run requests, and so on; any
+   *   option that isn't set has its default
    */
-  public Server(MongoClient mongoClient, Controller[] controllers) {
+  public Server(MongoClient mongoClient, Controller[] controllers, Options options) {
     this.mongoClient = mongoClient;
+    this.compression = options.compression;
+    this.concurrency = options.concurrency;
+    this.mongoMetrics = options.mongoMetrics;
+    this.requestLog = options.requestLog;
     // This is what is known as a "defensive copy". We make a copy of
     // the array so that if the caller modifies the array after passing
     // it in, we don't have to worry about it. If we didn't do this,
@@ -45,6 +70,58 @@ public class Server {
     this.controllers = Arrays.copyOf(controllers, controllers.length);
   }
 
+  /**
+   * The optional parts of a `Server`, each of which starts out with its
+   * defaults, e.g., `new Server.Options().compression(compression)`.
+   */
+  public static final class Options {
+    private ResponseCompression compression =
+      new ResponseCompression(ResponseCompression.DEFAULT_MIN_SIZE, ResponseCompression.DEFAULT_CACHE_BYTES);
+    private RequestConcurrency concurrency = new RequestConcurrency(
+      false, RequestConcurrency.DEFAULT_PERMITS_PER_ROUTE, RequestConcurrency.DEFAULT_PERMITS_IN_TOTAL,
+      RequestConcurrency.DEFAULT_MAX_WAIT);
+    private MongoMetrics mongoMetrics = new MongoMetrics();
+    private RequestLog requestLog =
+      new RequestLog(RequestLog.DEFAULT_SAMPLE_RATE, RequestLog.DEFAULT_SLOW_REQUEST, RequestLog.DEFAULT_CAPACITY);
+
+    /**
+     * @param responseCompression How to compress (and cache) responses
+     * @return these options
+     */
+    public Options compression(ResponseCompression responseCompression) {
+      this.compression = responseCompression;
+      return this;
+    }
+
+    /**
+     * @param requestConcurrency Which threads run requests, and how many at once
+     * @return these options
+     */
+    public Options concurrency(RequestConcurrency requestConcurrency) {
+      this.concurrency = requestConcurrency;
+      return this;
+    }
+
+    /**
+     * @param metrics The metrics the MongoDB clients report to (see
+     *   `configureDatabase()`), which the server also serves
+     * @return these options
+     */
+    public Options mongoMetrics(MongoMetrics metrics) {
+      this.mongoMetrics = metrics;
+      return this;
+    }
+
+    /**
+     * @param log Where to log (some) requests
+     * @return these options
+     */
+    public Options requestLog(RequestLog log) {
+      this.requestLog = log;
+      return this;
+    }
+  }
+
   /**
    * Setup the MongoDB database connection.
    *
@@ -56,22 +133,53 @@ public class Server {
    *
    * This sets both the `mongoClient` and `database` fields
    * so they can be used when setting up the Javalin server.
+   *
+   * The client reports its commands and connection pool to `mongoMetrics`.
+   *
    * @param mongoAddr The address of the MongoDB server
+   * @param mongoMetrics The metrics the client reports to
    *
    * @return The MongoDB client object
    */
-  static MongoClient configureDatabase(String mongoAddr) {
+  static MongoClient configureDatabase(String mongoAddr, MongoMetrics mongoMetrics) {
     // Setup the MongoDB client object with the information we set earlier
-    MongoClient mongoClient = MongoClients.create(MongoClientSettings
-      .builder()
+    MongoClient mongoClient = MongoClients.create(clientSettings(mongoAddr, mongoMetrics));
+
+    return mongoClient;
+  }
+
+  /**
+   * Setup a second, non-blocking connection to MongoDB, through the
+   * reactive streams driver, for the asynchronous controllers (see
+   * `Main#getControllers()`). Creating it doesn't wait for the connection;
+   * the driver connects in the background, and queries wait (without
+   * blocking a thread) until it has.
+   *
+   * @param mongoAddr The address of the MongoDB server
+   * @param mongoMetrics The metrics the client reports to
+   *
+   * @return The reactive MongoDB client object
+   */
+  static com.mongodb.reactivestreams.client.MongoClient configureReactiveDatabase(
+      String mongoAddr, MongoMetrics mongoMetrics) {
+    return com.mongodb.reactivestreams.client.MongoClients.create(clientSettings(mongoAddr, mongoMetrics));
+  }
+
+  /**
+   * The settings for both kinds of MongoDB client.
+   *
+   * @param mongoAddr The address of the MongoDB server
+   * @param mongoMetrics The metrics the client reports to
+   * @return The client settings
+   */
+  private static MongoClientSettings clientSettings(String mongoAddr, MongoMetrics mongoMetrics) {
+    return mongoMetrics.applyTo(MongoClientSettings.builder())
       .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
       // Old versions of the mongodb-driver-sync package encoded UUID values (universally unique identifiers) in
       // a non-standard way. This option says to use the standard encoding.
       // See: https://studio3t.com/knowledge-base/articles/mongodb-best-practices-uuid-data/
       .uuidRepresentation(UuidRepresentation.STANDARD)
-      .build());
-
-    return mongoClient;
+      .build();
   }
 
   /**
@@ -79,21 +187,55 @@ public class Server {
    *
    * This configures and starts the Javalin server, which will start listening for HTTP requests.
    * It also sets up the server to shut down gracefully if it's killed or if the
-   * JVM is shut down.
+   * JVM is shut down, and starts creating any indexes the controllers need.
    */
   void startServer() {
     Javalin javalin = configureJavalin();
     setupRoutes(javalin);
+    // Make sure the indexes the controllers rely on exist. This happens in
+    // the background, so the server can start answering requests while
+    // Mongo builds them, and then tell the controllers they're there.
+    new IndexBootstrapper(controllers).ensureIndexesInBackground().thenRun(() -> {
+      for (Controller controller : controllers) {
+        controller.indexesBuilt();
+      }
+    });
+    scheduleBackgroundTasks(javalin);
     javalin.start(SERVER_PORT);
   }
 
+  /**
+   * Let each controller schedule its periodic tasks (see
+   * `Controller#scheduleBackgroundTasks()`). They share one daemon thread,
+   * which stops when the server does.
+   *
+   * @param server The Javalin server instance
+   */
+  private void scheduleBackgroundTasks(Javalin server) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "controller-background-tasks");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (Controller controller : controllers) {
+      controller.scheduleBackgroundTasks(scheduler);
+    }
+    server.events(event -> event.serverStopping(scheduler::shutdownNow));
+  }
+
   /**
    * Configure the Javalin server. This includes
    *
    * - Adding a route overview plugin to make it easier to see what routes
    *   are available.
+   * - Running requests on platform or virtual threads, with a limit on how
+   *   many each route runs at once.
+   * - Counting each route's requests, errors, response sizes and latency,
+   *   and logging a sample of requests (and every failed or slow one).
    * - Setting it up to shut down gracefully if it's killed or if the
    *   JVM is shut down.
+   * - Adding ETags and conditional `GET` support for every controller.
+   * - Compressing responses, and caching the compressed bodies.
    * - Setting up a handler for uncaught exceptions to return an HTTP 500
    *   error.
    *
@@ -114,13 +256,40 @@ public class Server {
      * what HTTP methods they use. (Replace `localhost` and `4567` with whatever server
      * and  port you're actually using, if they are different.)
      */
-    Javalin server = Javalin.create(config ->
-      config.plugins.register(new RouteOverviewPlugin("/api"))
-    );
+    Javalin server = Javalin.create(config -> {
+      config.plugins.register(new RouteOverviewPlugin("/api"));
+      // We do our own compression (see `ResponseCompression`), so turn off Javalin's.
+      config.compression.none();
+      concurrency.applyTo(config);
+      // Javalin calls this once each response has been sent. Neither of
+      // these waits for anything, so they don't hold up the next request.
+      config.requestLogger.http((ctx, executionTimeMs) -> {
+        httpMetrics.handle(ctx, executionTimeMs);
+        requestLog.handle(ctx, executionTimeMs);
+      });
+    });
+
+    // Count the requests to each route (as the routes are added) and add
+    // the Prometheus endpoint, `/metrics`.
+    httpMetrics.addTo(server);
+
+    // Give back each request's permit to run (see `RequestConcurrency`).
+    concurrency.addTo(server);
 
     // Configure the MongoDB client and the Javalin server to shut down gracefully.
     configureShutdowns(server);
 
+    // Tag GET responses with ETags, and answer `If-None-Match` requests for
+    // data that hasn't changed with `304 Not Modified`.
+    new ConditionalGet(controllers).addTo(server);
+
+    // Compress responses the client will accept compressed. This relies on
+    // the ETags, so it has to come after `ConditionalGet`.
+    compression.addTo(server);
+
+    // Tell clients when to retry a query whose index may still be building.
+    QueryGuard.addTo(server);
+
     // This catches any uncaught exceptions thrown in the server
     // code and turns them into a 500 response ("Internal Server
     // Error Response"). In general you'll like to *never* actually
@@ -157,8 +326,14 @@ public class Server {
      * these events and close it then.
      */
     server.events(event -> {
+      // The controllers may still have writes waiting, so they go first.
+      for (Controller controller : controllers) {
+        event.serverStartFailed(controller::close);
+        event.serverStopped(controller::close);
+      }
       event.serverStartFailed(mongoClient::close);
       event.serverStopped(mongoClient::close);
+      event.serverStopped(requestLog::close);
     });
   }
 
@@ -173,5 +348,8 @@ public class Server {
     for (Controller controller : controllers) {
       controller.addRoutes(server);
     }
+
+    // Get the MongoDB command and connection pool metrics
+    mongoMetrics.addTo(server);
   }
 }
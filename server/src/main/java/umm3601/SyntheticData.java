@@ -0,0 +1,190 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.SplittableRandom;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import umm3601.user.UserController;
+
+/**
+ * Makes up todos and users that look like the seed data, in any number,
+ * for loading a database at something like production scale (see
+ * `DatabaseSeeder`).
+ *
+ * Real data isn't spread evenly: a few owners have most of the todos, and
+ * a few companies most of the users. So owners, categories and companies
+ * are each chosen from a Zipf distribution, where the `k`th most popular
+ * is chosen in proportion to `1 / k^skew`. A skew of 0 spreads them
+ * evenly; the bigger the skew, the more the first few dominate.
+ *
+ * Everything but the `_id`s is drawn from the `SplittableRandom` passed
+ * in, so the same seed always makes the same data.
+ */
+public class SyntheticData {
+
+  private static final String[] FIRST_NAMES = {
+    "Blanche", "Fry", "Barry", "Roberta", "Dawn", "Workman", "Connie", "Lynn", "Thomas", "Maria",
+    "Ahmed", "Mei", "Kofi", "Ingrid", "Jose", "Priya", "Olga", "Sam", "Noor", "Dmitri"};
+  private static final String[] LAST_NAMES = {
+    "Stewart", "Bolton", "Rice", "Morgan", "Nguyen", "Okafor", "Larsen", "Garcia", "Patel", "Ivanova",
+    "Smith", "Kim", "Haddad", "Silva", "Cohen", "Tanaka", "Walker", "Mensah", "Novak", "Reyes"};
+  private static final String[] COMPANY_STARTS = {
+    "OHM", "ZAPP", "QUIL", "VIR", "GEEK", "FLEX", "NEUR", "ISO", "PYR", "MAG", "ZENT", "CORE"};
+  private static final String[] COMPANY_ENDS = {
+    "NET", "ERA", "ITY", "OLOGY", "TRON", "TEX", "ICA", "PLEX", "WARE", "SOFT"};
+  // The categories `TodoController` accepts, most popular first.
+  private static final String[] CATEGORIES = {"homework", "groceries", "software design", "video games"};
+  private static final String[] ROLES = {"viewer", "editor", "admin"};
+  private static final String[] WORDS = (
+    "lorem ipsum dolor sit amet consectetur adipiscing elit sed do eiusmod tempor incididunt ut labore "
+    + "et dolore magna aliqua enim ad minim veniam quis nostrud exercitation ullamco laboris nisi aliquip "
+    + "ex ea commodo consequat duis aute irure in reprehenderit voluptate velit esse cillum fugiat nulla").split(" ");
+
+  private static final int MIN_WORDS = 6;
+  private static final int MAX_WORDS = 24;
+  private static final int MIN_AGE = 18;
+  private static final int MAX_AGE = 80;
+
+  private final Zipf owners;
+  private final Zipf categories;
+  private final Zipf companies;
+  // Most users are viewers, and few are admins.
+  private final Zipf roles = new Zipf(ROLES.length, 1);
+
+  /**
+   * Construct a generator of todos and users.
+   *
+   * @param ownerCount how many different owners the todos have
+   * @param companyCount how many different companies the users work for
+   * @param ownerSkew how unevenly the todos are spread over their owners
+   * @param categorySkew how unevenly the todos are spread over the categories
+   * @param companySkew how unevenly the users are spread over the companies
+   */
+  public SyntheticData(int ownerCount, int companyCount, double ownerSkew, double categorySkew, double companySkew) {
+    owners = new Zipf(ownerCount, ownerSkew);
+    categories = new Zipf(CATEGORIES.length, categorySkew);
+    companies = new Zipf(companyCount, companySkew);
+  }
+
+  /**
+   * @param random where to draw the todo's fields from
+   * @return a new todo, as its document
+   */
+  public Document todo(SplittableRandom random) {
+    return new Document("_id", new ObjectId())
+      .append("owner", ownerName(owners.sample(random)))
+      .append("status", random.nextBoolean())
+      .append("body", sentence(random))
+      .append("category", CATEGORIES[categories.sample(random)]);
+  }
+
+  /**
+   * @param random where to draw the user's fields from
+   * @param number which user this is, to keep emails unique
+   * @return a new user, as its document
+   */
+  public Document user(SplittableRandom random, long number) {
+    String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+    String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+    String company = companyName(companies.sample(random));
+    String email = (first + "." + last + number + "@" + company + ".com").toLowerCase();
+    return new Document("_id", new ObjectId())
+      .append("name", first + " " + last)
+      .append("age", MIN_AGE + random.nextInt(MAX_AGE - MIN_AGE + 1))
+      .append("company", company)
+      .append("companyLower", UserController.normalizeCompany(company))
+      .append("email", email)
+      .append("role", ROLES[roles.sample(random)])
+      .append("avatar", avatar(email));
+  }
+
+  /**
+   * The name of the `k`th owner: the first names, then the first names
+   * again with numbers on the end.
+   */
+  static String ownerName(int k) {
+    String name = FIRST_NAMES[k % FIRST_NAMES.length];
+    return k < FIRST_NAMES.length ? name : name + (k / FIRST_NAMES.length);
+  }
+
+  /**
+   * The name of the `k`th company, e.g., `OHMNET`, with a number on the end
+   * once we run out of names.
+   */
+  static String companyName(int k) {
+    int names = COMPANY_STARTS.length * COMPANY_ENDS.length;
+    String name = COMPANY_STARTS[k % COMPANY_STARTS.length]
+      + COMPANY_ENDS[k / COMPANY_STARTS.length % COMPANY_ENDS.length];
+    return k < names ? name : name + (k / names);
+  }
+
+  private static String sentence(SplittableRandom random) {
+    int words = MIN_WORDS + random.nextInt(MAX_WORDS - MIN_WORDS + 1);
+    StringBuilder sentence = new StringBuilder();
+    for (int i = 0; i < words; i++) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      if (i == 0) {
+        sentence.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+      } else {
+        sentence.append(' ').append(word);
+      }
+    }
+    return sentence.append('.').toString();
+  }
+
+  /**
+   * The same avatar `UserController` gives a new user with this email.
+   */
+  private static String avatar(String email) {
+    try {
+      byte[] md5 = MessageDigest.getInstance("MD5").digest(email.toLowerCase().getBytes(StandardCharsets.UTF_8));
+      return "https://gravatar.com/avatar/" + HexFormat.of().formatHex(md5) + "?d=identicon";
+    } catch (NoSuchAlgorithmException e) {
+      return "https://gravatar.com/avatar/?d=mp";
+    }
+  }
+
+  /**
+   * A Zipf distribution over `0` to `n - 1`: `k` is chosen in proportion to
+   * `1 / (k + 1)^skew`. Sampling is a binary search of the cumulative
+   * probabilities.
+   */
+  static final class Zipf {
+    private final double[] cumulative;
+
+    Zipf(int n, double skew) {
+      if (n < 1 || skew < 0) {
+        throw new IllegalArgumentException("A Zipf distribution needs at least one value and a skew of at least 0");
+      }
+      cumulative = new double[n];
+      double total = 0;
+      for (int k = 0; k < n; k++) {
+        total += 1 / Math.pow(k + 1, skew);
+        cumulative[k] = total;
+      }
+      for (int k = 0; k < n; k++) {
+        cumulative[k] /= total;
+      }
+    }
+
+    int sample(SplittableRandom random) {
+      double u = random.nextDouble();
+      int low = 0;
+      int high = cumulative.length - 1;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (cumulative[middle] <= u) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+  }
+}
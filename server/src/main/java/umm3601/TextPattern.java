@@ -0,0 +1,232 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * A regular expression compiled once into something that checks whole
+ * strings without allocating, for the simple expressions our validation
+ * uses (see `ValidationRules`).
+ *
+ * `String#matches()` compiles its expression on every call, and even a
+ * precompiled `Pattern` makes a new `Matcher` for each string. Most of our
+ * expressions are one of two simple shapes, which we can check directly:
+ *
+ * - A choice of words, e.g., `^(admin|editor|viewer)$`, which is a lookup
+ *   in a set.
+ * - A sequence of characters and character classes, each possibly
+ *   repeated, e.g., `^[a-z0-9.]+@[a-z0-9.-]+$`, which is one pass over the
+ *   string, as long as each repeated class can't match whatever comes
+ *   after it (so there's never a need to backtrack).
+ *
+ * Anything else (e.g., with `*`, `?`, `.` or escapes) is handed to a
+ * `Pattern`, so every expression still works, just not as quickly.
+ */
+public final class TextPattern implements Predicate<String> {
+
+  // Characters that mean something in an expression, so aren't literals.
+  private static final String META = "\\[](){}.*+?^$|";
+  // The characters a class can hold; anything else falls back to `Pattern`.
+  private static final int ASCII = 128;
+
+  private final String regex;
+  private final Set<String> words;
+  private final Term[] terms;
+  private final Pattern fallback;
+
+  private TextPattern(String regex, Set<String> words, Term[] terms, Pattern fallback) {
+    this.regex = regex;
+    this.words = words;
+    this.terms = terms;
+    this.fallback = fallback;
+  }
+
+  /**
+   * Compile a regular expression.
+   *
+   * @param regex the expression, which whole strings must match
+   * @return the compiled expression
+   */
+  public static TextPattern compile(String regex) {
+    String body = regex;
+    if (body.startsWith("^")) {
+      body = body.substring(1);
+    }
+    if (body.endsWith("$") && !body.endsWith("\\$")) {
+      body = body.substring(0, body.length() - 1);
+    }
+
+    Set<String> words = words(body);
+    if (words != null) {
+      return new TextPattern(regex, words, null, null);
+    }
+    Term[] terms = terms(body);
+    if (terms != null) {
+      return new TextPattern(regex, null, terms, null);
+    }
+    return new TextPattern(regex, null, null, Pattern.compile(regex));
+  }
+
+  /**
+   * @return whether this is checked without a `Pattern`
+   */
+  boolean isCompiled() {
+    return fallback == null;
+  }
+
+  /**
+   * Whether a whole string matches, like `text.matches(regex)`.
+   *
+   * @param text the string to check; `null` never matches
+   * @return whether it matches
+   */
+  @Override
+  public boolean test(String text) {
+    if (text == null) {
+      return false;
+    }
+    if (words != null) {
+      return words.contains(text);
+    }
+    if (terms == null) {
+      return fallback.matcher(text).matches();
+    }
+    int position = 0;
+    int length = text.length();
+    for (Term term : terms) {
+      if (position >= length || !term.accepts(text.charAt(position))) {
+        return false;
+      }
+      position++;
+      if (term.repeated) {
+        while (position < length && term.accepts(text.charAt(position))) {
+          position++;
+        }
+      }
+    }
+    return position == length;
+  }
+
+  @Override
+  public String toString() {
+    return regex;
+  }
+
+  /**
+   * The words of an expression like `(a|b|c)` (or just `a`), or `null` if
+   * it's anything else.
+   */
+  private static Set<String> words(String body) {
+    String choices = body;
+    if (choices.startsWith("(") && choices.endsWith(")")) {
+      choices = choices.substring(1, choices.length() - 1);
+    }
+    String[] words = choices.split("\\|", -1);
+    for (String word : words) {
+      for (int i = 0; i < word.length(); i++) {
+        if (META.indexOf(word.charAt(i)) >= 0) {
+          return null;
+        }
+      }
+    }
+    return Set.copyOf(Arrays.asList(words));
+  }
+
+  /**
+   * The terms of an expression made only of literal characters and
+   * classes, each possibly followed by `+`, or `null` if it's anything
+   * else or might need backtracking.
+   */
+  private static Term[] terms(String body) {
+    List<Term> terms = new ArrayList<>();
+    int i = 0;
+    while (i < body.length()) {
+      char c = body.charAt(i);
+      boolean[] accepted;
+      if (c == '[') {
+        int end = body.indexOf(']', i + 2);
+        accepted = end < 0 ? null : characterClass(body.substring(i + 1, end));
+        if (accepted == null) {
+          return null;
+        }
+        i = end + 1;
+      } else if (META.indexOf(c) < 0 && c < ASCII) {
+        accepted = new boolean[ASCII];
+        accepted[c] = true;
+        i++;
+      } else {
+        return null;
+      }
+      boolean repeated = i < body.length() && body.charAt(i) == '+';
+      if (repeated) {
+        i++;
+      }
+      terms.add(new Term(accepted, repeated));
+    }
+
+    // A repeated term stops at the first character it doesn't accept, which
+    // is only right if the next term can't accept anything it does.
+    for (int t = 0; t + 1 < terms.size(); t++) {
+      if (terms.get(t).repeated && terms.get(t).overlaps(terms.get(t + 1))) {
+        return null;
+      }
+    }
+    return terms.toArray(new Term[0]);
+  }
+
+  /**
+   * The characters in a class like `a-zA-Z0-9.-`, or `null` for a class we
+   * don't handle (negated, escaped, or not ASCII).
+   */
+  private static boolean[] characterClass(String members) {
+    if (members.isEmpty() || members.charAt(0) == '^' || members.indexOf('\\') >= 0 || members.indexOf('[') >= 0) {
+      return null;
+    }
+    boolean[] accepted = new boolean[ASCII];
+    for (int i = 0; i < members.length(); i++) {
+      char from = members.charAt(i);
+      char to = from;
+      if (i + 2 < members.length() && members.charAt(i + 1) == '-') {
+        to = members.charAt(i + 2);
+        i += 2;
+      }
+      if (to >= ASCII || to < from) {
+        return null;
+      }
+      for (char c = from; c <= to; c++) {
+        accepted[c] = true;
+      }
+    }
+    return accepted;
+  }
+
+  /**
+   * A character or class, possibly repeated.
+   */
+  private static final class Term {
+    private final boolean[] accepted;
+    private final boolean repeated;
+
+    Term(boolean[] accepted, boolean repeated) {
+      this.accepted = accepted;
+      this.repeated = repeated;
+    }
+
+    boolean accepts(char c) {
+      return c < ASCII && accepted[c];
+    }
+
+    boolean overlaps(Term other) {
+      for (int c = 0; c < ASCII; c++) {
+        if (accepted[c] && other.accepted[c]) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
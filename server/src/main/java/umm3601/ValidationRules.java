@@ -0,0 +1,102 @@
+package umm3601;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import io.javalin.validation.ValidationError;
+import io.javalin.validation.ValidationException;
+
+/**
+ * The rules a request body (e.g., a new `User`) has to follow, declared
+ * once and checked all together.
+ *
+ * Unlike a chain of `BodyValidator#check()`s, which is built anew for
+ * every request, these are built once (with the expressions they use
+ * compiled into `TextPattern`s), and checking a value that follows them
+ * all doesn't allocate anything. Every rule is checked, so a client hears
+ * about everything wrong with its request at once, in the same form
+ * Javalin's validators use (a `ValidationException`, which Javalin turns
+ * into a `400` listing the errors).
+ *
+ * @param <T> the type of the values checked
+ */
+public class ValidationRules<T> {
+
+  /** The key Javalin gives errors in a request body. */
+  public static final String BODY_KEY = "REQUEST_BODY";
+
+  private final List<Rule<T>> rules = new ArrayList<>();
+
+  /**
+   * Add a rule.
+   *
+   * @param check whether a value follows the rule; a check that throws
+   *   (e.g., because a field is missing) counts as broken
+   * @param message the error message for a value that breaks it
+   * @return this, so calls can be chained
+   */
+  public ValidationRules<T> check(Predicate<? super T> check, String message) {
+    rules.add(new Rule<>(check, message));
+    return this;
+  }
+
+  /**
+   * The messages of every rule a value breaks, in the order the rules
+   * were added.
+   *
+   * @param value the value to check
+   * @return the messages, or an empty list if the value follows every rule
+   */
+  public List<String> brokenRules(T value) {
+    List<String> broken = List.of();
+    for (int i = 0; i < rules.size(); i++) {
+      Rule<T> rule = rules.get(i);
+      if (!rule.follows(value)) {
+        if (broken.isEmpty()) {
+          broken = new ArrayList<>();
+        }
+        broken.add(rule.message);
+      }
+    }
+    return broken;
+  }
+
+  /**
+   * Check a request body against every rule.
+   *
+   * @param value the body
+   * @return the body, if it follows every rule
+   * @throws ValidationException listing every rule it breaks, if any
+   */
+  public T validate(T value) {
+    List<String> broken = brokenRules(value);
+    if (!broken.isEmpty()) {
+      List<ValidationError<Object>> errors = new ArrayList<>();
+      for (String message : broken) {
+        errors.add(new ValidationError<>(message, Map.of(), value));
+      }
+      throw new ValidationException(Map.of(BODY_KEY, errors));
+    }
+    return value;
+  }
+
+  private static final class Rule<T> {
+    private final Predicate<? super T> check;
+    private final String message;
+
+    Rule(Predicate<? super T> check, String message) {
+      this.check = check;
+      this.message = message;
+    }
+
+    boolean follows(T value) {
+      try {
+        return check.test(value);
+      } catch (RuntimeException e) {
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package umm3601;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteConcernException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Combines inserts from concurrent requests into one `insertMany`, so that
+ * under bursty load Mongo handles a few big commands rather than lots of
+ * little ones.
+ *
+ * Each `insert()` joins a queue, and a background thread takes documents
+ * off the queue in batches: a batch is written as soon as it has
+ * `maxBatchSize` documents, or `maxDelay` after its first document arrived,
+ * whichever comes first. So no insert waits more than `maxDelay` (plus the
+ * time to write the batch ahead of it) longer than it would have on its
+ * own. The batch is unordered, so one failed insert (e.g., a duplicate
+ * `_id`) doesn't stop the rest; each caller gets back its own result. If
+ * the batch was written but its write concern wasn't met, every caller
+ * gets that error.
+ */
+public class WriteCoalescer<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WriteCoalescer.class);
+
+  // How many batches can be waiting before `insert()` has to wait for
+  // room, so a burst bigger than Mongo can keep up with slows the callers
+  // down (and then turns them away) rather than filling up memory.
+  private static final int QUEUED_BATCHES = 16;
+
+  // How long `insert()` waits for room in the queue before giving up.
+  private static final Duration QUEUE_WAIT = Duration.ofSeconds(5);
+
+  private final MongoCollection<T> collection;
+  private final int maxBatchSize;
+  private final long maxDelayNanos;
+  private final Consumer<List<T>> afterInsert;
+  private final BlockingQueue<Pending<T>> queue;
+  private final Thread flusher;
+  private volatile boolean closed;
+
+  // What `close()` queues to tell the background thread to stop.
+  private final Pending<T> end = new Pending<>(null);
+
+  /**
+   * Construct a coalescer, and start its background thread.
+   *
+   * @param name the name of the background thread
+   * @param collection the collection to insert into
+   * @param maxBatchSize the most documents to insert at once
+   * @param maxDelay the longest to wait for a batch to fill up
+   * @param afterInsert called (on the background thread) with the
+   *   documents from each batch that were inserted, before any of their
+   *   callers hear back, e.g., to update anything derived from them
+   */
+  public WriteCoalescer(
+      String name, MongoCollection<T> collection, int maxBatchSize, Duration maxDelay,
+      Consumer<List<T>> afterInsert) {
+    if (maxBatchSize < 1 || maxDelay.isNegative()) {
+      throw new IllegalArgumentException("The batch size must be positive and the delay can't be negative");
+    }
+    this.collection = collection;
+    this.maxBatchSize = maxBatchSize;
+    this.maxDelayNanos = maxDelay.toNanos();
+    this.afterInsert = afterInsert;
+    queue = new LinkedBlockingQueue<>(maxBatchSize * QUEUED_BATCHES);
+    flusher = new Thread(this::run, name);
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Queue a document to be inserted in the next batch.
+   *
+   * @param document the document to insert
+   * @return a future that completes with the document (with its `_id` set)
+   *   once it's been inserted, or with the reason it couldn't be
+   */
+  public CompletableFuture<T> insert(T document) {
+    Pending<T> pending = new Pending<>(document);
+    if (closed) {
+      pending.future.completeExceptionally(closedException());
+      return pending.future;
+    }
+    try {
+      if (!queue.offer(pending, QUEUE_WAIT.toNanos(), TimeUnit.NANOSECONDS)) {
+        pending.future.completeExceptionally(
+          new IllegalStateException("Too many inserts are waiting; try again shortly"));
+        return pending.future;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      pending.future.completeExceptionally(e);
+      return pending.future;
+    }
+    // If `close()` started while we were queueing, ours may be behind its
+    // marker, where nothing will write it, so take it back out and fail it.
+    // (If it's gone, `close()` or the background thread has it, and will
+    // finish it.)
+    if (closed && queue.remove(pending)) {
+      pending.future.completeExceptionally(closedException());
+    }
+    return pending.future;
+  }
+
+  /**
+   * Stop the background thread, once it's written everything queued
+   * before this. Anything inserted after this fails.
+   */
+  public void close() {
+    closed = true;
+    try {
+      // (If it's already stopped, e.g., this is the second `close()`,
+      // nothing would take the marker off a full queue.)
+      if (flusher.isAlive()) {
+        queue.put(end);
+        flusher.join();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      flusher.interrupt();
+    }
+    // Anything that raced in behind `end` (see `insert()`).
+    List<Pending<T>> abandoned = new ArrayList<>();
+    queue.drainTo(abandoned);
+    fail(abandoned);
+  }
+
+  private static IllegalStateException closedException() {
+    return new IllegalStateException("The write coalescer was closed");
+  }
+
+  private static <T> void fail(List<Pending<T>> pendings) {
+    for (Pending<T> pending : pendings) {
+      pending.future.completeExceptionally(closedException());
+    }
+  }
+
+  private void run() {
+    boolean ended = false;
+    while (!ended) {
+      List<Pending<T>> batch = new ArrayList<>(maxBatchSize);
+      try {
+        ended = nextBatch(batch);
+      } catch (InterruptedException e) {
+        // These were already taken off the queue, so `close()` won't see them.
+        fail(batch);
+        return;
+      }
+      if (!batch.isEmpty()) {
+        write(batch);
+      }
+    }
+  }
+
+  /**
+   * Wait for the next document, and then for the rest of its batch.
+   *
+   * @return whether the batch ends with `close()`'s marker, i.e., it's the last
+   */
+  private boolean nextBatch(List<Pending<T>> batch) throws InterruptedException {
+    Pending<T> first = queue.take();
+    if (first == end) {
+      return true;
+    }
+    batch.add(first);
+    long deadline = System.nanoTime() + maxDelayNanos;
+    while (batch.size() < maxBatchSize) {
+      queue.drainTo(batch, maxBatchSize - batch.size());
+      if (batch.remove(end)) {
+        // Anything drained after it raced with `close()`, but it's here
+        // now, so it may as well be written too.
+        return true;
+      }
+      long remaining = deadline - System.nanoTime();
+      if (batch.size() == maxBatchSize || remaining <= 0) {
+        break;
+      }
+      Pending<T> next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+      if (next == null) {
+        break;
+      }
+      if (next == end) {
+        return true;
+      }
+      batch.add(next);
+    }
+    return false;
+  }
+
+  /**
+   * Insert a batch, and tell each caller how their document did.
+   */
+  private void write(List<Pending<T>> batch) {
+    List<T> documents = new ArrayList<>(batch.size());
+    for (Pending<T> pending : batch) {
+      documents.add(pending.document);
+    }
+    RuntimeException[] failures = new RuntimeException[batch.size()];
+    // The documents were written, but not as durably as the write concern
+    // asks, so (as with `insertOne`) their callers hear about it too.
+    RuntimeException writeConcernFailure = null;
+    try {
+      collection.insertMany(documents, new InsertManyOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      for (BulkWriteError error : e.getWriteErrors()) {
+        failures[error.getIndex()] = new MongoException(error.getCode(), error.getMessage());
+      }
+      if (e.getWriteConcernError() != null) {
+        writeConcernFailure = new MongoWriteConcernException(e.getWriteConcernError(), e.getServerAddress());
+      }
+    } catch (RuntimeException e) {
+      Arrays.fill(failures, e);
+    }
+
+    List<T> inserted = new ArrayList<>(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      if (failures[i] == null) {
+        inserted.add(documents.get(i));
+      }
+    }
+    if (!inserted.isEmpty()) {
+      try {
+        afterInsert.accept(inserted);
+      } catch (RuntimeException e) {
+        // The documents are in, so their callers still succeed.
+        LOGGER.error("Failed to update after inserting {} documents", inserted.size(), e);
+      }
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      if (failures[i] != null) {
+        batch.get(i).future.completeExceptionally(failures[i]);
+      } else if (writeConcernFailure != null) {
+        batch.get(i).future.completeExceptionally(writeConcernFailure);
+      } else {
+        batch.get(i).future.complete(documents.get(i));
+      }
+    }
+  }
+
+  /**
+   * A queued document, and the future its caller is waiting on.
+   */
+  private static final class Pending<T> {
+    private final T document;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    Pending(T document) {
+      this.document = document;
+    }
+  }
+}
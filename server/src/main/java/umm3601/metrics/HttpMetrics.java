@@ -0,0 +1,329 @@
+package umm3601.metrics;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import org.eclipse.jetty.server.Response;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.RequestLogger;
+import io.javalin.routing.HandlerEntry;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.ServletResponseWrapper;
+
+/**
+ * Counts the requests each route gets (e.g., `GET /api/todos/{id}`), how
+ * many failed, how long they took and how big their responses were, and
+ * sends it all from `GET /metrics` in the Prometheus text format.
+ *
+ * Requests are counted by the route they matched, never by their path, so
+ * there's a fixed set of them to keep (and to send to Prometheus), however
+ * many todos there are. Each route's counters are made when the route is
+ * added, so counting a request is just looking them up and adding to a
+ * `LatencyHistogram` and some `LongAdder`s, without locks or allocating.
+ *
+ * The counting is done by Javalin's request logger (see
+ * `Server#configureJavalin()`), which runs after the
+ * response has been written (even for asynchronous requests, and requests
+ * that ended with an exception), so the latency covers everything,
+ * including before and after handlers, and the size is the bytes actually
+ * sent.
+ */
+public class HttpMetrics implements RequestLogger {
+
+  /** The path of the Prometheus endpoint. */
+  public static final String METRICS_PATH = "/metrics";
+
+  /** The `route` label of requests that didn't match any route. */
+  public static final String UNMATCHED_ROUTE = "unmatched";
+
+  // The content type of the Prometheus text format.
+  private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  // The quantiles of the latency that are sent.
+  private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+  private static final double HUNDRED = 100.0;
+
+  // Responses are counted by the first digit of their status.
+  private static final int STATUS_CLASSES = 6;
+  private static final int STATUS_CLASS_SIZE = 100;
+
+  // The most request paths whose routes are kept (see `matchedPaths`).
+  private static final int DEFAULT_MAX_MATCHED_PATHS = 10_000;
+
+  // Each method's routes, by their path (e.g., `/api/todos/{id}`).
+  private final Map<HandlerType, Map<String, RouteMetrics>> routes = new EnumMap<>(HandlerType.class);
+
+  private final RouteMetrics unmatched = new RouteMetrics(null, UNMATCHED_ROUTE);
+
+  // Finds the route of a request the endpoint didn't handle (see `routeOf()`).
+  private Javalin server;
+
+  // The routes Javalin found for each method's request paths, so each path
+  // is only looked up once. There's no bound on the paths clients ask for
+  // (e.g., `/api/todos/{id}`), so this is emptied when it gets too big.
+  private final Map<HandlerType, Map<String, RouteMetrics>> matchedPaths = new EnumMap<>(HandlerType.class);
+  private final int maxMatchedPaths;
+
+  /**
+   * Construct metrics for a server with no routes yet.
+   */
+  public HttpMetrics() {
+    this(DEFAULT_MAX_MATCHED_PATHS);
+  }
+
+  /**
+   * Construct metrics for a server with no routes yet.
+   *
+   * @param maxMatchedPaths the most request paths whose routes are kept
+   */
+  HttpMetrics(int maxMatchedPaths) {
+    this.maxMatchedPaths = maxMatchedPaths;
+    for (HandlerType method : HandlerType.values()) {
+      if (method.isHttpMethod()) {
+        routes.put(method, new ConcurrentHashMap<>());
+        matchedPaths.put(method, new ConcurrentHashMap<>());
+      }
+    }
+  }
+
+  /**
+   * Make counters for every route as it's added to the server, and add the
+   * Prometheus endpoint. This has to be called before the controllers add
+   * their routes.
+   *
+   * @param javalin The Javalin server instance
+   */
+  public void addTo(Javalin javalin) {
+    server = javalin;
+    javalin.events(event -> event.handlerAdded(handler -> addRoute(handler.getHttpMethod(), handler.getPath())));
+    javalin.get(METRICS_PATH, this::getMetrics);
+  }
+
+  /**
+   * Make the counters for a route, if it's an endpoint (rather than, e.g.,
+   * a before handler).
+   *
+   * @param method the route's HTTP method
+   * @param path the route's path, e.g., `/api/todos/{id}`
+   */
+  void addRoute(HandlerType method, String path) {
+    Map<String, RouteMetrics> methodRoutes = routes.get(method);
+    if (methodRoutes != null) {
+      methodRoutes.computeIfAbsent(path, key -> new RouteMetrics(method, path));
+    }
+  }
+
+  /**
+   * Count a finished request. Javalin calls this once the response has been
+   * sent.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param executionTimeMs how long the request took, in milliseconds
+   */
+  @Override
+  public void handle(Context ctx, Float executionTimeMs) {
+    routeOf(ctx).record(ctx.statusCode(), (long) (executionTimeMs * TimeUnit.MILLISECONDS.toNanos(1)),
+      bytesSent(ctx.res()));
+  }
+
+  /**
+   * The counters for the route a request matched. That's the path of its
+   * endpoint, if its endpoint ran; if it didn't (e.g., `ConditionalGet`
+   * answered it with a `304`), it's the route Javalin would have run for
+   * its path, which we only have to ask Javalin for the first time that
+   * path comes along.
+   */
+  RouteMetrics routeOf(Context ctx) {
+    Map<String, RouteMetrics> methodRoutes = routes.get(ctx.method());
+    if (methodRoutes == null) {
+      return unmatched;
+    }
+    RouteMetrics route;
+    try {
+      route = methodRoutes.get(ctx.endpointHandlerPath());
+    } catch (IllegalStateException e) {
+      // Only before handlers ran, so there's no endpoint path.
+      route = null;
+    }
+    return route == null ? matchedRoute(ctx.method(), ctx.path(), methodRoutes) : route;
+  }
+
+  private RouteMetrics matchedRoute(HandlerType method, String path, Map<String, RouteMetrics> methodRoutes) {
+    Map<String, RouteMetrics> matches = matchedPaths.get(method);
+    RouteMetrics route = matches.get(path);
+    if (route != null || server == null) {
+      return route == null ? unmatched : route;
+    }
+
+    List<HandlerEntry> entries = server.javalinServlet().getMatcher().findEntries(method, path);
+    route = entries.isEmpty() ? null : methodRoutes.get(entries.get(0).getPath());
+    if (route == null) {
+      route = unmatched;
+    }
+    if (matches.size() >= maxMatchedPaths) {
+      matches.clear();
+    }
+    matches.put(path, route);
+    return route;
+  }
+
+  /**
+   * @return how many request paths' routes are being kept
+   */
+  int matchedPathCount() {
+    return matchedPaths.values().stream().mapToInt(Map::size).sum();
+  }
+
+  /**
+   * How many bytes of body a response sent, as Jetty counted them.
+   *
+   * @param response the response, once it's been sent
+   * @return the size of its body, or 0 if it wasn't sent by Jetty
+   */
+  public static long bytesSent(ServletResponse response) {
+    ServletResponse unwrapped = response;
+    while (unwrapped instanceof ServletResponseWrapper) {
+      unwrapped = ((ServletResponseWrapper) unwrapped).getResponse();
+    }
+    if (unwrapped instanceof Response) {
+      return ((Response) unwrapped).getHttpOutput().getWritten();
+    }
+    return 0;
+  }
+
+  /**
+   * Set the body of the response to be the metrics of every route that's
+   * had a request, in the Prometheus text format.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getMetrics(Context ctx) {
+    ctx.contentType(PROMETHEUS_CONTENT_TYPE);
+    ctx.result(prometheusText());
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * @return the metrics of every route that's had a request, in the
+   *   Prometheus text format
+   */
+  String prometheusText() {
+    StringBuilder text = new StringBuilder();
+    text.append("# HELP http_server_requests_seconds How long requests took, from arriving to being sent.\n")
+      .append("# TYPE http_server_requests_seconds summary\n");
+    forEachUsedRoute(route -> {
+      for (String quantile : QUANTILES) {
+        long nanos = route.latency.percentileNanos(Double.parseDouble(quantile) * HUNDRED);
+        sample(text, "http_server_requests_seconds", route, ",quantile=\"" + quantile + "\"", seconds(nanos));
+      }
+      sample(text, "http_server_requests_seconds_sum", route, "", seconds(route.latency.sumNanos()));
+      sample(text, "http_server_requests_seconds_count", route, "", route.latency.count());
+    });
+
+    text.append("# HELP http_server_requests_max_seconds The longest request.\n")
+      .append("# TYPE http_server_requests_max_seconds gauge\n");
+    forEachUsedRoute(route ->
+      sample(text, "http_server_requests_max_seconds", route, "", seconds(route.latency.maxNanos())));
+
+    text.append("# HELP http_server_responses_total Responses sent, by the class of their status (e.g., 5xx).\n")
+      .append("# TYPE http_server_responses_total counter\n");
+    forEachUsedRoute(route -> {
+      for (int statusClass = 1; statusClass < STATUS_CLASSES; statusClass++) {
+        long responses = route.responses[statusClass].sum();
+        if (responses > 0) {
+          sample(text, "http_server_responses_total", route, ",status=\"" + statusClass + "xx\"", responses);
+        }
+      }
+    });
+
+    text.append("# HELP http_server_response_size_bytes The size of response bodies.\n")
+      .append("# TYPE http_server_response_size_bytes summary\n");
+    forEachUsedRoute(route -> {
+      sample(text, "http_server_response_size_bytes_sum", route, "", route.bytes.sum());
+      sample(text, "http_server_response_size_bytes_count", route, "", route.latency.count());
+    });
+    return text.toString();
+  }
+
+  private void forEachUsedRoute(Consumer<RouteMetrics> action) {
+    for (Map<String, RouteMetrics> methodRoutes : routes.values()) {
+      new TreeMap<>(methodRoutes).values().forEach(route -> {
+        if (route.latency.count() > 0) {
+          action.accept(route);
+        }
+      });
+    }
+    if (unmatched.latency.count() > 0) {
+      action.accept(unmatched);
+    }
+  }
+
+  private static void sample(StringBuilder text, String name, RouteMetrics route, String labels, Number value) {
+    text.append(name).append("{method=\"").append(route.method == null ? "" : route.method.name())
+      .append("\",route=\"").append(escape(route.path)).append('"').append(labels).append("} ")
+      .append(value).append('\n');
+  }
+
+  /**
+   * Escape a Prometheus label value.
+   */
+  static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+  }
+
+  /**
+   * The counters of one route.
+   */
+  static final class RouteMetrics {
+    private final HandlerType method;
+    private final String path;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder[] responses = new LongAdder[STATUS_CLASSES];
+    private final LongAdder bytes = new LongAdder();
+
+    RouteMetrics(HandlerType method, String path) {
+      this.method = method;
+      this.path = path;
+      for (int i = 0; i < STATUS_CLASSES; i++) {
+        responses[i] = new LongAdder();
+      }
+    }
+
+    void record(int status, long nanos, long bytesSent) {
+      latency.recordNanos(nanos);
+      int statusClass = status / STATUS_CLASS_SIZE;
+      responses[statusClass > 0 && statusClass < STATUS_CLASSES ? statusClass : 0].increment();
+      bytes.add(bytesSent);
+    }
+
+    String path() {
+      return path;
+    }
+
+    LatencyHistogram latency() {
+      return latency;
+    }
+
+    long responses(int statusClass) {
+      return responses[statusClass].sum();
+    }
+
+    long bytes() {
+      return bytes.sum();
+    }
+  }
+}
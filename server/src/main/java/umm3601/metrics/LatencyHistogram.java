@@ -0,0 +1,166 @@
+package umm3601.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies that many threads can record into at once
+ * without locking, so it can sit on the path of every request or query.
+ *
+ * Latencies (in nanoseconds) are counted in log-linear buckets: each power
+ * of two is split into `SUB_BUCKETS` equal buckets, so a bucket is never
+ * more than 1/`SUB_BUCKETS` (12.5%) wider than the values in it, from 1ns
+ * up to the longest `long`. Recording a latency is just a few bit
+ * operations and three atomic adds; reading percentiles walks the
+ * buckets, which is only done when someone asks for the metrics.
+ *
+ * Reads don't stop writers, so a snapshot taken while latencies are being
+ * recorded may include some of them in the count but not yet in the
+ * buckets (or vice versa); that's fine for monitoring.
+ */
+public class LatencyHistogram {
+
+  // Each power of two is split into 2^SUB_BUCKET_BITS buckets.
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // Enough buckets for every non-negative `long`.
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+  // The percentiles `summary()` reports.
+  private static final double[] PERCENTILES = {50, 90, 99};
+  private static final double HUNDRED = 100.0;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sumNanos = new LongAdder();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /**
+   * Record one latency.
+   *
+   * @param duration how long it took
+   * @param unit the unit of `duration`
+   */
+  public void record(long duration, TimeUnit unit) {
+    recordNanos(unit.toNanos(duration));
+  }
+
+  /**
+   * Record one latency, in nanoseconds. Negative latencies (from a clock
+   * going backwards) count as 0.
+   *
+   * @param nanos how long it took
+   */
+  public void recordNanos(long nanos) {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(bucketOf(value));
+    count.increment();
+    sumNanos.add(value);
+    if (value > maxNanos.get()) {
+      maxNanos.accumulateAndGet(value, Math::max);
+    }
+  }
+
+  /**
+   * @return how many latencies have been recorded
+   */
+  public long count() {
+    return count.sum();
+  }
+
+  /**
+   * @return the total of all the recorded latencies, in nanoseconds
+   */
+  public long sumNanos() {
+    return sumNanos.sum();
+  }
+
+  /**
+   * @return the longest recorded latency, in nanoseconds
+   */
+  public long maxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * Estimate a percentile of the recorded latencies, as the top of the
+   * bucket it falls in (but no more than the longest latency).
+   *
+   * @param percentile e.g., 99 for the 99th percentile
+   * @return the estimate, in nanoseconds, or 0 if nothing's been recorded
+   */
+  public long percentileNanos(double percentile) {
+    long[] snapshot = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * percentile / HUNDRED));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return Math.min(upperBoundOf(i), maxNanos());
+      }
+    }
+    return maxNanos();
+  }
+
+  /**
+   * Summarize the histogram for the metrics endpoint: the count, and the
+   * mean, median, 90th and 99th percentiles and maximum in milliseconds.
+   *
+   * @return the summary, as a map from names like `p99Millis` to values
+   */
+  public Map<String, Object> summary() {
+    Map<String, Object> summary = new LinkedHashMap<>();
+    long recorded = count();
+    summary.put("count", recorded);
+    summary.put("meanMillis", recorded == 0 ? 0.0 : millis(sumNanos()) / recorded);
+    for (double percentile : PERCENTILES) {
+      summary.put("p" + (int) percentile + "Millis", millis(percentileNanos(percentile)));
+    }
+    summary.put("maxMillis", millis(maxNanos()));
+    return summary;
+  }
+
+  private static double millis(long nanos) {
+    return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * The bucket a latency goes in. Values below `SUB_BUCKETS` get a bucket
+   * each; above that, the highest set bit picks the power of two and the
+   * next `SUB_BUCKET_BITS` bits pick the bucket within it.
+   */
+  static int bucketOf(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    int highestBit = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+    int shift = highestBit - SUB_BUCKET_BITS;
+    int subBucket = (int) (nanos >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * The largest latency that goes in a bucket.
+   */
+  static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowerBound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+}
@@ -0,0 +1,215 @@
+package umm3601.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.event.ConnectionCheckOutFailedEvent;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedInEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionClosedEvent;
+import com.mongodb.event.ConnectionCreatedEvent;
+import com.mongodb.event.ConnectionPoolListener;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Listens to a MongoDB client's commands and connection pool, so that when
+ * requests get slow we can tell whether the time went to waiting for a
+ * connection or to the commands themselves (the network and the query).
+ *
+ * It keeps a `LatencyHistogram` of each kind of command on each collection
+ * (e.g., `find todos`), and counts the ones that failed; and for the pool,
+ * a histogram of how long checking out a connection took, and how many
+ * connections are open, in use, and waited for right now. All of this is
+ * sent as JSON by `GET /api/metrics/mongo`.
+ *
+ * The driver calls the listeners on the threads running the commands, so
+ * they only do lock-free counting. One `MongoMetrics` can listen to several
+ * clients (e.g., the synchronous and reactive ones); their numbers are
+ * added together.
+ */
+public class MongoMetrics implements CommandListener, ConnectionPoolListener {
+
+  /** The path of the metrics endpoint. */
+  public static final String METRICS_PATH = "/api/metrics/mongo";
+
+  // The collection each running command is on (the driver only tells us in
+  // the started event), by request ID.
+  private final Map<Integer, String> runningCommands = new ConcurrentHashMap<>();
+
+  private final Map<String, LatencyHistogram> commandLatencies = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> commandFailures = new ConcurrentHashMap<>();
+
+  private final LatencyHistogram checkoutWaits = new LatencyHistogram();
+  private final LongAdder checkoutFailures = new LongAdder();
+  private final AtomicInteger poolSize = new AtomicInteger();
+  private final AtomicInteger inUse = new AtomicInteger();
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  /**
+   * Make the clients built with `settings` report to this.
+   *
+   * @param settings the settings for a MongoDB client, before they're built
+   * @return `settings`
+   */
+  public MongoClientSettings.Builder applyTo(MongoClientSettings.Builder settings) {
+    return settings
+      .addCommandListener(this)
+      .applyToConnectionPoolSettings(pool -> pool.addConnectionPoolListener(this));
+  }
+
+  /**
+   * Add the metrics endpoint to the server.
+   *
+   * @param server The Javalin server instance
+   */
+  public void addTo(Javalin server) {
+    server.get(METRICS_PATH, this::getMetrics);
+  }
+
+  /**
+   * Set the JSON body of the response to be the current metrics: a
+   * `commands` object with a latency summary (see
+   * `LatencyHistogram#summary()`) and failure count for each command and
+   * collection, and a `pool` object with the checkout waits and the
+   * connection counts.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getMetrics(Context ctx) {
+    ctx.json(Map.of("commands", commandSummaries(), "pool", poolSummary()));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * @return the latency summary and failure count of each kind of command,
+   *   sorted by name
+   */
+  Map<String, Map<String, Object>> commandSummaries() {
+    Map<String, Map<String, Object>> summaries = new TreeMap<>();
+    commandLatencies.forEach((name, latencies) -> {
+      Map<String, Object> summary = latencies.summary();
+      LongAdder failures = commandFailures.get(name);
+      summary.put("failures", failures == null ? 0 : failures.sum());
+      summaries.put(name, summary);
+    });
+    return summaries;
+  }
+
+  /**
+   * @return the checkout waits and failures, and the connection counts
+   */
+  Map<String, Object> poolSummary() {
+    Map<String, Object> summary = new TreeMap<>();
+    summary.put("checkoutWait", checkoutWaits.summary());
+    summary.put("checkoutFailures", checkoutFailures.sum());
+    summary.put("size", poolSize.get());
+    summary.put("inUse", inUse.get());
+    summary.put("waiting", waiting.get());
+    return summary;
+  }
+
+  /**
+   * @param command e.g., `find todos`
+   * @return the latencies of that kind of command, or `null` if there
+   *   haven't been any
+   */
+  LatencyHistogram commandLatencies(String command) {
+    return commandLatencies.get(command);
+  }
+
+  /**
+   * @return the latencies of checking out connections from the pool
+   */
+  LatencyHistogram checkoutWaits() {
+    return checkoutWaits;
+  }
+
+  @Override
+  public void commandStarted(CommandStartedEvent event) {
+    runningCommands.put(event.getRequestId(), nameOf(event.getCommandName(), event.getCommand()));
+  }
+
+  @Override
+  public void commandSucceeded(CommandSucceededEvent event) {
+    String name = finished(event.getRequestId(), event.getCommandName());
+    commandLatencies.computeIfAbsent(name, key -> new LatencyHistogram())
+      .record(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void commandFailed(CommandFailedEvent event) {
+    String name = finished(event.getRequestId(), event.getCommandName());
+    commandLatencies.computeIfAbsent(name, key -> new LatencyHistogram())
+      .record(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+    commandFailures.computeIfAbsent(name, key -> new LongAdder()).increment();
+  }
+
+  private String finished(int requestId, String commandName) {
+    String name = runningCommands.remove(requestId);
+    return name == null ? commandName : name;
+  }
+
+  /**
+   * The name we keep a command's latencies under: the command, and the
+   * collection it's on, if it's on one. Most commands name their collection
+   * as the value of the command itself (e.g., `{find: "todos", ...}`), but
+   * `getMore` has it in a `collection` field.
+   */
+  static String nameOf(String commandName, BsonDocument command) {
+    BsonValue collection = command.get("getMore".equals(commandName) ? "collection" : commandName);
+    if (collection == null || !collection.isString()) {
+      return commandName;
+    }
+    return commandName + " " + collection.asString().getValue();
+  }
+
+  @Override
+  public void connectionCreated(ConnectionCreatedEvent event) {
+    poolSize.incrementAndGet();
+  }
+
+  @Override
+  public void connectionClosed(ConnectionClosedEvent event) {
+    poolSize.decrementAndGet();
+  }
+
+  @Override
+  public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+    waiting.incrementAndGet();
+  }
+
+  @Override
+  public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+    waiting.decrementAndGet();
+    inUse.incrementAndGet();
+    checkoutWaits.record(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+    waiting.decrementAndGet();
+    checkoutFailures.increment();
+    checkoutWaits.record(event.getElapsedTime(TimeUnit.NANOSECONDS), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+    inUse.decrementAndGet();
+  }
+}
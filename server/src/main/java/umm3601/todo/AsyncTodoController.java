@@ -0,0 +1,130 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.time.Duration;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.reactivestreams.client.FindPublisher;
+import com.mongodb.reactivestreams.client.MongoCollection;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import umm3601.FieldProjection;
+import umm3601.JsonStreaming;
+import umm3601.KeysetPagination;
+import umm3601.ReactiveMongo;
+
+/**
+ * A `TodoController` whose reads don't block: `GET /api/todos/{id}` and
+ * `GET /api/todos` are read with the reactive streams driver and handed to
+ * Javalin as `CompletableFuture`s, so a request waiting on a slow query
+ * doesn't hold a thread, and a handful of threads can serve thousands of
+ * them at once.
+ *
+ * Everything else (writes, bulk changes, the category view, streamed
+ * responses, and the indexes) is inherited from `TodoController`, so both
+ * kinds of request share the same cache and data version and send the
+ * same JSON. Those routes still hold a request thread while they wait on
+ * Mongo: `POST /api/todos` and `/api/todos/bulk`, `PATCH` and `DELETE` of
+ * `/api/todos` and `/api/todos/{id}`, `GET /api/todosByCategory`, and
+ * `GET /api/todos` when it's streamed without a `limit`.
+ */
+public class AsyncTodoController extends TodoController {
+
+  private final MongoCollection<Document> asyncTodos;
+
+  /**
+   * Construct an asynchronous controller for todos.
+   *
+   * @param database the database containing todo data, for everything
+   *   that's still synchronous
+   * @param insertBatchSize the most new todos to insert at once (see `TodoController`)
+   * @param insertBatchDelay the longest a new todo waits for others to join it
+   * @param asyncDatabase the same database, through the reactive streams driver
+   */
+  public AsyncTodoController(
+      MongoDatabase database, int insertBatchSize, Duration insertBatchDelay,
+      com.mongodb.reactivestreams.client.MongoDatabase asyncDatabase) {
+    super(database, insertBatchSize, insertBatchDelay);
+    asyncTodos = asyncDatabase.getCollection("todos");
+  }
+
+  /**
+   * Set the JSON body of the response to be the single todo specified by
+   * the `id` parameter in the request, reading it (if it isn't cached)
+   * without blocking.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  @Override
+  public void getTodo(Context ctx) {
+    ObjectId objectId;
+    try {
+      objectId = new ObjectId(ctx.pathParam("id"));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested todo id wasn't a legal Mongo Object ID.");
+    }
+    ctx.future(() -> todoCache()
+      .getAsync(objectId, key -> ReactiveMongo.first(asyncTodos.find(eq("_id", key)).first())
+        .thenApply(document -> document == null ? null : ReactiveMongo.fromDocument(document, Todo.class)))
+      .thenAccept(todo -> {
+        if (todo == null) {
+          throw new NotFoundResponse("The requested todo was not found");
+        }
+        ctx.json(todo);
+        ctx.status(HttpStatus.OK);
+      }));
+  }
+
+  /**
+   * Set the JSON body of the response to be the todos matching the
+   * request's filters, in the requested order, read without blocking. This
+   * takes the same query parameters as `TodoController#getTodos()`; a
+   * streamed response is written as it's read, so that's left to it.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  @Override
+  public void getTodos(Context ctx) {
+    if (JsonStreaming.isStreamed(ctx) && !KeysetPagination.isPaged(ctx)) {
+      super.getTodos(ctx);
+      return;
+    }
+
+    Bson combinedFilter = constructFilter(ctx);
+    Bson sortingOrder = constructSortingOrder(ctx);
+    FindPublisher<Document> results = asyncTodos.find(combinedFilter).sort(sortingOrder);
+
+    FieldProjection projection = FieldProjection.fromQuery(ctx, Todo.class);
+    if (!projection.isEmpty()) {
+      results.projection(projection.toBson(sortField(ctx)));
+    }
+
+    // As in `KeysetPagination#fetchPage()`, fetch one extra todo to see
+    // whether there's another page.
+    int limit = KeysetPagination.pageLimit(ctx, KeysetPagination.DEFAULT_LIMIT);
+    results.limit(limit + 1);
+
+    // As in the synchronous controller, but if the guard has to explain a
+    // new query shape, that's done off the request thread.
+    ctx.future(() -> todoGuard().admitAsync(combinedFilter, sortingOrder).thenCompose(plan -> {
+      if (plan.needsDiskUse()) {
+        results.allowDiskUse(true);
+      }
+      return ReactiveMongo.toList(results);
+    }).thenAccept(documents -> {
+      List<Todo> matchingTodos = KeysetPagination.endPage(
+        ctx, ReactiveMongo.fromDocuments(documents, Todo.class), sortField(ctx), limit);
+      ctx.json(projection.isEmpty() ? matchingTodos : projection.apply(matchingTodos));
+      ctx.status(HttpStatus.OK);
+    }));
+  }
+}
@@ -0,0 +1,293 @@
+package umm3601.todo;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.lte;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.UuidRepresentation;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.mongojack.JacksonMongoCollection;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.PushOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+/**
+ * A materialized view of the todos grouped by category, i.e., what
+ * `/api/todosByCategory` returns, kept in its own collection.
+ *
+ * Grouping the whole todos collection takes time proportional to the
+ * number of todos, but the groups rarely change, so rather than run that
+ * aggregation on every request we store its results (one `TodoByCategory`
+ * document per category) and update them as todos are added and deleted.
+ *
+ * Those updates aren't atomic with the changes to the todos themselves,
+ * nor always with each other: `moved()` takes a todo out of one category
+ * and then adds it to another, so for a moment it's in neither. (And
+ * anything that changes the todos without going through here, e.g.,
+ * seeding the database, isn't reflected at all.) So the view is also
+ * rebuilt from scratch every so often (see `rebuild()`). Anything that adds,
+ * deletes, or re-categorizes todos should call `added()`, `removed()`, or
+ * `moved()`, or, for changes to many todos at once, `refresh()` the
+ * categories involved.
+ *
+ * Each category is a single document, and like any Mongo document it's
+ * limited to 16MB, so each one only lists its first `maxTodos` todos
+ * (although its `count` is of all of them). When a listed todo is removed
+ * from a category with more than that, the category is relisted from the
+ * todos collection, so it doesn't run short.
+ */
+public class TodoCategorySummary {
+
+  /** The name of the collection holding the view. */
+  static final String COLLECTION_NAME = "todosByCategory";
+
+  /** By default, the most todos listed in each category. */
+  static final int DEFAULT_MAX_TODOS = 1000;
+
+  private final JacksonMongoCollection<Todo> todoCollection;
+  private final JacksonMongoCollection<TodoByCategory> summaryCollection;
+  // The same collection, read as plain documents.
+  private final MongoCollection<Document> summaryDocuments;
+  private final int maxTodos;
+
+  // Whether the view has been rebuilt since this server started. Until it
+  // has, we can't trust it to match the todos collection.
+  private volatile boolean built;
+
+  /**
+   * Construct the view of the todos in `todoCollection`.
+   *
+   * @param database the database containing todo data
+   * @param todoCollection the todos that the view summarizes
+   */
+  TodoCategorySummary(MongoDatabase database, JacksonMongoCollection<Todo> todoCollection) {
+    this(database, todoCollection, DEFAULT_MAX_TODOS);
+  }
+
+  /**
+   * Construct the view of the todos in `todoCollection`.
+   *
+   * @param database the database containing todo data
+   * @param todoCollection the todos that the view summarizes
+   * @param maxTodos the most todos listed in each category
+   */
+  TodoCategorySummary(MongoDatabase database, JacksonMongoCollection<Todo> todoCollection, int maxTodos) {
+    this.todoCollection = todoCollection;
+    this.maxTodos = maxTodos;
+    summaryCollection = JacksonMongoCollection.builder().build(
+        database,
+        COLLECTION_NAME,
+        TodoByCategory.class,
+        UuidRepresentation.STANDARD);
+    summaryDocuments = database.getCollection(COLLECTION_NAME);
+  }
+
+  /**
+   * The aggregation pipeline that groups todos by category, counting the
+   * todos in each category and collecting the IDs and owners of the first
+   * `maxTodos` of them.
+   *
+   * @param maxTodos the most todos listed in each category
+   * @return the stages of the pipeline
+   */
+  static List<Bson> groupByCategory(int maxTodos) {
+    return List.of(
+      // Project the fields we want to use in the next step, i.e., the _id, owner, and category fields
+      new Document("$project", new Document("_id", 1).append("owner", 1).append("category", 1)),
+      // Group the todos by category, and count the number of todos in each category
+      new Document("$group", new Document("_id", "$category")
+        // Count the number of todos in each category
+        .append("count", new Document("$sum", 1))
+        // Collect the todo owners and IDs for each todo in each category
+        .append("todos", new Document("$push", new Document("_id", "$_id").append("owner", "$owner")))),
+      // Keep each category's document well under Mongo's 16MB limit
+      new Document("$addFields", new Document("todos", new Document("$slice", List.of("$todos", maxTodos)))));
+  }
+
+  /**
+   * Get the categories from the view, building it first if it hasn't been
+   * built since the server started.
+   *
+   * @param sortingOrder the order to return the categories in
+   * @return the summary of each category
+   */
+  FindIterable<TodoByCategory> find(Bson sortingOrder) {
+    if (!built) {
+      synchronized (this) {
+        if (!built) {
+          rebuild();
+        }
+      }
+    }
+    return summaryCollection.find().sort(sortingOrder);
+  }
+
+  /**
+   * Rebuild the view from scratch by grouping all the todos.
+   *
+   * This uses `$out`, which replaces the view's collection with the
+   * results in one step, so requests never see a half-built view. Any
+   * incremental updates made while the aggregation is running are lost,
+   * but the next rebuild will pick them up. Grouping every todo can take
+   * more memory than Mongo allows a stage, so it may spill to disk.
+   *
+   * @return whether the view changed, so anything served from it (or
+   *   cached, e.g., by ETag) may now be out of date
+   */
+  public boolean rebuild() {
+    List<Document> before = contents();
+    List<Bson> pipeline = new ArrayList<>(groupByCategory(maxTodos));
+    pipeline.add(new Document("$out", COLLECTION_NAME));
+    // `toCollection()` runs the pipeline without reading back any results.
+    todoCollection.aggregate(pipeline, TodoByCategory.class).allowDiskUse(true).toCollection();
+    built = true;
+    return !contents().equals(before);
+  }
+
+  /**
+   * Everything in the view, in order, to compare before and after a
+   * rebuild. This is one document per category, each listing at most
+   * `maxTodos` todos, so it's small next to the todos themselves.
+   */
+  private List<Document> contents() {
+    return summaryDocuments.find().sort(Sorts.ascending("_id")).into(new ArrayList<>());
+  }
+
+  /**
+   * Add a todo that was just inserted to its category's summary, creating
+   * the category if this is its first todo.
+   *
+   * @param todo the new todo, with its `_id` set
+   */
+  void added(Todo todo) {
+    added(List.of(todo));
+  }
+
+  /**
+   * Add todos that were just inserted to their categories' summaries, with
+   * one update per category rather than one per todo. Like a rebuild, this
+   * only lists each category's first `maxTodos` todos.
+   *
+   * @param todos the new todos, with their `_id`s set
+   */
+  void added(Collection<Todo> todos) {
+    // Keep the categories in the order they come up, and each category's
+    // todos in the order they were inserted, as a rebuild would.
+    Map<String, List<Document>> byCategory = new LinkedHashMap<>();
+    for (Todo todo : todos) {
+      byCategory.computeIfAbsent(todo.category, category -> new ArrayList<>())
+        .add(new Document("_id", new ObjectId(todo._id)).append("owner", todo.owner));
+    }
+    if (byCategory.isEmpty()) {
+      return;
+    }
+    List<UpdateOneModel<TodoByCategory>> updates = new ArrayList<>();
+    for (Map.Entry<String, List<Document>> category : byCategory.entrySet()) {
+      updates.add(new UpdateOneModel<>(
+        eq("_id", category.getKey()),
+        Updates.combine(
+          Updates.inc("count", category.getValue().size()),
+          Updates.pushEach("todos", category.getValue(), new PushOptions().slice(maxTodos))),
+        new UpdateOptions().upsert(true)));
+    }
+    summaryCollection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+  }
+
+  /**
+   * Move a todo that was just changed from its old category's summary to
+   * that of its (possibly new) category, with its (possibly new) owner.
+   *
+   * @param previous the todo as it was before the change
+   * @param changes the new value of each field that changed
+   */
+  void moved(Todo previous, Map<String, Object> changes) {
+    Todo todo = new Todo();
+    todo._id = previous._id;
+    todo.owner = (String) changes.getOrDefault("owner", previous.owner);
+    todo.category = (String) changes.getOrDefault("category", previous.category);
+    removed(previous);
+    added(todo);
+  }
+
+  /**
+   * Remove a todo that was just deleted from its category's summary,
+   * dropping the category if that was its last todo, and relisting it if
+   * the todo was listed and there are unlisted todos to take its place.
+   *
+   * @param todo the deleted todo
+   */
+  void removed(Todo todo) {
+    TodoByCategory left = summaryCollection.findOneAndUpdate(
+      eq("_id", todo.category),
+      Updates.combine(
+        Updates.inc("count", -1),
+        Updates.pull("todos", new Document("_id", new ObjectId(todo._id)))),
+      new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+    if (left == null) {
+      return;
+    }
+    if (left.count <= 0) {
+      summaryCollection.deleteOne(and(eq("_id", todo.category), lte("count", 0)));
+    } else if (left.todos != null && left.todos.size() < Math.min(left.count, maxTodos)) {
+      refresh(List.of(todo.category));
+    }
+  }
+
+  /**
+   * The categories of the todos matching a filter, e.g., before they're
+   * changed or deleted in bulk, so that those categories can be
+   * `refresh()`ed afterwards.
+   *
+   * @param filter the todos about to change
+   * @return the categories those todos are in
+   */
+  List<String> categoriesOf(Bson filter) {
+    return todoCollection.distinct("category", filter, String.class).into(new ArrayList<>());
+  }
+
+  /**
+   * Recount and relist each of the given categories from the todos
+   * collection, dropping any that no longer have any todos. This costs a
+   * count and a (`maxTodos`-long) read per category, which is much less
+   * than a rebuild when only a few categories have changed.
+   *
+   * @param categories the categories to bring up to date
+   */
+  void refresh(Collection<String> categories) {
+    for (String category : categories) {
+      long count = todoCollection.countDocuments(eq("category", category));
+      if (count == 0) {
+        summaryCollection.deleteOne(eq("_id", category));
+        continue;
+      }
+      List<Document> todos = new ArrayList<>();
+      for (Document todo : todoCollection.find(eq("category", category), Document.class)
+          .projection(Projections.include("owner"))
+          .limit(maxTodos)) {
+        todos.add(new Document("_id", todo.getObjectId("_id")).append("owner", todo.getString("owner")));
+      }
+      summaryCollection.updateOne(
+        eq("_id", category),
+        Updates.combine(Updates.set("count", count), Updates.set("todos", todos)),
+        new UpdateOptions().upsert(true));
+    }
+  }
+}
@@ -2,58 +2,234 @@ package umm3601.todo;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.regex;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import org.bson.Document;
 import org.bson.UuidRepresentation;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.core.exc.StreamReadException;
+import com.fasterxml.jackson.databind.DatabindException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.ReturnDocument;
 import com.mongodb.client.model.Sorts;
 import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
+import io.javalin.http.GatewayTimeoutResponse;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.http.ServiceUnavailableResponse;
+import io.javalin.json.JavalinJackson;
+import umm3601.ByIdCache;
 import umm3601.Controller;
+import umm3601.FieldProjection;
+import umm3601.FieldUpdates;
+import umm3601.JsonStreaming;
+import umm3601.KeysetPagination;
+import umm3601.QueryGuard;
+import umm3601.RequiredIndex;
+import umm3601.ValidationRules;
+import umm3601.WriteCoalescer;
 /**
  * Controller that manages requests for info about todos.
  */
 public class TodoController implements Controller {
 
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoController.class);
+
   private static final String API_TODOS = "/api/todos";
   private static final String API_TODO_BY_ID = "/api/todos/{id}";
+  private static final String API_TODOS_BULK = "/api/todos/bulk";
   static final String OWNER_KEY = "owner";
   static final String CATEGORY_KEY = "category";
+  static final String STATUS_KEY = "status";
+  // The indexes behind the filters and sorts we issue. Every list is sorted
+  // (by owner unless asked otherwise) with `_id` as a tie-breaker, so each
+  // index ends with the sort keys to let Mongo skip the in-memory sort.
+  // Owner filters, and the default sort by owner.
+  static final IndexModel OWNER_INDEX = new IndexModel(
+      Indexes.ascending(OWNER_KEY, "_id"), new IndexOptions().name("owner_id"));
+  // Category filters (and grouping by category), sorted by owner.
+  static final IndexModel CATEGORY_OWNER_INDEX = new IndexModel(
+      Indexes.ascending(CATEGORY_KEY, OWNER_KEY, "_id"), new IndexOptions().name("category_owner_id"));
+  // Status filters, sorted by owner.
+  static final IndexModel STATUS_OWNER_INDEX = new IndexModel(
+      Indexes.ascending(STATUS_KEY, OWNER_KEY, "_id"), new IndexOptions().name("status_owner_id"));
+  static final String BODY_KEY = "body";
+  // Sorting by body.
+  static final IndexModel BODY_INDEX = new IndexModel(
+      Indexes.ascending(BODY_KEY, "_id"), new IndexOptions().name("body_id"));
+  static final String ORDER_KEY = "order";
   static final String SORT_ORDER_KEY = "sortorder";
+  // The fields clients may sort todos by (see `QueryGuard`).
+  static final Set<String> SORTABLE_FIELDS = Set.of(OWNER_KEY, CATEGORY_KEY, STATUS_KEY, BODY_KEY, "_id");
   @SuppressWarnings("unused")
   private static final String CATEGORY_REGEX = "^(homework|software design|groceries|video games)$";
   public static final String OWNER_REGEX = "^[a-zA-Z0-9.-]$";
 
+  // The rules every new todo has to follow, each with the message for
+  // breaking it. Both `addNewTodo` and `addTodosInBulk` check them.
+  static final ValidationRules<Todo> TODO_RULES = new ValidationRules<Todo>()
+    .check(todo -> todo.owner != null && todo.owner.length() > 0, "Todo must have a non-empty todo name")
+    .check(todo -> todo.status | !todo.status, "Todo's status must be boolean");
+
+  // Bulk imports insert this many todos at a time unless the request's
+  // `batchSize` says otherwise, and report at most so many errors.
+  static final String BATCH_SIZE_KEY = "batchSize";
+  static final int DEFAULT_BATCH_SIZE = 500;
+  static final int MAX_BATCH_SIZE = 10_000;
+  static final int MAX_REPORTED_ERRORS = 100;
+
+  // The fields `PATCH /api/todos` and `PATCH /api/todos/{id}` may change, with the same rules as new todos.
+  private static final FieldUpdates TODO_UPDATES = new FieldUpdates()
+    .allow(OWNER_KEY, node -> node.isTextual() && node.asText().length() > 0, "Todo must have a non-empty todo name")
+    .allow(STATUS_KEY, JsonNode::isBoolean, "Todo's status must be boolean")
+    .allow(CATEGORY_KEY, JsonNode::isTextual, "Todo's category must be a string")
+    .allow(BODY_KEY, JsonNode::isTextual, "Todo's body must be a string");
+
+  // Query parameter that asks a bulk change to only count what it would change.
+  static final String DRY_RUN_KEY = "dryRun";
+
+  // `PATCH /api/todos/{id}` sends back the changed todo only when asked to
+  // with `Prefer: return=representation` (RFC 7240).
+  static final String PREFER_HEADER = "Prefer";
+  static final String RETURN_REPRESENTATION = "return=representation";
+
+  // Reads bulk imports the way Javalin reads a single todo's body.
+  private static final ObjectReader TODO_READER = JavalinJackson.defaultMapper().readerFor(Todo.class);
+
+  // The longest a new todo waits for its batch to be inserted.
+  private static final Duration INSERT_WAIT = Duration.ofSeconds(30);
+
+  // How often the todos-by-category view is rebuilt from scratch.
+  private static final Duration SUMMARY_REBUILD_INTERVAL = Duration.ofMinutes(10);
+
+  // How often the most common shapes of todo queries are logged.
+  private static final Duration SHAPE_LOG_INTERVAL = Duration.ofMinutes(10);
+
+  // How many documents `todoCache` holds, and for how long.
+  private static final int CACHE_SIZE = 10_000;
+  private static final Duration CACHE_TTL = Duration.ofMinutes(1);
+  private static final Duration MISSING_TTL = Duration.ofSeconds(5);
+
   private final JacksonMongoCollection<Todo> todoCollection;
 
+  // Bumped after every change to the todos; see `dataVersion()`.
+  private final AtomicLong todoVersion = new AtomicLong();
+
+  // The todos recently looked up by ID. Anything that changes or removes a
+  // todo must invalidate it here.
+  private final ByIdCache<Todo> todoCache = new ByIdCache<>(CACHE_SIZE, CACHE_TTL, MISSING_TTL);
+
+  // The todos grouped by category. Anything that adds, removes, or
+  // re-categorizes a todo must update this too.
+  private final TodoCategorySummary categorySummary;
+
+  // Checks the lists of todos clients ask for before they're read.
+  private final QueryGuard todoGuard;
+
+  // Combines the inserts from concurrent `addNewTodo` requests, or `null`
+  // if each request does its own insert.
+  private final WriteCoalescer<Todo> insertCoalescer;
+
+  // Rebuilds `categorySummary` every so often, on its own thread, since a
+  // rebuild reads every todo and would hold up the other controllers'
+  // background tasks if it ran on theirs.
+  private final ScheduledExecutorService summaryRebuilder = Executors.newSingleThreadScheduledExecutor(task -> {
+    Thread thread = new Thread(task, "todo-summary-rebuild");
+    thread.setDaemon(true);
+    return thread;
+  });
+
   /**
-   * Construct a controller for todos.
+   * Construct a controller for todos, where each new todo is inserted on
+   * its own.
    *
    * @param database the database containing todo data
    */
   public TodoController(MongoDatabase database) {
+    this(database, 1, Duration.ZERO);
+  }
+
+  /**
+   * Construct a controller for todos that combines new todos from
+   * concurrent requests into batches of up to `insertBatchSize`, waiting at
+   * most `insertBatchDelay` for a batch to fill up (see `WriteCoalescer`).
+   * A batch size of 1 (or no delay) turns batching off.
+   *
+   * @param database the database containing todo data
+   * @param insertBatchSize the most new todos to insert at once
+   * @param insertBatchDelay the longest a new todo waits for others to join it
+   */
+  public TodoController(MongoDatabase database, int insertBatchSize, Duration insertBatchDelay) {
     todoCollection = JacksonMongoCollection.builder().build(
         database,
         "todos",
         Todo.class,
         UuidRepresentation.STANDARD);
+    categorySummary = new TodoCategorySummary(database, todoCollection);
+    todoGuard = new QueryGuard("todos", database.getCollection("todos"), SORTABLE_FIELDS);
+    insertCoalescer = insertBatchSize > 1 && !insertBatchDelay.isZero() && !insertBatchDelay.isNegative()
+      ? new WriteCoalescer<>("todo-insert-coalescer", todoCollection, insertBatchSize, insertBatchDelay,
+        this::todosInserted)
+      : null;
+  }
+
+  /**
+   * @return the todos recently looked up by ID, which subclasses reading
+   *   todos some other way must use too
+   */
+  ByIdCache<Todo> todoCache() {
+    return todoCache;
+  }
+
+  /**
+   * @return the guard on lists of todos, which subclasses reading todos
+   *   some other way must use too
+   */
+  QueryGuard todoGuard() {
+    return todoGuard;
   }
 
   /**
@@ -64,13 +240,14 @@ public class TodoController implements Controller {
    */
   public void getTodo(Context ctx) {
     String id = ctx.pathParam("id");
-    Todo todo;
+    ObjectId objectId;
 
     try {
-      todo = todoCollection.find(eq("_id", new ObjectId(id))).first();
+      objectId = new ObjectId(id);
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested todo id wasn't a legal Mongo Object ID.");
     }
+    Todo todo = todoCache.get(objectId, key -> todoCollection.find(eq("_id", key)).first());
     if (todo == null) {
       throw new NotFoundResponse("The requested todo was not found");
     } else {
@@ -86,25 +263,54 @@ public class TodoController implements Controller {
    * @param ctx a Javalin HTTP context
    */
   public void getTodos(Context ctx) {
-    System.err.println(ctx);
-    System.err.println(Todo.class);
-
     Bson combinedFilter = constructFilter(ctx);
     Bson sortingOrder = constructSortingOrder(ctx);
 
     // All three of the find, sort, and into steps happen "in parallel" inside the
     // database system. So MongoDB is going to find the todos with the specified
     // properties, return those sorted in the specified manner, and put the
-    // results into an initially empty ArrayList.
-    ArrayList<Todo> matchingTodos = todoCollection
+    // results into an initially empty ArrayList. We only fetch one page of
+    // results, of the request's `limit` or a default size (see `KeysetPagination`).
+    FindIterable<Todo> results = todoCollection
       .find(combinedFilter)
-      .sort(sortingOrder)
-      .into(new ArrayList<>());
+      .sort(sortingOrder);
+
+    // Refuse queries that would read every todo, and let big in-memory
+    // sorts spill to disk (see `QueryGuard`).
+    if (todoGuard.admit(combinedFilter, sortingOrder).needsDiskUse()) {
+      results.allowDiskUse(true);
+    }
+
+    // If the client only asked for some of the fields (e.g., `?fields=owner,category`),
+    // have Mongo only send those, plus the sort field, which page tokens need.
+    FieldProjection projection = FieldProjection.fromQuery(ctx, Todo.class);
+    if (!projection.isEmpty()) {
+      results.projection(projection.toBson(sortField(ctx)));
+    }
+
+    // If the client asked for a streamed response, write the todos to the
+    // response as they come out of the database instead of collecting them
+    // all first. That's the one way to get every match at once, since it
+    // doesn't collect them; a request with a `limit` gets a page instead.
+    if (JsonStreaming.isStreamed(ctx) && !KeysetPagination.isPaged(ctx)) {
+      if (projection.isEmpty()) {
+        JsonStreaming.writeArray(ctx, results);
+      } else {
+        JsonStreaming.writeArray(ctx, results.map(projection::apply));
+      }
+      return;
+    }
+
+    // Lists are always paged, so one request can't read every todo; without
+    // a `limit`, the client gets the first `DEFAULT_LIMIT` (and the token
+    // for the next page, if there is one).
+    ArrayList<Todo> matchingTodos = KeysetPagination.fetchDefaultPage(
+      ctx, results, sortField(ctx), KeysetPagination.DEFAULT_LIMIT);
 
     // Set the JSON body of the response to be the list of todos returned by the database.
     // According to the Javalin documentation (https://javalin.io/documentation#context),
     // this calls result(jsonString), and also sets content type to json
-    ctx.json(matchingTodos);
+    ctx.json(projection.isEmpty() ? matchingTodos : projection.apply(matchingTodos));
 
     // Explicitly set the context status to OK
     ctx.status(HttpStatus.OK);
@@ -114,18 +320,17 @@ public class TodoController implements Controller {
    * Construct a Bson filter document to use in the `find` method based on the
    * query parameters from the context.
    *
-   * This checks for the presence of the `age`, `category`, and `role` query
-   * parameters and constructs a filter document that will match todos with
-   * the specified values for those fields.
+   * This checks for the presence of the `category`, `owner`, `status`, and
+   * `body` query parameters and constructs a filter document that will match
+   * todos with the specified values for those fields. The `body` filter
+   * matches any todo whose body contains the given text, ignoring case.
    *
    * @param ctx a Javalin HTTP context, which contains the query parameters
    *    used to construct the filter
    * @return a Bson filter document that can be used in the `find` method
-   *   to filter the database collection o There was a problem loading the Todos. Possibly
-   * the server is down or perhaps there are network issues.
-f todos
+   *   to filter the database collection of todos
    */
-  private Bson constructFilter(Context ctx) {
+  Bson constructFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with an empty list of filters
 
     if (ctx.queryParamMap().containsKey(CATEGORY_KEY)) {
@@ -138,6 +343,22 @@ f todos
         .get();
       filters.add(eq(OWNER_KEY, role));
     }
+    if (ctx.queryParamMap().containsKey(STATUS_KEY)) {
+      boolean status = ctx.queryParamAsClass(STATUS_KEY, Boolean.class)
+        .get();
+      filters.add(eq(STATUS_KEY, status));
+    }
+    if (ctx.queryParamMap().containsKey(BODY_KEY)) {
+      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(BODY_KEY)), Pattern.CASE_INSENSITIVE);
+      filters.add(regex(BODY_KEY, pattern));
+    }
+    if (ctx.queryParamMap().containsKey(KeysetPagination.AFTER_KEY)) {
+      // Only match todos that come after the end of the previous page
+      filters.add(KeysetPagination.afterFilter(
+        sortField(ctx),
+        isDescending(ctx),
+        ctx.queryParam(KeysetPagination.AFTER_KEY)));
+    }
 
     // Combine the list of filters into a single filtering document.
     Bson combinedFilter = filters.isEmpty() ? new Document() : and(filters);
@@ -160,16 +381,44 @@ f todos
    * @return a Bson sorting document that can be used in the `sort` method
    *  to sort the database collection of todos
    */
-  private Bson constructSortingOrder(Context ctx) {
-    // Sort the results. Use the `sortby` query param (default "name")
+  Bson constructSortingOrder(Context ctx) {
+    // Sort the results. Use the `sortby` (or `order`) query param (default "owner")
     // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "owner");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
-    Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+    // "asc") to specify the sort order. Ties are broken by `_id` so that
+    // the order is always the same, which paging relies on.
+    Bson sortingOrder = KeysetPagination.sortingOrder(sortField(ctx), isDescending(ctx));
     return sortingOrder;
   }
 
+  /**
+   * The field that todos should be sorted by, i.e., the `sortby` query
+   * parameter. The Angular client calls this `order`, so we accept that
+   * as well. If neither is present, it defaults to "owner".
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return the name of the field to sort by
+   * @throws BadRequestResponse if it isn't one of the `SORTABLE_FIELDS`
+   */
+  String sortField(Context ctx) {
+    String sortBy = ctx.queryParam("sortby");
+    if (sortBy == null) {
+      sortBy = ctx.queryParam(ORDER_KEY);
+    }
+    return todoGuard.sortField(Objects.requireNonNullElse(sortBy, "owner"));
+  }
+
+  /**
+   * Whether todos should be sorted in descending order, i.e., whether
+   * the `sortorder` query parameter is "desc" (it defaults to "asc").
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return true if the todos should be sorted in descending order
+   */
+  private boolean isDescending(Context ctx) {
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam(SORT_ORDER_KEY), "asc");
+    return sortOrder.equals("desc");
+  }
+
   /**
    * Set the JSON body of the response to be a list of all the todo names and IDs
    * returned from the database, grouped by category
@@ -194,40 +443,18 @@ f todos
     String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortOrder"), "asc");
     Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
 
-    // The `TodoByCategory` class is a simple class that has fields for the category
-    // name, the number of todos in that category, and a list of todo names and IDs
-    // (using the `TodoIdName` class to store the todo names and IDs).
-    // We're going to use the aggregation pipeline to group todos by category, and
-    // then count the number of todos in each category. We'll also collect the todo
-    // names and IDs for each todo in each category. We'll then convert the results
-    // of the aggregation pipeline to `TodoByCategory` objects.
-
-    ArrayList<TodoByCategory> matchingTodos = todoCollection
-      // The following aggregation pipeline groups todos by category, and
-      // then counts the number of todos in each category. It also collects
-      // the todo names and IDs for each todo in each category.
-      .aggregate(
-        List.of(
-          // Project the fields we want to use in the next step, i.e., the _id, name, and category fields
-          new Document("$project", new Document("_id", 1).append("owner", 1).append("category", 1)),
-          // Group the todos by category, and count the number of todos in each category
-          new Document("$group", new Document("_id", "$category")
-            // Count the number of todos in each category
-            .append("count", new Document("$sum", 1))
-            // Collect the todo names and IDs for each todo in each category
-            .append("todos", new Document("$push", new Document("_id", "$_id").append("owner", "$owner")))),
-          // Sort the results. Use the `sortby` query param (default "category")
-          // as the field to sort by, and the query param `sortorder` (default
-          // "asc") to specify the sort order.
-          new Document("$sort", sortingOrder)
-        ),
-        // Convert the results of the aggregation pipeline to TodoGroupResult objects
-        // (i.e., a list of TodoGroupResult objects). It is necessary to have a Java type
-        // to convert the results to, and the JacksonMongoCollection will do this for us.
-        TodoByCategory.class
-      )
-      .into(new ArrayList<>());
+    // Rather than group all the todos on every request, we read the groups
+    // from a view that's kept up to date as todos are added and deleted
+    // (see `TodoCategorySummary`).
+    FindIterable<TodoByCategory> results = categorySummary.find(sortingOrder);
+
+    // As in `getTodos`, stream the groups if the client asked us to.
+    if (JsonStreaming.isStreamed(ctx)) {
+      JsonStreaming.writeArray(ctx, results);
+      return;
+    }
 
+    ArrayList<TodoByCategory> matchingTodos = results.into(new ArrayList<>());
     ctx.json(matchingTodos);
     ctx.status(HttpStatus.OK);
   }
@@ -241,28 +468,39 @@ f todos
    */
   public void addNewTodo(Context ctx) {
     /*
-     * The follow chain of statements uses the Javalin validator system
-     * to verify that instance of `Todo` provided in this context is
-     * a "legal" todo. It checks the following things (in order):
-     *    - The todo has a value for the name (`tdo.name != null`)
-     *    - The todo name is not blank (`tdo.name.length > 0`)
-     *    - The provided email is valid (matches EMAIL_REGEX)
-     *    - The provided age is > 0
-     *    - The provided age is < REASONABLE_AGE_LIMIT
-     *    - The provided role is valid (one of "admin", "editor", or "viewer")
-     *    - A non-blank category is provided
-     * If any of these checks fail, the validator will return a
-     * `BadRequestResponse` with an appropriate error message.
+     * Read the `Todo` from the body, then check that it's a "legal" todo,
+     * following every rule in `TODO_RULES`:
+     *    - The todo has a value for the owner (`todo.owner != null`)
+     *    - The owner is not blank (`todo.owner.length > 0`)
+     * If the body isn't a todo, or breaks any of these rules, this throws a
+     * `ValidationException`, which Javalin turns into a `400` listing every
+     * rule it broke.
      */
-    Todo newTodo = ctx.bodyValidator(Todo.class)
-      .check(todo -> todo.owner != null && todo.owner.length() > 0, "Todo must have a non-empty todo name")
-      .check(todo -> todo.status | !todo.status, "Todo's status must be boolean")
-      .get();
+    Todo newTodo = TODO_RULES.validate(ctx.bodyValidator(Todo.class).get());
 
     // Generate a todo avatar (you won't need this part for todos)
 
-    // Insert the new todo into the database
-    todoCollection.insertOne(newTodo);
+    // Insert the new todo into the database, either on its own or along
+    // with the todos from other requests.
+    if (insertCoalescer == null) {
+      todoCollection.insertOne(newTodo);
+      todosInserted(List.of(newTodo));
+    } else {
+      try {
+        insertCoalescer.insert(newTodo).get(INSERT_WAIT.toNanos(), TimeUnit.NANOSECONDS);
+      } catch (ExecutionException e) {
+        // Fail the way we would have if we'd inserted it ourselves.
+        throw e.getCause() instanceof RuntimeException
+          ? (RuntimeException) e.getCause() : new CompletionException(e.getCause());
+      } catch (TimeoutException e) {
+        throw new GatewayTimeoutResponse("The todo wasn't inserted in time; it may still be added");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ServiceUnavailableResponse("The server is shutting down");
+      }
+    }
+    // Someone who just added this is likely to look at it next.
+    todoCache.put(new ObjectId(newTodo._id), newTodo);
 
     // Set the JSON response to be the `_id` of the newly created todo.
     // This gives the client the opportunity to know the ID of the new todo,
@@ -275,6 +513,321 @@ f todos
     ctx.status(HttpStatus.CREATED);
   }
 
+  /**
+   * Add many todos at once, from a request body that's either a JSON array
+   * of todos or newline-delimited JSON (one todo per line).
+   *
+   * The body is read one todo at a time, and the todos are inserted in
+   * unordered batches of `batchSize` (a query parameter, 500 by default),
+   * so memory use depends on the batch size rather than on the size of the
+   * upload. Each todo is checked against the same rules as `addNewTodo`.
+   * A todo that breaks a rule, can't be read as a todo, or can't be
+   * inserted (e.g., because of a duplicate `_id`) is reported and skipped,
+   * and the rest are still added. Malformed JSON stops the import, since
+   * we can't tell where the next todo starts, but the todos before it are
+   * still added.
+   *
+   * The response reports how many todos were inserted and how many failed,
+   * along with (the first 100 of) the failures, e.g.,
+   * `{"inserted": 2, "failed": 1, "errors": [{"record": 1, "message": "..."}]}`,
+   * where `record` counts the todos in the body from 0.
+   *
+   * @param ctx a Javalin HTTP context that provides the todos in the
+   *   body of the request
+   */
+  public void addTodosInBulk(Context ctx) {
+    int batchSize = ctx.queryParamMap().containsKey(BATCH_SIZE_KEY)
+      ? ctx.queryParamAsClass(BATCH_SIZE_KEY, Integer.class)
+        .check(size -> size > 0 && size <= MAX_BATCH_SIZE,
+          "The batch size must be between 1 and " + MAX_BATCH_SIZE)
+        .get()
+      : DEFAULT_BATCH_SIZE;
+
+    BulkReport report = new BulkReport();
+    List<Todo> batch = new ArrayList<>(batchSize);
+    List<Integer> batchRecords = new ArrayList<>(batchSize);
+    int record = 0;
+    try (MappingIterator<Todo> todos = TODO_READER.readValues(ctx.bodyInputStream())) {
+      while (todos.hasNextValue()) {
+        Todo todo;
+        try {
+          todo = todos.nextValue();
+        } catch (DatabindException e) {
+          // The JSON was fine, it just wasn't a todo; the reader skips to the next one.
+          report.fail(record++, e.getOriginalMessage());
+          continue;
+        }
+        List<String> brokenRules = TODO_RULES.brokenRules(todo);
+        if (!brokenRules.isEmpty()) {
+          report.fail(record++, String.join("; ", brokenRules));
+          continue;
+        }
+        batch.add(todo);
+        batchRecords.add(record++);
+        if (batch.size() == batchSize) {
+          insertBatch(batch, batchRecords, report);
+        }
+      }
+    } catch (StreamReadException e) {
+      report.fail(record, "Malformed JSON, so nothing after this was read: " + e.getOriginalMessage());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to read the todos", e);
+    }
+    if (!batch.isEmpty()) {
+      insertBatch(batch, batchRecords, report);
+    }
+
+    ctx.json(report.toJson());
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Change the todo specified by the `id` parameter in the request, setting
+   * only the fields given in the JSON body (e.g., `{"status": true}`) with a
+   * single `$set`. Only those fields are checked, with the same rules as
+   * `updateTodos`.
+   *
+   * Normally this responds with no content (204), and Mongo doesn't send
+   * the todo back at all. If the request has a
+   * `Prefer: return=representation` header, the response is the todo as it
+   * is after the change, from the same `findOneAndUpdate`. If the todo's
+   * category or owner changed, the update returns the todo as it was
+   * instead, so it can be moved out of its old group, and a todo that's
+   * asked for is read again.
+   *
+   * @param ctx a Javalin HTTP context that provides the changes
+   */
+  public void updateTodo(Context ctx) {
+    ObjectId objectId;
+    try {
+      objectId = new ObjectId(ctx.pathParam("id"));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested todo id wasn't a legal Mongo Object ID.");
+    }
+    Map<String, Object> changes = TODO_UPDATES.parse(ctx);
+    boolean regroup = changes.containsKey(CATEGORY_KEY) || changes.containsKey(OWNER_KEY);
+    boolean representation = prefersRepresentation(ctx);
+
+    Todo updated = null;
+    Todo previous = null;
+    boolean found;
+    if (regroup) {
+      // The view needs the todo's old category to move it out of.
+      previous = todoCollection.findOneAndUpdate(
+        eq("_id", objectId),
+        FieldUpdates.toSet(changes),
+        new FindOneAndUpdateOptions().returnDocument(ReturnDocument.BEFORE));
+      found = previous != null;
+      if (found && representation) {
+        updated = todoCollection.find(eq("_id", objectId)).first();
+      }
+    } else if (representation) {
+      updated = todoCollection.findOneAndUpdate(
+        eq("_id", objectId),
+        FieldUpdates.toSet(changes),
+        new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+      found = updated != null;
+    } else {
+      UpdateResult result = todoCollection.updateOne(eq("_id", objectId), FieldUpdates.toSet(changes));
+      found = result.getMatchedCount() > 0;
+    }
+    todoCache.invalidate(objectId);
+    if (!found) {
+      throw new NotFoundResponse("The requested todo was not found");
+    }
+    if (regroup) {
+      categorySummary.moved(previous, changes);
+    }
+    todoVersion.incrementAndGet();
+
+    if (representation) {
+      ctx.header("Preference-Applied", RETURN_REPRESENTATION);
+      ctx.json(updated);
+      ctx.status(HttpStatus.OK);
+    } else {
+      ctx.status(HttpStatus.NO_CONTENT);
+    }
+  }
+
+  /**
+   * Did this request ask for the changed todo back?
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the `Prefer` header includes `return=representation`
+   */
+  private static boolean prefersRepresentation(Context ctx) {
+    String prefer = ctx.header(PREFER_HEADER);
+    if (prefer == null) {
+      return false;
+    }
+    for (String preference : prefer.split(",")) {
+      if (preference.trim().equalsIgnoreCase(RETURN_REPRESENTATION)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Change every todo that matches the request's filters (the same query
+   * parameters as `getTodos`), setting the fields given in the JSON body
+   * (e.g., `{"status": true}`) with a single `updateMany`.
+   *
+   * There must be at least one filter, so that a missing query string
+   * can't change every todo. If `dryRun` is true, the todos are only
+   * counted. The response has the number of todos `matched` and
+   * `modified`, and whether it was a `dryRun`.
+   *
+   * @param ctx a Javalin HTTP context that provides the filters and the
+   *   changes
+   */
+  public void updateTodos(Context ctx) {
+    Bson filter = constructRequiredFilter(ctx);
+    Map<String, Object> changes = TODO_UPDATES.parse(ctx);
+
+    if (isDryRun(ctx)) {
+      ctx.json(bulkResult(todoCollection.countDocuments(filter), "modified", 0, true));
+      ctx.status(HttpStatus.OK);
+      return;
+    }
+
+    // If any todos may move between groups, note which groups they're
+    // coming from, so only those (and the one they're going to) are redone.
+    boolean regroups = changes.containsKey(CATEGORY_KEY) || changes.containsKey(OWNER_KEY);
+    Set<String> categories = new HashSet<>();
+    if (regroups) {
+      categories.addAll(categorySummary.categoriesOf(filter));
+      categories.add((String) changes.get(CATEGORY_KEY));
+      categories.remove(null);
+    }
+    UpdateResult result = todoCollection.updateMany(filter, FieldUpdates.toSet(changes));
+    if (result.getModifiedCount() > 0) {
+      // We don't know which todos changed, so forget every cached todo.
+      todoCache.clear();
+      categorySummary.refresh(categories);
+      todoVersion.incrementAndGet();
+    }
+    ctx.json(bulkResult(result.getMatchedCount(), "modified", result.getModifiedCount(), false));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Delete every todo that matches the request's filters (the same query
+   * parameters as `getTodos`) with a single `deleteMany`.
+   *
+   * As with `updateTodos`, there must be at least one filter, `dryRun`
+   * only counts the todos, and the response has the number of todos
+   * `matched` and `deleted`, and whether it was a `dryRun`.
+   *
+   * @param ctx a Javalin HTTP context that provides the filters
+   */
+  public void deleteTodos(Context ctx) {
+    Bson filter = constructRequiredFilter(ctx);
+
+    if (isDryRun(ctx)) {
+      ctx.json(bulkResult(todoCollection.countDocuments(filter), "deleted", 0, true));
+      ctx.status(HttpStatus.OK);
+      return;
+    }
+
+    List<String> categories = categorySummary.categoriesOf(filter);
+    DeleteResult result = todoCollection.deleteMany(filter);
+    if (result.getDeletedCount() > 0) {
+      todoCache.clear();
+      categorySummary.refresh(categories);
+      todoVersion.incrementAndGet();
+    }
+    ctx.json(bulkResult(result.getDeletedCount(), "deleted", result.getDeletedCount(), false));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * The filter for a bulk change, which (unlike a list of todos) has to
+   * have at least one condition.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return the filter built by `constructFilter`
+   * @throws BadRequestResponse if there are no filters, or the request
+   *   tries to page the change (see `KeysetPagination.rejectPaging`)
+   */
+  private Bson constructRequiredFilter(Context ctx) {
+    KeysetPagination.rejectPaging(ctx);
+    Bson filter = constructFilter(ctx);
+    if (filter.toBsonDocument().isEmpty()) {
+      throw new BadRequestResponse("Changing every todo at once isn't allowed; give at least one filter");
+    }
+    return filter;
+  }
+
+  /**
+   * Did this request ask for a dry run?
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the `dryRun` query parameter is "true"
+   */
+  private static boolean isDryRun(Context ctx) {
+    return Boolean.parseBoolean(ctx.queryParam(DRY_RUN_KEY));
+  }
+
+  /**
+   * The response to a bulk change, e.g., `{"matched": 3, "modified": 2, "dryRun": false}`.
+   */
+  private static Map<String, Object> bulkResult(long matched, String changedKey, long changed, boolean dryRun) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("matched", matched);
+    result.put(changedKey, changed);
+    result.put(DRY_RUN_KEY, dryRun);
+    return result;
+  }
+
+  /**
+   * Insert a batch of todos from a bulk import with one unordered
+   * `insertMany`, so that one bad todo doesn't stop the others, and then
+   * empty the batch.
+   *
+   * @param batch the todos to insert
+   * @param batchRecords where each todo came in the import
+   * @param report the report to add any failures to
+   */
+  private void insertBatch(List<Todo> batch, List<Integer> batchRecords, BulkReport report) {
+    List<Todo> inserted = batch;
+    try {
+      todoCollection.insertMany(batch, new InsertManyOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      Set<Integer> failed = new HashSet<>();
+      for (BulkWriteError error : e.getWriteErrors()) {
+        failed.add(error.getIndex());
+        report.fail(batchRecords.get(error.getIndex()), error.getMessage());
+      }
+      inserted = new ArrayList<>();
+      for (int i = 0; i < batch.size(); i++) {
+        if (!failed.contains(i)) {
+          inserted.add(batch.get(i));
+        }
+      }
+    }
+    report.inserted += inserted.size();
+    todosInserted(inserted);
+
+    batch.clear();
+    batchRecords.clear();
+  }
+
+  /**
+   * Update everything derived from the todos after some new ones have been
+   * inserted.
+   *
+   * @param inserted the new todos, with their `_id`s set
+   */
+  private void todosInserted(List<Todo> inserted) {
+    for (Todo todo : inserted) {
+      // In case one of them was looked up (and not found) before it was added.
+      todoCache.invalidate(new ObjectId(todo._id));
+    }
+    categorySummary.added(inserted);
+    todoVersion.incrementAndGet();
+  }
+
   /**
    * Delete the todo specified by the `id` parameter in the request.
    *
@@ -282,18 +835,48 @@ f todos
    */
   public void deleteTodo(Context ctx) {
     String id = ctx.pathParam("id");
-    DeleteResult deleteResult = todoCollection.deleteOne(eq("_id", new ObjectId(id)));
+    ObjectId objectId = new ObjectId(id);
+    // We need the deleted todo's category to update its group.
+    Todo deletedTodo = todoCollection.findOneAndDelete(eq("_id", objectId));
+    todoCache.invalidate(objectId);
     // We should have deleted 1 or 0 todos, depending on whether `id` is a valid todo ID.
-    if (deleteResult.getDeletedCount() != 1) {
+    if (deletedTodo == null) {
       ctx.status(HttpStatus.NOT_FOUND);
       throw new NotFoundResponse(
         "Was unable to delete ID "
           + id
           + "; perhaps illegal ID or an ID for an item not in the system?");
     }
+    categorySummary.removed(deletedTodo);
+    todoVersion.incrementAndGet();
     ctx.status(HttpStatus.OK);
   }
 
+  /**
+   * What happened to the todos in a bulk import: how many were inserted,
+   * how many failed, and why the first `MAX_REPORTED_ERRORS` failed.
+   */
+  private static final class BulkReport {
+    private int inserted;
+    private int failed;
+    private final List<Map<String, Object>> errors = new ArrayList<>();
+
+    void fail(int record, String message) {
+      failed++;
+      if (errors.size() < MAX_REPORTED_ERRORS) {
+        errors.add(Map.of("record", record, "message", message));
+      }
+    }
+
+    Map<String, Object> toJson() {
+      Map<String, Object> json = new LinkedHashMap<>();
+      json.put("inserted", inserted);
+      json.put("failed", failed);
+      json.put("errors", errors);
+      return json;
+    }
+  }
+
   /**
    * Utility function to generate the md5 hash for a given string
    *
@@ -312,22 +895,117 @@ f todos
     return result.toString();
   }
 
+  /**
+   * Stop the thread that rebuilds the todos-by-category view, and the
+   * insert coalescer's thread, if there is one (which first inserts any
+   * todos still waiting).
+   */
+  @Override
+  public void close() {
+    summaryRebuilder.shutdownNow();
+    if (insertCoalescer != null) {
+      insertCoalescer.close();
+    }
+  }
+
+  /**
+   * Let the query guard refuse collection scans outright, now that the
+   * indexes exist.
+   */
+  @Override
+  public void indexesBuilt() {
+    todoGuard.indexesBuilt();
+  }
+
+  /**
+   * Rebuild the todos-by-category view every so often (on its own thread),
+   * so that it catches up with any changes its incremental updates missed,
+   * and log which shapes of query clients ask for most (see `QueryGuard`).
+   *
+   * @param scheduler the scheduler to add the tasks to
+   */
+  @Override
+  public void scheduleBackgroundTasks(ScheduledExecutorService scheduler) {
+    long interval = SUMMARY_REBUILD_INTERVAL.toSeconds();
+    summaryRebuilder.scheduleWithFixedDelay(this::rebuildCategorySummary, interval, interval, TimeUnit.SECONDS);
+
+    long shapeInterval = SHAPE_LOG_INTERVAL.toSeconds();
+    scheduler.scheduleWithFixedDelay(todoGuard::logShapes, shapeInterval, shapeInterval, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Rebuild the todos-by-category view from scratch, changing the data
+   * version only if that changed the view (most rebuilds don't, and a new
+   * version would throw away every client's cached responses).
+   */
+  void rebuildCategorySummary() {
+    try {
+      if (categorySummary.rebuild()) {
+        todoVersion.incrementAndGet();
+      }
+    } catch (RuntimeException e) {
+      // Log and carry on; the next rebuild may well work.
+      LOGGER.error("Failed to rebuild the todos by category view", e);
+    }
+  }
+
+  /**
+   * The version of the todo data, which changes whenever a todo is added,
+   * changed, or deleted.
+   *
+   * @return the current version
+   */
+  @Override
+  public long dataVersion() {
+    return todoVersion.get();
+  }
+
+  /**
+   * The indexes behind the todo list filters and sorts (see the
+   * declarations next to the query parameter keys above).
+   *
+   * @return the indexes the todo queries need
+   */
+  @Override
+  public List<RequiredIndex> requiredIndexes() {
+    return List.of(
+      new RequiredIndex(todoCollection, OWNER_INDEX),
+      new RequiredIndex(todoCollection, CATEGORY_OWNER_INDEX),
+      new RequiredIndex(todoCollection, STATUS_OWNER_INDEX),
+      new RequiredIndex(todoCollection, BODY_INDEX));
+  }
+
   /**
    * Setup routes for the `todo` collection endpoints.
    *
    * These endpoints are:
    *   - `GET /api/todos/:id`
    *       - Get the specified todo
-   *   - `GET /api/todos?age=NUMBER&category=STRING&name=STRING`
-   *      - List todos, filtered using query parameters
-   *      - `age`, `category`, and `name` are optional query parameters
+   *   - `GET /api/todos?owner=STRING&category=STRING&status=BOOLEAN&body=STRING&order=STRING`
+   *      - List todos, filtered and sorted using query parameters
+   *      - `owner`, `category`, `status`, `body`, and `order` are optional query parameters
+   *      - `limit` and `after` optionally page through the results; the
+   *        `after` token for the next page is in the `X-Next-Page` header
+   *      - `stream=true` streams the (unpaged) results straight from the database
+   *      - `fields` optionally lists the only fields to return, e.g., `fields=owner,category`
    *   - `GET /api/todosByCategory`
    *     - Get todo names and IDs, possibly filtered, grouped by category
    *   - `DELETE /api/todos/:id`
    *      - Delete the specified todo
+   *   - `PATCH /api/todos/:id`
+   *      - Set only the fields in the JSON body on the specified todo
+   *      - Responds with 204, or with the changed todo given `Prefer: return=representation`
    *   - `POST /api/todos`
    *      - Create a new todo
    *      - The todo info is in the JSON body of the HTTP request
+   *   - `PATCH /api/todos?owner=STRING&category=STRING&status=BOOLEAN&body=STRING&dryRun=BOOLEAN`
+   *      - Set the fields in the JSON body on every todo matching the filters
+   *      - At least one filter is required; `dryRun=true` only counts the todos
+   *   - `DELETE /api/todos?owner=STRING&category=STRING&status=BOOLEAN&body=STRING&dryRun=BOOLEAN`
+   *      - Delete every todo matching the filters (at least one is required)
+   *   - `POST /api/todos/bulk?batchSize=NUMBER`
+   *      - Create many todos, from a JSON array or newline-delimited JSON body
+   *      - Responds with how many were inserted and which ones failed
    *
    * GROUPS SHOULD CREATE THEIR OWN CONTROLLERS THAT IMPLEMENT THE
    * `Controller` INTERFACE FOR WHATEVER DATA THEY'RE WORKING WITH.
@@ -352,8 +1030,18 @@ f todos
     // Delete the specified todo
     server.delete(API_TODO_BY_ID, this::deleteTodo);
 
+    // Change some of the specified todo's fields
+    server.patch(API_TODO_BY_ID, this::updateTodo);
+
     // Add new todo with the todo info being in the JSON body
     // of the HTTP request
     server.post(API_TODOS, this::addNewTodo);
+
+    // Change or delete every todo matching the filters in the query parameters
+    server.patch(API_TODOS, this::updateTodos);
+    server.delete(API_TODOS, this::deleteTodos);
+
+    // Add many todos, from a JSON array or newline-delimited JSON body
+    server.post(API_TODOS_BULK, this::addTodosInBulk);
   }
 }
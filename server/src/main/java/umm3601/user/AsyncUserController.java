@@ -0,0 +1,127 @@
+package umm3601.user;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.reactivestreams.client.FindPublisher;
+import com.mongodb.reactivestreams.client.MongoCollection;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import umm3601.FieldProjection;
+import umm3601.JsonStreaming;
+import umm3601.KeysetPagination;
+import umm3601.ReactiveMongo;
+
+/**
+ * A `UserController` whose reads don't block: `GET /api/users/{id}` and
+ * `GET /api/users` are read with the reactive streams driver and handed to
+ * Javalin as `CompletableFuture`s, so a request waiting on a slow query
+ * doesn't hold a thread, and a handful of threads can serve thousands of
+ * them at once.
+ *
+ * Everything else (writes, bulk changes, the company groups, streamed
+ * responses, and the indexes) is inherited from `UserController`, so both
+ * kinds of request share the same cache and data version and send the
+ * same JSON. Those routes still hold a request thread while they wait on
+ * Mongo: `POST /api/users`, `PATCH` and `DELETE` of `/api/users`,
+ * `DELETE /api/users/{id}`, `GET /api/usersByCompany` (and
+ * `/api/usersByCompany/{company}`), and `GET /api/users` when it's
+ * streamed without a `limit`.
+ */
+public class AsyncUserController extends UserController {
+
+  private final MongoCollection<Document> asyncUsers;
+
+  /**
+   * Construct an asynchronous controller for users.
+   *
+   * @param database the database containing user data, for everything
+   *   that's still synchronous
+   * @param asyncDatabase the same database, through the reactive streams driver
+   */
+  public AsyncUserController(
+      MongoDatabase database, com.mongodb.reactivestreams.client.MongoDatabase asyncDatabase) {
+    super(database);
+    asyncUsers = asyncDatabase.getCollection("users");
+  }
+
+  /**
+   * Set the JSON body of the response to be the single user specified by
+   * the `id` parameter in the request, reading it (if it isn't cached)
+   * without blocking.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  @Override
+  public void getUser(Context ctx) {
+    ObjectId objectId;
+    try {
+      objectId = new ObjectId(ctx.pathParam("id"));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
+    }
+    ctx.future(() -> userCache()
+      .getAsync(objectId, key -> ReactiveMongo.first(asyncUsers.find(eq("_id", key)).first())
+        .thenApply(document -> document == null ? null : ReactiveMongo.fromDocument(document, User.class)))
+      .thenAccept(user -> {
+        if (user == null) {
+          throw new NotFoundResponse("The requested user was not found");
+        }
+        ctx.json(user);
+        ctx.status(HttpStatus.OK);
+      }));
+  }
+
+  /**
+   * Set the JSON body of the response to be the users matching the
+   * request's filters, in the requested order, read without blocking. This
+   * takes the same query parameters as `UserController#getUsers()`; a
+   * streamed response is written as it's read, so that's left to it.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  @Override
+  public void getUsers(Context ctx) {
+    if (JsonStreaming.isStreamed(ctx) && !KeysetPagination.isPaged(ctx)) {
+      super.getUsers(ctx);
+      return;
+    }
+
+    Bson combinedFilter = constructFilter(ctx);
+    Bson sortingOrder = constructSortingOrder(ctx);
+    FindPublisher<Document> results = asyncUsers.find(combinedFilter).sort(sortingOrder);
+
+    FieldProjection projection = FieldProjection.fromQuery(ctx, User.class);
+    if (!projection.isEmpty()) {
+      results.projection(projection.toBson(sortField(ctx)));
+    }
+
+    // As in `KeysetPagination#fetchPage()`, fetch one extra user to see
+    // whether there's another page.
+    int limit = KeysetPagination.pageLimit(ctx, KeysetPagination.DEFAULT_LIMIT);
+    results.limit(limit + 1);
+
+    // As in the synchronous controller, but if the guard has to explain a
+    // new query shape, that's done off the request thread.
+    ctx.future(() -> userGuard().admitAsync(combinedFilter, sortingOrder).thenCompose(plan -> {
+      if (plan.needsDiskUse()) {
+        results.allowDiskUse(true);
+      }
+      return ReactiveMongo.toList(results);
+    }).thenAccept(documents -> {
+      List<User> matchingUsers = KeysetPagination.endPage(
+        ctx, ReactiveMongo.fromDocuments(documents, User.class), sortField(ctx), limit);
+      ctx.json(projection.isEmpty() ? matchingUsers : projection.apply(matchingUsers));
+      ctx.status(HttpStatus.OK);
+    }));
+  }
+}
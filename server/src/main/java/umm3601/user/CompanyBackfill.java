@@ -0,0 +1,140 @@
+package umm3601.user;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.type;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Fills in the lowercased company (`companyLower`), which company searches
+ * use, for users written before we kept it, or without going through the
+ * `UserController` (e.g., by `mongoseed.sh`).
+ *
+ * The users are changed a batch at a time, each batch a separate task on
+ * the server's scheduler with a pause before the next, so the server keeps
+ * answering requests (and the scheduler keeps running other tasks) while
+ * a large collection is backfilled. It stops once there are no users left
+ * to fill in, and starts again with the server.
+ *
+ * Until it's `isDone()`, company searches can't rely on `companyLower`
+ * alone (see `UserController#companyFilter()`). Each batch that changes
+ * users is reported to `onChange`, so the controller can forget what it
+ * has cached about them.
+ */
+class CompanyBackfill {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CompanyBackfill.class);
+
+  // The users still to fill in. Users without a company are left alone.
+  private static final Bson MISSING = and(
+    exists(UserController.COMPANY_LOWER_KEY, false),
+    type(UserController.COMPANY_KEY, BsonType.STRING));
+
+  private final MongoCollection<Document> users;
+  private final int batchSize;
+  private final Duration pause;
+  private final Runnable onChange;
+
+  private long filledIn;
+  private volatile boolean done;
+
+  /**
+   * Construct a backfill of the users in a collection.
+   *
+   * @param users the users collection
+   * @param batchSize how many users to change at once
+   * @param pause how long to wait between batches
+   * @param onChange called after each batch that changed any users
+   */
+  CompanyBackfill(MongoCollection<Document> users, int batchSize, Duration pause, Runnable onChange) {
+    this.users = users;
+    this.batchSize = batchSize;
+    this.pause = pause;
+    this.onChange = onChange;
+  }
+
+  /**
+   * @return whether every user (with a company) has been filled in, since
+   *   the server started
+   */
+  boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Start filling in users on a scheduler, a batch at a time.
+   *
+   * @param scheduler the scheduler to run the batches on
+   */
+  void start(ScheduledExecutorService scheduler) {
+    scheduler.schedule(() -> step(scheduler), 0, TimeUnit.MILLISECONDS);
+  }
+
+  private void step(ScheduledExecutorService scheduler) {
+    int changed;
+    try {
+      changed = fillInBatch();
+    } catch (MongoException e) {
+      // Give up until the next restart rather than keep failing.
+      LOGGER.error("Stopped filling in users' lowercased companies", e);
+      return;
+    }
+    filledIn += changed;
+    if (changed == batchSize) {
+      scheduler.schedule(() -> step(scheduler), pause.toMillis(), TimeUnit.MILLISECONDS);
+    } else if (filledIn > 0) {
+      LOGGER.info("Filled in the lowercased company of {} users", filledIn);
+    }
+  }
+
+  /**
+   * Fill in the next batch of users.
+   *
+   * Each user is only changed if its company is still the one we read, so
+   * a user whose company changes in the meantime (which sets
+   * `companyLower` too) isn't given the old one.
+   *
+   * @return how many users were filled in, which is less than the batch
+   *   size once there are no more (and the backfill is done)
+   */
+  int fillInBatch() {
+    List<UpdateOneModel<Document>> updates = new ArrayList<>();
+    for (Document user : users.find(MISSING).projection(Projections.include(UserController.COMPANY_KEY))
+        .limit(batchSize)) {
+      String company = user.getString(UserController.COMPANY_KEY);
+      updates.add(new UpdateOneModel<>(
+        and(eq("_id", user.get("_id")), eq(UserController.COMPANY_KEY, company)),
+        Updates.set(UserController.COMPANY_LOWER_KEY, UserController.normalizeCompany(company))));
+    }
+    if (!updates.isEmpty()) {
+      BulkWriteResult result = users.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+      if (result.getModifiedCount() > 0) {
+        onChange.run();
+      }
+    }
+    if (updates.size() < batchSize) {
+      done = true;
+    }
+    return updates.size();
+  }
+}
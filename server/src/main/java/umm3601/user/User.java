@@ -1,6 +1,8 @@
 package umm3601.user;
 
 import org.mongojack.Id;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import org.mongojack.ObjectId;
 
 // There are two examples of suppressing CheckStyle
@@ -31,6 +33,11 @@ public class User {
   public String name;
   public int age;
   public String company;
+  // The company, lowercased, for company searches; kept up to date by the
+  // `UserController` (and `CompanyBackfill`), not the client. It's only
+  // stored in Mongo (see `Stored`), never sent to or read from clients.
+  @JsonIgnore
+  public String companyLower;
   public String email;
   public String avatar;
   public String role;
@@ -49,4 +56,13 @@ public class User {
     // This means that equal Users will hash the same, which is good.
     return _id.hashCode();
   }
+
+  /**
+   * Mixed into the mapper MongoJack stores users with, so that (unlike the
+   * JSON clients see) what's stored includes `companyLower`.
+   */
+  abstract static class Stored {
+    @JsonIgnore(false)
+    public String companyLower;
+  }
 }
@@ -2,15 +2,26 @@ package umm3601.user;
 
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gte;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.or;
 import static com.mongodb.client.model.Filters.regex;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 import org.bson.Document;
@@ -18,17 +29,36 @@ import org.bson.UuidRepresentation;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.mongojack.JacksonMongoCollection;
+import org.mongojack.ObjectMapperConfigurer;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexModel;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Sorts;
 import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
 
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import umm3601.ByIdCache;
 import umm3601.Controller;
+import umm3601.FieldProjection;
+import umm3601.FieldUpdates;
+import umm3601.JsonStreaming;
+import umm3601.KeysetPagination;
+import umm3601.QueryGuard;
+import umm3601.RequiredIndex;
+import umm3601.TextPattern;
+import umm3601.ValidationRules;
+
 /**
  * Controller that manages requests for info about users.
  */
@@ -36,27 +66,146 @@ public class UserController implements Controller {
 
   private static final String API_USERS = "/api/users";
   private static final String API_USER_BY_ID = "/api/users/{id}";
+  private static final String API_USERS_BY_COMPANY = "/api/usersByCompany";
   static final String AGE_KEY = "age";
   static final String COMPANY_KEY = "company";
+  // The company, lowercased, which is what company searches look at.
+  static final String COMPANY_LOWER_KEY = "companyLower";
+  // Whether a company search matches the start of a company's name (the
+  // default) or all of it.
+  static final String COMPANY_MATCH_KEY = "companyMatch";
+  static final String PREFIX_MATCH = "prefix";
+  static final String EXACT_MATCH = "exact";
   static final String ROLE_KEY = "role";
   static final String SORT_ORDER_KEY = "sortorder";
+  // The fields clients may sort users by (see `QueryGuard`).
+  static final Set<String> SORTABLE_FIELDS = Set.of("name", "email", AGE_KEY, COMPANY_KEY, ROLE_KEY, "_id");
+  static final String MEMBERS_KEY = "members";
+  // How many users `/api/usersByCompany` includes per company by default,
+  // and how many `/api/usersByCompany/{company}` returns per page.
+  private static final int DEFAULT_MEMBERS = 10;
+  private static final int DEFAULT_MEMBERS_PAGE = 20;
+  // The indexes behind the filters and sorts we issue. Every list is sorted
+  // (by name unless asked otherwise) with `_id` as a tie-breaker, so each
+  // index ends with the sort keys to let Mongo skip the in-memory sort.
+  // The default sort by name.
+  static final IndexModel NAME_INDEX = new IndexModel(
+      Indexes.ascending("name", "_id"), new IndexOptions().name("name_id"));
+  // Age filters, sorted by name.
+  static final IndexModel AGE_NAME_INDEX = new IndexModel(
+      Indexes.ascending(AGE_KEY, "name", "_id"), new IndexOptions().name("age_name_id"));
+  // Grouping by company, and the users in a company, sorted by name.
+  static final IndexModel COMPANY_NAME_INDEX = new IndexModel(
+      Indexes.ascending(COMPANY_KEY, "name", "_id"), new IndexOptions().name("company_name_id"));
+  // Company filters, sorted by name. Both prefix and exact searches are a
+  // range of the lowercased companies, so only the matching keys are read.
+  static final IndexModel COMPANY_LOWER_NAME_INDEX = new IndexModel(
+      Indexes.ascending(COMPANY_LOWER_KEY, "name", "_id"), new IndexOptions().name("companyLower_name_id"));
+  // Role filters, sorted by name.
+  static final IndexModel ROLE_NAME_INDEX = new IndexModel(
+      Indexes.ascending(ROLE_KEY, "name", "_id"), new IndexOptions().name("role_name_id"));
+  // Sorting by email.
+  static final IndexModel EMAIL_INDEX = new IndexModel(
+      Indexes.ascending("email", "_id"), new IndexOptions().name("email_id"));
   private static final int REASONABLE_AGE_LIMIT = 150;
-  private static final String ROLE_REGEX = "^(admin|editor|viewer)$";
+  static final String ROLE_REGEX = "^(admin|editor|viewer)$";
   public static final String EMAIL_REGEX = "^[a-zA-Z0-9_!#$%&'*+/=?`{|}~^.-]+@[a-zA-Z0-9.-]+$";
 
+  // The expressions above, compiled once (see `TextPattern`).
+  static final TextPattern EMAIL_PATTERN = TextPattern.compile(EMAIL_REGEX);
+  static final TextPattern ROLE_PATTERN = TextPattern.compile(ROLE_REGEX);
+
+  // The rules every new user has to follow, all checked at once.
+  static final ValidationRules<User> NEW_USER_RULES = new ValidationRules<User>()
+    .check(usr -> usr.name != null && usr.name.length() > 0, "User must have a non-empty user name")
+    .check(usr -> EMAIL_PATTERN.test(usr.email), "User must have a legal email")
+    .check(usr -> usr.age > 0, "User's age must be greater than zero")
+    .check(usr -> usr.age < REASONABLE_AGE_LIMIT, "User's age must be less than " + REASONABLE_AGE_LIMIT)
+    .check(usr -> ROLE_PATTERN.test(usr.role), "User must have a legal user role")
+    .check(usr -> usr.company != null && usr.company.length() > 0, "User must have a non-empty company name");
+
+  // The fields `PATCH /api/users` may change, with the same rules as new users.
+  static final FieldUpdates USER_UPDATES = new FieldUpdates()
+    .allow("name", node -> node.isTextual() && node.asText().length() > 0, "User must have a non-empty user name")
+    .allow("email", node -> node.isTextual() && EMAIL_PATTERN.test(node.asText()), "User must have a legal email")
+    .allow(AGE_KEY, node -> node.isInt() && node.asInt() > 0 && node.asInt() < REASONABLE_AGE_LIMIT,
+      "User's age must be greater than zero and less than " + REASONABLE_AGE_LIMIT)
+    .allow(ROLE_KEY, node -> node.isTextual() && ROLE_PATTERN.test(node.asText()), "User must have a legal user role")
+    .allow(COMPANY_KEY, node -> node.isTextual() && node.asText().length() > 0,
+      "User must have a non-empty company name");
+
+  // Query parameter that asks a bulk change to only count what it would change.
+  static final String DRY_RUN_KEY = "dryRun";
+
+  // How many documents `userCache` holds, and for how long.
+  private static final int CACHE_SIZE = 10_000;
+  private static final Duration CACHE_TTL = Duration.ofMinutes(1);
+  private static final Duration MISSING_TTL = Duration.ofSeconds(5);
+
+  // How often the most common shapes of user queries are logged.
+  private static final Duration SHAPE_LOG_INTERVAL = Duration.ofMinutes(10);
+
+  // How many users' lowercased companies are filled in at once, and how
+  // long to wait between batches (see `CompanyBackfill`).
+  private static final int BACKFILL_BATCH_SIZE = 1000;
+  private static final Duration BACKFILL_PAUSE = Duration.ofMillis(100);
+
+  // Stores users with their `companyLower`, which clients never see (see `User.Stored`).
+  private static final ObjectMapper STORAGE_MAPPER = ObjectMapperConfigurer.configureObjectMapper(
+    new ObjectMapper().addMixIn(User.class, User.Stored.class));
+
   private final JacksonMongoCollection<User> userCollection;
 
+  // Bumped after every change to the users; see `dataVersion()`.
+  private final AtomicLong userVersion = new AtomicLong();
+
+  // The users recently looked up by ID. Anything that changes or removes a
+  // user must invalidate it here.
+  private final ByIdCache<User> userCache = new ByIdCache<>(CACHE_SIZE, CACHE_TTL, MISSING_TTL);
+
+  // Checks the lists of users clients ask for before they're read.
+  private final QueryGuard userGuard;
+
+  // Fills in the lowercased company of users that don't have one yet.
+  private final CompanyBackfill companyBackfill;
+
   /**
    * Construct a controller for users.
    *
    * @param database the database containing user data
    */
   public UserController(MongoDatabase database) {
-    userCollection = JacksonMongoCollection.builder().build(
+    userCollection = JacksonMongoCollection.builder().withObjectMapper(STORAGE_MAPPER).build(
         database,
         "users",
         User.class,
         UuidRepresentation.STANDARD);
+    userGuard = new QueryGuard("users", database.getCollection("users"), SORTABLE_FIELDS);
+    companyBackfill = new CompanyBackfill(
+      database.getCollection("users"), BACKFILL_BATCH_SIZE, BACKFILL_PAUSE, this::forgetCachedUsers);
+  }
+
+  /**
+   * @return the backfill of users' lowercased companies
+   */
+  CompanyBackfill companyBackfill() {
+    return companyBackfill;
+  }
+
+  /**
+   * @return the users recently looked up by ID, which subclasses reading
+   *   users some other way must use too
+   */
+  ByIdCache<User> userCache() {
+    return userCache;
+  }
+
+  /**
+   * @return the guard on lists of users, which subclasses reading users
+   *   some other way must use too
+   */
+  QueryGuard userGuard() {
+    return userGuard;
   }
 
   /**
@@ -67,13 +216,14 @@ public class UserController implements Controller {
    */
   public void getUser(Context ctx) {
     String id = ctx.pathParam("id");
-    User user;
+    ObjectId objectId;
 
     try {
-      user = userCollection.find(eq("_id", new ObjectId(id))).first();
+      objectId = new ObjectId(id);
     } catch (IllegalArgumentException e) {
       throw new BadRequestResponse("The requested user id wasn't a legal Mongo Object ID.");
     }
+    User user = userCache.get(objectId, key -> userCollection.find(eq("_id", key)).first());
     if (user == null) {
       throw new NotFoundResponse("The requested user was not found");
     } else {
@@ -89,23 +239,54 @@ public class UserController implements Controller {
    * @param ctx a Javalin HTTP context
    */
   public void getUsers(Context ctx) {
-    System.err.println("Getting users");
     Bson combinedFilter = constructFilter(ctx);
     Bson sortingOrder = constructSortingOrder(ctx);
 
     // All three of the find, sort, and into steps happen "in parallel" inside the
     // database system. So MongoDB is going to find the users with the specified
     // properties, return those sorted in the specified manner, and put the
-    // results into an initially empty ArrayList.
-    ArrayList<User> matchingUsers = userCollection
+    // results into an initially empty ArrayList. We only fetch one page of
+    // results, of the request's `limit` or a default size (see `KeysetPagination`).
+    FindIterable<User> results = userCollection
       .find(combinedFilter)
-      .sort(sortingOrder)
-      .into(new ArrayList<>());
+      .sort(sortingOrder);
+
+    // Refuse queries that would read every user, and let big in-memory
+    // sorts spill to disk (see `QueryGuard`).
+    if (userGuard.admit(combinedFilter, sortingOrder).needsDiskUse()) {
+      results.allowDiskUse(true);
+    }
+
+    // If the client only asked for some of the fields (e.g., `?fields=owner,category`),
+    // have Mongo only send those, plus the sort field, which page tokens need.
+    FieldProjection projection = FieldProjection.fromQuery(ctx, User.class);
+    if (!projection.isEmpty()) {
+      results.projection(projection.toBson(sortField(ctx)));
+    }
+
+    // If the client asked for a streamed response, write the users to the
+    // response as they come out of the database instead of collecting them
+    // all first. That's the one way to get every match at once, since it
+    // doesn't collect them; a request with a `limit` gets a page instead.
+    if (JsonStreaming.isStreamed(ctx) && !KeysetPagination.isPaged(ctx)) {
+      if (projection.isEmpty()) {
+        JsonStreaming.writeArray(ctx, results);
+      } else {
+        JsonStreaming.writeArray(ctx, results.map(projection::apply));
+      }
+      return;
+    }
+
+    // Lists are always paged, so one request can't read every user; without
+    // a `limit`, the client gets the first `DEFAULT_LIMIT` (and the token
+    // for the next page, if there is one).
+    ArrayList<User> matchingUsers = KeysetPagination.fetchDefaultPage(
+      ctx, results, sortField(ctx), KeysetPagination.DEFAULT_LIMIT);
 
     // Set the JSON body of the response to be the list of users returned by the database.
     // According to the Javalin documentation (https://javalin.io/documentation#context),
     // this calls result(jsonString), and also sets content type to json
-    ctx.json(matchingUsers);
+    ctx.json(projection.isEmpty() ? matchingUsers : projection.apply(matchingUsers));
 
     // Explicitly set the context status to OK
     ctx.status(HttpStatus.OK);
@@ -117,14 +298,16 @@ public class UserController implements Controller {
    *
    * This checks for the presence of the `age`, `company`, and `role` query
    * parameters and constructs a filter document that will match users with
-   * the specified values for those fields.
+   * the specified values for those fields. The `company` filter ignores
+   * case, and matches companies that start with the given text, or (with
+   * `companyMatch=exact`) are exactly that.
    *
    * @param ctx a Javalin HTTP context, which contains the query parameters
    *    used to construct the filter
    * @return a Bson filter document that can be used in the `find` method
    *   to filter the database collection of users
    */
-  private Bson constructFilter(Context ctx) {
+  Bson constructFilter(Context ctx) {
     List<Bson> filters = new ArrayList<>(); // start with an empty list of filters
 
     if (ctx.queryParamMap().containsKey(AGE_KEY)) {
@@ -135,15 +318,22 @@ public class UserController implements Controller {
       filters.add(eq(AGE_KEY, targetAge));
     }
     if (ctx.queryParamMap().containsKey(COMPANY_KEY)) {
-      Pattern pattern = Pattern.compile(Pattern.quote(ctx.queryParam(COMPANY_KEY)), Pattern.CASE_INSENSITIVE);
-      filters.add(regex(COMPANY_KEY, pattern));
+      filters.add(companyFilter(
+        ctx.queryParam(COMPANY_KEY), ctx.queryParam(COMPANY_MATCH_KEY), companyBackfill.isDone()));
     }
     if (ctx.queryParamMap().containsKey(ROLE_KEY)) {
       String role = ctx.queryParamAsClass(ROLE_KEY, String.class)
-        .check(it -> it.matches(ROLE_REGEX), "User must have a legal user role")
+        .check(ROLE_PATTERN::test, "User must have a legal user role")
         .get();
       filters.add(eq(ROLE_KEY, role));
     }
+    if (ctx.queryParamMap().containsKey(KeysetPagination.AFTER_KEY)) {
+      // Only match users that come after the end of the previous page
+      filters.add(KeysetPagination.afterFilter(
+        sortField(ctx),
+        isDescending(ctx),
+        ctx.queryParam(KeysetPagination.AFTER_KEY)));
+    }
 
     // Combine the list of filters into a single filtering document.
     Bson combinedFilter = filters.isEmpty() ? new Document() : and(filters);
@@ -151,6 +341,64 @@ public class UserController implements Controller {
     return combinedFilter;
   }
 
+  /**
+   * The filter for a company search, which compares the lowercased
+   * company, so that (with `COMPANY_LOWER_NAME_INDEX`) it's a range scan
+   * of the index.
+   *
+   * Until every user has a `companyLower` (see `CompanyBackfill`), the
+   * users that don't are also matched by their company, ignoring case,
+   * which is slower but finds them all.
+   *
+   * @param company the text to search for
+   * @param match `exact` to match whole companies, or `prefix` (or `null`)
+   *   to match the start of them
+   * @param backfilled whether every user has a `companyLower`
+   * @return the filter
+   * @throws BadRequestResponse if `match` is anything else
+   */
+  static Bson companyFilter(String company, String match, boolean backfilled) {
+    if (match != null && !PREFIX_MATCH.equals(match) && !EXACT_MATCH.equals(match)) {
+      throw new BadRequestResponse(
+        "The company match must be '" + PREFIX_MATCH + "' or '" + EXACT_MATCH + "', not '" + match + "'");
+    }
+    boolean exact = EXACT_MATCH.equals(match);
+    Bson filter = companyLowerFilter(normalizeCompany(company), exact);
+    if (backfilled) {
+      return filter;
+    }
+    Pattern pattern = Pattern.compile(
+      "^" + Pattern.quote(company) + (exact ? "$" : ""), Pattern.CASE_INSENSITIVE);
+    return or(filter, and(exists(COMPANY_LOWER_KEY, false), regex(COMPANY_KEY, pattern)));
+  }
+
+  private static Bson companyLowerFilter(String lower, boolean exact) {
+    if (exact) {
+      return eq(COMPANY_LOWER_KEY, lower);
+    }
+    // Everything from the prefix up to (but not including) the first string
+    // after all the ones that start with it, e.g., `["ohm", "ohn")`.
+    int end = lower.length();
+    while (end > 0 && lower.charAt(end - 1) == Character.MAX_VALUE) {
+      end--;
+    }
+    if (end == 0) {
+      return gte(COMPANY_LOWER_KEY, lower);
+    }
+    String after = lower.substring(0, end - 1) + (char) (lower.charAt(end - 1) + 1);
+    return and(gte(COMPANY_LOWER_KEY, lower), lt(COMPANY_LOWER_KEY, after));
+  }
+
+  /**
+   * A company as company searches see it, i.e., lowercased.
+   *
+   * @param company the company's name
+   * @return the name to store as `companyLower`, and to search for
+   */
+  public static String normalizeCompany(String company) {
+    return company == null ? null : company.toLowerCase(Locale.ROOT);
+  }
+
   /**
    * Construct a Bson sorting document to use in the `sort` method based on the
    * query parameters from the context.
@@ -166,24 +414,50 @@ public class UserController implements Controller {
    * @return a Bson sorting document that can be used in the `sort` method
    *  to sort the database collection of users
    */
-  private Bson constructSortingOrder(Context ctx) {
+  Bson constructSortingOrder(Context ctx) {
     // Sort the results. Use the `sortby` query param (default "name")
     // as the field to sort by, and the query param `sortorder` (default
-    // "asc") to specify the sort order.
-    String sortBy = Objects.requireNonNullElse(ctx.queryParam("sortby"), "name");
-    String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortorder"), "asc");
-    Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
+    // "asc") to specify the sort order. Ties are broken by `_id` so that
+    // the order is always the same, which paging relies on.
+    Bson sortingOrder = KeysetPagination.sortingOrder(sortField(ctx), isDescending(ctx));
     return sortingOrder;
   }
 
   /**
-   * Set the JSON body of the response to be a list of all the user names and IDs
-   * returned from the database, grouped by company
+   * The field that users should be sorted by, i.e., the `sortby` query
+   * parameter, which defaults to "name".
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return the name of the field to sort by
+   * @throws BadRequestResponse if it isn't one of the `SORTABLE_FIELDS`
+   */
+  String sortField(Context ctx) {
+    return userGuard.sortField(Objects.requireNonNullElse(ctx.queryParam("sortby"), "name"));
+  }
+
+  /**
+   * Whether users should be sorted in descending order, i.e., whether
+   * the `sortorder` query parameter is "desc" (it defaults to "asc").
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return true if the users should be sorted in descending order
+   */
+  private boolean isDescending(Context ctx) {
+    String sortOrder = Objects.requireNonNullElse(ctx.queryParam(SORT_ORDER_KEY), "asc");
+    return sortOrder.equals("desc");
+  }
+
+  /**
+   * Set the JSON body of the response to be a list of the companies in the
+   * database, each with its number of users and the names and IDs of its
+   * first few users
    *
    * This "returns" a list of user names and IDs, grouped by company in the JSON
    * body of the response. The user names and IDs are stored in `UserIdName` objects,
    * and the company name, the number of users in that company, and the list of user
-   * names and IDs are stored in `UserByCompany` objects.
+   * names and IDs are stored in `UserByCompany` objects. Only the first
+   * `members` users (by name, default 10) are included for each company;
+   * `getUsersInCompany` pages through the rest.
    *
    * @param ctx a Javalin HTTP context that provides the query parameters
    *   used to sort the results. We support either sorting by company name
@@ -200,43 +474,97 @@ public class UserController implements Controller {
     String sortOrder = Objects.requireNonNullElse(ctx.queryParam("sortOrder"), "asc");
     Bson sortingOrder = sortOrder.equals("desc") ?  Sorts.descending(sortBy) : Sorts.ascending(sortBy);
 
+    // How many of each company's users to include; the rest can be fetched
+    // a page at a time from `/api/usersByCompany/{company}`.
+    int members = DEFAULT_MEMBERS;
+    if (ctx.queryParamMap().containsKey(MEMBERS_KEY)) {
+      members = ctx.queryParamAsClass(MEMBERS_KEY, Integer.class)
+        .check(it -> it > 0, "The number of members must be greater than zero")
+        .check(it -> it <= KeysetPagination.MAX_LIMIT, "The number of members must be at most "
+          + KeysetPagination.MAX_LIMIT)
+        .get();
+    }
+
     // The `UserByCompany` class is a simple class that has fields for the company
     // name, the number of users in that company, and a list of user names and IDs
     // (using the `UserIdName` class to store the user names and IDs).
-    // We're going to use the aggregation pipeline to group users by company, and
-    // then count the number of users in each company. We'll also collect the user
-    // names and IDs for each user in each company. We'll then convert the results
-    // of the aggregation pipeline to `UserByCompany` objects.
-
-    ArrayList<UserByCompany> matchingUsers = userCollection
-      // The following aggregation pipeline groups users by company, and
-      // then counts the number of users in each company. It also collects
-      // the user names and IDs for each user in each company.
+    //
+    // Collecting every user in a company with `$push` would make one huge
+    // array for a big company (documents, including the ones in the middle of
+    // an aggregation, are limited to 16MB). So we group the users just to
+    // count them, and then use a `$lookup` to fetch the first few users in
+    // each company (by name), which the `company_name_id` index answers
+    // directly. That keeps the response size bounded by the number of
+    // companies, however many users each company has.
+    AggregateIterable<UserByCompany> results = userCollection
       .aggregate(
         List.of(
-          // Project the fields we want to use in the next step, i.e., the _id, name, and company fields
-          new Document("$project", new Document("_id", 1).append("name", 1).append("company", 1)),
           // Group the users by company, and count the number of users in each company
           new Document("$group", new Document("_id", "$company")
-            // Count the number of users in each company
-            .append("count", new Document("$sum", 1))
-            // Collect the user names and IDs for each user in each company
-            .append("users", new Document("$push", new Document("_id", "$_id").append("name", "$name")))),
+            .append("count", new Document("$sum", 1))),
           // Sort the results. Use the `sortby` query param (default "company")
           // as the field to sort by, and the query param `sortorder` (default
           // "asc") to specify the sort order.
-          new Document("$sort", sortingOrder)
+          new Document("$sort", sortingOrder),
+          // Look up the first `members` users in each company, by name
+          new Document("$lookup", new Document("from", userCollection.getNamespace().getCollectionName())
+            .append("let", new Document("company", "$_id"))
+            .append("pipeline", List.of(
+              new Document("$match", new Document("$expr", new Document("$eq", List.of("$company", "$$company")))),
+              new Document("$sort", new Document("name", 1).append("_id", 1)),
+              new Document("$limit", members),
+              new Document("$project", new Document("_id", 1).append("name", 1))))
+            .append("as", "users"))
         ),
         // Convert the results of the aggregation pipeline to UserGroupResult objects
         // (i.e., a list of UserGroupResult objects). It is necessary to have a Java type
         // to convert the results to, and the JacksonMongoCollection will do this for us.
         UserByCompany.class
       )
-      .into(new ArrayList<>());
+      // Grouping and sorting lots of companies may need more memory than
+      // Mongo allows a pipeline stage; this lets it use temporary files.
+      .allowDiskUse(true);
+
+    // As in `getUsers`, stream the groups if the client asked us to.
+    if (JsonStreaming.isStreamed(ctx)) {
+      JsonStreaming.writeArray(ctx, results);
+      return;
+    }
 
+    ArrayList<UserByCompany> matchingUsers = results.into(new ArrayList<>());
     ctx.json(matchingUsers);
     ctx.status(HttpStatus.OK);
   }
+  /**
+   * Set the JSON body of the response to be one page of the names and IDs
+   * of the users in the company given by the `company` path parameter,
+   * sorted by name.
+   *
+   * `/api/usersByCompany` only includes the first few users in each
+   * company; this is how clients get the rest. Pages are `limit` users long
+   * (default 20), and the `X-Next-Page` response header holds the `after`
+   * token for the next page, as in `getUsers`.
+   *
+   * @param ctx a Javalin HTTP context, which contains the company and the
+   *   `limit` and `after` query parameters
+   */
+  public void getUsersInCompany(Context ctx) {
+    List<Bson> filters = new ArrayList<>();
+    filters.add(eq(COMPANY_KEY, ctx.pathParam("company")));
+    if (ctx.queryParamMap().containsKey(KeysetPagination.AFTER_KEY)) {
+      filters.add(KeysetPagination.afterFilter("name", false, ctx.queryParam(KeysetPagination.AFTER_KEY)));
+    }
+
+    FindIterable<UserIdName> results = userCollection
+      .find(and(filters), UserIdName.class)
+      .projection(Projections.include("name"))
+      .sort(KeysetPagination.sortingOrder("name", false));
+
+    ArrayList<UserIdName> members = KeysetPagination.fetchDefaultPage(ctx, results, "name", DEFAULT_MEMBERS_PAGE);
+    ctx.json(members);
+    ctx.status(HttpStatus.OK);
+  }
+
 
   /**
    * Add a new user using information from the context
@@ -247,9 +575,8 @@ public class UserController implements Controller {
    */
   public void addNewUser(Context ctx) {
     /*
-     * The follow chain of statements uses the Javalin validator system
-     * to verify that instance of `User` provided in this context is
-     * a "legal" user. It checks the following things (in order):
+     * Read the `User` from the body, then check that it's a "legal" user,
+     * following every rule in `NEW_USER_RULES`:
      *    - The user has a value for the name (`usr.name != null`)
      *    - The user name is not blank (`usr.name.length > 0`)
      *    - The provided email is valid (matches EMAIL_REGEX)
@@ -257,23 +584,22 @@ public class UserController implements Controller {
      *    - The provided age is < REASONABLE_AGE_LIMIT
      *    - The provided role is valid (one of "admin", "editor", or "viewer")
      *    - A non-blank company is provided
-     * If any of these checks fail, the validator will return a
-     * `BadRequestResponse` with an appropriate error message.
+     * If the body isn't a user, or breaks any of these rules, this throws a
+     * `ValidationException`, which Javalin turns into a `400` listing every
+     * rule it broke.
      */
-    User newUser = ctx.bodyValidator(User.class)
-      .check(usr -> usr.name != null && usr.name.length() > 0, "User must have a non-empty user name")
-      .check(usr -> usr.email.matches(EMAIL_REGEX), "User must have a legal email")
-      .check(usr -> usr.age > 0, "User's age must be greater than zero")
-      .check(usr -> usr.age < REASONABLE_AGE_LIMIT, "User's age must be less than " + REASONABLE_AGE_LIMIT)
-      .check(usr -> usr.role.matches(ROLE_REGEX), "User must have a legal user role")
-      .check(usr -> usr.company != null && usr.company.length() > 0, "User must have a non-empty company name")
-      .get();
+    User newUser = NEW_USER_RULES.validate(ctx.bodyValidator(User.class).get());
 
     // Generate a user avatar (you won't need this part for todos)
     newUser.avatar = generateAvatar(newUser.email);
+    // Company searches look at the lowercased company.
+    newUser.companyLower = normalizeCompany(newUser.company);
 
     // Insert the new user into the database
     userCollection.insertOne(newUser);
+    // Someone who just added this is likely to look at it next.
+    userCache.put(new ObjectId(newUser._id), newUser);
+    userVersion.incrementAndGet();
 
     // Set the JSON response to be the `_id` of the newly created user.
     // This gives the client the opportunity to know the ID of the new user,
@@ -293,7 +619,9 @@ public class UserController implements Controller {
    */
   public void deleteUser(Context ctx) {
     String id = ctx.pathParam("id");
-    DeleteResult deleteResult = userCollection.deleteOne(eq("_id", new ObjectId(id)));
+    ObjectId objectId = new ObjectId(id);
+    DeleteResult deleteResult = userCollection.deleteOne(eq("_id", objectId));
+    userCache.invalidate(objectId);
     // We should have deleted 1 or 0 users, depending on whether `id` is a valid user ID.
     if (deleteResult.getDeletedCount() != 1) {
       ctx.status(HttpStatus.NOT_FOUND);
@@ -302,9 +630,124 @@ public class UserController implements Controller {
           + id
           + "; perhaps illegal ID or an ID for an item not in the system?");
     }
+    userVersion.incrementAndGet();
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Change every user that matches the request's filters (the same query
+   * parameters as `getUsers`), setting the fields given in the JSON body
+   * (e.g., `{"company": "UMM"}`) with a single `updateMany`.
+   *
+   * There must be at least one filter, so that a missing query string
+   * can't change every user. If `dryRun` is true, the users are only
+   * counted. The response has the number of users `matched` and
+   * `modified`, and whether it was a `dryRun`.
+   *
+   * @param ctx a Javalin HTTP context that provides the filters and the
+   *   changes
+   */
+  public void updateUsers(Context ctx) {
+    Bson filter = constructRequiredFilter(ctx);
+    Map<String, Object> changes = USER_UPDATES.parse(ctx);
+    if (changes.containsKey("email")) {
+      // The avatar comes from the email, so it has to change with it.
+      changes.put("avatar", generateAvatar((String) changes.get("email")));
+    }
+    if (changes.containsKey(COMPANY_KEY)) {
+      changes.put(COMPANY_LOWER_KEY, normalizeCompany((String) changes.get(COMPANY_KEY)));
+    }
+
+    if (isDryRun(ctx)) {
+      ctx.json(bulkResult(userCollection.countDocuments(filter), "modified", 0, true));
+      ctx.status(HttpStatus.OK);
+      return;
+    }
+
+    UpdateResult result = userCollection.updateMany(filter, FieldUpdates.toSet(changes));
+    if (result.getModifiedCount() > 0) {
+      forgetCachedUsers();
+    }
+    ctx.json(bulkResult(result.getMatchedCount(), "modified", result.getModifiedCount(), false));
     ctx.status(HttpStatus.OK);
   }
 
+  /**
+   * Delete every user that matches the request's filters (the same query
+   * parameters as `getUsers`) with a single `deleteMany`.
+   *
+   * As with `updateUsers`, there must be at least one filter, `dryRun`
+   * only counts the users, and the response has the number of users
+   * `matched` and `deleted`, and whether it was a `dryRun`.
+   *
+   * @param ctx a Javalin HTTP context that provides the filters
+   */
+  public void deleteUsers(Context ctx) {
+    Bson filter = constructRequiredFilter(ctx);
+
+    if (isDryRun(ctx)) {
+      ctx.json(bulkResult(userCollection.countDocuments(filter), "deleted", 0, true));
+      ctx.status(HttpStatus.OK);
+      return;
+    }
+
+    DeleteResult result = userCollection.deleteMany(filter);
+    if (result.getDeletedCount() > 0) {
+      forgetCachedUsers();
+    }
+    ctx.json(bulkResult(result.getDeletedCount(), "deleted", result.getDeletedCount(), false));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * After a change to users we can't name (e.g., a bulk update), forget
+   * every cached user, and bump the data version so that cached responses
+   * (and ETags) aren't used again.
+   */
+  private void forgetCachedUsers() {
+    userCache.clear();
+    userVersion.incrementAndGet();
+  }
+
+  /**
+   * The filter for a bulk change, which (unlike a list of users) has to
+   * have at least one condition.
+   *
+   * @param ctx a Javalin HTTP context, which contains the query parameters
+   * @return the filter built by `constructFilter`
+   * @throws BadRequestResponse if there are no filters, or the request
+   *   tries to page the change (see `KeysetPagination.rejectPaging`)
+   */
+  private Bson constructRequiredFilter(Context ctx) {
+    KeysetPagination.rejectPaging(ctx);
+    Bson filter = constructFilter(ctx);
+    if (filter.toBsonDocument().isEmpty()) {
+      throw new BadRequestResponse("Changing every user at once isn't allowed; give at least one filter");
+    }
+    return filter;
+  }
+
+  /**
+   * Did this request ask for a dry run?
+   *
+   * @param ctx a Javalin HTTP context
+   * @return true if the `dryRun` query parameter is "true"
+   */
+  private static boolean isDryRun(Context ctx) {
+    return Boolean.parseBoolean(ctx.queryParam(DRY_RUN_KEY));
+  }
+
+  /**
+   * The response to a bulk change, e.g., `{"matched": 3, "modified": 2, "dryRun": false}`.
+   */
+  private static Map<String, Object> bulkResult(long matched, String changedKey, long changed, boolean dryRun) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("matched", matched);
+    result.put(changedKey, changed);
+    result.put(DRY_RUN_KEY, dryRun);
+    return result;
+  }
+
   /**
    * Utility function to generate an URI that points
    * at a unique avatar image based on a user's email.
@@ -348,6 +791,58 @@ public class UserController implements Controller {
     return result.toString();
   }
 
+  /**
+   * The version of the user data, which changes whenever a user is added,
+   * changed, or deleted.
+   *
+   * @return the current version
+   */
+  @Override
+  public long dataVersion() {
+    return userVersion.get();
+  }
+
+  /**
+   * The indexes behind the user list filters and sorts (see the
+   * declarations next to the query parameter keys above).
+   *
+   * @return the indexes the user queries need
+   */
+  @Override
+  public List<RequiredIndex> requiredIndexes() {
+    return List.of(
+      new RequiredIndex(userCollection, NAME_INDEX),
+      new RequiredIndex(userCollection, AGE_NAME_INDEX),
+      new RequiredIndex(userCollection, COMPANY_NAME_INDEX),
+      new RequiredIndex(userCollection, COMPANY_LOWER_NAME_INDEX),
+      new RequiredIndex(userCollection, ROLE_NAME_INDEX),
+      new RequiredIndex(userCollection, EMAIL_INDEX));
+  }
+
+  /**
+   * Let the query guard refuse collection scans outright, now that the
+   * indexes exist.
+   */
+  @Override
+  public void indexesBuilt() {
+    userGuard.indexesBuilt();
+  }
+
+  /**
+   * Fill in the lowercased company of any users without one (see
+   * `CompanyBackfill`), and log which shapes of query clients ask for most,
+   * every so often (see `QueryGuard`).
+   *
+   * @param scheduler the scheduler to add the tasks to
+   */
+  @Override
+  public void scheduleBackgroundTasks(ScheduledExecutorService scheduler) {
+    companyBackfill.start(scheduler);
+
+    long interval = SHAPE_LOG_INTERVAL.toSeconds();
+    scheduler.scheduleWithFixedDelay(userGuard::logShapes, interval, interval, TimeUnit.SECONDS);
+  }
+
   /**
    * Setup routes for the `user` collection endpoints.
    *
@@ -357,10 +852,21 @@ public class UserController implements Controller {
    *   - `GET /api/users?age=NUMBER&company=STRING&name=STRING`
    *      - List users, filtered using query parameters
    *      - `age`, `company`, and `name` are optional query parameters
+   *      - `company` matches the start of companies' names, ignoring case,
+   *        or all of them with `companyMatch=exact`
+   *      - `limit` and `after` optionally page through the results; the
+   *        `after` token for the next page is in the `X-Next-Page` header
+   *      - `stream=true` streams the (unpaged) results straight from the database
+   *      - `fields` optionally lists the only fields to return, e.g., `fields=name,company`
    *   - `GET /api/usersByCompany`
    *     - Get user names and IDs, possibly filtered, grouped by company
    *   - `DELETE /api/users/:id`
    *      - Delete the specified user
+   *   - `PATCH /api/users?age=NUMBER&company=STRING&role=STRING&dryRun=BOOLEAN`
+   *      - Set the fields in the JSON body on every user matching the filters
+   *      - At least one filter is required; `dryRun=true` only counts the users
+   *   - `DELETE /api/users?age=NUMBER&company=STRING&role=STRING&dryRun=BOOLEAN`
+   *      - Delete every user matching the filters (at least one is required)
    *   - `POST /api/users`
    *      - Create a new user
    *      - The user info is in the JSON body of the HTTP request
@@ -383,11 +889,18 @@ public class UserController implements Controller {
     server.get(API_USERS, this::getUsers);
 
     // Get users, possibly filtered, grouped by company
-    server.get("/api/usersByCompany", this::getUsersGroupedByCompany);
+    server.get(API_USERS_BY_COMPANY, this::getUsersGroupedByCompany);
+
+    // Get a page of the users in one company
+    server.get(API_USERS_BY_COMPANY + "/{company}", this::getUsersInCompany);
 
     // Delete the specified user
     server.delete(API_USER_BY_ID, this::deleteUser);
 
+    // Change or delete every user matching the filters in the query parameters
+    server.patch(API_USERS, this::updateUsers);
+    server.delete(API_USERS, this::deleteUsers);
+
     // Add new user with the user info being in the JSON body
     // of the HTTP request
     server.post(API_USERS, this::addNewUser);
@@ -0,0 +1,177 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the eviction, expiry, and invalidation of `ByIdCache`, using a
+ * fake clock so nothing has to wait. The controller specs check that the
+ * controllers keep their caches up to date.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class ByIdCacheSpec {
+
+  private long now;
+  private ByIdCache<String> cache;
+  private List<ObjectId> loaded;
+  private Function<ObjectId, String> loader;
+
+  @BeforeEach
+  void setupEach() {
+    now = 0;
+    cache = new ByIdCache<>(3, Duration.ofSeconds(60), Duration.ofSeconds(5), () -> now);
+    loaded = new ArrayList<>();
+    loader = id -> {
+      loaded.add(id);
+      return "doc " + id.toHexString();
+    };
+  }
+
+  private void advance(Duration duration) {
+    now += duration.toNanos();
+  }
+
+  @Test
+  void onlyLoadsEachDocumentOnce() {
+    ObjectId id = new ObjectId();
+
+    assertEquals("doc " + id.toHexString(), cache.get(id, loader));
+    assertEquals("doc " + id.toHexString(), cache.get(id, loader));
+
+    assertEquals(List.of(id), loaded);
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  void evictsTheLeastRecentlyUsedDocument() {
+    ObjectId first = new ObjectId();
+    ObjectId second = new ObjectId();
+    ObjectId third = new ObjectId();
+    cache.get(first, loader);
+    cache.get(second, loader);
+    cache.get(third, loader);
+    // Using `first` makes `second` the least recently used.
+    cache.get(first, loader);
+
+    cache.get(new ObjectId(), loader);
+    assertEquals(3, cache.size());
+    loaded.clear();
+    cache.get(first, loader);
+    cache.get(second, loader);
+
+    assertEquals(List.of(second), loaded);
+  }
+
+  @Test
+  void reloadsDocumentsOnceTheyExpire() {
+    ObjectId id = new ObjectId();
+    cache.get(id, loader);
+
+    advance(Duration.ofSeconds(59));
+    cache.get(id, loader);
+    assertEquals(1, loaded.size());
+
+    advance(Duration.ofSeconds(2));
+    cache.get(id, loader);
+    assertEquals(2, loaded.size());
+  }
+
+  @Test
+  void remembersMissingDocumentsBriefly() {
+    ObjectId id = new ObjectId();
+    int[] lookups = new int[1];
+    Function<ObjectId, String> missing = key -> {
+      lookups[0]++;
+      return null;
+    };
+
+    assertNull(cache.get(id, missing));
+    assertNull(cache.get(id, missing));
+    assertEquals(1, lookups[0]);
+
+    advance(Duration.ofSeconds(6));
+    assertEquals("doc " + id.toHexString(), cache.get(id, loader));
+  }
+
+  @Test
+  void invalidatedDocumentsAreReloaded() {
+    ObjectId id = new ObjectId();
+    cache.get(id, loader);
+
+    cache.invalidate(id);
+    cache.get(id, loader);
+    cache.clear();
+    cache.get(id, loader);
+
+    assertEquals(3, loaded.size());
+  }
+
+  @Test
+  void putDocumentsDontNeedLoading() {
+    ObjectId id = new ObjectId();
+    cache.put(id, "just added");
+
+    assertEquals("just added", cache.get(id, loader));
+    assertEquals(List.of(), loaded);
+  }
+
+  @Test
+  void doesntCacheALoadThatRacedWithAnInvalidation() {
+    ObjectId id = new ObjectId();
+    // The document is deleted while we're reading the old version of it.
+    String stale = cache.get(id, key -> {
+      cache.invalidate(key);
+      return "stale";
+    });
+
+    assertEquals("stale", stale);
+    assertEquals("doc " + id.toHexString(), cache.get(id, loader));
+  }
+
+  @Test
+  void asyncLoadsAreCachedWhenTheyComplete() {
+    ObjectId id = new ObjectId();
+    CompletableFuture<String> reading = new CompletableFuture<>();
+
+    CompletableFuture<String> first = cache.getAsync(id, key -> reading);
+    assertFalse(first.isDone());
+    reading.complete("read later");
+
+    assertEquals("read later", first.join());
+    assertEquals("read later", cache.getAsync(id, key -> CompletableFuture.completedFuture("again")).join());
+    assertEquals(1, cache.hits());
+  }
+
+  @Test
+  void asyncLoadsThatRacedWithAnInvalidationArentCached() {
+    ObjectId id = new ObjectId();
+    CompletableFuture<String> reading = new CompletableFuture<>();
+
+    CompletableFuture<String> stale = cache.getAsync(id, key -> reading);
+    cache.invalidate(id);
+    reading.complete("stale");
+
+    assertEquals("stale", stale.join());
+    assertEquals("doc " + id.toHexString(), cache.get(id, loader));
+  }
+
+  @Test
+  void sizeMustBePositive() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      new ByIdCache<String>(0, Duration.ofSeconds(1), Duration.ofSeconds(1));
+    });
+  }
+}
@@ -0,0 +1,211 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Tests computing ETags and answering conditional requests, first with a
+ * mock context and then through a real (if tiny) Javalin server.
+ */
+class ConditionalGetSpec {
+
+  @Mock
+  private Context ctx;
+
+  private AtomicLong version;
+  private ConditionalGet conditionalGet;
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    version = new AtomicLong();
+    conditionalGet = new ConditionalGet(new Controller[] {versionedController(version)});
+    when(ctx.method()).thenReturn(HandlerType.GET);
+    when(ctx.path()).thenReturn("/api/todos");
+    when(ctx.queryParamMap()).thenReturn(Map.of());
+  }
+
+  private static Controller versionedController(AtomicLong version) {
+    return new Controller() {
+      @Override
+      public void addRoutes(Javalin server) {
+      }
+
+      @Override
+      public long dataVersion() {
+        return version.get();
+      }
+    };
+  }
+
+  private void requestQuery(Map<String, List<String>> params) {
+    when(ctx.queryParamMap()).thenReturn(params);
+  }
+
+  @Test
+  void etagDoesntDependOnParameterOrder() {
+    Map<String, List<String>> ownerFirst = new LinkedHashMap<>();
+    ownerFirst.put("owner", List.of("Fry"));
+    ownerFirst.put("category", List.of("homework"));
+    requestQuery(ownerFirst);
+    String etag = conditionalGet.etagFor(ctx);
+
+    Map<String, List<String>> categoryFirst = new LinkedHashMap<>();
+    categoryFirst.put("category", List.of("homework"));
+    categoryFirst.put("owner", List.of("Fry"));
+    requestQuery(categoryFirst);
+
+    assertEquals(etag, conditionalGet.etagFor(ctx));
+  }
+
+  @Test
+  void etagChangesWithTheRequestAndTheData() {
+    String etag = conditionalGet.etagFor(ctx);
+    assertEquals('"', etag.charAt(0));
+
+    requestQuery(Map.of("owner", List.of("Fry")));
+    String ownerEtag = conditionalGet.etagFor(ctx);
+    assertNotEquals(etag, ownerEtag);
+
+    version.incrementAndGet();
+    assertNotEquals(ownerEtag, conditionalGet.etagFor(ctx));
+  }
+
+  @Test
+  void unversionedControllersMeanNoEtags() {
+    Controller unversioned = server -> { };
+    conditionalGet = new ConditionalGet(new Controller[] {versionedController(version), unversioned});
+
+    conditionalGet.checkIfModified(ctx);
+
+    assertNull(conditionalGet.etagFor(ctx));
+    verify(ctx, Mockito.never()).header(Mockito.eq(Header.ETAG), Mockito.anyString());
+  }
+
+  @Test
+  void onlyGetsAreTagged() {
+    when(ctx.method()).thenReturn(HandlerType.POST);
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn("*");
+
+    conditionalGet.checkIfModified(ctx);
+
+    verify(ctx, Mockito.never()).header(Mockito.eq(Header.ETAG), Mockito.anyString());
+  }
+
+  @Test
+  void metricsAreNeverTagged() {
+    when(ctx.path()).thenReturn("/api/metrics/mongo");
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn("*");
+
+    conditionalGet.checkIfModified(ctx);
+
+    verify(ctx, Mockito.never()).header(Mockito.eq(Header.ETAG), Mockito.anyString());
+  }
+
+  @Test
+  void matchingIfNoneMatchIsNotModified() {
+    String etag = conditionalGet.etagFor(ctx);
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn("\"something-else\", W/" + etag);
+
+    assertThrows(ConditionalGet.NotModified.class, () -> {
+      conditionalGet.checkIfModified(ctx);
+    });
+    verify(ctx).header(Header.ETAG, etag);
+  }
+
+  @Test
+  void staleIfNoneMatchGetsTheNewTag() {
+    String staleEtag = conditionalGet.etagFor(ctx);
+    version.incrementAndGet();
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(staleEtag);
+
+    String newEtag = conditionalGet.etagFor(ctx);
+
+    conditionalGet.checkIfModified(ctx);
+
+    verify(ctx).header(Header.ETAG, newEtag);
+  }
+
+  @Test
+  void errorsArentTagged() {
+    HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+    when(ctx.res()).thenReturn(response);
+
+    when(ctx.status()).thenReturn(HttpStatus.OK);
+    conditionalGet.dropTagFromErrors(ctx);
+    verify(response, Mockito.never()).setHeader(Header.ETAG, null);
+
+    when(ctx.status()).thenReturn(HttpStatus.NOT_FOUND);
+    conditionalGet.dropTagFromErrors(ctx);
+    verify(response).setHeader(Header.ETAG, null);
+  }
+
+  @Test
+  void serverAnswersRepeatedRequestsWithoutRunningTheHandler() throws IOException, InterruptedException {
+    AtomicInteger handled = new AtomicInteger();
+    Javalin server = Javalin.create();
+    conditionalGet.addTo(server);
+    server.get("/api/todos", context -> {
+      handled.incrementAndGet();
+      context.json(List.of("a todo"));
+    });
+    server.start(0);
+
+    try {
+      HttpClient client = HttpClient.newHttpClient();
+      URI uri = URI.create("http://localhost:" + server.port() + "/api/todos?owner=Fry");
+
+      HttpResponse<String> first = client.send(
+        HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+      String etag = first.headers().firstValue(Header.ETAG).orElse(null);
+      assertEquals(HttpStatus.OK.getCode(), first.statusCode());
+      assertNotNull(etag);
+
+      HttpResponse<String> second = client.send(
+        HttpRequest.newBuilder(uri).header(Header.IF_NONE_MATCH, etag).build(),
+        HttpResponse.BodyHandlers.ofString());
+      assertEquals(HttpStatus.NOT_MODIFIED.getCode(), second.statusCode());
+      assertEquals(etag, second.headers().firstValue(Header.ETAG).orElse(null));
+      assertEquals(1, handled.get());
+
+      version.incrementAndGet();
+      HttpResponse<String> third = client.send(
+        HttpRequest.newBuilder(uri).header(Header.IF_NONE_MATCH, etag).build(),
+        HttpResponse.BodyHandlers.ofString());
+      assertEquals(HttpStatus.OK.getCode(), third.statusCode());
+      assertEquals("[\"a todo\"]", third.body());
+      assertEquals(2, handled.get());
+    } finally {
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+
+/**
+ * Tests loading made-up data into a database of its own, and building the
+ * indexes afterwards.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class DatabaseSeederSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("seedTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @Test
+  void seedReplacesTheDataAndBuildsTheIndexes() throws InterruptedException {
+    db.getCollection("todos").insertOne(new Document("owner", "Old"));
+
+    new DatabaseSeeder(db, new SyntheticData(10, 5, 1, 0.5, 1), 3601, 3, 7).seed(100, 30);
+
+    assertEquals(100, db.getCollection("todos").countDocuments());
+    assertEquals(0, db.getCollection("todos").countDocuments(new Document("owner", "Old")));
+    assertEquals(30, db.getCollection("users").countDocuments());
+    Set<String> userIndexes = new TreeSet<>();
+    db.getCollection("users").listIndexes().forEach(index -> userIndexes.add(index.getString("name")));
+    assertTrue(userIndexes.containsAll(
+      Set.of("_id_", "name_id", "age_name_id", "company_name_id", "companyLower_name_id", "role_name_id", "email_id")));
+  }
+
+  private static List<Document> usersByEmail() {
+    List<Document> users = new ArrayList<>();
+    db.getCollection("users").find().projection(Projections.excludeId()).sort(new Document("email", 1)).into(users);
+    return users;
+  }
+
+  @Test
+  void theSameSeedLoadsTheSameData() throws InterruptedException {
+    SyntheticData data = new SyntheticData(10, 5, 1, 0.5, 1);
+    db.getCollection("users").drop();
+    new DatabaseSeeder(db, data, 42, 1, 100).load("users", 20, data::user);
+    List<Document> first = usersByEmail();
+
+    // The batches (and threads) are different, but the users aren't.
+    db.getCollection("users").drop();
+    new DatabaseSeeder(db, data, 42, 4, 3).load("users", 20, data::user);
+
+    assertEquals(20, first.size());
+    assertEquals(first, usersByEmail());
+  }
+
+  @Test
+  void insertFailuresAreThrown() {
+    Document duplicate = new Document("_id", "same");
+    DatabaseSeeder seeder = new DatabaseSeeder(db, new SyntheticData(1, 1, 0, 0, 0), 1, 2, 1);
+
+    assertThrows(MongoBulkWriteException.class, () -> seeder.load("duplicates", 2, (random, number) -> duplicate));
+  }
+
+  @Test
+  void settingsOverrideTheDefaults() {
+    Map<String, String> settings = DatabaseSeeder.settings(new String[] {"todos=10000000", "ownerSkew=1.2"});
+
+    assertEquals("10000000", settings.get("todos"));
+    assertEquals("1.2", settings.get("ownerSkew"));
+    assertEquals(DatabaseSeeder.DEFAULTS.get("users"), settings.get("users"));
+    assertThrows(IllegalArgumentException.class, () -> DatabaseSeeder.settings(new String[] {"todo=1"}));
+    assertThrows(IllegalArgumentException.class, () -> DatabaseSeeder.settings(new String[] {"todos"}));
+  }
+
+  @Test
+  void illegalSettingsAreRejected() {
+    SyntheticData data = new SyntheticData(1, 1, 0, 0, 0);
+
+    assertThrows(IllegalArgumentException.class, () -> new DatabaseSeeder(db, data, 1, 0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new DatabaseSeeder(db, data, 1, 1, 0));
+  }
+}
@@ -0,0 +1,117 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.mongodb.MongoClientSettings;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import umm3601.todo.Todo;
+import umm3601.user.User;
+
+/**
+ * Tests the parsing, checking, and applying of `fields` projections. The
+ * controller specs check that projected requests work against the database.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class FieldProjectionSpec {
+
+  @Mock
+  private Context ctx;
+
+  private Todo todo;
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    todo = new Todo();
+    todo._id = "588935f57546a2daea44de7c";
+    todo.owner = "Fry";
+    todo.category = "homework";
+    todo.status = true;
+    todo.body = "A long body that we don't always want to send";
+  }
+
+  private void requestFields(String fields) {
+    when(ctx.queryParamMap()).thenReturn(Map.of(FieldProjection.FIELDS_KEY, List.of(fields)));
+    when(ctx.queryParam(FieldProjection.FIELDS_KEY)).thenReturn(fields);
+  }
+
+  @Test
+  void noFieldsParameterMeansAllFields() {
+    when(ctx.queryParamMap()).thenReturn(Map.of());
+    assertTrue(FieldProjection.fromQuery(ctx, Todo.class).isEmpty());
+  }
+
+  @Test
+  void appliesRequestedFieldsInOrder() {
+    requestFields("category, owner");
+    FieldProjection projection = FieldProjection.fromQuery(ctx, Todo.class);
+
+    assertFalse(projection.isEmpty());
+    Map<String, Object> selected = projection.apply(todo);
+    assertEquals(List.of("_id", "category", "owner"), List.copyOf(selected.keySet()));
+    assertEquals("Fry", selected.get("owner"));
+    assertEquals("homework", selected.get("category"));
+  }
+
+  @Test
+  void projectionIncludesExtraFieldsOnlyOnce() {
+    requestFields("owner,status");
+    BsonDocument projection = FieldProjection.fromQuery(ctx, Todo.class)
+      .toBson("owner", "category")
+      .toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+
+    assertEquals(BsonDocument.parse("{owner: 1, status: 1, category: 1}"), projection);
+  }
+
+  @Test
+  void idIsAlwaysIncludedButNeverRepeated() {
+    requestFields("_id,age");
+    User user = new User();
+    user._id = "588935f57546a2daea44de7c";
+    user.age = 25;
+
+    List<Map<String, Object>> selected = FieldProjection.fromQuery(ctx, User.class).apply(List.of(user));
+    assertEquals(1, selected.size());
+    assertEquals(Map.of("_id", user._id, "age", 25), selected.get(0));
+  }
+
+  @Test
+  void rejectsFieldsOnlyTheServerSees() {
+    requestFields("name,companyLower");
+    assertThrows(BadRequestResponse.class, () -> {
+      FieldProjection.fromQuery(ctx, User.class);
+    });
+  }
+
+  @Test
+  void rejectsFieldsThatArentInTheClass() {
+    requestFields("owner,age");
+    assertThrows(BadRequestResponse.class, () -> {
+      FieldProjection.fromQuery(ctx, Todo.class);
+    });
+  }
+
+  @Test
+  void cantApplyToObjectsWithoutAnId() {
+    requestFields("owner");
+    FieldProjection projection = FieldProjection.fromQuery(ctx, Todo.class);
+    assertThrows(IllegalStateException.class, () -> {
+      projection.apply(new Object());
+    });
+  }
+}
@@ -0,0 +1,74 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+/**
+ * Tests turning sparse JSON request bodies into `$set` updates.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class FieldUpdatesSpec {
+
+  @Mock
+  private Context ctx;
+
+  private FieldUpdates updates;
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    updates = new FieldUpdates()
+      .allow("status", JsonNode::isBoolean, "Status must be boolean")
+      .allow("age", node -> node.isInt() && node.asInt() > 0, "Age must be positive");
+  }
+
+  private Map<String, Object> parse(String body) {
+    when(ctx.body()).thenReturn(body);
+    return updates.parse(ctx);
+  }
+
+  @Test
+  void onlyTheGivenFieldsChange() {
+    Map<String, Object> changes = parse("{\"age\": 3, \"status\": true}");
+
+    assertEquals(Map.of("age", 3, "status", true), changes);
+    assertEquals(List.of("age", "status"), List.copyOf(changes.keySet()));
+    assertEquals(BsonDocument.parse("{\"$set\": {\"age\": 3, \"status\": true}}"),
+      FieldUpdates.toSet(changes).toBsonDocument());
+  }
+
+  @Test
+  void rejectsIllegalValues() {
+    BadRequestResponse error = assertThrows(BadRequestResponse.class, () -> parse("{\"age\": -3}"));
+    assertEquals("Age must be positive", error.getMessage());
+  }
+
+  @Test
+  void rejectsFieldsThatCantChange() {
+    BadRequestResponse error = assertThrows(BadRequestResponse.class, () -> parse("{\"name\": \"Sam\"}"));
+    assertEquals("The field 'name' can't be changed; only status, age can", error.getMessage());
+  }
+
+  @Test
+  void rejectsBodiesWithoutChanges() {
+    assertThrows(BadRequestResponse.class, () -> parse("{}"));
+    assertThrows(BadRequestResponse.class, () -> parse("[{\"age\": 3}]"));
+    assertThrows(BadRequestResponse.class, () -> parse(""));
+    assertThrows(BadRequestResponse.class, () -> parse("{\"age\": "));
+  }
+}
@@ -0,0 +1,136 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Indexes;
+
+import umm3601.todo.TodoController;
+import umm3601.user.UserController;
+
+/**
+ * Tests that the `IndexBootstrapper` creates the indexes the controllers
+ * declare, and reports on what it found.
+ *
+ * This uses its own database so that it doesn't disturb the indexes (or
+ * lack of them) in the controller specs.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class IndexBootstrapperSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private Controller[] controllers;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("indexTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    db.drop();
+    controllers = new Controller[] {
+      new TodoController(db),
+      new UserController(db),
+      // A controller that doesn't declare any indexes
+      server -> { }
+    };
+  }
+
+  private Set<String> indexNames(String collection) {
+    Set<String> names = new TreeSet<>();
+    for (Document index : db.getCollection(collection).listIndexes()) {
+      names.add(index.getString("name"));
+    }
+    return names;
+  }
+
+  @Test
+  void createsEveryDeclaredIndex() {
+    IndexBootstrapper.IndexReport report = new IndexBootstrapper(controllers).ensureIndexes();
+
+    assertEquals(
+        Set.of("_id_", "owner_id", "category_owner_id", "status_owner_id", "body_id"),
+        indexNames("todos"));
+    assertEquals(
+        Set.of("_id_", "name_id", "age_name_id", "company_name_id", "companyLower_name_id", "role_name_id",
+          "email_id"),
+        indexNames("users"));
+    assertEquals(10, report.getMissing().size());
+    assertTrue(report.getMissing().contains("todos.owner_id"));
+    assertTrue(report.getMissing().contains("users.company_name_id"));
+    assertTrue(report.getUndeclared().isEmpty());
+  }
+
+  @Test
+  void runningAgainDoesNothing() {
+    new IndexBootstrapper(controllers).ensureIndexes();
+    IndexBootstrapper.IndexReport report = new IndexBootstrapper(controllers).ensureIndexes();
+
+    assertEquals(List.of(), report.getMissing());
+    assertEquals(5, indexNames("todos").size());
+  }
+
+  @Test
+  void onlyCreatesTheIndexesThatAreMissing() {
+    new IndexBootstrapper(controllers).ensureIndexes();
+    db.getCollection("users").dropIndex("role_name_id");
+
+    IndexBootstrapper.IndexReport report = new IndexBootstrapper(controllers).ensureIndexes();
+
+    assertEquals(List.of("users.role_name_id"), report.getMissing());
+    assertTrue(indexNames("users").contains("role_name_id"));
+  }
+
+  @Test
+  void reportsIndexesNoControllerDeclares() {
+    db.getCollection("todos").createIndex(Indexes.ascending("body"));
+
+    IndexBootstrapper.IndexReport report = new IndexBootstrapper(controllers).ensureIndexes();
+
+    assertEquals(List.of("todos.body_1"), report.getUndeclared());
+    // We only report it; it's up to a person to decide whether to drop it.
+    assertTrue(indexNames("todos").contains("body_1"));
+  }
+
+  @Test
+  void canCreateTheIndexesInTheBackground() throws Exception {
+    IndexBootstrapper.IndexReport report = new IndexBootstrapper(controllers)
+      .ensureIndexesInBackground()
+      .get(10, TimeUnit.SECONDS);
+
+    assertEquals(10, report.getMissing().size());
+    assertTrue(indexNames("users").contains("age_name_id"));
+  }
+}
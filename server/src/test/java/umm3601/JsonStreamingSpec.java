@@ -0,0 +1,214 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+/**
+ * Tests that `JsonStreaming` writes cursors out as JSON arrays.
+ *
+ * The last test loads a million documents, so it only runs when the
+ * `SCALE_TESTS` environment variable is set to `true`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class JsonStreamingSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> documents;
+  private RecordingOutputStream output;
+
+  @Mock
+  private Context ctx;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("test");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() throws IOException {
+    MockitoAnnotations.openMocks(this);
+    documents = db.getCollection("streaming");
+    documents.drop();
+    output = new RecordingOutputStream();
+    when(ctx.outputStream()).thenReturn(output);
+  }
+
+  private List<Map<String, Object>> writtenDocuments() throws IOException {
+    return new ObjectMapper().readValue(output.written(), new TypeReference<List<Map<String, Object>>>() { });
+  }
+
+  @Test
+  void knowsWhenStreamingWasRequested() {
+    when(ctx.queryParam(JsonStreaming.STREAM_KEY)).thenReturn("true");
+    assertTrue(JsonStreaming.isStreamed(ctx));
+    when(ctx.queryParam(JsonStreaming.STREAM_KEY)).thenReturn(null);
+    assertFalse(JsonStreaming.isStreamed(ctx));
+  }
+
+  @Test
+  void writesEmptyArrayForNoResults() throws IOException {
+    JsonStreaming.writeArray(ctx, documents.find().projection(new Document("_id", 0)));
+
+    assertEquals("[]", output.written());
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).contentType(ContentType.APPLICATION_JSON);
+  }
+
+  @Test
+  void writesEveryDocumentInOrder() throws IOException {
+    List<Document> toInsert = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      toInsert.add(new Document("n", i).append("name", "doc" + i));
+    }
+    documents.insertMany(toInsert);
+
+    JsonStreaming.writeArray(ctx, documents.find().projection(new Document("_id", 0)).sort(new Document("n", -1)));
+
+    List<Map<String, Object>> written = writtenDocuments();
+    assertEquals(10, written.size());
+    assertEquals(9, written.get(0).get("n"));
+    assertEquals("doc0", written.get(9).get("name"));
+    // We flush right after the first document so the client sees it right away.
+    assertEquals("[{\"n\":9,\"name\":\"doc9\"}", output.written().substring(0, output.bytesAtFirstFlush()));
+  }
+
+  @Test
+  void reportsFailedWrites() {
+    documents.insertOne(new Document("n", 1));
+    when(ctx.outputStream()).thenReturn(new ServletOutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("The client went away");
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+      }
+    });
+
+    assertThrows(UncheckedIOException.class, () -> {
+      JsonStreaming.writeArray(ctx, documents.find().projection(new Document("_id", 0)));
+    });
+  }
+
+  /**
+   * Stream a million documents (well over 100MB of JSON) through an output
+   * stream that just counts bytes, and check the live heap every few
+   * megabytes. If anything collected the results in memory, the live heap
+   * would grow with the amount written; streaming keeps it flat.
+   */
+  @Test
+  @EnabledIfEnvironmentVariable(named = "SCALE_TESTS", matches = "true")
+  void heapStaysBoundedWhenStreamingAMillionDocuments() {
+    final int documentCount = 1_000_000;
+    final int batchSize = 10_000;
+    final long sampleEvery = 16L * 1024 * 1024;
+    final long allowedGrowth = 32L * 1024 * 1024;
+
+    String body = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore";
+    for (int start = 0; start < documentCount; start += batchSize) {
+      List<Document> batch = new ArrayList<>(batchSize);
+      for (int i = start; i < start + batchSize; i++) {
+        batch.add(new Document("n", i).append("owner", "owner" + (i % 100)).append("body", body));
+      }
+      documents.insertMany(batch);
+    }
+
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    System.gc();
+    final long baseline = memory.getHeapMemoryUsage().getUsed();
+    final long[] written = new long[1];
+    final long[] maxLiveHeap = new long[1];
+
+    when(ctx.outputStream()).thenReturn(new ServletOutputStream() {
+      private long nextSample = sampleEvery;
+
+      @Override
+      public void write(int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        written[0] += len;
+        if (written[0] >= nextSample) {
+          nextSample += sampleEvery;
+          System.gc();
+          maxLiveHeap[0] = Math.max(maxLiveHeap[0], memory.getHeapMemoryUsage().getUsed());
+        }
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+      }
+    });
+
+    // Ask for modest batches so the cursor's own buffer stays small too.
+    JsonStreaming.writeArray(ctx, documents.find().projection(new Document("_id", 0)).batchSize(batchSize));
+
+    assertTrue(written[0] > 4 * allowedGrowth, "Expected well over 128MB of JSON, but only wrote " + written[0]);
+    assertTrue(maxLiveHeap[0] - baseline < allowedGrowth,
+        "Live heap grew by " + (maxLiveHeap[0] - baseline) + " bytes while streaming " + written[0] + " bytes");
+  }
+}
@@ -0,0 +1,137 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoClientSettings;
+
+import io.javalin.http.BadRequestResponse;
+import umm3601.todo.Todo;
+
+/**
+ * Tests the page tokens and filters built by `KeysetPagination`. The
+ * controller specs check that paging through real data works.
+ */
+class KeysetPaginationSpec {
+
+  private Todo todo;
+
+  @BeforeEach
+  void setupEach() {
+    todo = new Todo();
+    todo._id = new ObjectId().toHexString();
+    todo.owner = "Sam";
+    todo.category = "homework";
+  }
+
+  private static BsonDocument asDocument(Bson bson) {
+    return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+  }
+
+  @Test
+  void sortingOrderBreaksTiesById() {
+    assertEquals(
+      BsonDocument.parse("{owner: 1, _id: 1}"),
+      asDocument(KeysetPagination.sortingOrder("owner", false)));
+    assertEquals(
+      BsonDocument.parse("{owner: -1, _id: -1}"),
+      asDocument(KeysetPagination.sortingOrder("owner", true)));
+  }
+
+  @Test
+  void sortingOrderOnIdDoesNotRepeatId() {
+    assertEquals(BsonDocument.parse("{_id: -1}"), asDocument(KeysetPagination.sortingOrder("_id", true)));
+  }
+
+  @Test
+  void tokenRoundTripsIntoAscendingFilter() {
+    String token = KeysetPagination.tokenFor(todo, "owner");
+    BsonDocument filter = asDocument(KeysetPagination.afterFilter("owner", false, token));
+
+    String expected = "{$or: [{owner: {$gt: 'Sam'}},"
+      + " {$and: [{owner: 'Sam'}, {_id: {$gt: {$oid: '" + todo._id + "'}}}]}]}";
+    assertEquals(BsonDocument.parse(expected), filter);
+  }
+
+  @Test
+  void tokenRoundTripsIntoDescendingFilter() {
+    String token = KeysetPagination.tokenFor(todo, "status");
+    BsonDocument filter = asDocument(KeysetPagination.afterFilter("status", true, token));
+
+    // Missing/null statuses sort last, so they're after every other status.
+    String expected = "{$or: [{status: {$lt: false}},"
+      + " {$and: [{status: false}, {_id: {$lt: {$oid: '" + todo._id + "'}}}]}, {status: null}]}";
+    assertEquals(BsonDocument.parse(expected), filter);
+  }
+
+  @Test
+  void nullSortKeyIsFollowedByNonNullKeysWhenAscending() {
+    todo.owner = null;
+    String token = KeysetPagination.tokenFor(todo, "owner");
+    BsonDocument filter = asDocument(KeysetPagination.afterFilter("owner", false, token));
+
+    String expected = "{$or: [{owner: {$ne: null}},"
+      + " {$and: [{owner: null}, {_id: {$gt: {$oid: '" + todo._id + "'}}}]}]}";
+    assertEquals(BsonDocument.parse(expected), filter);
+  }
+
+  @Test
+  void nullSortKeyIsOnlyFollowedByNullKeysWhenDescending() {
+    todo.owner = null;
+    String token = KeysetPagination.tokenFor(todo, "owner");
+    BsonDocument filter = asDocument(KeysetPagination.afterFilter("owner", true, token));
+
+    String expected = "{$and: [{owner: null}, {_id: {$lt: {$oid: '" + todo._id + "'}}}]}";
+    assertEquals(BsonDocument.parse(expected), filter);
+  }
+
+  @Test
+  void sortingByIdOnlyComparesIds() {
+    String token = KeysetPagination.tokenFor(todo, "_id");
+    BsonDocument filter = asDocument(KeysetPagination.afterFilter("_id", false, token));
+
+    assertEquals(BsonDocument.parse("{_id: {$gt: {$oid: '" + todo._id + "'}}}"), filter);
+  }
+
+  @Test
+  void tokensAreUrlSafe() {
+    todo.owner = "?/+&= with some spaces";
+    String token = KeysetPagination.tokenFor(todo, "owner");
+    assertTrue(token.matches("^[A-Za-z0-9_-]+$"));
+    assertFalse(token.contains("Sam"));
+  }
+
+  @Test
+  void cannotMakeTokenForUnknownSortField() {
+    assertThrows(BadRequestResponse.class, () -> {
+      KeysetPagination.tokenFor(todo, "notAField");
+    });
+  }
+
+  @Test
+  void rejectsTokenThatIsNotBase64() {
+    assertThrows(BadRequestResponse.class, () -> {
+      KeysetPagination.afterFilter("owner", false, "not a token!");
+    });
+  }
+
+  @Test
+  void rejectsTokenWithoutAnId() {
+    String token = Base64.getUrlEncoder()
+      .encodeToString("{\"k\": \"Sam\"}".getBytes(StandardCharsets.UTF_8));
+    assertThrows(BadRequestResponse.class, () -> {
+      KeysetPagination.afterFilter("owner", false, token);
+    });
+  }
+}
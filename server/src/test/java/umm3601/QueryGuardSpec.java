@@ -0,0 +1,416 @@
+package umm3601;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.ExplainVerbosity;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+
+import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests that the `QueryGuard` only lets clients sort by the fields it's
+ * given, and that it explains each shape of query to decide whether to
+ * let it through, and how.
+ *
+ * This uses its own database, with an index on `owner` (but not `body`).
+ * Not every Mongo-compatible server can `explain` queries, so the tests
+ * that need real plans are skipped on those; how plans are read is tested
+ * with examples of what `explain` returns.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class QueryGuardSpec {
+
+  private static final Set<String> SORTABLE = Set.of("owner", "body", "_id");
+  private static final Bson BY_OWNER = Sorts.ascending("owner", "_id");
+  private static final Bson BY_BODY = Sorts.ascending("body", "_id");
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+  private static boolean canExplain;
+
+  private MongoCollection<Document> things;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("queryGuardTest");
+    try {
+      db.runCommand(new Document("explain", new Document("find", "things")));
+      canExplain = true;
+    } catch (MongoCommandException e) {
+      canExplain = false;
+    }
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    db.drop();
+    things = db.getCollection("things");
+    List<Document> documents = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      documents.add(new Document("owner", "owner" + i % 3).append("body", "thing " + i));
+    }
+    things.insertMany(documents);
+    things.createIndex(Indexes.ascending("owner", "_id"));
+  }
+
+  private QueryGuard guard(long maxScanned, Duration replanInterval) {
+    return new QueryGuard("things", things, SORTABLE, maxScanned, replanInterval);
+  }
+
+  @Test
+  void onlySortableFieldsMayBeSortedBy() {
+    QueryGuard guard = new QueryGuard("things", things, SORTABLE);
+    assertEquals("owner", guard.sortField("owner"));
+    assertEquals("_id", guard.sortField("_id"));
+
+    BadRequestResponse exception = assertThrows(BadRequestResponse.class, () -> guard.sortField("secret"));
+    assertEquals("Can't sort things by 'secret'; sort by one of [_id, body, owner]", exception.getMessage());
+  }
+
+  @Test
+  void shapesLeaveOutValues() {
+    assertEquals(
+      QueryGuard.shape(and(eq("owner", "a"), in("body", "x", "y")), BY_OWNER),
+      QueryGuard.shape(and(eq("owner", "b"), in("body", "z")), BY_OWNER));
+    assertEquals(
+      "{\"owner\": \"?\"} sort {\"owner\": 1, \"_id\": 1}",
+      QueryGuard.shape(eq("owner", "a"), BY_OWNER));
+
+    assertNotEquals(QueryGuard.shape(eq("owner", "a"), BY_OWNER), QueryGuard.shape(eq("body", "a"), BY_OWNER));
+    assertNotEquals(QueryGuard.shape(eq("owner", "a"), BY_OWNER), QueryGuard.shape(eq("owner", "a"), BY_BODY));
+  }
+
+  @Test
+  void plansAreReadFromExplanations() {
+    // A plan as classic query engines explain it.
+    Document classic = Document.parse("{queryPlanner: {winningPlan: "
+      + "{stage: 'SORT', inputStage: {stage: 'COLLSCAN', direction: 'forward'}}}}");
+    QueryGuard.Plan plan = QueryGuard.plan(classic, 10);
+    assertEquals(Set.of("SORT", "COLLSCAN"), plan.getStages());
+    assertTrue(plan.isCollectionScan());
+    assertTrue(plan.needsDiskUse());
+
+    // Newer servers nest the plan inside `queryPlan`, and plans can have several inputs.
+    Document nested = Document.parse("{queryPlanner: {winningPlan: {queryPlan: {stage: 'FETCH', inputStage: "
+      + "{stage: 'OR', inputStages: [{stage: 'IXSCAN'}, {stage: 'IXSCAN'}]}}, slotBasedPlan: {stages: 'ixseek'}}}}");
+    plan = QueryGuard.plan(nested, 10);
+    assertEquals(Set.of("FETCH", "OR", "IXSCAN"), plan.getStages());
+    assertFalse(plan.isCollectionScan());
+    assertFalse(plan.isBlockingSort());
+
+    assertTrue(QueryGuard.plan(new Document("ok", 1), 10).getStages().isEmpty());
+  }
+
+  @Test
+  void indexedSortsNeedNoDiskUse() {
+    assumeTrue(canExplain);
+    QueryGuard.Plan plan = guard(1, Duration.ofMinutes(1)).admit(new Document(), BY_OWNER);
+
+    assertFalse(plan.isCollectionScan());
+    assertFalse(plan.isBlockingSort());
+    assertFalse(plan.needsDiskUse());
+    assertTrue(plan.getStages().contains("IXSCAN"), plan.getStages().toString());
+  }
+
+  @Test
+  void sortsInMemoryUseTheDisk() {
+    assumeTrue(canExplain);
+    QueryGuard.Plan plan = guard(100, Duration.ofMinutes(1)).admit(new Document(), BY_BODY);
+
+    assertTrue(plan.isCollectionScan());
+    assertTrue(plan.isBlockingSort());
+    assertTrue(plan.needsDiskUse());
+  }
+
+  @Test
+  void collectionScansOfLargeCollectionsAreRefused() {
+    assumeTrue(canExplain);
+    QueryGuard guard = guard(5, Duration.ofMinutes(1));
+    guard.indexesBuilt();
+
+    BadRequestResponse exception = assertThrows(BadRequestResponse.class, () -> guard.admit(new Document(), BY_BODY));
+    assertTrue(exception.getMessage().contains("read all 10 things"), exception.getMessage());
+
+    // Filtering by an indexed field is fine, even sorted by another.
+    assertFalse(guard.admit(eq("owner", "owner1"), BY_BODY).isCollectionScan());
+  }
+
+  @Test
+  void plansAreKeptForEachShape() {
+    QueryGuard guard = guard(100, Duration.ofMinutes(1));
+    QueryGuard.Plan first = guard.admit(eq("owner", "owner1"), BY_OWNER);
+
+    // Even if the plan would now be different, the same shape gets the same plan.
+    things.dropIndexes();
+    assertSame(first, guard.admit(eq("owner", "owner2"), BY_OWNER));
+    assertNotSame(first, guard.admit(eq("owner", "owner2"), BY_BODY));
+
+    Map<String, Long> counts = guard.shapeCounts();
+    assertEquals(List.of(2L, 1L), new ArrayList<>(counts.values()));
+    assertEquals(QueryGuard.shape(eq("owner", "owner1"), BY_OWNER), counts.keySet().iterator().next());
+    guard.logShapes();
+  }
+
+  @Test
+  void oldPlansAreExplainedAgain() {
+    assumeTrue(canExplain);
+    QueryGuard guard = guard(100, Duration.ZERO);
+    assertFalse(guard.admit(new Document(), BY_OWNER).isCollectionScan());
+
+    things.dropIndexes();
+    assertTrue(guard.admit(new Document(), BY_OWNER).isCollectionScan());
+  }
+
+  /**
+   * A collection that counts its `explain`s in `explains`, and holds up all
+   * but the first `quick` of them until `release`.
+   */
+  @SuppressWarnings("unchecked")
+  private static MongoCollection<Document> slowToExplain(AtomicInteger explains, int quick, CountDownLatch release) {
+    MongoCollection<Document> collection = mock(MongoCollection.class);
+    FindIterable<Document> found = mock(FindIterable.class);
+    when(collection.find(any(Bson.class))).thenReturn(found);
+    when(found.sort(any())).thenReturn(found);
+    when(found.explain(any(ExplainVerbosity.class))).thenAnswer(invocation -> {
+      if (explains.incrementAndGet() > quick) {
+        release.await(10, TimeUnit.SECONDS);
+      }
+      return new Document("queryPlanner", new Document("winningPlan", new Document("stage", "IXSCAN")));
+    });
+    when(collection.estimatedDocumentCount()).thenReturn(10L);
+    return collection;
+  }
+
+  /**
+   * A collection of 10 documents that counts its `explain`s in `explains`,
+   * and whose plans have just the given stage.
+   */
+  @SuppressWarnings("unchecked")
+  private static MongoCollection<Document> explainedAs(String stage, AtomicInteger explains) {
+    MongoCollection<Document> collection = mock(MongoCollection.class);
+    FindIterable<Document> found = mock(FindIterable.class);
+    when(collection.find(any(Bson.class))).thenReturn(found);
+    when(found.sort(any())).thenReturn(found);
+    when(found.explain(any(ExplainVerbosity.class))).thenAnswer(invocation -> {
+      explains.incrementAndGet();
+      return new Document("queryPlanner", new Document("winningPlan", new Document("stage", stage)));
+    });
+    when(collection.estimatedDocumentCount()).thenReturn(10L);
+    return collection;
+  }
+
+  @Test
+  void scansAreRetriedWhileTheIndexesMayBeBuilding() {
+    QueryGuard guard = new QueryGuard(
+      "things", explainedAs("COLLSCAN", new AtomicInteger()), SORTABLE, 5, Duration.ofMinutes(1));
+
+    QueryGuard.IndexesBuilding building = assertThrows(
+      QueryGuard.IndexesBuilding.class, () -> guard.admit(new Document(), BY_BODY));
+    assertEquals(HttpStatus.SERVICE_UNAVAILABLE.getCode(), building.getStatus());
+
+    guard.indexesBuilt();
+    assertThrows(BadRequestResponse.class, () -> guard.admit(new Document(), BY_BODY));
+  }
+
+  @Test
+  void refusedPlansAreExplainedAgainEveryTime() {
+    AtomicInteger explains = new AtomicInteger();
+    QueryGuard guard = new QueryGuard(
+      "things", explainedAs("COLLSCAN", explains), SORTABLE, 5, Duration.ofMinutes(1));
+    guard.indexesBuilt();
+
+    for (int i = 1; i <= 3; i++) {
+      assertThrows(BadRequestResponse.class, () -> guard.admit(new Document(), BY_BODY));
+      assertEquals(i, explains.get());
+    }
+  }
+
+  @Test
+  void buildingTheIndexesForgetsThePlans() {
+    AtomicInteger explains = new AtomicInteger();
+    QueryGuard guard = new QueryGuard(
+      "things", explainedAs("IXSCAN", explains), SORTABLE, 5, Duration.ofMinutes(1));
+    guard.admit(new Document(), BY_OWNER);
+    guard.admit(new Document(), BY_OWNER);
+    assertEquals(1, explains.get());
+
+    guard.indexesBuilt();
+    guard.admit(new Document(), BY_OWNER);
+
+    assertEquals(2, explains.get());
+  }
+
+  @Test
+  void serverAsksClientsToRetryWhileTheIndexesMayBeBuilding() throws IOException, InterruptedException {
+    QueryGuard guard = new QueryGuard(
+      "things", explainedAs("COLLSCAN", new AtomicInteger()), SORTABLE, 5, Duration.ofMinutes(1));
+    Javalin server = Javalin.create();
+    QueryGuard.addTo(server);
+    server.get("/api/things", ctx -> ctx.json(guard.admit(new Document(), BY_BODY).getStages()));
+    server.start(0);
+
+    try {
+      HttpResponse<String> response = HttpClient.newHttpClient().send(
+        HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/api/things")).build(),
+        HttpResponse.BodyHandlers.ofString());
+
+      assertEquals(HttpStatus.SERVICE_UNAVAILABLE.getCode(), response.statusCode());
+      assertEquals(QueryGuard.RETRY_AFTER_SECONDS, response.headers().firstValue(Header.RETRY_AFTER).orElse(null));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  void newShapesAreExplainedOnceHoweverManyAskAtOnce() throws Exception {
+    AtomicInteger explains = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    QueryGuard guard = new QueryGuard(
+      "things", slowToExplain(explains, 0, release), SORTABLE, 100, Duration.ofMinutes(1));
+
+    ExecutorService requests = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<QueryGuard.Plan>> plans = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        String owner = "owner" + i;
+        plans.add(requests.submit(() -> guard.admit(eq("owner", owner), BY_OWNER)));
+      }
+      Thread.sleep(100);
+      release.countDown();
+
+      QueryGuard.Plan first = plans.get(0).get(10, TimeUnit.SECONDS);
+      for (Future<QueryGuard.Plan> plan : plans) {
+        assertSame(first, plan.get(10, TimeUnit.SECONDS));
+      }
+      assertEquals(1, explains.get());
+    } finally {
+      requests.shutdownNow();
+    }
+  }
+
+  @Test
+  void oldPlansAreUsedWhileTheyreExplainedAgain() throws Exception {
+    AtomicInteger explains = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    QueryGuard guard = new QueryGuard("things", slowToExplain(explains, 1, release), SORTABLE, 100, Duration.ZERO);
+    QueryGuard.Plan old = guard.admit(new Document(), BY_OWNER);
+
+    ExecutorService requests = Executors.newSingleThreadExecutor();
+    try {
+      Future<QueryGuard.Plan> replanned = requests.submit(() -> guard.admit(new Document(), BY_OWNER));
+      while (explains.get() < 2) {
+        Thread.sleep(10);
+      }
+      // The plan is being explained again, so this gets the old one right away.
+      assertSame(old, guard.admit(new Document(), BY_OWNER));
+
+      release.countDown();
+      assertNotSame(old, replanned.get(10, TimeUnit.SECONDS));
+      assertEquals(2, explains.get());
+    } finally {
+      requests.shutdownNow();
+    }
+  }
+
+  @Test
+  void asyncAdmissionsExplainOffTheCallersThread() throws Exception {
+    AtomicInteger explains = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    QueryGuard guard = new QueryGuard(
+      "things", slowToExplain(explains, 0, release), SORTABLE, 100, Duration.ofMinutes(1));
+
+    // The explanation is held up, but we aren't.
+    CompletableFuture<QueryGuard.Plan> plan = guard.admitAsync(new Document(), BY_OWNER);
+    assertFalse(plan.isDone());
+
+    release.countDown();
+    assertEquals(Set.of("IXSCAN"), plan.get(10, TimeUnit.SECONDS).getStages());
+    // Now that it's known, the plan is ready right away.
+    assertTrue(guard.admitAsync(new Document(), BY_OWNER).isDone());
+    assertEquals(1, explains.get());
+  }
+
+  @Test
+  void asyncAdmissionsRefuseCollectionScansOfLargeCollections() {
+    assumeTrue(canExplain);
+    QueryGuard guard = guard(5, Duration.ofMinutes(1));
+    guard.indexesBuilt();
+    CompletableFuture<QueryGuard.Plan> plan = guard.admitAsync(new Document(), BY_BODY);
+
+    ExecutionException exception = assertThrows(ExecutionException.class, () -> plan.get(10, TimeUnit.SECONDS));
+    assertTrue(exception.getCause() instanceof BadRequestResponse, exception.getCause().toString());
+  }
+
+  @Test
+  void queriesThatCantBeExplainedAreLetThrough() {
+    // Even if the collection is too big to scan, as far as the guard knows.
+    QueryGuard.Plan plan = guard(0, Duration.ofMinutes(1)).admit(new Document("$nonsense", 1), BY_OWNER);
+
+    assertTrue(plan.getStages().isEmpty());
+    assertFalse(plan.needsDiskUse());
+  }
+}
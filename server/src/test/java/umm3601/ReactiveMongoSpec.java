@@ -0,0 +1,90 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscription;
+
+/**
+ * Tests collecting reactive streams results and converting documents to
+ * POJOs, with hand-made publishers; the async controller specs read real
+ * ones from Mongo.
+ */
+class ReactiveMongoSpec {
+
+  /**
+   * A publisher of the given values, which then ends with `error` if it
+   * isn't `null`.
+   */
+  private static <T> Publisher<T> publisherOf(List<T> values, RuntimeException error) {
+    return subscriber -> {
+      subscriber.onSubscribe(new Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      });
+      values.forEach(subscriber::onNext);
+      if (error == null) {
+        subscriber.onComplete();
+      } else {
+        subscriber.onError(error);
+      }
+    };
+  }
+
+  /** A POJO like the ones the controllers read. */
+  @SuppressWarnings({"VisibilityModifier", "MemberName"})
+  public static class Thing {
+    public String _id;
+    public String name;
+    public List<Thing> parts;
+  }
+
+  @Test
+  void collectsEverythingPublished() {
+    assertEquals(List.of("a", "b"), ReactiveMongo.toList(publisherOf(List.of("a", "b"), null)).join());
+    assertEquals("a", ReactiveMongo.first(publisherOf(List.of("a", "b"), null)).join());
+    assertNull(ReactiveMongo.first(publisherOf(List.of(), null)).join());
+  }
+
+  @Test
+  void passesOnErrors() {
+    IllegalStateException failure = new IllegalStateException("Mongo went away");
+
+    CompletionException error = assertThrows(CompletionException.class, () -> {
+      ReactiveMongo.toList(publisherOf(List.of("a"), failure)).join();
+    });
+    assertSame(failure, error.getCause());
+  }
+
+  @Test
+  void objectIdsBecomeHexStringsAtAnyDepth() {
+    ObjectId id = new ObjectId();
+    ObjectId partId = new ObjectId();
+    Document document = new Document("_id", id).append("name", "thing")
+      .append("parts", List.of(new Document("_id", partId).append("name", "part")));
+
+    List<Thing> things = ReactiveMongo.fromDocuments(List.of(document), Thing.class);
+
+    assertEquals(id.toHexString(), things.get(0)._id);
+    assertEquals("thing", things.get(0).name);
+    assertEquals(partId.toHexString(), things.get(0).parts.get(0)._id);
+    // The document itself is left alone.
+    assertEquals(id, document.get("_id"));
+    assertEquals(Map.of("_id", partId, "name", "part"), ((List<?>) document.get("parts")).get(0));
+  }
+}
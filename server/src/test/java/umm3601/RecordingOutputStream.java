@@ -0,0 +1,67 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+
+/**
+ * A `ServletOutputStream` that just remembers what was written to it, so
+ * specs can hand it to a mocked `Context` (via `ctx.outputStream()`) and
+ * then check what a streamed response would have sent.
+ */
+public class RecordingOutputStream extends ServletOutputStream {
+
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+  private int bytesAtFirstFlush = -1;
+
+  @Override
+  public void write(int b) {
+    bytes.write(b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    bytes.write(b, off, len);
+  }
+
+  @Override
+  public void flush() {
+    if (bytesAtFirstFlush < 0) {
+      bytesAtFirstFlush = bytes.size();
+    }
+  }
+
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  @Override
+  public void setWriteListener(WriteListener writeListener) {
+    throw new UnsupportedOperationException("Only blocking writes are supported");
+  }
+
+  /**
+   * @return everything written so far
+   */
+  public byte[] writtenBytes() {
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @return everything written so far, decoded as UTF-8
+   */
+  public String written() {
+    return bytes.toString(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return how many bytes had been written when the stream was first
+   *   flushed, or -1 if it was never flushed
+   */
+  public int bytesAtFirstFlush() {
+    return bytesAtFirstFlush;
+  }
+}
@@ -0,0 +1,242 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import io.javalin.Javalin;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import io.javalin.util.ConcurrencyUtil;
+import umm3601.todo.TodoController;
+
+/**
+ * Tests choosing request threads and limiting each route's concurrent
+ * requests, through a real Javalin server.
+ *
+ * The load test at the end compares the throughput and latency of platform
+ * and virtual threads with 1,000 concurrent clients, so it only runs when
+ * the `SCALE_TESTS` environment variable is set to `true`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class RequestConcurrencySpec {
+
+  private final HttpClient client = HttpClient.newHttpClient();
+
+  @AfterEach
+  void restoreJavalinThreads() {
+    // Javalin's own default.
+    ConcurrencyUtil.INSTANCE.setUseLoom(true);
+  }
+
+  private HttpResponse<String> get(Javalin server, String path) throws IOException, InterruptedException {
+    return client.send(
+      HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + path)).build(),
+      HttpResponse.BodyHandlers.ofString());
+  }
+
+  @Test
+  void rejectsIllegalSettings() {
+    assertThrows(IllegalArgumentException.class, () -> new RequestConcurrency(false, 0, 1, Duration.ZERO));
+    assertThrows(IllegalArgumentException.class, () -> new RequestConcurrency(false, 1, 1, Duration.ofMillis(-1)));
+    assertThrows(IllegalArgumentException.class, () -> new RequestConcurrency(false, 1, 0, Duration.ZERO));
+  }
+
+  @Test
+  void usesVirtualThreadsOnlyIfTheJvmHasThem() {
+    assertFalse(new RequestConcurrency(false, 1, 2, Duration.ZERO).usesVirtualThreads());
+    assertEquals(ConcurrencyUtil.isLoomAvailable(),
+      new RequestConcurrency(true, 1, 2, Duration.ZERO).usesVirtualThreads());
+
+    Javalin.create(config -> new RequestConcurrency(false, 1, 2, Duration.ZERO).applyTo(config));
+    assertFalse(ConcurrencyUtil.INSTANCE.getUseLoom());
+  }
+
+  @Test
+  void asyncHandlersOnPlatformThreadsDontWaitForPermits() {
+    assertEquals(Duration.ZERO, RequestConcurrency.defaultMaxWait(false, true));
+    assertEquals(RequestConcurrency.DEFAULT_MAX_WAIT, RequestConcurrency.defaultMaxWait(false, false));
+    // Blocking a virtual thread is cheap, if the JVM has them.
+    assertEquals(ConcurrencyUtil.isLoomAvailable() ? RequestConcurrency.DEFAULT_MAX_WAIT : Duration.ZERO,
+      RequestConcurrency.defaultMaxWait(true, true));
+  }
+
+  @Test
+  void busyRoutesTurnRequestsAway() throws Exception {
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    RequestConcurrency concurrency = new RequestConcurrency(false, 1, 2, Duration.ZERO);
+    Javalin server = Javalin.create(concurrency::applyTo);
+    concurrency.addTo(server);
+    server.get("/slow/{id}", ctx -> {
+      entered.countDown();
+      release.await(10, TimeUnit.SECONDS);
+      ctx.result(ctx.pathParam("id"));
+    });
+    server.get("/fast", ctx -> ctx.result("fast"));
+    server.start(0);
+
+    try {
+      CompletableFuture<HttpResponse<String>> first = client.sendAsync(
+        HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/slow/1")).build(),
+        HttpResponse.BodyHandlers.ofString());
+      assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+      // The route's only permit is taken, even for a different id...
+      HttpResponse<String> turnedAway = get(server, "/slow/2");
+      assertEquals(HttpStatus.SERVICE_UNAVAILABLE.getCode(), turnedAway.statusCode());
+      assertEquals(RequestConcurrency.RETRY_AFTER_SECONDS,
+        turnedAway.headers().firstValue(Header.RETRY_AFTER).orElse(null));
+      // ...but other routes have their own.
+      assertEquals("fast", get(server, "/fast").body());
+
+      release.countDown();
+      assertEquals("1", first.get(10, TimeUnit.SECONDS).body());
+      assertEquals("3", get(server, "/slow/3").body());
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  void theServerTurnsRequestsAwayOnceEveryPermitIsTaken() throws Exception {
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    RequestConcurrency concurrency = new RequestConcurrency(false, 2, 1, Duration.ZERO);
+    Javalin server = Javalin.create(concurrency::applyTo);
+    concurrency.addTo(server);
+    server.get("/slow", ctx -> {
+      entered.countDown();
+      release.await(10, TimeUnit.SECONDS);
+      ctx.result("slow");
+    });
+    server.get("/fast", ctx -> ctx.result("fast"));
+    server.start(0);
+
+    try {
+      CompletableFuture<HttpResponse<String>> first = client.sendAsync(
+        HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + "/slow")).build(),
+        HttpResponse.BodyHandlers.ofString());
+      assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+      // Both routes have a permit free, but the server doesn't.
+      assertEquals(HttpStatus.SERVICE_UNAVAILABLE.getCode(), get(server, "/fast").statusCode());
+      assertEquals(HttpStatus.SERVICE_UNAVAILABLE.getCode(), get(server, "/slow").statusCode());
+
+      release.countDown();
+      assertEquals("slow", first.get(10, TimeUnit.SECONDS).body());
+      // Turning a request away gave back its route's permit, as well as the server's.
+      assertEquals("slow", get(server, "/slow").body());
+      assertEquals("fast", get(server, "/fast").body());
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Run the same load, 10,000 requests for an owner's todos from 1,000
+   * concurrent clients, against a server on platform threads and then one
+   * on virtual threads, and print each one's throughput and latencies. The
+   * numbers depend on the machine (and on Java 21, for virtual threads), so
+   * they're printed rather than compared.
+   */
+  @Test
+  @EnabledIfEnvironmentVariable(named = "SCALE_TESTS", matches = "true")
+  void compareThreadsWithAThousandClients() throws Exception {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    MongoClient mongoClient = MongoClients.create(MongoClientSettings.builder()
+      .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+      .build());
+    MongoDatabase db = mongoClient.getDatabase("concurrencyLoadTest");
+    try {
+      db.drop();
+      MongoCollection<Document> todos = db.getCollection("todos");
+      List<Document> seed = new ArrayList<>();
+      for (int i = 0; i < 1_000; i++) {
+        seed.add(new Document("owner", "owner" + (i % 100)).append("status", i % 2 == 0)
+          .append("category", "category" + (i % 10)).append("body", "Todo number " + i));
+      }
+      todos.insertMany(seed);
+
+      for (boolean virtual : new boolean[] {false, true}) {
+        RequestConcurrency concurrency = new RequestConcurrency(
+          virtual, RequestConcurrency.DEFAULT_PERMITS_PER_ROUTE, RequestConcurrency.DEFAULT_PERMITS_IN_TOTAL,
+          Duration.ofSeconds(30));
+        Javalin server = Javalin.create(concurrency::applyTo);
+        concurrency.addTo(server);
+        new TodoController(db).addRoutes(server);
+        server.start(0);
+        try {
+          runLoad(server, concurrency.usesVirtualThreads() ? "virtual" : "platform");
+        } finally {
+          server.stop();
+        }
+      }
+    } finally {
+      db.drop();
+      mongoClient.close();
+    }
+  }
+
+  private void runLoad(Javalin server, String threads) throws InterruptedException {
+    final int clients = 1_000;
+    final int requests = 10_000;
+    HttpClient loadClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(30)).build();
+    Semaphore inFlight = new Semaphore(clients);
+    long[] latencies = new long[requests];
+    AtomicInteger failures = new AtomicInteger();
+    CountDownLatch done = new CountDownLatch(requests);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < requests; i++) {
+      inFlight.acquire();
+      final int request = i;
+      long sent = System.nanoTime();
+      URI uri = URI.create("http://localhost:" + server.port() + "/api/todos?owner=owner" + (i % 100));
+      loadClient.sendAsync(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.discarding())
+        .whenComplete((response, error) -> {
+          latencies[request] = System.nanoTime() - sent;
+          if (error != null || response.statusCode() != HttpStatus.OK.getCode()) {
+            failures.incrementAndGet();
+          }
+          inFlight.release();
+          done.countDown();
+        });
+    }
+    assertTrue(done.await(10, TimeUnit.MINUTES));
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    Arrays.sort(latencies);
+    System.out.printf("%-8s threads: %,8.0f requests/s, p50 %6.1f ms, p99 %6.1f ms, max %7.1f ms, %,d failed%n",
+      threads, requests / seconds, latencies[requests / 2] / 1e6, latencies[requests * 99 / 100] / 1e6,
+      latencies[requests - 1] / 1e6, failures.get());
+  }
+}
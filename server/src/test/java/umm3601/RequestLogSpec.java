@@ -0,0 +1,176 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.json.JavalinJackson;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Tests the ring buffer, and which requests the request log writes (and
+ * drops).
+ */
+@SuppressWarnings({ "MagicNumber" })
+class RequestLogSpec {
+
+  @Mock
+  private Context ctx;
+
+  private final Queue<String> lines = new ConcurrentLinkedQueue<>();
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    when(ctx.method()).thenReturn(HandlerType.GET);
+    when(ctx.path()).thenReturn("/api/todos");
+    when(ctx.queryString()).thenReturn("owner=Fry");
+    when(ctx.statusCode()).thenReturn(200);
+    when(ctx.res()).thenReturn(Mockito.mock(HttpServletResponse.class));
+  }
+
+  private List<Map<String, Object>> closeAndRead(RequestLog log) throws Exception {
+    log.close();
+    List<Map<String, Object>> entries = new ArrayList<>();
+    for (String line : lines) {
+      entries.add(JavalinJackson.defaultMapper().readValue(line, new TypeReference<Map<String, Object>>() { }));
+    }
+    return entries;
+  }
+
+  @Test
+  void ringIsFirstInFirstOutUntilFull() {
+    RequestLog.Ring<Integer> ring = new RequestLog.Ring<>(3);
+    assertEquals(4, ring.capacity());
+
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ring.offer(i));
+    }
+    assertFalse(ring.offer(4));
+    assertEquals(0, ring.poll());
+    assertTrue(ring.offer(4));
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(i, ring.poll());
+    }
+    assertNull(ring.poll());
+  }
+
+  @Test
+  void ringTakesEverythingFromManyThreadsOnce() throws InterruptedException {
+    RequestLog.Ring<Integer> ring = new RequestLog.Ring<>(64);
+    List<Thread> adders = new ArrayList<>();
+    for (int t = 0; t < 4; t++) {
+      int first = t * 10_000;
+      Thread adder = new Thread(() -> {
+        for (int i = first; i < first + 10_000; i++) {
+          while (!ring.offer(i)) {
+            Thread.onSpinWait();
+          }
+        }
+      });
+      adder.start();
+      adders.add(adder);
+    }
+
+    Set<Integer> taken = new HashSet<>();
+    while (taken.size() < 40_000) {
+      Integer element = ring.poll();
+      if (element != null) {
+        assertTrue(taken.add(element));
+      }
+    }
+    for (Thread adder : adders) {
+      adder.join();
+    }
+    assertNull(ring.poll());
+  }
+
+  @Test
+  void unsampledRequestsAreOnlyLoggedIfTheyFailedOrWereSlow() throws Exception {
+    RequestLog log = new RequestLog(0, Duration.ofMillis(100), 16, lines::add);
+
+    log.handle(ctx, 5f);
+    log.handle(ctx, 150f);
+    when(ctx.statusCode()).thenReturn(503);
+    log.handle(ctx, 5f);
+
+    List<Map<String, Object>> entries = closeAndRead(log);
+    assertEquals(2, entries.size());
+    assertEquals("slow", entries.get(0).get("reason"));
+    assertEquals(150.0, entries.get(0).get("millis"));
+    assertEquals("error", entries.get(1).get("reason"));
+    assertEquals(503, entries.get(1).get("status"));
+  }
+
+  @Test
+  void sampledRequestsAreLoggedWithTheirDetails() throws Exception {
+    RequestLog log = new RequestLog(1, RequestLog.DEFAULT_SLOW_REQUEST, 16, lines::add);
+
+    log.handle(ctx, 2.5f);
+    when(ctx.queryString()).thenReturn(null);
+    log.handle(ctx, 2.5f);
+
+    List<Map<String, Object>> entries = closeAndRead(log);
+    assertEquals(2, entries.size());
+    Map<String, Object> entry = entries.get(0);
+    assertEquals("sampled", entry.get("reason"));
+    assertEquals("GET", entry.get("method"));
+    assertEquals("/api/todos", entry.get("path"));
+    assertEquals("owner=Fry", entry.get("query"));
+    assertEquals(200, entry.get("status"));
+    assertEquals(0, entry.get("bytes"));
+    assertTrue(entry.containsKey("time"));
+    assertFalse(entries.get(1).containsKey("query"));
+  }
+
+  @Test
+  void entriesAreDroppedRatherThanWaitedFor() throws Exception {
+    CountDownLatch stuck = new CountDownLatch(1);
+    RequestLog log = new RequestLog(1, RequestLog.DEFAULT_SLOW_REQUEST, 2, line -> {
+      try {
+        stuck.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      lines.add(line);
+    });
+
+    for (int i = 0; i < 5; i++) {
+      log.handle(ctx, 1f);
+    }
+    assertTrue(log.dropped() >= 2);
+
+    stuck.countDown();
+    List<Map<String, Object>> entries = closeAndRead(log);
+    assertEquals(5, entries.size() + log.dropped());
+  }
+
+  @Test
+  void illegalSettingsAreRejected() {
+    assertThrows(IllegalArgumentException.class, () -> new RequestLog(1.5, Duration.ZERO, 16));
+    assertThrows(IllegalArgumentException.class, () -> new RequestLog(0.5, Duration.ZERO, 0));
+  }
+}
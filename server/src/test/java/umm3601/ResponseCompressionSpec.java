@@ -0,0 +1,384 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.luben.zstd.ZstdInputStream;
+
+import io.javalin.Javalin;
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+import jakarta.servlet.http.HttpServletResponse;
+import umm3601.ResponseCompression.Encoding;
+
+/**
+ * Tests negotiating, compressing, and caching response bodies, first with
+ * a mock context and then through a real Javalin server.
+ *
+ * The benchmark at the end compares the CPU time and bytes saved by each
+ * encoding at several levels, on the seed todos scaled up to 100k, so it
+ * only runs when the `SCALE_TESTS` environment variable is set to `true`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class ResponseCompressionSpec {
+
+  private static final byte[] BIG_BODY = "[\"Lorem ipsum dolor sit amet\"]".repeat(100)
+    .getBytes(StandardCharsets.UTF_8);
+
+  @Mock
+  private Context ctx;
+
+  @Mock
+  private HttpServletResponse response;
+
+  private ResponseCompression compression;
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    compression = new ResponseCompression(
+      ResponseCompression.DEFAULT_MIN_SIZE, ResponseCompression.DEFAULT_CACHE_BYTES);
+    when(ctx.method()).thenReturn(HandlerType.GET);
+    when(ctx.status()).thenReturn(HttpStatus.OK);
+    when(ctx.res()).thenReturn(response);
+    when(response.getContentType()).thenReturn(ContentType.JSON);
+  }
+
+  private void respondWith(byte[] body, Encoding encoding, String etag) {
+    when(ctx.<Encoding>attribute(ResponseCompression.ENCODING_ATTRIBUTE)).thenReturn(encoding);
+    when(ctx.resultInputStream()).thenReturn(new ByteArrayInputStream(body));
+    when(response.getHeader(Header.ETAG)).thenReturn(etag);
+  }
+
+  private byte[] sentBody() {
+    ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx).result(body.capture());
+    return body.getValue();
+  }
+
+  private static byte[] decode(byte[] body, Encoding encoding) throws IOException {
+    try (InputStream in = encoding == Encoding.ZSTD
+        ? new ZstdInputStream(new ByteArrayInputStream(body))
+        : new GZIPInputStream(new ByteArrayInputStream(body))) {
+      return in.readAllBytes();
+    }
+  }
+
+  @Test
+  void negotiatesTheMostPreferredEncoding() {
+    assertEquals(Encoding.IDENTITY, ResponseCompression.negotiate(null));
+    assertEquals(Encoding.IDENTITY, ResponseCompression.negotiate("identity"));
+    assertEquals(Encoding.GZIP, ResponseCompression.negotiate("gzip, deflate, br"));
+    assertEquals(Encoding.ZSTD, ResponseCompression.negotiate("gzip, deflate, br, zstd"));
+    assertEquals(Encoding.GZIP, ResponseCompression.negotiate("zstd;q=0.5, GZIP"));
+    assertEquals(Encoding.ZSTD, ResponseCompression.negotiate("*"));
+    assertEquals(Encoding.GZIP, ResponseCompression.negotiate("zstd;q=0, *"));
+    assertEquals(Encoding.IDENTITY, ResponseCompression.negotiate("gzip;q=lots"));
+  }
+
+  @Test
+  void rejectsNegativeSizes() {
+    assertThrows(IllegalArgumentException.class, () -> new ResponseCompression(-1, 0));
+    assertThrows(IllegalArgumentException.class, () -> new ResponseCompression(0, -1));
+  }
+
+  @Test
+  void negotiatesOnlyForGets() {
+    when(ctx.method()).thenReturn(HandlerType.POST);
+
+    compression.sendCachedBody(ctx);
+
+    verify(ctx, Mockito.never()).attribute(Mockito.eq(ResponseCompression.ENCODING_ATTRIBUTE), Mockito.any());
+  }
+
+  @Test
+  void negotiatesAndVariesOnAcceptEncoding() {
+    when(ctx.header(Header.ACCEPT_ENCODING)).thenReturn("gzip");
+
+    compression.sendCachedBody(ctx);
+
+    verify(ctx).attribute(ResponseCompression.ENCODING_ATTRIBUTE, Encoding.GZIP);
+    verify(ctx).header(Header.VARY, Header.ACCEPT_ENCODING);
+  }
+
+  @Test
+  void smallBodiesArentCompressed() {
+    byte[] small = "[]".getBytes(StandardCharsets.UTF_8);
+    respondWith(small, Encoding.GZIP, null);
+
+    compression.compressBody(ctx);
+
+    assertArrayEquals(small, sentBody());
+    verify(ctx, Mockito.never()).header(Mockito.eq(Header.CONTENT_ENCODING), Mockito.anyString());
+    assertEquals(0, compression.cachedBodies());
+  }
+
+  @Test
+  void errorsArentCompressed() {
+    respondWith(BIG_BODY, Encoding.GZIP, null);
+    when(ctx.status()).thenReturn(HttpStatus.NOT_FOUND);
+
+    compression.compressBody(ctx);
+
+    verify(ctx, Mockito.never()).result(Mockito.any(byte[].class));
+  }
+
+  @Test
+  void streamedBodiesArentCompressedAgain() {
+    respondWith(BIG_BODY, Encoding.GZIP, null);
+    when(ctx.resultInputStream()).thenReturn(null);
+
+    compression.compressBody(ctx);
+
+    verify(ctx, Mockito.never()).result(Mockito.any(byte[].class));
+  }
+
+  @Test
+  void bigBodiesAreCompressedAndCached() throws IOException {
+    for (Encoding encoding : new Encoding[] {Encoding.GZIP, Encoding.ZSTD}) {
+      setupEach();
+      respondWith(BIG_BODY, encoding, "\"tag\"");
+
+      compression.compressBody(ctx);
+
+      byte[] sent = sentBody();
+      assertTrue(sent.length < BIG_BODY.length / 10);
+      assertArrayEquals(BIG_BODY, decode(sent, encoding));
+      verify(ctx).header(Header.CONTENT_ENCODING, encoding.token());
+      assertEquals(1, compression.cachedBodies());
+
+      // The next request with the same ETag gets the same bytes, without
+      // running the endpoint or compressing them again.
+      ResponseCompression.CachedResponse cached = assertThrows(ResponseCompression.CachedResponse.class, () -> {
+        compression.sendCachedBody(ctx);
+      });
+      assertTrue(cached.getMessage().contains("Cached"));
+    }
+  }
+
+  @Test
+  void leastRecentlyUsedBodiesAreDropped() {
+    compression = new ResponseCompression(BIG_BODY.length + 1, 2L * BIG_BODY.length);
+    for (String etag : new String[] {"\"a\"", "\"b\"", "\"a\"", "\"c\""}) {
+      respondWith(BIG_BODY, Encoding.IDENTITY, etag);
+      compression.compressBody(ctx);
+    }
+    assertEquals(2, compression.cachedBodies());
+
+    // Bodies bigger than the whole cache aren't cached at all.
+    compression = new ResponseCompression(BIG_BODY.length + 1, BIG_BODY.length - 1);
+    respondWith(BIG_BODY, Encoding.IDENTITY, "\"a\"");
+    compression.compressBody(ctx);
+    assertEquals(0, compression.cachedBodies());
+  }
+
+  @Test
+  void streamedResponsesAreCompressedAsTheyreWritten() throws IOException {
+    RecordingOutputStream recording = new RecordingOutputStream();
+    when(ctx.outputStream()).thenReturn(recording);
+    when(ctx.<Encoding>attribute(ResponseCompression.ENCODING_ATTRIBUTE)).thenReturn(Encoding.GZIP);
+
+    try (OutputStream out = ResponseCompression.outputStream(ctx)) {
+      out.write(BIG_BODY, 0, 10);
+      out.flush();
+      // Flushing sends what's been written so far, even mid-stream.
+      assertTrue(recording.bytesAtFirstFlush() > 0);
+      out.write(BIG_BODY, 10, BIG_BODY.length - 10);
+    }
+
+    verify(ctx).header(Header.CONTENT_ENCODING, "gzip");
+    assertArrayEquals(BIG_BODY, decode(recording.writtenBytes(), Encoding.GZIP));
+  }
+
+  @Test
+  void streamedResponsesAreSentAsIsWithoutNegotiation() throws IOException {
+    RecordingOutputStream recording = new RecordingOutputStream();
+    when(ctx.outputStream()).thenReturn(recording);
+
+    try (OutputStream out = ResponseCompression.outputStream(ctx)) {
+      out.write(BIG_BODY);
+    }
+
+    assertEquals(new String(BIG_BODY, StandardCharsets.UTF_8), recording.written());
+  }
+
+  @Test
+  void serverSendsCachedCompressedBodies() throws IOException, InterruptedException {
+    AtomicLong version = new AtomicLong();
+    Controller controller = new Controller() {
+      @Override
+      public void addRoutes(Javalin server) {
+      }
+
+      @Override
+      public long dataVersion() {
+        return version.get();
+      }
+    };
+    AtomicInteger handled = new AtomicInteger();
+    Javalin server = Javalin.create(config -> config.compression.none());
+    new ConditionalGet(new Controller[] {controller}).addTo(server);
+    compression.addTo(server);
+    server.get("/api/todos", context -> {
+      handled.incrementAndGet();
+      context.contentType(ContentType.APPLICATION_JSON).result(BIG_BODY);
+    });
+    server.start(0);
+
+    try {
+      HttpClient client = HttpClient.newHttpClient();
+      URI uri = URI.create("http://localhost:" + server.port() + "/api/todos");
+
+      List<byte[]> bodies = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        HttpResponse<byte[]> zstd = client.send(
+          HttpRequest.newBuilder(uri).header(Header.ACCEPT_ENCODING, "gzip, zstd").build(),
+          HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(HttpStatus.OK.getCode(), zstd.statusCode());
+        assertEquals("zstd", zstd.headers().firstValue(Header.CONTENT_ENCODING).orElse(null));
+        assertEquals(Header.ACCEPT_ENCODING, zstd.headers().firstValue(Header.VARY).orElse(null));
+        assertArrayEquals(BIG_BODY, decode(zstd.body(), Encoding.ZSTD));
+        bodies.add(zstd.body());
+      }
+      assertArrayEquals(bodies.get(0), bodies.get(1));
+      assertEquals(1, handled.get());
+
+      // A different encoding is a different body, with a different ETag.
+      HttpResponse<byte[]> gzip = client.send(
+        HttpRequest.newBuilder(uri).header(Header.ACCEPT_ENCODING, "gzip").build(),
+        HttpResponse.BodyHandlers.ofByteArray());
+      assertArrayEquals(BIG_BODY, decode(gzip.body(), Encoding.GZIP));
+      assertEquals(2, handled.get());
+
+      HttpResponse<byte[]> plain = client.send(
+        HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofByteArray());
+      assertArrayEquals(BIG_BODY, plain.body());
+      assertEquals(3, handled.get());
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  void cachedBodiesAreSentWithTheEndpointsHeaders() throws IOException, InterruptedException {
+    Controller controller = new Controller() {
+      @Override
+      public void addRoutes(Javalin server) {
+      }
+
+      @Override
+      public long dataVersion() {
+        return 1;
+      }
+    };
+    AtomicInteger handled = new AtomicInteger();
+    Javalin server = Javalin.create(config -> config.compression.none());
+    new ConditionalGet(new Controller[] {controller}).addTo(server);
+    compression.addTo(server);
+    server.get("/api/todos", context -> {
+      handled.incrementAndGet();
+      context.header(KeysetPagination.NEXT_PAGE_HEADER, "next-token");
+      context.contentType(ContentType.APPLICATION_JSON).result(BIG_BODY);
+    });
+    server.start(0);
+
+    try {
+      HttpClient client = HttpClient.newHttpClient();
+      HttpRequest paged = HttpRequest.newBuilder(
+        URI.create("http://localhost:" + server.port() + "/api/todos?limit=2")).build();
+      for (int i = 0; i < 2; i++) {
+        HttpResponse<byte[]> page = client.send(paged, HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(HttpStatus.OK.getCode(), page.statusCode());
+        assertEquals(List.of("next-token"), page.headers().allValues(KeysetPagination.NEXT_PAGE_HEADER));
+        assertArrayEquals(BIG_BODY, page.body());
+      }
+      // The second response was the cached one.
+      assertEquals(1, handled.get());
+    } finally {
+      server.stop();
+    }
+  }
+
+  /**
+   * Compare the CPU time each encoding and level takes with the bytes it
+   * saves, on the seed todos repeated to make 100k todos (about what
+   * `/api/todos` returns for a database that size). The numbers are printed
+   * rather than asserted, since they depend on the machine; they're what
+   * `GZIP_LEVEL` and `ZSTD_LEVEL` were chosen from.
+   */
+  @Test
+  @EnabledIfEnvironmentVariable(named = "SCALE_TESTS", matches = "true")
+  void compareEncodingsOnOneHundredThousandTodos() throws IOException {
+    final int todoCount = 100_000;
+    final int runs = 5;
+
+    ObjectMapper mapper = new ObjectMapper();
+    List<Map<String, Object>> seed = mapper.readValue(
+      Path.of("../database/seed/todos.json").toFile(), new TypeReference<List<Map<String, Object>>>() { });
+    List<Map<String, Object>> todos = new ArrayList<>(todoCount);
+    for (int i = 0; i < todoCount; i++) {
+      Map<String, Object> todo = new LinkedHashMap<>(seed.get(i % seed.size()));
+      todo.put("_id", new ObjectId().toHexString());
+      todos.add(todo);
+    }
+    byte[] body = mapper.writeValueAsBytes(todos);
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    System.out.printf("%,d todos, %,d bytes of JSON%n", todoCount, body.length);
+    int[][] levels = {{1, 6, 9}, {1, 3, 6, 12}};
+    Encoding[] encodings = {Encoding.GZIP, Encoding.ZSTD};
+    for (int e = 0; e < encodings.length; e++) {
+      for (int level : levels[e]) {
+        byte[] compressed = ResponseCompression.encode(body, encodings[e], level);
+        long start = threads.getCurrentThreadCpuTime();
+        for (int run = 0; run < runs; run++) {
+          compressed = ResponseCompression.encode(body, encodings[e], level);
+        }
+        double cpuMillis = (threads.getCurrentThreadCpuTime() - start) / 1e6 / runs;
+
+        assertArrayEquals(body, decode(compressed, encodings[e]));
+        System.out.printf("%-4s level %2d: %,11d bytes (%4.1f%% of the JSON), %7.1f ms CPU, %6.1f MB/s%n",
+          encodings[e].token(), level, compressed.length, 100.0 * compressed.length / body.length,
+          cpuMillis, body.length / 1e3 / cpuMillis);
+      }
+    }
+  }
+}
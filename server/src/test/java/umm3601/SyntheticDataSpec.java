@@ -0,0 +1,87 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.SplittableRandom;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the made-up todos and users, and how unevenly they're spread.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class SyntheticDataSpec {
+
+  @Test
+  void todosLookLikeTheSeedTodos() {
+    Document todo = new SyntheticData(10, 10, 1, 1, 1).todo(new SplittableRandom(1));
+
+    assertTrue(todo.getString("owner").matches("[A-Z][a-z]+"));
+    assertTrue(todo.getString("category").matches("^(homework|software design|groceries|video games)$"));
+    assertTrue(todo.getString("body").endsWith("."));
+    assertTrue(todo.get("status") instanceof Boolean);
+  }
+
+  @Test
+  void usersLookLikeTheSeedUsers() {
+    Document user = new SyntheticData(10, 10, 1, 1, 1).user(new SplittableRandom(1), 42);
+
+    assertTrue(user.getString("email").matches("^[a-z]+\\.[a-z]+42@[a-z]+\\.com$"));
+    assertTrue(user.getString("email").contains(user.getString("company").toLowerCase()));
+    assertEquals(user.getString("company").toLowerCase(), user.getString("companyLower"));
+    assertTrue(user.getInteger("age") >= 18 && user.getInteger("age") <= 80);
+    assertTrue(user.getString("role").matches("^(admin|editor|viewer)$"));
+    assertTrue(user.getString("avatar").matches("https://gravatar.com/avatar/[0-9a-f]{32}\\?d=identicon"));
+  }
+
+  @Test
+  void theSameSeedMakesTheSameData() {
+    SyntheticData data = new SyntheticData(100, 100, 1, 1, 1);
+    Document first = data.user(new SplittableRandom(7), 0);
+    Document second = data.user(new SplittableRandom(7), 0);
+
+    first.remove("_id");
+    second.remove("_id");
+    assertEquals(first, second);
+    assertNotEquals(first, data.user(new SplittableRandom(8), 0));
+  }
+
+  @Test
+  void namesRunOnPastTheLists() {
+    assertEquals("Blanche", SyntheticData.ownerName(0));
+    assertEquals("Blanche1", SyntheticData.ownerName(20));
+    assertEquals("OHMNET", SyntheticData.companyName(0));
+    assertEquals("ZAPPNET", SyntheticData.companyName(1));
+    assertEquals("OHMNET1", SyntheticData.companyName(120));
+  }
+
+  @Test
+  void skewFavorsTheFirstValues() {
+    SplittableRandom random = new SplittableRandom(3601);
+    SyntheticData.Zipf even = new SyntheticData.Zipf(4, 0);
+    SyntheticData.Zipf skewed = new SyntheticData.Zipf(4, 2);
+    int[] evenCounts = new int[4];
+    int[] skewedCounts = new int[4];
+    for (int i = 0; i < 100_000; i++) {
+      evenCounts[even.sample(random)]++;
+      skewedCounts[skewed.sample(random)]++;
+    }
+
+    for (int count : evenCounts) {
+      assertEquals(25_000, count, 1_000);
+    }
+    // With a skew of 2, the weights are 1, 1/4, 1/9 and 1/16.
+    assertEquals(100_000 / (1 + 1 / 4.0 + 1 / 9.0 + 1 / 16.0), skewedCounts[0], 1_000);
+    assertTrue(skewedCounts[1] > skewedCounts[2] && skewedCounts[2] > skewedCounts[3]);
+  }
+
+  @Test
+  void illegalDistributionsAreRejected() {
+    assertThrows(IllegalArgumentException.class, () -> new SyntheticData.Zipf(0, 1));
+    assertThrows(IllegalArgumentException.class, () -> new SyntheticData.Zipf(4, -1));
+  }
+}
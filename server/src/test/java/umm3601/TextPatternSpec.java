@@ -0,0 +1,70 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import umm3601.todo.TodoController;
+import umm3601.user.UserController;
+
+/**
+ * Tests that compiled expressions match exactly the strings `String#matches()`
+ * does, whether or not they're checked without a `Pattern`.
+ */
+class TextPatternSpec {
+
+  private static final List<String> SAMPLES = List.of(
+    "", "a", "admin", "Admin", "admins", "editor", "viewer", "admin|editor", "(admin)",
+    "sam@frogs.com", "sam.smith+todos@frogs.example.com", "@frogs.com", "sam@", "sam@@frogs.com",
+    "sam@frogs_com", "s@f", "sam smith@frogs.com", "é@frogs.com", "x", "-", "xy", "$",
+    "homework", "software design", "Software Design");
+
+  private static void assertMatchesLikeString(String regex) {
+    TextPattern pattern = TextPattern.compile(regex);
+    for (String sample : SAMPLES) {
+      assertEquals(sample.matches(regex), pattern.test(sample), regex + " on '" + sample + "'");
+    }
+  }
+
+  @Test
+  void ourExpressionsAreCompiled() {
+    for (String regex : List.of(UserController.EMAIL_REGEX, "^(admin|editor|viewer)$",
+        "^(homework|software design|groceries|video games)$", TodoController.OWNER_REGEX)) {
+      assertTrue(TextPattern.compile(regex).isCompiled(), regex);
+      assertMatchesLikeString(regex);
+    }
+  }
+
+  @Test
+  void sequencesOfLiteralsAndClassesAreCompiled() {
+    for (String regex : List.of("a", "^ab+$", "[a-c]+x[x-z]", "^[a-z.-]+@[a-z]+$", "^$", "a|b")) {
+      assertTrue(TextPattern.compile(regex).isCompiled(), regex);
+      assertMatchesLikeString(regex);
+    }
+  }
+
+  @Test
+  void otherExpressionsFallBackToPatterns() {
+    // Repetition that might need backtracking, negated and escaped classes,
+    // other quantifiers and groups.
+    for (String regex : List.of("^[a-z@]+@[a-z]+$", "[^@]+@.+", "[\\w]+", "a*", "ab?", "(a|b)+", "a{2}", "[é]")) {
+      assertFalse(TextPattern.compile(regex).isCompiled(), regex);
+      assertMatchesLikeString(regex);
+    }
+  }
+
+  @Test
+  void nullNeverMatches() {
+    assertFalse(TextPattern.compile("^(a|b)$").test(null));
+    assertFalse(TextPattern.compile("a+").test(null));
+  }
+
+  @Test
+  void patternsPrintAsTheirExpression() {
+    assertEquals(UserController.EMAIL_REGEX, TextPattern.compile(UserController.EMAIL_REGEX).toString());
+  }
+}
@@ -0,0 +1,49 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.validation.ValidationError;
+import io.javalin.validation.ValidationException;
+
+/**
+ * Tests checking values against every rule at once.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class ValidationRulesSpec {
+
+  private final ValidationRules<String> rules = new ValidationRules<String>()
+    .check(s -> !s.isEmpty(), "Must not be empty")
+    .check(s -> s.length() < 5, "Must be short")
+    .check(s -> Character.isUpperCase(s.charAt(0)), "Must be capitalized");
+
+  @Test
+  void valuesThatFollowEveryRuleAreReturned() {
+    assertSame("Ok", rules.validate("Ok"));
+    assertTrue(rules.brokenRules("Ok").isEmpty());
+  }
+
+  @Test
+  void everyBrokenRuleIsReported() {
+    assertEquals(List.of("Must be short", "Must be capitalized"), rules.brokenRules("lowercase"));
+
+    ValidationException e = assertThrows(ValidationException.class, () -> rules.validate("lowercase"));
+    List<ValidationError<Object>> errors = e.getErrors().get(ValidationRules.BODY_KEY);
+    assertEquals(List.of("Must be short", "Must be capitalized"),
+      errors.stream().map(ValidationError::getMessage).collect(Collectors.toList()));
+    assertEquals("lowercase", errors.get(0).getValue());
+  }
+
+  @Test
+  void checksThatThrowAreBroken() {
+    // `charAt(0)` throws on the empty string.
+    assertEquals(List.of("Must not be empty", "Must be capitalized"), rules.brokenRules(""));
+  }
+}
@@ -0,0 +1,248 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteConcernException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.WriteConcernError;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Tests combining concurrent inserts into batches.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class WriteCoalescerSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> collection;
+  private List<Integer> batchSizes;
+  private WriteCoalescer<Document> coalescer;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("coalescerTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    db.drop();
+    collection = db.getCollection("things");
+    batchSizes = new CopyOnWriteArrayList<>();
+  }
+
+  @AfterEach
+  void closeCoalescer() {
+    if (coalescer != null) {
+      coalescer.close();
+    }
+  }
+
+  private void startCoalescer(int maxBatchSize, Duration maxDelay) {
+    coalescer = new WriteCoalescer<>("test-coalescer", collection, maxBatchSize, maxDelay,
+      inserted -> batchSizes.add(inserted.size()));
+  }
+
+  @Test
+  void rejectsIllegalSettings() {
+    assertThrows(IllegalArgumentException.class, () -> {
+      new WriteCoalescer<>("bad", collection, 0, Duration.ZERO, inserted -> { });
+    });
+    assertThrows(IllegalArgumentException.class, () -> {
+      new WriteCoalescer<>("bad", collection, 1, Duration.ofMillis(-1), inserted -> { });
+    });
+  }
+
+  @Test
+  void concurrentInsertsShareBatches() throws Exception {
+    final int writers = 40;
+    startCoalescer(10, Duration.ofMillis(200));
+    ExecutorService pool = Executors.newFixedThreadPool(writers);
+    CountDownLatch start = new CountDownLatch(1);
+    List<CompletableFuture<Document>> futures = new ArrayList<>();
+    try {
+      for (int i = 0; i < writers; i++) {
+        Document document = new Document("n", i);
+        futures.add(CompletableFuture.supplyAsync(() -> {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+          }
+          return coalescer.insert(document).join();
+        }, pool));
+      }
+      start.countDown();
+
+      Set<Object> ids = new HashSet<>();
+      for (CompletableFuture<Document> future : futures) {
+        Document inserted = future.get(10, TimeUnit.SECONDS);
+        assertNotNull(inserted.get("_id"));
+        ids.add(inserted.get("_id"));
+      }
+      assertEquals(writers, ids.size());
+    } finally {
+      pool.shutdownNow();
+    }
+    assertEquals(writers, collection.countDocuments());
+    assertEquals(writers, batchSizes.stream().mapToInt(Integer::intValue).sum());
+    assertTrue(batchSizes.size() < writers, "Expected fewer batches than inserts, got " + batchSizes);
+    assertTrue(batchSizes.stream().allMatch(size -> size <= 10));
+  }
+
+  @Test
+  void aLoneInsertOnlyWaitsForTheDelay() throws Exception {
+    startCoalescer(100, Duration.ofMillis(5));
+
+    Document inserted = coalescer.insert(new Document("n", 1)).get(10, TimeUnit.SECONDS);
+
+    assertNotNull(inserted.get("_id"));
+    assertEquals(List.of(1), batchSizes);
+  }
+
+  @Test
+  void eachInsertGetsItsOwnError() throws Exception {
+    ObjectId taken = new ObjectId();
+    collection.insertOne(new Document("_id", taken));
+    startCoalescer(10, Duration.ofMillis(200));
+
+    CompletableFuture<Document> duplicate = coalescer.insert(new Document("_id", taken));
+    CompletableFuture<Document> fine = coalescer.insert(new Document("n", 2));
+
+    ExecutionException error = assertThrows(ExecutionException.class, () -> duplicate.get(10, TimeUnit.SECONDS));
+    assertInstanceOf(MongoException.class, error.getCause());
+    assertNotNull(fine.get(10, TimeUnit.SECONDS).get("_id"));
+    assertEquals(List.of(1), batchSizes);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  void writeConcernErrorsReachEveryCaller() throws Exception {
+    MongoCollection<Document> unreliable = mock(MongoCollection.class);
+    doThrow(new MongoBulkWriteException(
+        BulkWriteResult.acknowledged(1, 0, 0, 0, List.of(), List.of()),
+        List.of(new BulkWriteError(11000, "duplicate key", new BsonDocument(), 0)),
+        new WriteConcernError(64, "WriteConcernFailed", "waiting for replication timed out", new BsonDocument()),
+        new ServerAddress(), Set.of()))
+      .when(unreliable).insertMany(anyList(), any(InsertManyOptions.class));
+    coalescer = new WriteCoalescer<>("test-coalescer", unreliable, 2, Duration.ofSeconds(10),
+      inserted -> batchSizes.add(inserted.size()));
+
+    CompletableFuture<Document> duplicate = coalescer.insert(new Document("n", 1));
+    CompletableFuture<Document> written = coalescer.insert(new Document("n", 2));
+
+    ExecutionException error = assertThrows(ExecutionException.class, () -> duplicate.get(10, TimeUnit.SECONDS));
+    assertFalse(error.getCause() instanceof MongoWriteConcernException);
+    error = assertThrows(ExecutionException.class, () -> written.get(10, TimeUnit.SECONDS));
+    assertInstanceOf(MongoWriteConcernException.class, error.getCause());
+    // The second document is in, so it's still passed on.
+    assertEquals(List.of(1), batchSizes);
+  }
+
+  @Test
+  void closingWritesTheBatchThatsStillFillingUp() throws Exception {
+    startCoalescer(10, Duration.ofSeconds(30));
+    CompletableFuture<Document> waiting = coalescer.insert(new Document("n", 1));
+    // Give the background thread time to take it off the queue.
+    Thread.sleep(100);
+
+    coalescer.close();
+
+    assertNotNull(waiting.get(10, TimeUnit.SECONDS).get("_id"));
+    assertEquals(1, collection.countDocuments());
+  }
+
+  @Test
+  void insertsRacingCloseAllFinish() throws Exception {
+    startCoalescer(5, Duration.ofMillis(1));
+    ExecutorService writers = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<CompletableFuture<Document>>> submitted = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+        int n = i;
+        submitted.add(writers.submit(() -> coalescer.insert(new Document("n", n))));
+        if (i == 100) {
+          coalescer.close();
+        }
+      }
+      for (Future<CompletableFuture<Document>> insert : submitted) {
+        CompletableFuture<Document> result = insert.get(10, TimeUnit.SECONDS);
+        // Each one either went in or failed; none is left waiting.
+        try {
+          result.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+          assertInstanceOf(IllegalStateException.class, e.getCause());
+        }
+      }
+    } finally {
+      writers.shutdownNow();
+    }
+  }
+
+  @Test
+  void closingFailsQueuedInserts() {
+    startCoalescer(10, Duration.ofMillis(200));
+    coalescer.close();
+
+    CompletableFuture<Document> late = coalescer.insert(new Document("n", 3));
+    coalescer.close();
+
+    assertThrows(ExecutionException.class, () -> late.get(10, TimeUnit.SECONDS));
+    assertEquals(0, collection.countDocuments());
+  }
+}
@@ -0,0 +1,198 @@
+package umm3601.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.InternalServerErrorResponse;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Tests counting requests by route, through a real (if tiny) Javalin
+ * server, and the Prometheus text they're sent as.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class HttpMetricsSpec {
+
+  private HttpMetrics metrics;
+  private Javalin server;
+  private HttpClient client;
+
+  /** Thrown by the before handler to answer without running the endpoint. */
+  private static final class Skip extends RuntimeException {
+  }
+
+  @BeforeEach
+  void setupEach() {
+    metrics = new HttpMetrics();
+    server = Javalin.create(config -> config.requestLogger.http(metrics));
+    metrics.addTo(server);
+    server.before(ctx -> {
+      if (ctx.header("Skip") != null) {
+        throw new Skip();
+      }
+    });
+    server.exception(Skip.class, (e, ctx) -> ctx.status(HttpStatus.NOT_MODIFIED));
+    server.get("/api/todos/{id}", ctx -> ctx.result("todo " + ctx.pathParam("id")));
+    server.get("/api/broken", ctx -> {
+      throw new InternalServerErrorResponse("broken");
+    });
+    server.start(0);
+    client = HttpClient.newHttpClient();
+  }
+
+  @AfterEach
+  void teardownEach() {
+    server.stop();
+  }
+
+  private HttpResponse<String> get(String path, boolean skip) throws IOException, InterruptedException {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port() + path));
+    if (skip) {
+      request.header("Skip", "true");
+    }
+    return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  /**
+   * Javalin counts a request just after sending its response, so wait a
+   * little for the count to catch up.
+   */
+  private HttpMetrics.RouteMetrics awaitCount(String path, long count) throws InterruptedException {
+    HttpMetrics.RouteMetrics route = routeFor(path);
+    for (int tries = 0; route.latency().count() < count && tries < 100; tries++) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, route.latency().count());
+    return route;
+  }
+
+  private HttpMetrics.RouteMetrics routeFor(String path) {
+    Context ctx = Mockito.mock(Context.class);
+    Mockito.when(ctx.method()).thenReturn(HandlerType.GET);
+    Mockito.when(ctx.endpointHandlerPath()).thenReturn(path);
+    Mockito.when(ctx.path()).thenReturn(path);
+    return metrics.routeOf(ctx);
+  }
+
+  @Test
+  void requestsAreCountedByRouteNotPath() throws IOException, InterruptedException {
+    get("/api/todos/1", false);
+    get("/api/todos/2", false);
+    get("/api/todos/3", true);
+
+    HttpMetrics.RouteMetrics route = awaitCount("/api/todos/{id}", 3);
+    assertEquals("/api/todos/{id}", route.path());
+    assertEquals(2, route.responses(2));
+    assertEquals(1, route.responses(3));
+    assertEquals("todo 1".length() + "todo 2".length(), route.bytes());
+    assertTrue(route.latency().maxNanos() > 0);
+  }
+
+  private HttpMetrics.RouteMetrics skippedRouteFor(String path) {
+    Context ctx = Mockito.mock(Context.class);
+    Mockito.when(ctx.method()).thenReturn(HandlerType.GET);
+    Mockito.when(ctx.endpointHandlerPath()).thenThrow(new IllegalStateException("No endpoint ran"));
+    Mockito.when(ctx.path()).thenReturn(path);
+    return metrics.routeOf(ctx);
+  }
+
+  @Test
+  void eachSkippedPathIsOnlyMatchedOnce() {
+    // A server of its own (which needn't be started), keeping fewer paths.
+    metrics = new HttpMetrics(5);
+    Javalin unstarted = Javalin.create();
+    metrics.addTo(unstarted);
+    unstarted.get("/api/todos/{id}", ctx -> ctx.result("todo"));
+
+    HttpMetrics.RouteMetrics route = skippedRouteFor("/api/todos/7");
+    assertEquals("/api/todos/{id}", route.path());
+    assertSame(route, skippedRouteFor("/api/todos/7"));
+    assertEquals(HttpMetrics.UNMATCHED_ROUTE, skippedRouteFor("/api/nothing").path());
+    assertEquals(2, metrics.matchedPathCount());
+
+    for (int i = 0; i < 10; i++) {
+      assertSame(route, skippedRouteFor("/api/todos/" + i));
+      assertTrue(metrics.matchedPathCount() <= 5);
+    }
+  }
+
+  @Test
+  void errorsAndUnknownPathsAreCounted() throws IOException, InterruptedException {
+    get("/api/broken", false);
+    get("/api/nothing/here", false);
+
+    assertEquals(1, awaitCount("/api/broken", 1).responses(5));
+    HttpMetrics.RouteMetrics unmatched = awaitCount("/api/nothing/here", 1);
+    assertEquals(HttpMetrics.UNMATCHED_ROUTE, unmatched.path());
+    assertEquals(1, unmatched.responses(4));
+  }
+
+  @Test
+  void metricsAreSentAsPrometheusText() throws IOException, InterruptedException {
+    get("/api/todos/1", false);
+    get("/api/broken", false);
+    awaitCount("/api/broken", 1);
+
+    HttpResponse<String> response = get(HttpMetrics.METRICS_PATH, false);
+
+    assertEquals(HttpStatus.OK.getCode(), response.statusCode());
+    assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/plain; version=0.0.4"));
+    String text = response.body();
+    assertTrue(text.contains("# TYPE http_server_requests_seconds summary\n"));
+    assertTrue(text.contains("http_server_requests_seconds_count{method=\"GET\",route=\"/api/todos/{id}\"} 1\n"));
+    assertTrue(text.contains(
+      "http_server_requests_seconds{method=\"GET\",route=\"/api/todos/{id}\",quantile=\"0.99\"} "));
+    assertTrue(text.contains("http_server_responses_total{method=\"GET\",route=\"/api/broken\",status=\"5xx\"} 1\n"));
+    assertTrue(text.contains("http_server_response_size_bytes_sum{method=\"GET\",route=\"/api/todos/{id}\"} 6\n"));
+    // Routes that haven't had any requests aren't sent.
+    assertFalse(text.contains("route=\"/metrics\""));
+  }
+
+  @Test
+  void onlyEndpointsGetCounters() {
+    metrics.addRoute(HandlerType.BEFORE, "/api/*");
+
+    assertEquals(HttpMetrics.UNMATCHED_ROUTE, routeFor("/api/*").path());
+  }
+
+  @Test
+  void labelValuesAreEscaped() {
+    assertEquals("a\\\"b\\\\c\\nd", HttpMetrics.escape("a\"b\\c\nd"));
+  }
+
+  @Test
+  void responsesJettyDidntSendHaveNoSize() {
+    assertEquals(0, HttpMetrics.bytesSent(Mockito.mock(HttpServletResponse.class)));
+  }
+
+  @Test
+  void latenciesAreRecordedInNanoseconds() {
+    Context ctx = Mockito.mock(Context.class);
+    Mockito.when(ctx.method()).thenReturn(HandlerType.GET);
+    Mockito.when(ctx.endpointHandlerPath()).thenReturn("/api/todos/{id}");
+    Mockito.when(ctx.statusCode()).thenReturn(200);
+    Mockito.when(ctx.res()).thenReturn(Mockito.mock(HttpServletResponse.class));
+
+    metrics.handle(ctx, 1.5f);
+
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(1500), routeFor("/api/todos/{id}").latency().maxNanos());
+  }
+}
@@ -0,0 +1,98 @@
+package umm3601.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the histogram's buckets, percentiles and summary, and recording
+ * into it from many threads at once.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class LatencyHistogramSpec {
+
+  @Test
+  void everyValueFitsItsBucket() {
+    for (long value : new long[] {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123_456_789, Long.MAX_VALUE}) {
+      int bucket = LatencyHistogram.bucketOf(value);
+      assertTrue(value <= LatencyHistogram.upperBoundOf(bucket), "value " + value);
+      if (bucket > 0) {
+        assertTrue(value > LatencyHistogram.upperBoundOf(bucket - 1), "value " + value);
+      }
+    }
+  }
+
+  @Test
+  void bucketsAreNarrowEnough() {
+    for (long value = 8; value < 1_000_000_000L; value = value * 3 / 2) {
+      long upperBound = LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(value));
+      assertTrue(upperBound - value <= value / 8, "value " + value);
+    }
+  }
+
+  @Test
+  void emptyHistogramsAreAllZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.percentileNanos(99));
+    assertEquals(Map.of("count", 0L, "meanMillis", 0.0, "p50Millis", 0.0, "p90Millis", 0.0,
+      "p99Millis", 0.0, "maxMillis", 0.0), histogram.summary());
+  }
+
+  @Test
+  void percentilesAreWithinABucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int millis = 1; millis <= 100; millis++) {
+      histogram.record(millis, TimeUnit.MILLISECONDS);
+    }
+
+    assertEquals(100, histogram.count());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(5050), histogram.sumNanos());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100), histogram.maxNanos());
+    long median = histogram.percentileNanos(50);
+    assertTrue(median >= TimeUnit.MILLISECONDS.toNanos(50) && median <= TimeUnit.MILLISECONDS.toNanos(57));
+    // The top bucket is capped at the longest latency.
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100), histogram.percentileNanos(100));
+    assertEquals(50.5, (double) histogram.summary().get("meanMillis"), 1e-9);
+  }
+
+  @Test
+  void negativeLatenciesCountAsZero() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    histogram.recordNanos(-5);
+
+    assertEquals(1, histogram.count());
+    assertEquals(0, histogram.maxNanos());
+  }
+
+  @Test
+  void concurrentRecordingLosesNothing() throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      int offset = t;
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < 10_000; i++) {
+          histogram.recordNanos(i + offset);
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(80_000, histogram.count());
+    assertEquals(10_006, histogram.maxNanos());
+    assertEquals(10_006, histogram.percentileNanos(100));
+  }
+}
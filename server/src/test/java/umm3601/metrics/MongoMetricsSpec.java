@@ -0,0 +1,125 @@
+package umm3601.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests that `MongoMetrics` sees the commands and connections of a real
+ * client, and sends them from the metrics endpoint.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class MongoMetricsSpec {
+
+  private MongoMetrics metrics;
+  private MongoClient mongoClient;
+  private MongoDatabase db;
+
+  @Mock
+  private Context ctx;
+
+  @Captor
+  private ArgumentCaptor<Map<String, Object>> metricsCaptor;
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    metrics = new MongoMetrics();
+    mongoClient = MongoClients.create(metrics.applyTo(MongoClientSettings.builder()
+      .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr)))))
+      .build());
+    db = mongoClient.getDatabase("metricsTest");
+  }
+
+  @AfterEach
+  void teardownEach() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @Test
+  void commandsAreTimedByCollection() {
+    MongoCollection<Document> todos = db.getCollection("todos");
+    todos.insertMany(List.of(new Document("owner", "Sam"), new Document("owner", "Fry")));
+    todos.find().into(new ArrayList<>());
+    todos.find().into(new ArrayList<>());
+
+    assertEquals(1, metrics.commandLatencies("insert todos").count());
+    assertEquals(2, metrics.commandLatencies("find todos").count());
+    assertNull(metrics.commandLatencies("find users"));
+  }
+
+  @Test
+  void failedCommandsAreCounted() {
+    try {
+      db.runCommand(new Document("noSuchCommand", 1));
+    } catch (MongoCommandException e) {
+      // Expected
+    }
+
+    Map<String, Object> summary = metrics.commandSummaries().get("noSuchCommand");
+    assertEquals(1L, summary.get("count"));
+    assertEquals(1L, summary.get("failures"));
+  }
+
+  @Test
+  void connectionsAreCheckedOutAndBackIn() {
+    db.getCollection("todos").countDocuments();
+
+    assertTrue(metrics.checkoutWaits().count() >= 1);
+    Map<String, Object> pool = metrics.poolSummary();
+    assertTrue((int) pool.get("size") >= 1);
+    assertEquals(0, pool.get("inUse"));
+    assertEquals(0, pool.get("waiting"));
+  }
+
+  @Test
+  void getMoresAreOnTheirCollection() {
+    BsonDocument getMore = BsonDocument.parse("{getMore: 12, collection: 'todos'}");
+    BsonDocument ping = BsonDocument.parse("{ping: 1}");
+
+    assertEquals("getMore todos", MongoMetrics.nameOf("getMore", getMore));
+    assertEquals("ping", MongoMetrics.nameOf("ping", ping));
+  }
+
+  @Test
+  void metricsAreSentAsJson() {
+    db.getCollection("todos").countDocuments();
+
+    metrics.getMetrics(ctx);
+
+    verify(ctx).json(metricsCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(Map.of("aggregate todos", metrics.commandSummaries().get("aggregate todos")),
+      metricsCaptor.getValue().get("commands"));
+    assertTrue(((Map<?, ?>) metricsCaptor.getValue().get("pool")).containsKey("checkoutWait"));
+  }
+}
@@ -0,0 +1,219 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.validation.Validator;
+import umm3601.FieldProjection;
+import umm3601.JsonStreaming;
+import umm3601.KeysetPagination;
+import umm3601.RecordingOutputStream;
+
+/**
+ * Tests the reads that `AsyncTodoController` does with the reactive streams
+ * driver, which should send just what `TodoController`'s do.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class AsyncTodoControllerSpec {
+
+  private static MongoClient mongoClient;
+  private static com.mongodb.reactivestreams.client.MongoClient asyncClient;
+  private static MongoDatabase db;
+
+  private AsyncTodoController todoController;
+  private ObjectId samsId;
+
+  @Mock
+  private Context ctx;
+
+  @Captor
+  private ArgumentCaptor<Supplier<CompletableFuture<?>>> futureCaptor;
+
+  @Captor
+  private ArgumentCaptor<List<Todo>> todoListCaptor;
+
+  @Captor
+  private ArgumentCaptor<Todo> todoCaptor;
+
+  @Captor
+  private ArgumentCaptor<List<Map<String, Object>>> mapListCaptor;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    MongoClientSettings settings = MongoClientSettings.builder()
+      .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+      .build();
+    mongoClient = MongoClients.create(settings);
+    asyncClient = com.mongodb.reactivestreams.client.MongoClients.create(settings);
+    db = mongoClient.getDatabase("asyncTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+    asyncClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    db.drop();
+    samsId = new ObjectId();
+    db.getCollection("todos").insertMany(List.of(
+      new Document("_id", samsId).append("owner", "Sam").append("status", false)
+        .append("category", "homework").append("body", "I have to do my homework"),
+      new Document("owner", "Jamie").append("status", true)
+        .append("category", "groceries").append("body", "I have to buy groceries"),
+      new Document("owner", "Fry").append("status", false)
+        .append("category", "homework").append("body", "I have to do my homework too")));
+    todoController = new AsyncTodoController(db, 1, Duration.ZERO, asyncClient.getDatabase("asyncTest"));
+  }
+
+  /**
+   * Wait for the future the handler gave Javalin, as Javalin would.
+   */
+  private void awaitResponse() {
+    verify(ctx).future(futureCaptor.capture());
+    futureCaptor.getValue().get().join();
+  }
+
+  private void queryParams(Map<String, String> params) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (Map.Entry<String, String> param : params.entrySet()) {
+      queryParams.put(param.getKey(), List.of(param.getValue()));
+      when(ctx.queryParam(param.getKey())).thenReturn(param.getValue());
+    }
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+  }
+
+  @Test
+  void canGetATodo() {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+
+    todoController.getTodo(ctx);
+    awaitResponse();
+
+    verify(ctx).json(todoCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(samsId.toHexString(), todoCaptor.getValue()._id);
+    assertEquals("Sam", todoCaptor.getValue().owner);
+    assertEquals("homework", todoCaptor.getValue().category);
+  }
+
+  @Test
+  void asyncAndSyncReadsShareTheCache() {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    todoController.getTodo(ctx);
+    awaitResponse();
+    db.getCollection("todos").deleteOne(new Document("_id", samsId));
+
+    Context again = Mockito.mock(Context.class);
+    when(again.pathParam("id")).thenReturn(samsId.toHexString());
+    todoController.getTodo(again);
+    verify(again).future(futureCaptor.capture());
+    futureCaptor.getValue().get().join();
+
+    verify(again).json(todoCaptor.capture());
+    assertEquals("Sam", todoCaptor.getValue().owner);
+    assertEquals(1, todoController.todoCache().hits());
+  }
+
+  @Test
+  void missingTodosAreNotFound() {
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+
+    todoController.getTodo(ctx);
+
+    CompletionException error = assertThrows(CompletionException.class, this::awaitResponse);
+    assertInstanceOf(NotFoundResponse.class, error.getCause());
+  }
+
+  @Test
+  void illegalIdsAreRejectedRightAway() {
+    when(ctx.pathParam("id")).thenReturn("bad");
+
+    assertThrows(BadRequestResponse.class, () -> todoController.getTodo(ctx));
+  }
+
+  @Test
+  void canGetFilteredAndSortedTodos() {
+    queryParams(Map.of(TodoController.CATEGORY_KEY, "homework"));
+    when(ctx.queryParamAsClass(TodoController.CATEGORY_KEY, String.class))
+      .thenReturn(Validator.create(String.class, "homework", TodoController.CATEGORY_KEY));
+
+    todoController.getTodos(ctx);
+    awaitResponse();
+
+    verify(ctx).json(todoListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    List<Todo> todos = todoListCaptor.getValue();
+    assertEquals(2, todos.size());
+    assertEquals("Fry", todos.get(0).owner);
+    assertEquals("Sam", todos.get(1).owner);
+  }
+
+  @Test
+  void canPageThroughTodosWithOnlySomeFields() {
+    queryParams(Map.of(KeysetPagination.LIMIT_KEY, "2", FieldProjection.FIELDS_KEY, "owner"));
+    when(ctx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+      .thenReturn(Validator.create(Integer.class, "2", KeysetPagination.LIMIT_KEY));
+
+    todoController.getTodos(ctx);
+    awaitResponse();
+
+    verify(ctx).json(mapListCaptor.capture());
+    List<Map<String, Object>> page = mapListCaptor.getValue();
+    assertEquals(List.of("Fry", "Jamie"), List.of(page.get(0).get("owner"), page.get(1).get("owner")));
+    assertEquals(List.of("_id", "owner"), new ArrayList<>(page.get(0).keySet()));
+    verify(ctx).header(Mockito.eq(KeysetPagination.NEXT_PAGE_HEADER), Mockito.anyString());
+  }
+
+  @Test
+  void streamedTodosAreStillStreamed() throws Exception {
+    queryParams(Map.of(JsonStreaming.STREAM_KEY, "true"));
+    RecordingOutputStream out = new RecordingOutputStream();
+    when(ctx.outputStream()).thenReturn(out);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx, Mockito.never()).future(Mockito.any());
+    assertEquals(3, out.written().split("\"owner\"").length - 1);
+  }
+}
@@ -0,0 +1,271 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.UuidRepresentation;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.mongojack.JacksonMongoCollection;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Tests the todos-by-category view on its own. `TodoControllerSpec`
+ * checks that the controller keeps it up to date.
+ *
+ * The benchmark at the end compares reading the view with running the
+ * grouping aggregation, for up to a million todos, so it only runs when
+ * the `SCALE_TESTS` environment variable is set to `true`.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class TodoCategorySummarySpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private JacksonMongoCollection<Todo> todoCollection;
+  private TodoCategorySummary summary;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("summaryTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    db.drop();
+    todoCollection = JacksonMongoCollection.builder().build(db, "todos", Todo.class, UuidRepresentation.STANDARD);
+    summary = new TodoCategorySummary(db, todoCollection);
+  }
+
+  private Todo todo(String owner, String category) {
+    Todo todo = new Todo();
+    todo._id = new ObjectId().toHexString();
+    todo.owner = owner;
+    todo.category = category;
+    return todo;
+  }
+
+  private List<TodoByCategory> groups() {
+    return summary.find(Sorts.ascending("_id")).into(new ArrayList<>());
+  }
+
+  @Test
+  void emptyCollectionHasNoGroups() {
+    assertEquals(List.of(), groups());
+  }
+
+  @Test
+  void rebuildGroupsEveryTodo() {
+    todoCollection.insertMany(List.of(todo("Sam", "homework"), todo("Pat", "groceries"), todo("Kai", "homework")));
+
+    List<TodoByCategory> groups = groups();
+
+    assertEquals(2, groups.size());
+    assertEquals("groceries", groups.get(0)._id);
+    assertEquals(2, groups.get(1).count);
+    assertEquals(List.of("Sam", "Kai"), groups.get(1).todos.stream().map(todo -> todo.owner).toList());
+  }
+
+  @Test
+  void removingTheLastTodoInACategoryRemovesTheCategory() {
+    Todo only = todo("Sam", "homework");
+    groups();
+    summary.added(only);
+    summary.added(todo("Pat", "groceries"));
+    assertEquals(2, groups().size());
+
+    summary.removed(only);
+
+    List<TodoByCategory> groups = groups();
+    assertEquals(1, groups.size());
+    assertEquals("groceries", groups.get(0)._id);
+  }
+
+  @Test
+  void incrementalUpdatesMatchARebuild() {
+    groups();
+    List<Todo> todos = List.of(
+      todo("Sam", "homework"), todo("Pat", "groceries"), todo("Kai", "homework"), todo("Ash", "video games"));
+    for (Todo todo : todos) {
+      todoCollection.insertOne(todo);
+      summary.added(todo);
+    }
+    todoCollection.deleteOne(new Document("_id", new ObjectId(todos.get(0)._id)));
+    summary.removed(todos.get(0));
+    List<TodoByCategory> incremental = groups();
+
+    summary.rebuild();
+    List<TodoByCategory> rebuilt = groups();
+
+    assertEquals(rebuilt.size(), incremental.size());
+    for (int i = 0; i < rebuilt.size(); i++) {
+      assertEquals(rebuilt.get(i)._id, incremental.get(i)._id);
+      assertEquals(rebuilt.get(i).count, incremental.get(i).count);
+      assertEquals(rebuilt.get(i).todos.get(0)._id, incremental.get(i).todos.get(0)._id);
+    }
+  }
+
+  @Test
+  void categoriesOnlyListTheirFirstTodos() {
+    summary = new TodoCategorySummary(db, todoCollection, 2);
+    List<Todo> homework = List.of(todo("Sam", "homework"), todo("Pat", "homework"), todo("Kai", "homework"));
+    todoCollection.insertMany(homework);
+    assertEquals(List.of("Sam", "Pat"), groups().get(0).todos.stream().map(todo -> todo.owner).toList());
+
+    Todo added = todo("Ash", "homework");
+    todoCollection.insertOne(added);
+    summary.added(added);
+
+    TodoByCategory group = groups().get(0);
+    assertEquals(4, group.count);
+    assertEquals(List.of("Sam", "Pat"), group.todos.stream().map(todo -> todo.owner).toList());
+  }
+
+  @Test
+  void movingATodoThatIsntListedStillMovesItsCount() {
+    summary = new TodoCategorySummary(db, todoCollection, 2);
+    List<Todo> homework = List.of(todo("Sam", "homework"), todo("Pat", "homework"), todo("Kai", "homework"));
+    todoCollection.insertMany(homework);
+    groups();
+
+    summary.moved(homework.get(2), Map.of("category", "groceries"));
+
+    List<TodoByCategory> groups = groups();
+    assertEquals("groceries", groups.get(0)._id);
+    assertEquals(1, groups.get(0).count);
+    assertEquals("Kai", groups.get(0).todos.get(0).owner);
+    assertEquals(2, groups.get(1).count);
+    assertEquals(2, groups.get(1).todos.size());
+  }
+
+  @Test
+  void removingAListedTodoFromAFullCategoryRelistsIt() {
+    summary = new TodoCategorySummary(db, todoCollection, 2);
+    List<Todo> homework = List.of(todo("Sam", "homework"), todo("Pat", "homework"), todo("Kai", "homework"));
+    todoCollection.insertMany(homework);
+    groups();
+
+    todoCollection.deleteOne(new Document("_id", new ObjectId(homework.get(0)._id)));
+    summary.removed(homework.get(0));
+
+    TodoByCategory group = groups().get(0);
+    assertEquals(2, group.count);
+    assertEquals(List.of("Pat", "Kai"), group.todos.stream().map(todo -> todo.owner).toList());
+  }
+
+  @Test
+  void refreshingCategoriesMatchesARebuild() {
+    summary = new TodoCategorySummary(db, todoCollection, 2);
+    List<Todo> todos = List.of(
+      todo("Sam", "homework"), todo("Pat", "homework"), todo("Kai", "homework"), todo("Ash", "groceries"));
+    todoCollection.insertMany(todos);
+    groups();
+    // Change the todos behind the view's back, as a bulk change would.
+    Bson filter = new Document("owner", new Document("$in", List.of("Sam", "Ash")));
+    List<String> categories = summary.categoriesOf(filter);
+    todoCollection.deleteMany(new Document("owner", "Ash"));
+    todoCollection.updateMany(new Document("owner", "Sam"), Updates.set("category", "chores"));
+
+    summary.refresh(List.of(categories.get(0), categories.get(1), "chores"));
+
+    List<TodoByCategory> groups = groups();
+    assertEquals(List.of("chores", "homework"), groups.stream().map(group -> group._id).toList());
+    assertEquals(1, groups.get(0).count);
+    assertEquals("Sam", groups.get(0).todos.get(0).owner);
+    assertEquals(2, groups.get(1).count);
+    assertEquals(List.of("Pat", "Kai"), groups.get(1).todos.stream().map(todo -> todo.owner).toList());
+  }
+
+  /**
+   * Compare reading the view with grouping the todos on every request, for
+   * 10k, 100k, and 1M todos spread over 20 categories. The timings are
+   * printed rather than asserted, since they depend on the machine; the
+   * view's should stay flat-ish (it's proportional to the size of the
+   * answer) while the aggregation's grows with the collection.
+   */
+  @Test
+  @EnabledIfEnvironmentVariable(named = "SCALE_TESTS", matches = "true")
+  void compareTheViewWithTheAggregation() {
+    for (int todoCount : new int[] {10_000, 100_000, 1_000_000}) {
+      setupEach();
+      benchmark(todoCount);
+    }
+  }
+
+  private void benchmark(int todoCount) {
+    final int categories = 20;
+    final int batchSize = 10_000;
+    final int runs = 5;
+
+    MongoCollection<Document> todos = db.getCollection("todos");
+    for (int start = 0; start < todoCount; start += batchSize) {
+      List<Document> batch = new ArrayList<>(batchSize);
+      for (int i = start; i < start + batchSize; i++) {
+        batch.add(new Document("owner", "owner" + (i % 100))
+          .append("category", "category" + (i % categories))
+          .append("status", i % 2 == 0)
+          .append("body", "Todo number " + i));
+      }
+      todos.insertMany(batch);
+    }
+
+    List<Bson> pipeline = new ArrayList<>(TodoCategorySummary.groupByCategory(TodoCategorySummary.DEFAULT_MAX_TODOS));
+    pipeline.add(new Document("$sort", new Document("_id", 1)));
+    long aggregationNanos = 0;
+    long viewNanos = 0;
+    List<TodoByCategory> fromView = List.of();
+    for (int run = 0; run <= runs; run++) {
+      long start = System.nanoTime();
+      List<TodoByCategory> aggregated = todoCollection
+        .aggregate(pipeline, TodoByCategory.class)
+        .allowDiskUse(true)
+        .into(new ArrayList<>());
+      long middle = System.nanoTime();
+      fromView = groups();
+      long end = System.nanoTime();
+
+      assertEquals(aggregated.size(), fromView.size());
+      // The first run warms things up (and builds the view), so don't count it.
+      if (run > 0) {
+        aggregationNanos += middle - start;
+        viewNanos += end - middle;
+      }
+    }
+
+    assertEquals(categories, fromView.size());
+    assertEquals(todoCount / categories, fromView.get(0).count);
+    System.out.printf("%,d todos: aggregation %.1f ms, view %.1f ms (mean of %d runs)%n",
+      todoCount, aggregationNanos / 1e6 / runs, viewNanos / 1e6 / runs, runs);
+  }
+}
@@ -2,6 +2,7 @@ package umm3601.todo;
 
 import static com.mongodb.client.model.Filters.eq;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -9,14 +10,18 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.bson.Document;
 import org.bson.types.ObjectId;
@@ -30,6 +35,7 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
 import com.mongodb.ServerAddress;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
@@ -43,7 +49,12 @@ import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 import io.javalin.json.JavalinJackson;
 import io.javalin.validation.BodyValidator;
+import io.javalin.validation.ValidationException;
 import io.javalin.validation.Validator;
+import umm3601.FieldProjection;
+import umm3601.JsonStreaming;
+import umm3601.KeysetPagination;
+import umm3601.RecordingOutputStream;
 /**
  * Tests the logic of the UserController
  *
@@ -89,6 +100,18 @@ class TodoControllerSpec {
   @Captor
   private ArgumentCaptor<Map<String, String>> mapCaptor;
 
+  @Captor
+  private ArgumentCaptor<String> stringCaptor;
+
+  @Captor
+  private ArgumentCaptor<List<Map<String, Object>>> mapListCaptor;
+
+  @Captor
+  private ArgumentCaptor<ArrayList<TodoByCategory>> categoryListCaptor;
+
+  @Captor
+  private ArgumentCaptor<Map<String, Object>> reportCaptor;
+
 /**
    * Sets up (the connection to the) DB once; that connection and DB will
    * then be (re)used for all the tests, and closed in the `teardown()`
@@ -200,6 +223,33 @@ class TodoControllerSpec {
     });
   }
 
+  @Test
+  void repeatedLookupsOfATodoAreCached() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    todoController.getTodo(ctx);
+
+    // Change Sam's todo behind the controller's back; the cached copy is
+    // still served until it expires.
+    db.getCollection("todos").updateOne(eq("_id", samsId), new Document("$set", new Document("owner", "Samwise")));
+    todoController.getTodo(ctx);
+
+    verify(ctx, Mockito.times(2)).json(todoCaptor.capture());
+    assertEquals("Sam", todoCaptor.getValue().owner);
+  }
+
+  @Test
+  void deletedTodosAreNoLongerFound() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    todoController.getTodo(ctx);
+
+    todoController.deleteTodo(ctx);
+
+    assertEquals(0, db.getCollection("todos").countDocuments(eq("_id", samsId)));
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.getTodo(ctx);
+    });
+  }
+
   // testing the get owner
   @Test
   void canGetOwner() throws IOException {
@@ -238,6 +288,114 @@ class TodoControllerSpec {
     }
   }
 
+  // testing the status filter
+  @Test
+  void canGetTodosByStatus() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.STATUS_KEY, Arrays.asList(new String[]{"true"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(TodoController.STATUS_KEY, Boolean.class))
+        .thenReturn(Validator.create(Boolean.class, "true", TodoController.STATUS_KEY));
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(1, todoArrayListCaptor.getValue().size());
+    assertEquals("Jamie", todoArrayListCaptor.getValue().get(0).owner);
+  }
+
+  // testing the body filter, which should ignore case
+  @Test
+  void canGetTodosByBodyIgnoringCase() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.BODY_KEY, Arrays.asList(new String[]{"HOMEWORK"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(TodoController.BODY_KEY)).thenReturn("HOMEWORK");
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayListCaptor.capture());
+    assertEquals(3, todoArrayListCaptor.getValue().size());
+    for (Todo todo : todoArrayListCaptor.getValue()) {
+      assertTrue(todo.body.contains("homework"));
+    }
+  }
+
+  // testing that body text is matched literally rather than as a regex
+  @Test
+  void bodyFilterIsNotARegex() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.BODY_KEY, Arrays.asList(new String[]{".*"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(TodoController.BODY_KEY)).thenReturn(".*");
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayListCaptor.capture());
+    assertEquals(0, todoArrayListCaptor.getValue().size());
+  }
+
+  // testing the client's `order` and `limit` parameters together with a filter
+  @Test
+  void canGetLimitedTodosInClientOrder() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.STATUS_KEY, Arrays.asList(new String[]{"false"}));
+    queryParams.put(TodoController.ORDER_KEY, Arrays.asList(new String[]{"category"}));
+    queryParams.put(KeysetPagination.LIMIT_KEY, Arrays.asList(new String[]{"2"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(TodoController.ORDER_KEY)).thenReturn("category");
+    when(ctx.queryParamAsClass(TodoController.STATUS_KEY, Boolean.class))
+        .thenReturn(Validator.create(Boolean.class, "false", TodoController.STATUS_KEY));
+    when(ctx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "2", KeysetPagination.LIMIT_KEY));
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayListCaptor.capture());
+    assertEquals(2, todoArrayListCaptor.getValue().size());
+    for (Todo todo : todoArrayListCaptor.getValue()) {
+      assertFalse(todo.status);
+      assertEquals("homework", todo.category);
+    }
+  }
+
+  // testing projections
+  @Test
+  void canGetJustSomeTodoFields() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(FieldProjection.FIELDS_KEY, Arrays.asList(new String[]{"owner,status"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(FieldProjection.FIELDS_KEY)).thenReturn("owner,status");
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(mapListCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(4, mapListCaptor.getValue().size());
+    for (Map<String, Object> todo : mapListCaptor.getValue()) {
+      assertEquals(List.of("_id", "owner", "status"), List.copyOf(todo.keySet()));
+    }
+    assertEquals(true, mapListCaptor.getValue().get(0).get("status"));
+  }
+
+  @Test
+  void canStreamJustSomeTodoFields() throws IOException {
+    RecordingOutputStream output = new RecordingOutputStream();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(FieldProjection.FIELDS_KEY, Arrays.asList(new String[]{"category"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(FieldProjection.FIELDS_KEY)).thenReturn("category");
+    when(ctx.queryParam(JsonStreaming.STREAM_KEY)).thenReturn("true");
+    when(ctx.outputStream()).thenReturn(output);
+
+    todoController.getTodos(ctx);
+
+    assertFalse(output.written().contains("body"));
+    assertFalse(output.written().contains("owner"));
+    assertTrue(output.written().contains("\"category\":\"groceries\""));
+  }
+
   // testing sortby
   @Test
   void canSortByOwner() throws IOException {
@@ -258,6 +416,172 @@ class TodoControllerSpec {
     }
   }
 
+  @Test
+  void canSortByBody() throws IOException {
+    // There's no index on body, so this is sorted in memory (with `allowDiskUse`).
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+    when(ctx.queryParam("sortby")).thenReturn(TodoController.BODY_KEY);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayListCaptor.capture());
+    List<Todo> todos = todoArrayListCaptor.getValue();
+    assertEquals(4, todos.size());
+    for (int i = 0; i < todos.size() - 1; i++) {
+      assertTrue(todos.get(i).body.compareTo(todos.get(i + 1).body) <= 0);
+    }
+  }
+
+  @Test
+  void cannotSortByUnknownField() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+    when(ctx.queryParam(TodoController.ORDER_KEY)).thenReturn("avatar");
+
+    Throwable exception = assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+    assertTrue(exception.getMessage().contains("Can't sort todos by 'avatar'"));
+  }
+
+  // testing paging through todos
+  @Test
+  void canPageThroughTodos() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(KeysetPagination.LIMIT_KEY, Arrays.asList(new String[]{"3"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "3", KeysetPagination.LIMIT_KEY));
+
+    todoController.getTodos(ctx);
+
+    // The first page is sorted by owner, and includes both of Sam's todos,
+    // so the token has to break the tie between them using the `_id`.
+    verify(ctx).json(todoArrayListCaptor.capture());
+    verify(ctx).header(Mockito.eq(KeysetPagination.NEXT_PAGE_HEADER), stringCaptor.capture());
+    List<Todo> firstPage = todoArrayListCaptor.getValue();
+    assertEquals(3, firstPage.size());
+    assertEquals("Jamie", firstPage.get(0).owner);
+    assertEquals("Sam", firstPage.get(1).owner);
+    assertEquals("Sam", firstPage.get(2).owner);
+
+    Context nextCtx = Mockito.mock(Context.class);
+    String token = stringCaptor.getValue();
+    queryParams.put(KeysetPagination.AFTER_KEY, Arrays.asList(new String[]{token}));
+    when(nextCtx.queryParamMap()).thenReturn(queryParams);
+    when(nextCtx.queryParam(KeysetPagination.AFTER_KEY)).thenReturn(token);
+    when(nextCtx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "3", KeysetPagination.LIMIT_KEY));
+
+    todoController.getTodos(nextCtx);
+
+    // The last page only has the one remaining todo, and no next page token.
+    verify(nextCtx).json(todoArrayListCaptor.capture());
+    verify(nextCtx, Mockito.never()).header(Mockito.eq(KeysetPagination.NEXT_PAGE_HEADER), Mockito.anyString());
+    List<Todo> secondPage = todoArrayListCaptor.getValue();
+    assertEquals(1, secondPage.size());
+    assertEquals("nullFrodo", secondPage.get(0).owner);
+    assertFalse(firstPage.contains(secondPage.get(0)));
+  }
+
+  @Test
+  void listsWithoutALimitGetTheDefaultPage() throws IOException {
+    List<Document> moreTodos = new ArrayList<>();
+    for (int i = 0; i < KeysetPagination.DEFAULT_LIMIT; i++) {
+      moreTodos.add(new Document()
+          .append("owner", "Owner " + i)
+          .append("status", false)
+          .append("body", "Todo number " + i)
+          .append("category", "homework"));
+    }
+    db.getCollection("todos").insertMany(moreTodos);
+
+    todoController.getTodos(ctx);
+
+    // There are 24 todos now, so only the first 20 come back, with a token
+    // for the rest.
+    verify(ctx).json(todoArrayListCaptor.capture());
+    verify(ctx).header(Mockito.eq(KeysetPagination.NEXT_PAGE_HEADER), Mockito.anyString());
+    assertEquals(KeysetPagination.DEFAULT_LIMIT, todoArrayListCaptor.getValue().size());
+  }
+
+  /**
+   * Page through all the todos, two at a time, sorted by category, and
+   * return them in the order they were paged.
+   */
+  private List<Todo> pageByCategory(String sortOrder) {
+    List<Todo> paged = new ArrayList<>();
+    String token = null;
+    // There are only five todos, so if there's still a next page after
+    // that many, paging is going around in circles.
+    for (int pages = 0; pages < 5; pages++) {
+      Context pageCtx = Mockito.mock(Context.class);
+      Map<String, List<String>> queryParams = new HashMap<>();
+      queryParams.put(KeysetPagination.LIMIT_KEY, List.of("2"));
+      if (token != null) {
+        queryParams.put(KeysetPagination.AFTER_KEY, List.of(token));
+      }
+      when(pageCtx.queryParamMap()).thenReturn(queryParams);
+      when(pageCtx.queryParam("sortby")).thenReturn("category");
+      when(pageCtx.queryParam(TodoController.SORT_ORDER_KEY)).thenReturn(sortOrder);
+      when(pageCtx.queryParam(KeysetPagination.AFTER_KEY)).thenReturn(token);
+      when(pageCtx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+          .thenReturn(Validator.create(Integer.class, "2", KeysetPagination.LIMIT_KEY));
+
+      todoController.getTodos(pageCtx);
+
+      verify(pageCtx).json(todoArrayListCaptor.capture());
+      paged.addAll(todoArrayListCaptor.getValue());
+      ArgumentCaptor<String> next = ArgumentCaptor.forClass(String.class);
+      verify(pageCtx, Mockito.atMost(1)).header(Mockito.eq(KeysetPagination.NEXT_PAGE_HEADER), next.capture());
+      if (next.getAllValues().isEmpty()) {
+        return paged;
+      }
+      token = next.getValue();
+    }
+    return paged;
+  }
+
+  @Test
+  void pagingReachesTodosWithoutTheSortKey() throws IOException {
+    db.getCollection("todos").insertOne(new Document()
+        .append("owner", "Pat")
+        .append("status", true)
+        .append("body", "I don't have a category"));
+
+    // Todos without a category sort first going up, and last going down.
+    for (String sortOrder : new String[] {"asc", "desc"}) {
+      List<Todo> paged = pageByCategory(sortOrder);
+      assertEquals(5, paged.size(), sortOrder);
+      assertEquals(5, paged.stream().map(todo -> todo._id).distinct().count(), sortOrder);
+      assertEquals("Pat", paged.get(sortOrder.equals("asc") ? 0 : 4).owner, sortOrder);
+    }
+  }
+
+  @Test
+  void rejectsIllegalPageLimit() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(KeysetPagination.LIMIT_KEY, Arrays.asList(new String[]{"0"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "0", KeysetPagination.LIMIT_KEY));
+
+    assertThrows(ValidationException.class, () -> {
+      todoController.getTodos(ctx);
+    });
+  }
+
+  @Test
+  void rejectsIllegalPageToken() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(KeysetPagination.AFTER_KEY, Arrays.asList(new String[]{"bad token"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(KeysetPagination.AFTER_KEY)).thenReturn("bad token");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.getTodos(ctx);
+    });
+  }
+
   // testing getTodosGroupedByCategory
   @Test
   void canGetTodosGroupedByCategory() throws IOException {
@@ -267,6 +591,103 @@ class TodoControllerSpec {
     assertEquals(2, todoArrayListCaptor.getValue().size());
   }
 
+  @Test
+  void addedTodosShowUpInTheirCategoryGroup() throws IOException {
+    // Build the view before adding the todo, so this checks the incremental update.
+    todoController.getTodosGroupedByCategory(ctx);
+    when(ctx.bodyValidator(Todo.class))
+    .then(value -> new BodyValidator<>(
+      "{\"owner\": \"Fry\", \"status\": false, \"category\": \"video games\"}", Todo.class, javalinJackson));
+    todoController.addNewTodo(ctx);
+
+    todoController.getTodosGroupedByCategory(ctx);
+
+    verify(ctx, Mockito.times(2)).json(categoryListCaptor.capture());
+    List<TodoByCategory> groups = categoryListCaptor.getValue();
+    assertEquals(3, groups.size());
+    assertEquals("video games", groups.get(2)._id);
+    assertEquals(1, groups.get(2).count);
+    assertEquals("Fry", groups.get(2).todos.get(0).owner);
+  }
+
+  @Test
+  void deletedTodosLeaveTheirCategoryGroup() throws IOException {
+    todoController.getTodosGroupedByCategory(ctx);
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    todoController.deleteTodo(ctx);
+
+    todoController.getTodosGroupedByCategory(ctx);
+
+    verify(ctx, Mockito.times(2)).json(categoryListCaptor.capture());
+    TodoByCategory homework = categoryListCaptor.getValue().get(1);
+    assertEquals("homework", homework._id);
+    assertEquals(2, homework.count);
+    for (TodoIdName todo : homework.todos) {
+      assertNotEquals(samsId.toHexString(), todo._id);
+    }
+  }
+
+  @Test
+  void categoryGroupsAreRebuiltInTheBackground() throws IOException {
+    ScheduledExecutorService scheduler = Mockito.mock(ScheduledExecutorService.class);
+    todoController.scheduleBackgroundTasks(scheduler);
+    // The rebuild has its own thread, so only the logging of query shapes is on the shared one.
+    verify(scheduler).scheduleWithFixedDelay(any(), Mockito.anyLong(), Mockito.anyLong(), any());
+
+    todoController.getTodosGroupedByCategory(ctx);
+    // A todo added without going through the controller is only picked up by the rebuild.
+    db.getCollection("todos").insertOne(new Document("owner", "Fry").append("category", "groceries"));
+    long version = todoController.dataVersion();
+    todoController.rebuildCategorySummary();
+    todoController.getTodosGroupedByCategory(ctx);
+
+    verify(ctx, Mockito.times(2)).json(categoryListCaptor.capture());
+    assertEquals(2, categoryListCaptor.getValue().get(0).count);
+    assertNotEquals(version, todoController.dataVersion());
+    todoController.close();
+  }
+
+  @Test
+  void rebuildsThatChangeNothingKeepTheVersion() throws IOException {
+    todoController.getTodosGroupedByCategory(ctx);
+    long version = todoController.dataVersion();
+
+    todoController.rebuildCategorySummary();
+
+    assertEquals(version, todoController.dataVersion());
+  }
+
+  // testing streamed responses
+  @Test
+  void canStreamAllTodos() throws IOException {
+    RecordingOutputStream output = new RecordingOutputStream();
+    when(ctx.queryParam(JsonStreaming.STREAM_KEY)).thenReturn("true");
+    when(ctx.outputStream()).thenReturn(output);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx, Mockito.never()).json(any());
+    verify(ctx).status(HttpStatus.OK);
+    Todo[] streamedTodos = javalinJackson.fromJsonString(output.written(), Todo[].class);
+    assertEquals(db.getCollection("todos").countDocuments(), streamedTodos.length);
+    assertEquals("Jamie", streamedTodos[0].owner);
+  }
+
+  @Test
+  void canStreamTodosGroupedByCategory() throws IOException {
+    RecordingOutputStream output = new RecordingOutputStream();
+    when(ctx.queryParam(JsonStreaming.STREAM_KEY)).thenReturn("true");
+    when(ctx.outputStream()).thenReturn(output);
+
+    todoController.getTodosGroupedByCategory(ctx);
+
+    verify(ctx, Mockito.never()).json(any());
+    TodoByCategory[] streamedGroups = javalinJackson.fromJsonString(output.written(), TodoByCategory[].class);
+    assertEquals(2, streamedGroups.length);
+    assertEquals("groceries", streamedGroups[0]._id);
+    assertEquals(3, streamedGroups[1].count);
+  }
+
   // testing addTodo
   @Test
   void addTodo() throws IOException {
@@ -295,6 +716,407 @@ class TodoControllerSpec {
     assertEquals("testBody", addedTodo.get("body"));
   }
 
+  @Test
+  void dataVersionChangesWithTheTodos() throws IOException {
+    long version = todoController.dataVersion();
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    todoController.getTodo(ctx);
+    assertEquals(version, todoController.dataVersion());
+
+    todoController.deleteTodo(ctx);
+
+    assertNotEquals(version, todoController.dataVersion());
+  }
+
+  @Test
+  void batchedInsertsWorkLikeSingleOnes() throws IOException {
+    todoController = new TodoController(db, 10, Duration.ofMillis(5));
+    long version = todoController.dataVersion();
+    when(ctx.bodyValidator(Todo.class))
+    .then(value -> new BodyValidator<>(
+      "{\"owner\": \"Fry\", \"status\": false, \"category\": \"video games\"}", Todo.class, javalinJackson));
+
+    todoController.addNewTodo(ctx);
+
+    verify(ctx).json(mapCaptor.capture());
+    verify(ctx).status(HttpStatus.CREATED);
+    assertNotEquals(version, todoController.dataVersion());
+    when(ctx.pathParam("id")).thenReturn(mapCaptor.getValue().get("id"));
+    todoController.getTodo(ctx);
+    verify(ctx).json(todoCaptor.capture());
+    assertEquals("Fry", todoCaptor.getValue().owner);
+  }
+
+  @Test
+  void batchedInsertsFailOnTheirOwn() throws IOException {
+    todoController = new TodoController(db, 10, Duration.ofMillis(5));
+    when(ctx.bodyValidator(Todo.class))
+    .then(value -> new BodyValidator<>(
+      "{\"_id\": \"" + samsId.toHexString() + "\", \"owner\": \"Sam\"}", Todo.class, javalinJackson));
+
+    assertThrows(MongoException.class, () -> {
+      todoController.addNewTodo(ctx);
+    });
+  }
+
+  @Test
+  void closingTheControllerStopsBatchingInserts() throws IOException {
+    todoController = new TodoController(db, 10, Duration.ofMillis(5));
+    todoController.close();
+    when(ctx.bodyValidator(Todo.class))
+    .then(value -> new BodyValidator<>("{\"owner\": \"Fry\", \"status\": false}", Todo.class, javalinJackson));
+
+    assertThrows(IllegalStateException.class, () -> {
+      todoController.addNewTodo(ctx);
+    });
+  }
+
+  @Test
+  void addedTodosCanBeFoundRightAway() throws IOException {
+    when(ctx.bodyValidator(Todo.class))
+    .then(value -> new BodyValidator<>("{\"owner\": \"Fry\", \"status\": false}", Todo.class, javalinJackson));
+    todoController.addNewTodo(ctx);
+    verify(ctx).json(mapCaptor.capture());
+
+    when(ctx.pathParam("id")).thenReturn(mapCaptor.getValue().get("id"));
+    todoController.getTodo(ctx);
+
+    verify(ctx).json(todoCaptor.capture());
+    assertEquals("Fry", todoCaptor.getValue().owner);
+  }
+
+  // testing bulk imports
+  private Map<String, Object> importTodos(String body) {
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+    todoController.addTodosInBulk(ctx);
+    verify(ctx).json(reportCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    return reportCaptor.getValue();
+  }
+
+  @Test
+  void canImportNewlineDelimitedTodos() throws IOException {
+    Map<String, Object> report = importTodos("""
+        {"owner": "Fry", "status": true, "category": "video games", "body": "Play"}
+        {"owner": "Leela", "category": "homework"}
+        {"owner": "", "category": "homework"}
+        {"owner": "Bender", "category": "video games"}
+        """);
+
+    assertEquals(3, report.get("inserted"));
+    assertEquals(1, report.get("failed"));
+    assertEquals(List.of(Map.of("record", 2, "message", "Todo must have a non-empty todo name")),
+      report.get("errors"));
+    assertEquals(7, db.getCollection("todos").countDocuments());
+    assertEquals(2, db.getCollection("todos").countDocuments(eq("category", "video games")));
+  }
+
+  @Test
+  void canImportAnArrayOfTodosInBatches() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.BATCH_SIZE_KEY, Arrays.asList(new String[]{"2"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(TodoController.BATCH_SIZE_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "2", TodoController.BATCH_SIZE_KEY));
+    // Build the view first, so this checks the batched updates to it.
+    Context viewCtx = Mockito.mock(Context.class);
+    todoController.getTodosGroupedByCategory(viewCtx);
+
+    Map<String, Object> report = importTodos("""
+        [{"owner": "A", "category": "groceries"}, {"owner": "B", "category": "groceries"},
+         {"owner": "C", "category": "errands"}, {"owner": "D", "category": "groceries"},
+         {"owner": "E", "category": "errands"}]
+        """);
+
+    assertEquals(5, report.get("inserted"));
+    assertEquals(0, report.get("failed"));
+    todoController.getTodosGroupedByCategory(viewCtx);
+    verify(viewCtx, Mockito.times(2)).json(categoryListCaptor.capture());
+    List<TodoByCategory> groups = categoryListCaptor.getValue();
+    assertEquals("errands", groups.get(0)._id);
+    assertEquals(2, groups.get(0).count);
+    assertEquals(4, groups.get(1).count);
+    assertEquals(List.of("Jamie", "A", "B", "D"), groups.get(1).todos.stream().map(todo -> todo.owner).toList());
+  }
+
+  @Test
+  void importReportsTodosThatCantBeInserted() throws IOException {
+    long version = todoController.dataVersion();
+
+    Map<String, Object> report = importTodos(
+      "{\"owner\": \"Fry\"}\n{\"_id\": \"" + samsId.toHexString() + "\", \"owner\": \"Sam\"}\n");
+
+    assertEquals(1, report.get("inserted"));
+    assertEquals(1, report.get("failed"));
+    assertNotEquals(version, todoController.dataVersion());
+  }
+
+  @Test
+  void importSkipsRecordsThatArentTodos() throws IOException {
+    Map<String, Object> report = importTodos("""
+        {"owner": {"name": "Fry"}}
+        {"owner": "Leela"}
+        """);
+
+    assertEquals(1, report.get("inserted"));
+    assertEquals(1, report.get("failed"));
+  }
+
+  @Test
+  void importStopsAtMalformedJson() throws IOException {
+    Map<String, Object> report = importTodos("""
+        {"owner": "Fry"}
+        {"owner": "Leela"
+        {"owner": "Bender"}
+        """);
+
+    assertEquals(1, report.get("inserted"));
+    assertEquals(1, report.get("failed"));
+    assertEquals(5, db.getCollection("todos").countDocuments());
+  }
+
+  @Test
+  void importOnlyReportsTheFirstFewErrors() throws IOException {
+    Map<String, Object> report = importTodos("{\"owner\": \"\"}\n".repeat(TodoController.MAX_REPORTED_ERRORS + 5));
+
+    assertEquals(0, report.get("inserted"));
+    assertEquals(TodoController.MAX_REPORTED_ERRORS + 5, report.get("failed"));
+    assertEquals(TodoController.MAX_REPORTED_ERRORS, ((List<?>) report.get("errors")).size());
+  }
+
+  @Test
+  void rejectsIllegalBatchSize() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(TodoController.BATCH_SIZE_KEY, Arrays.asList(new String[]{"0"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(TodoController.BATCH_SIZE_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "0", TodoController.BATCH_SIZE_KEY));
+
+    assertThrows(ValidationException.class, () -> {
+      todoController.addTodosInBulk(ctx);
+    });
+  }
+
+  // testing bulk changes
+  private void filterBy(String key, String value) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(key, Arrays.asList(new String[]{value}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(key, String.class)).thenReturn(Validator.create(String.class, value, key));
+  }
+
+  @Test
+  void canMarkAWholeCategoryDone() throws IOException {
+    filterBy(TodoController.CATEGORY_KEY, "homework");
+    when(ctx.body()).thenReturn("{\"status\": true}");
+    long version = todoController.dataVersion();
+
+    todoController.updateTodos(ctx);
+
+    verify(ctx).json(reportCaptor.capture());
+    assertEquals(Map.of("matched", 3L, "modified", 3L, TodoController.DRY_RUN_KEY, false), reportCaptor.getValue());
+    assertEquals(3, db.getCollection("todos").countDocuments(
+      new Document("category", "homework").append("status", true)));
+    assertNotEquals(version, todoController.dataVersion());
+  }
+
+  @Test
+  void recategorizedTodosMoveGroups() throws IOException {
+    Context viewCtx = Mockito.mock(Context.class);
+    todoController.getTodosGroupedByCategory(viewCtx);
+    filterBy(TodoController.OWNER_KEY, "Sam");
+    when(ctx.body()).thenReturn("{\"category\": \"groceries\"}");
+
+    todoController.updateTodos(ctx);
+
+    todoController.getTodosGroupedByCategory(viewCtx);
+    verify(viewCtx, Mockito.times(2)).json(categoryListCaptor.capture());
+    List<TodoByCategory> groups = categoryListCaptor.getValue();
+    assertEquals(3, groups.get(0).count);
+    assertEquals(1, groups.get(1).count);
+  }
+
+  @Test
+  void bulkChangesRejectFieldsThatArentTodoFields() throws IOException {
+    filterBy(TodoController.OWNER_KEY, "Sam");
+    when(ctx.body()).thenReturn("{\"_id\": \"nope\"}");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodos(ctx);
+    });
+  }
+
+  @Test
+  void bulkChangesNeedAFilter() throws IOException {
+    when(ctx.body()).thenReturn("{\"status\": true}");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodos(ctx);
+    });
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.deleteTodos(ctx);
+    });
+    assertEquals(4, db.getCollection("todos").countDocuments());
+  }
+
+  @Test
+  void bulkChangesCantBePaged() throws IOException {
+    when(ctx.body()).thenReturn("{\"status\": true}");
+    for (String pageKey : List.of(KeysetPagination.LIMIT_KEY, KeysetPagination.AFTER_KEY)) {
+      filterBy(TodoController.OWNER_KEY, "Sam");
+      ctx.queryParamMap().put(pageKey, List.of("1"));
+
+      assertThrows(BadRequestResponse.class, () -> {
+        todoController.updateTodos(ctx);
+      });
+      assertThrows(BadRequestResponse.class, () -> {
+        todoController.deleteTodos(ctx);
+      });
+    }
+    assertEquals(4, db.getCollection("todos").countDocuments());
+    assertEquals(0, db.getCollection("todos").countDocuments(new Document("status", true).append("owner", "Sam")));
+  }
+
+  @Test
+  void dryRunsOnlyCountTheTodos() throws IOException {
+    filterBy(TodoController.OWNER_KEY, "Sam");
+    when(ctx.queryParam(TodoController.DRY_RUN_KEY)).thenReturn("true");
+    when(ctx.body()).thenReturn("{\"status\": true}");
+
+    todoController.updateTodos(ctx);
+    todoController.deleteTodos(ctx);
+
+    verify(ctx, Mockito.times(2)).json(reportCaptor.capture());
+    assertEquals(Map.of("matched", 2L, "modified", 0L, TodoController.DRY_RUN_KEY, true),
+      reportCaptor.getAllValues().get(0));
+    assertEquals(Map.of("matched", 2L, "deleted", 0L, TodoController.DRY_RUN_KEY, true),
+      reportCaptor.getAllValues().get(1));
+    assertEquals(4, db.getCollection("todos").countDocuments());
+  }
+
+  @Test
+  void canDeleteAllOfAnOwnersTodos() throws IOException {
+    Context viewCtx = Mockito.mock(Context.class);
+    todoController.getTodosGroupedByCategory(viewCtx);
+    filterBy(TodoController.OWNER_KEY, "Sam");
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    todoController.getTodo(ctx);
+
+    todoController.deleteTodos(ctx);
+
+    verify(ctx).json(reportCaptor.capture());
+    assertEquals(Map.of("matched", 2L, "deleted", 2L, TodoController.DRY_RUN_KEY, false), reportCaptor.getValue());
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.getTodo(ctx);
+    });
+    todoController.getTodosGroupedByCategory(viewCtx);
+    verify(viewCtx, Mockito.times(2)).json(categoryListCaptor.capture());
+    assertEquals(1, categoryListCaptor.getValue().get(1).count);
+  }
+
+  // testing partial updates of one todo
+  @Test
+  void canMarkOneTodoDone() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.body()).thenReturn("{\"status\": true}");
+    long version = todoController.dataVersion();
+
+    todoController.updateTodo(ctx);
+
+    verify(ctx).status(HttpStatus.NO_CONTENT);
+    verify(ctx, Mockito.never()).json(any());
+    Document sam = db.getCollection("todos").find(eq("_id", samsId)).first();
+    assertEquals(true, sam.get("status"));
+    // The other fields are left alone.
+    assertEquals("homework", sam.get("category"));
+    assertEquals("I have to do my homework", sam.get("body"));
+    assertNotEquals(version, todoController.dataVersion());
+  }
+
+  @Test
+  void partialUpdatesCanReturnTheChangedTodo() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.body()).thenReturn("{\"body\": \"I did my homework\"}");
+    when(ctx.header(TodoController.PREFER_HEADER)).thenReturn("handling=strict, return=representation");
+
+    todoController.updateTodo(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    verify(ctx).header("Preference-Applied", TodoController.RETURN_REPRESENTATION);
+    verify(ctx).json(todoCaptor.capture());
+    assertEquals(samsId.toHexString(), todoCaptor.getValue()._id);
+    assertEquals("I did my homework", todoCaptor.getValue().body);
+    assertEquals("Sam", todoCaptor.getValue().owner);
+  }
+
+  @Test
+  void partiallyUpdatedTodosArentServedFromTheCache() throws IOException {
+    Context getCtx = Mockito.mock(Context.class);
+    when(getCtx.pathParam("id")).thenReturn(samsId.toHexString());
+    todoController.getTodo(getCtx);
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.body()).thenReturn("{\"owner\": \"Samantha\"}");
+
+    todoController.updateTodo(ctx);
+    todoController.getTodo(getCtx);
+
+    verify(getCtx, Mockito.times(2)).json(todoCaptor.capture());
+    assertEquals("Samantha", todoCaptor.getValue().owner);
+  }
+
+  @Test
+  void recategorizedTodoMovesGroups() throws IOException {
+    Context viewCtx = Mockito.mock(Context.class);
+    todoController.getTodosGroupedByCategory(viewCtx);
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.body()).thenReturn("{\"category\": \"groceries\", \"owner\": \"Samantha\"}");
+
+    todoController.updateTodo(ctx);
+
+    todoController.getTodosGroupedByCategory(viewCtx);
+    verify(viewCtx, Mockito.times(2)).json(categoryListCaptor.capture());
+    List<TodoByCategory> groups = categoryListCaptor.getValue();
+    assertEquals("groceries", groups.get(0)._id);
+    assertEquals(2, groups.get(0).count);
+    assertTrue(groups.get(0).todos.stream()
+      .anyMatch(todo -> todo._id.equals(samsId.toHexString()) && todo.owner.equals("Samantha")));
+    assertEquals(2, groups.get(1).count);
+  }
+
+  @Test
+  void partialUpdateOfMissingTodoIsNotFound() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+    when(ctx.body()).thenReturn("{\"status\": true}");
+
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+    when(ctx.body()).thenReturn("{\"category\": \"groceries\"}");
+    assertThrows(NotFoundResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+  }
+
+  @Test
+  void partialUpdateRejectsIllegalRequests() throws IOException {
+    when(ctx.pathParam("id")).thenReturn("bad");
+    when(ctx.body()).thenReturn("{\"status\": true}");
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    when(ctx.body()).thenReturn("{\"status\": \"done\"}");
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+    when(ctx.body()).thenReturn("{\"owner\": \"\"}");
+    assertThrows(BadRequestResponse.class, () -> {
+      todoController.updateTodo(ctx);
+    });
+    assertEquals(false, db.getCollection("todos").find(eq("_id", samsId)).first().get("status"));
+  }
+
   // testing md5
     @Test
     void md5() throws NoSuchAlgorithmException {
@@ -0,0 +1,165 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.validation.Validator;
+import umm3601.JsonStreaming;
+import umm3601.KeysetPagination;
+import umm3601.RecordingOutputStream;
+
+/**
+ * Tests the reads that `AsyncUserController` does with the reactive streams
+ * driver, which should send just what `UserController`'s do.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class AsyncUserControllerSpec {
+
+  private static MongoClient mongoClient;
+  private static com.mongodb.reactivestreams.client.MongoClient asyncClient;
+  private static MongoDatabase db;
+
+  private AsyncUserController userController;
+  private ObjectId samsId;
+
+  @Mock
+  private Context ctx;
+
+  @Captor
+  private ArgumentCaptor<Supplier<CompletableFuture<?>>> futureCaptor;
+
+  @Captor
+  private ArgumentCaptor<List<User>> userListCaptor;
+
+  @Captor
+  private ArgumentCaptor<User> userCaptor;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+    MongoClientSettings settings = MongoClientSettings.builder()
+      .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+      .build();
+    mongoClient = MongoClients.create(settings);
+    asyncClient = com.mongodb.reactivestreams.client.MongoClients.create(settings);
+    db = mongoClient.getDatabase("asyncTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+    asyncClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    MockitoAnnotations.openMocks(this);
+    db.drop();
+    samsId = new ObjectId();
+    db.getCollection("users").insertMany(List.of(
+      new Document("_id", samsId).append("name", "Sam").append("age", 45).append("company", "OHMNET")
+        .append("email", "sam@frogs.com").append("role", "viewer").append("avatar", "https://gravatar.com/sam"),
+      new Document("name", "Chris").append("age", 25).append("company", "UMM")
+        .append("email", "chris@this.that").append("role", "admin"),
+      new Document("name", "Pat").append("age", 37).append("company", "IBM")
+        .append("email", "pat@something.com").append("role", "editor")));
+    userController = new AsyncUserController(db, asyncClient.getDatabase("asyncTest"));
+  }
+
+  private void awaitResponse() {
+    verify(ctx).future(futureCaptor.capture());
+    futureCaptor.getValue().get().join();
+  }
+
+  @Test
+  void canGetAUser() {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+
+    userController.getUser(ctx);
+    awaitResponse();
+
+    verify(ctx).json(userCaptor.capture());
+    verify(ctx).status(HttpStatus.OK);
+    assertEquals(samsId.toHexString(), userCaptor.getValue()._id);
+    assertEquals(45, userCaptor.getValue().age);
+    assertEquals("https://gravatar.com/sam", userCaptor.getValue().avatar);
+  }
+
+  @Test
+  void missingUsersAreNotFound() {
+    when(ctx.pathParam("id")).thenReturn(new ObjectId().toHexString());
+
+    userController.getUser(ctx);
+
+    CompletionException error = assertThrows(CompletionException.class, this::awaitResponse);
+    assertInstanceOf(NotFoundResponse.class, error.getCause());
+  }
+
+  @Test
+  void illegalIdsAreRejectedRightAway() {
+    when(ctx.pathParam("id")).thenReturn("bad");
+
+    assertThrows(BadRequestResponse.class, () -> userController.getUser(ctx));
+  }
+
+  @Test
+  void canGetAPageOfUsersInOrder() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(KeysetPagination.LIMIT_KEY, List.of("2")));
+    when(ctx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+      .thenReturn(Validator.create(Integer.class, "2", KeysetPagination.LIMIT_KEY));
+
+    userController.getUsers(ctx);
+    awaitResponse();
+
+    verify(ctx).json(userListCaptor.capture());
+    List<User> users = userListCaptor.getValue();
+    assertEquals(List.of("Chris", "Pat"), List.of(users.get(0).name, users.get(1).name));
+    verify(ctx).header(Mockito.eq(KeysetPagination.NEXT_PAGE_HEADER), Mockito.anyString());
+  }
+
+  @Test
+  void streamedUsersAreStillStreamed() {
+    when(ctx.queryParamMap()).thenReturn(Map.of(JsonStreaming.STREAM_KEY, List.of("true")));
+    when(ctx.queryParam(JsonStreaming.STREAM_KEY)).thenReturn("true");
+    RecordingOutputStream out = new RecordingOutputStream();
+    when(ctx.outputStream()).thenReturn(out);
+
+    userController.getUsers(ctx);
+
+    verify(ctx, Mockito.never()).future(Mockito.any());
+    assertEquals(3, out.written().split("\"name\"").length - 1);
+  }
+}
@@ -0,0 +1,115 @@
+package umm3601.user;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+/**
+ * Tests that `CompanyBackfill` fills in the lowercased company of users
+ * written without one, a batch at a time.
+ */
+@SuppressWarnings({ "MagicNumber" })
+class CompanyBackfillSpec {
+
+  private static MongoClient mongoClient;
+  private static MongoDatabase db;
+
+  private MongoCollection<Document> users;
+
+  @BeforeAll
+  static void setupAll() {
+    String mongoAddr = System.getenv().getOrDefault("MONGO_ADDR", "localhost");
+
+    mongoClient = MongoClients.create(
+        MongoClientSettings.builder()
+            .applyToClusterSettings(builder -> builder.hosts(Arrays.asList(new ServerAddress(mongoAddr))))
+            .build());
+    db = mongoClient.getDatabase("backfillTest");
+  }
+
+  @AfterAll
+  static void teardown() {
+    db.drop();
+    mongoClient.close();
+  }
+
+  @BeforeEach
+  void setupEach() {
+    db.drop();
+    users = db.getCollection("users");
+    List<Document> documents = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      documents.add(new Document("name", "User " + i).append("company", i % 2 == 0 ? "OHMNET" : "Frogs Inc"));
+    }
+    // Someone already filled in, and someone without a company.
+    documents.add(new Document("name", "New").append("company", "UMM").append("companyLower", "umm"));
+    documents.add(new Document("name", "Nobody"));
+    users.insertMany(documents);
+  }
+
+  @Test
+  void fillsInABatchAtATime() {
+    AtomicInteger changes = new AtomicInteger();
+    CompanyBackfill backfill = new CompanyBackfill(users, 10, Duration.ZERO, changes::incrementAndGet);
+
+    assertEquals(10, backfill.fillInBatch());
+    assertEquals(10, backfill.fillInBatch());
+    assertFalse(backfill.isDone());
+    assertEquals(5, backfill.fillInBatch());
+    assertTrue(backfill.isDone());
+    assertEquals(0, backfill.fillInBatch());
+    // Each batch that changed users was reported.
+    assertEquals(3, changes.get());
+
+    assertEquals(13, users.countDocuments(eq(UserController.COMPANY_LOWER_KEY, "ohmnet")));
+    assertEquals(12, users.countDocuments(eq(UserController.COMPANY_LOWER_KEY, "frogs inc")));
+    assertEquals(1, users.countDocuments(exists(UserController.COMPANY_LOWER_KEY, false)));
+  }
+
+  @Test
+  void runsOnTheSchedulerUntilEveryUserIsFilledIn() throws InterruptedException {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    try {
+      CompanyBackfill backfill = new CompanyBackfill(users, 10, Duration.ofMillis(1), () -> { });
+      backfill.start(scheduler);
+
+      // Wait for the three batches to be filled in.
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (users.countDocuments(exists(UserController.COMPANY_LOWER_KEY, false)) > 1
+          && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(26, users.countDocuments(exists(UserController.COMPANY_LOWER_KEY)));
+      while (!backfill.isDone() && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertTrue(backfill.isDone());
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+}
@@ -2,6 +2,7 @@ package umm3601.user;
 
 import static com.mongodb.client.model.Filters.eq;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
@@ -51,6 +52,10 @@ import io.javalin.json.JavalinJackson;
 import io.javalin.validation.BodyValidator;
 import io.javalin.validation.ValidationException;
 import io.javalin.validation.Validator;
+import umm3601.FieldProjection;
+import umm3601.JsonStreaming;
+import umm3601.KeysetPagination;
+import umm3601.RecordingOutputStream;
 
 /**
  * Tests the logic of the UserController
@@ -97,6 +102,12 @@ class UserControllerSpec {
   @Captor
   private ArgumentCaptor<Map<String, String>> mapCaptor;
 
+  @Captor
+  private ArgumentCaptor<String> stringCaptor;
+
+  @Captor
+  private ArgumentCaptor<List<Map<String, Object>>> mapListCaptor;
+
   /**
    * Sets up (the connection to the) DB once; that connection and DB will
    * then be (re)used for all the tests, and closed in the `teardown()`
@@ -139,6 +150,7 @@ class UserControllerSpec {
             .append("name", "Chris")
             .append("age", 25)
             .append("company", "UMM")
+            .append("companyLower", "umm")
             .append("email", "chris@this.that")
             .append("role", "admin")
             .append("avatar", "https://gravatar.com/avatar/8c9616d6cc5de638ea6920fb5d65fc6c?d=identicon"));
@@ -147,6 +159,7 @@ class UserControllerSpec {
             .append("name", "Pat")
             .append("age", 37)
             .append("company", "IBM")
+            .append("companyLower", "ibm")
             .append("email", "pat@something.com")
             .append("role", "editor")
             .append("avatar", "https://gravatar.com/avatar/b42a11826c3bde672bce7e06ad729d44?d=identicon"));
@@ -155,6 +168,7 @@ class UserControllerSpec {
             .append("name", "Jamie")
             .append("age", 37)
             .append("company", "OHMNET")
+            .append("companyLower", "ohmnet")
             .append("email", "jamie@frogs.com")
             .append("role", "viewer")
             .append("avatar", "https://gravatar.com/avatar/d4a6c71dd9470ad4cf58f78c100258bf?d=identicon"));
@@ -165,6 +179,7 @@ class UserControllerSpec {
         .append("name", "Sam")
         .append("age", 45)
         .append("company", "OHMNET")
+        .append("companyLower", "ohmnet")
         .append("email", "sam@frogs.com")
         .append("role", "viewer")
         .append("avatar", "https://gravatar.com/avatar/08b7610b558a4cbbd20ae99072801f4d?d=identicon");
@@ -377,11 +392,131 @@ class UserControllerSpec {
     verify(ctx).status(HttpStatus.OK);
 
     // Confirm that all the users passed to `json` work for OHMNET.
+    assertEquals(2, userArrayListCaptor.getValue().size());
     for (User user : userArrayListCaptor.getValue()) {
       assertEquals("OHMNET", user.company);
     }
   }
 
+  @Test
+  void canGetUsersWithExactCompany() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.COMPANY_KEY, Arrays.asList(new String[] {"Ohmnet"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("Ohmnet");
+    when(ctx.queryParam(UserController.COMPANY_MATCH_KEY)).thenReturn(UserController.EXACT_MATCH);
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    assertEquals(2, userArrayListCaptor.getValue().size());
+
+    // Only whole companies match.
+    Context prefixCtx = Mockito.mock(Context.class);
+    queryParams.put(UserController.COMPANY_KEY, Arrays.asList(new String[] {"ohm"}));
+    when(prefixCtx.queryParamMap()).thenReturn(queryParams);
+    when(prefixCtx.queryParam(UserController.COMPANY_KEY)).thenReturn("ohm");
+    when(prefixCtx.queryParam(UserController.COMPANY_MATCH_KEY)).thenReturn(UserController.EXACT_MATCH);
+
+    userController.getUsers(prefixCtx);
+
+    verify(prefixCtx).json(userArrayListCaptor.capture());
+    assertTrue(userArrayListCaptor.getValue().isEmpty());
+  }
+
+  @Test
+  void companySearchesOnlyMatchTheStartOfCompanies() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.COMPANY_KEY, Arrays.asList(new String[] {"net"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("net");
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayListCaptor.capture());
+    assertTrue(userArrayListCaptor.getValue().isEmpty());
+  }
+
+  @Test
+  void companyMatchMustBePrefixOrExact() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.COMPANY_KEY, Arrays.asList(new String[] {"ohm"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn("ohm");
+    when(ctx.queryParam(UserController.COMPANY_MATCH_KEY)).thenReturn("contains");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+  }
+
+  @Test
+  void companyPrefixesAreRanges() {
+    assertEquals(
+      "{\"$and\": [{\"companyLower\": {\"$gte\": \"ohm\"}}, {\"companyLower\": {\"$lt\": \"ohn\"}}]}",
+      UserController.companyFilter("OHM", UserController.PREFIX_MATCH, true).toBsonDocument().toJson());
+    // There's nothing after the last character, so the range is from the one before.
+    assertEquals(
+      "{\"$and\": [{\"companyLower\": {\"$gte\": \"a\\uffff\"}}, {\"companyLower\": {\"$lt\": \"b\"}}]}",
+      UserController.companyFilter("a\uffff", null, true).toBsonDocument().toJson());
+    assertEquals(
+      "{\"companyLower\": {\"$gte\": \"\"}}",
+      UserController.companyFilter("", null, true).toBsonDocument().toJson());
+  }
+
+  @Test
+  void companySearchesFindUsersNotYetBackfilled() throws IOException {
+    db.getCollection("users").insertOne(new Document()
+        .append("name", "Kim")
+        .append("age", 30)
+        .append("company", "Ohm Systems")
+        .append("email", "kim@ohm.com")
+        .append("role", "viewer"));
+    filterByCompany("OHM");
+
+    // Kim doesn't have a `companyLower` yet, but is still found.
+    userController.getUsers(ctx);
+    verify(ctx).json(userArrayListCaptor.capture());
+    assertEquals(3, userArrayListCaptor.getValue().size());
+
+    // Filling Kim in changes the users, so cached responses are stale.
+    long version = userController.dataVersion();
+    assertEquals(1, userController.companyBackfill().fillInBatch());
+    assertTrue(userController.companyBackfill().isDone());
+    assertNotEquals(version, userController.dataVersion());
+
+    // Now every user has a `companyLower`, only that is searched.
+    Map<String, List<String>> queryParams = ctx.queryParamMap();
+    Context backfilledCtx = Mockito.mock(Context.class);
+    when(backfilledCtx.queryParamMap()).thenReturn(queryParams);
+    when(backfilledCtx.queryParam(UserController.COMPANY_KEY)).thenReturn("OHM");
+    userController.getUsers(backfilledCtx);
+    verify(backfilledCtx).json(userArrayListCaptor.capture());
+    assertEquals(3, userArrayListCaptor.getValue().size());
+    assertFalse(userController.constructFilter(backfilledCtx).toBsonDocument().toJson().contains("$regex"));
+  }
+
+  @Test
+  void exactCompanySearchesBeforeTheBackfillAreStillExact() {
+    db.getCollection("users").insertOne(new Document("name", "Kim").append("company", "Ohmnet Labs"));
+    db.getCollection("users").insertOne(new Document("name", "Lee").append("company", "ohmnet"));
+
+    assertEquals(3, db.getCollection("users").countDocuments(
+      UserController.companyFilter("OHMNET", UserController.EXACT_MATCH, false)));
+  }
+
+  @Test
+  void usersAreSentWithoutTheirLowercasedCompany() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+
+    userController.getUser(ctx);
+
+    verify(ctx).json(userCaptor.capture());
+    String json = javalinJackson.toJsonString(userCaptor.getValue(), User.class);
+    assertTrue(json.contains("\"company\":\"OHMNET\""), json);
+    assertFalse(json.contains(UserController.COMPANY_LOWER_KEY), json);
+  }
+
   @Test
   void getUsersByRole() throws IOException {
     Map<String, List<String>> queryParams = new HashMap<>();
@@ -418,6 +553,149 @@ class UserControllerSpec {
     }
   }
 
+  @Test
+  void listsWithoutALimitGetTheDefaultPage() throws IOException {
+    List<Document> moreUsers = new ArrayList<>();
+    for (int i = 0; i < KeysetPagination.DEFAULT_LIMIT; i++) {
+      moreUsers.add(new Document()
+          .append("name", "User " + i)
+          .append("age", 30)
+          .append("company", "UMM")
+          .append("companyLower", "umm")
+          .append("email", "user" + i + "@this.that")
+          .append("role", "viewer"));
+    }
+    db.getCollection("users").insertMany(moreUsers);
+
+    userController.getUsers(ctx);
+
+    // There are 24 users now, so only the first 20 come back, with a token
+    // for the rest.
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).header(Mockito.eq(KeysetPagination.NEXT_PAGE_HEADER), Mockito.anyString());
+    assertEquals(KeysetPagination.DEFAULT_LIMIT, userArrayListCaptor.getValue().size());
+  }
+
+  @Test
+  void canPageThroughUsersByDescendingAge() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(KeysetPagination.LIMIT_KEY, Arrays.asList(new String[] {"2"}));
+    queryParams.put(UserController.SORT_ORDER_KEY, Arrays.asList(new String[] {"desc"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam("sortby")).thenReturn("age");
+    when(ctx.queryParam(UserController.SORT_ORDER_KEY)).thenReturn("desc");
+    when(ctx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "2", KeysetPagination.LIMIT_KEY));
+
+    userController.getUsers(ctx);
+
+    // Sam (45) comes first, followed by one of the two 37 year olds.
+    verify(ctx).json(userArrayListCaptor.capture());
+    verify(ctx).header(Mockito.eq(KeysetPagination.NEXT_PAGE_HEADER), stringCaptor.capture());
+    List<User> firstPage = userArrayListCaptor.getValue();
+    assertEquals(2, firstPage.size());
+    assertEquals(45, firstPage.get(0).age);
+    assertEquals(37, firstPage.get(1).age);
+
+    Context nextCtx = Mockito.mock(Context.class);
+    String token = stringCaptor.getValue();
+    queryParams.put(KeysetPagination.AFTER_KEY, Arrays.asList(new String[] {token}));
+    when(nextCtx.queryParamMap()).thenReturn(queryParams);
+    when(nextCtx.queryParam("sortby")).thenReturn("age");
+    when(nextCtx.queryParam(UserController.SORT_ORDER_KEY)).thenReturn("desc");
+    when(nextCtx.queryParam(KeysetPagination.AFTER_KEY)).thenReturn(token);
+    when(nextCtx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "2", KeysetPagination.LIMIT_KEY));
+
+    userController.getUsers(nextCtx);
+
+    // The second page has the other 37 year old, and then Chris (25).
+    verify(nextCtx).json(userArrayListCaptor.capture());
+    List<User> secondPage = userArrayListCaptor.getValue();
+    assertEquals(2, secondPage.size());
+    assertEquals(37, secondPage.get(0).age);
+    assertEquals(25, secondPage.get(1).age);
+    assertNotEquals(firstPage.get(1), secondPage.get(0));
+  }
+
+  @Test
+  void cannotSortByUnknownField() throws IOException {
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+    when(ctx.queryParam("sortby")).thenReturn("avatar");
+
+    Throwable exception = assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+    assertTrue(exception.getMessage().contains("Can't sort users by 'avatar'"));
+  }
+
+  @Test
+  void canStreamUsersWithRole() throws IOException {
+    RecordingOutputStream output = new RecordingOutputStream();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.ROLE_KEY, Arrays.asList(new String[] {"viewer"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(UserController.ROLE_KEY, String.class))
+        .thenReturn(Validator.create(String.class, "viewer", UserController.ROLE_KEY));
+    when(ctx.queryParam(JsonStreaming.STREAM_KEY)).thenReturn("true");
+    when(ctx.outputStream()).thenReturn(output);
+
+    userController.getUsers(ctx);
+
+    verify(ctx, Mockito.never()).json(any());
+    User[] streamedUsers = javalinJackson.fromJsonString(output.written(), User[].class);
+    assertEquals(2, streamedUsers.length);
+    assertEquals("Jamie", streamedUsers[0].name);
+    assertEquals("Sam", streamedUsers[1].name);
+  }
+
+  @Test
+  void canStreamUsersGroupedByCompany() throws IOException {
+    RecordingOutputStream output = new RecordingOutputStream();
+    when(ctx.queryParam(JsonStreaming.STREAM_KEY)).thenReturn("true");
+    when(ctx.outputStream()).thenReturn(output);
+
+    userController.getUsersGroupedByCompany(ctx);
+
+    verify(ctx, Mockito.never()).json(any());
+    UserByCompany[] streamedGroups = javalinJackson.fromJsonString(output.written(), UserByCompany[].class);
+    assertEquals(3, streamedGroups.length);
+    assertEquals("IBM", streamedGroups[0]._id);
+  }
+
+  @Test
+  void canPageThroughJustSomeUserFields() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(FieldProjection.FIELDS_KEY, Arrays.asList(new String[] {"company"}));
+    queryParams.put(KeysetPagination.LIMIT_KEY, Arrays.asList(new String[] {"3"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(FieldProjection.FIELDS_KEY)).thenReturn("company");
+    when(ctx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "3", KeysetPagination.LIMIT_KEY));
+
+    userController.getUsers(ctx);
+
+    // Users are sorted by name, which isn't sent to the client, but is still
+    // read from the database so that we can make the next page token.
+    verify(ctx).json(mapListCaptor.capture());
+    verify(ctx).header(Mockito.eq(KeysetPagination.NEXT_PAGE_HEADER), stringCaptor.capture());
+    assertEquals(3, mapListCaptor.getValue().size());
+    assertEquals(Map.of("_id", mapListCaptor.getValue().get(0).get("_id"), "company", "UMM"),
+        mapListCaptor.getValue().get(0));
+  }
+
+  @Test
+  void rejectsUnknownUserFields() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(FieldProjection.FIELDS_KEY, Arrays.asList(new String[] {"name,password"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(FieldProjection.FIELDS_KEY)).thenReturn("name,password");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.getUsers(ctx);
+    });
+  }
+
   @Test
   void getUserWithExistentId() throws IOException {
     String id = samsId.toHexString();
@@ -457,6 +735,9 @@ class UserControllerSpec {
   @Captor
   private ArgumentCaptor<ArrayList<UserByCompany>> userByCompanyListCaptor;
 
+  @Captor
+  private ArgumentCaptor<ArrayList<UserIdName>> userIdNameListCaptor;
+
   @Test
   public void testGetUsersGroupedByCompany() {
     when(ctx.queryParam("sortBy")).thenReturn("company");
@@ -557,6 +838,82 @@ class UserControllerSpec {
     assertEquals(2, ohmnet.count);
   }
 
+  @Test
+  void groupsOnlyIncludeTheFirstFewMembers() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.MEMBERS_KEY, Arrays.asList(new String[] {"1"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(UserController.MEMBERS_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "1", UserController.MEMBERS_KEY));
+
+    userController.getUsersGroupedByCompany(ctx);
+
+    verify(ctx).json(userByCompanyListCaptor.capture());
+    UserByCompany ohmnet = userByCompanyListCaptor.getValue().get(1);
+    assertEquals("OHMNET", ohmnet._id);
+    // The count still includes everyone, but only the first user by name is listed.
+    assertEquals(2, ohmnet.count);
+    assertEquals(1, ohmnet.users.size());
+    assertEquals("Jamie", ohmnet.users.get(0).name);
+  }
+
+  @Test
+  void rejectsIllegalNumberOfMembers() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.MEMBERS_KEY, Arrays.asList(new String[] {"0"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParamAsClass(UserController.MEMBERS_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "0", UserController.MEMBERS_KEY));
+
+    assertThrows(ValidationException.class, () -> {
+      userController.getUsersGroupedByCompany(ctx);
+    });
+  }
+
+  @Test
+  void canGetAllTheUsersInACompany() {
+    when(ctx.pathParam("company")).thenReturn("OHMNET");
+
+    userController.getUsersInCompany(ctx);
+
+    verify(ctx).json(userIdNameListCaptor.capture());
+    verify(ctx, Mockito.never()).header(any(), any());
+    List<UserIdName> members = userIdNameListCaptor.getValue();
+    assertEquals(2, members.size());
+    assertEquals("Jamie", members.get(0).name);
+    assertEquals("Sam", members.get(1).name);
+    assertEquals(samsId.toHexString(), members.get(1)._id);
+  }
+
+  @Test
+  void canPageThroughTheUsersInACompany() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(KeysetPagination.LIMIT_KEY, Arrays.asList(new String[] {"1"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.pathParam("company")).thenReturn("OHMNET");
+    when(ctx.queryParamAsClass(KeysetPagination.LIMIT_KEY, Integer.class))
+        .thenReturn(Validator.create(Integer.class, "1", KeysetPagination.LIMIT_KEY));
+
+    userController.getUsersInCompany(ctx);
+
+    verify(ctx).json(userIdNameListCaptor.capture());
+    verify(ctx).header(Mockito.eq(KeysetPagination.NEXT_PAGE_HEADER), stringCaptor.capture());
+    assertEquals("Jamie", userIdNameListCaptor.getValue().get(0).name);
+
+    String token = stringCaptor.getValue();
+    queryParams.put(KeysetPagination.AFTER_KEY, Arrays.asList(new String[] {token}));
+    when(ctx.queryParam(KeysetPagination.AFTER_KEY)).thenReturn(token);
+
+    userController.getUsersInCompany(ctx);
+
+    verify(ctx, Mockito.times(2)).json(userIdNameListCaptor.capture());
+    List<UserIdName> secondPage = userIdNameListCaptor.getValue();
+    assertEquals(1, secondPage.size());
+    assertEquals("Sam", secondPage.get(0).name);
+    // There's no third page.
+    verify(ctx, Mockito.times(1)).header(any(), any());
+  }
+
   @Test
   void addUser() throws IOException {
     String testNewUser = """
@@ -587,6 +944,7 @@ class UserControllerSpec {
     assertEquals("Test User", addedUser.get("name"));
     assertEquals(25, addedUser.get(UserController.AGE_KEY));
     assertEquals("testers", addedUser.get(UserController.COMPANY_KEY));
+    assertEquals("testers", addedUser.get(UserController.COMPANY_LOWER_KEY));
     assertEquals("test@example.com", addedUser.get("email"));
     assertEquals("viewer", addedUser.get(UserController.ROLE_KEY));
     assertNotNull(addedUser.get("avatar"));
@@ -730,6 +1088,26 @@ class UserControllerSpec {
     });
   }
 
+  @Test
+  void addUserReportsEveryBrokenRule() throws IOException {
+    String testNewUser = """
+        {
+          "name": "Test User",
+          "age": 25,
+          "company": "testers",
+          "role": "invalidrole"
+        }
+        """;
+    when(ctx.bodyValidator(User.class))
+        .then(value -> new BodyValidator<User>(testNewUser, User.class, javalinJackson));
+
+    ValidationException e = assertThrows(ValidationException.class, () -> {
+      userController.addNewUser(ctx);
+    });
+    // The email is missing and the role is illegal.
+    assertEquals(2, e.getErrors().get("REQUEST_BODY").size());
+  }
+
   @Test
   void addNullCompanyUser() throws IOException {
     String testNewUser = """
@@ -783,6 +1161,143 @@ class UserControllerSpec {
     assertEquals(0, db.getCollection("users").countDocuments(eq("_id", new ObjectId(testID))));
   }
 
+  @Test
+  void dataVersionChangesWithTheUsers() throws IOException {
+    long version = userController.dataVersion();
+    when(ctx.bodyValidator(User.class))
+        .then(value -> new BodyValidator<User>(
+          "{\"name\": \"Fry\", \"age\": 25, \"company\": \"Planet Express\", "
+            + "\"email\": \"fry@example.com\", \"role\": \"viewer\"}",
+          User.class, javalinJackson));
+
+    userController.addNewUser(ctx);
+
+    assertNotEquals(version, userController.dataVersion());
+  }
+
+  @Test
+  void deletedUsersAreNoLongerFound() throws IOException {
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.getUser(ctx);
+
+    userController.deleteUser(ctx);
+
+    assertThrows(NotFoundResponse.class, () -> {
+      userController.getUser(ctx);
+    });
+  }
+
+  // testing bulk changes
+  @Captor
+  private ArgumentCaptor<Map<String, Object>> bulkResultCaptor;
+
+  private void filterByCompany(String company) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(UserController.COMPANY_KEY, Arrays.asList(new String[] {company}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.queryParam(UserController.COMPANY_KEY)).thenReturn(company);
+  }
+
+  @Test
+  void canMoveAWholeCompany() throws IOException {
+    filterByCompany("OHMNET");
+    when(ctx.body()).thenReturn("{\"company\": \"Frogs Inc\", \"email\": \"frogs@frogs.com\"}");
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.getUser(ctx);
+    long version = userController.dataVersion();
+
+    userController.updateUsers(ctx);
+
+    verify(ctx).json(bulkResultCaptor.capture());
+    assertEquals(Map.of("matched", 2L, "modified", 2L, UserController.DRY_RUN_KEY, false),
+      bulkResultCaptor.getValue());
+    assertEquals(2, db.getCollection("users").countDocuments(eq("company", "Frogs Inc")));
+    assertEquals(2, db.getCollection("users").countDocuments(eq(UserController.COMPANY_LOWER_KEY, "frogs inc")));
+    assertNotEquals(version, userController.dataVersion());
+    // The cached copy of Sam is gone, and the avatar follows the new email.
+    userController.getUser(ctx);
+    verify(ctx, Mockito.times(2)).json(userCaptor.capture());
+    assertEquals("Frogs Inc", userCaptor.getValue().company);
+    assertEquals(userController.generateAvatar("frogs@frogs.com"), userCaptor.getValue().avatar);
+  }
+
+  @Test
+  void bulkChangesRejectIllegalValues() throws IOException {
+    filterByCompany("OHMNET");
+    when(ctx.body()).thenReturn("{\"age\": 200}");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.updateUsers(ctx);
+    });
+    assertEquals(2, db.getCollection("users").countDocuments(eq("company", "OHMNET")));
+  }
+
+  @Test
+  void bulkChangesNeedAFilter() throws IOException {
+    when(ctx.body()).thenReturn("{\"role\": \"viewer\"}");
+
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.updateUsers(ctx);
+    });
+    assertThrows(BadRequestResponse.class, () -> {
+      userController.deleteUsers(ctx);
+    });
+    assertEquals(4, db.getCollection("users").countDocuments());
+  }
+
+  @Test
+  void bulkChangesCantBePaged() throws IOException {
+    when(ctx.body()).thenReturn("{\"role\": \"editor\"}");
+    for (String pageKey : List.of(KeysetPagination.LIMIT_KEY, KeysetPagination.AFTER_KEY)) {
+      filterByCompany("OHMNET");
+      ctx.queryParamMap().put(pageKey, List.of("1"));
+
+      assertThrows(BadRequestResponse.class, () -> {
+        userController.updateUsers(ctx);
+      });
+      assertThrows(BadRequestResponse.class, () -> {
+        userController.deleteUsers(ctx);
+      });
+    }
+    assertEquals(4, db.getCollection("users").countDocuments());
+    assertEquals(0, db.getCollection("users").countDocuments(
+      new Document("company", "OHMNET").append("role", "editor")));
+  }
+
+  @Test
+  void dryRunsOnlyCountTheUsers() throws IOException {
+    filterByCompany("OHMNET");
+    when(ctx.queryParam(UserController.DRY_RUN_KEY)).thenReturn("true");
+    when(ctx.body()).thenReturn("{\"role\": \"admin\"}");
+    long version = userController.dataVersion();
+
+    userController.updateUsers(ctx);
+    userController.deleteUsers(ctx);
+
+    verify(ctx, Mockito.times(2)).json(bulkResultCaptor.capture());
+    assertEquals(Map.of("matched", 2L, "modified", 0L, UserController.DRY_RUN_KEY, true),
+      bulkResultCaptor.getAllValues().get(0));
+    assertEquals(Map.of("matched", 2L, "deleted", 0L, UserController.DRY_RUN_KEY, true),
+      bulkResultCaptor.getAllValues().get(1));
+    assertEquals(2, db.getCollection("users").countDocuments(eq("role", "viewer")));
+    assertEquals(version, userController.dataVersion());
+  }
+
+  @Test
+  void canDeleteAWholeCompany() throws IOException {
+    filterByCompany("OHMNET");
+    when(ctx.pathParam("id")).thenReturn(samsId.toHexString());
+    userController.getUser(ctx);
+
+    userController.deleteUsers(ctx);
+
+    verify(ctx, Mockito.times(2)).json(any());
+    assertEquals(2, db.getCollection("users").countDocuments());
+    assertThrows(NotFoundResponse.class, () -> {
+      userController.getUser(ctx);
+    });
+  }
+
   @Test
   void tryToDeleteNotFoundUser() throws IOException {
     String testID = samsId.toHexString();